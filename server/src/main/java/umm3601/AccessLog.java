@@ -0,0 +1,354 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.eclipse.jetty.server.Response;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+/**
+ * An access log that costs the request thread next to nothing.
+ *
+ * Logging each request with `slf4j-simple` would format a message and
+ * write it to the console on the request's own thread. Instead, `log()`
+ * just copies a handful of numbers (and a reference to the route's path)
+ * into the next free slot of a ring buffer that was allocated up front,
+ * with no locks, no formatting, and no allocation. A background thread
+ * wakes up every `FLUSH_MILLIS`, turns everything that's been logged
+ * since into JSON lines, and writes them to `access.log` in one go.
+ *
+ * Each line looks like
+ *
+ *     {"t":1760000000000,"m":"GET","r":"/api/users/{id}","s":200,"us":850,"b":312,"db":420}
+ *
+ * with the time the request finished (milliseconds since the epoch), its
+ * method, route, and status, how long it took and how much of that it
+ * spent waiting on MongoDB (in microseconds), and the size of the body
+ * (in bytes, or -1 if we couldn't tell).
+ *
+ * When `access.log` reaches `MAX_FILE_BYTES` it's renamed `access.log.1`
+ * (and `access.log.1` to `access.log.2`, and so on), and the oldest of
+ * the `MAX_FILES` files is deleted.
+ *
+ * If requests come in faster than the background thread can write them
+ * out, the ones that don't fit in the buffer are dropped (and counted in
+ * `dropped()`) rather than holding up the requests.
+ *
+ * The time spent on MongoDB comes from `DATABASE_TIMER`, which has to be
+ * registered as a command listener with the MongoDB client. The sync
+ * driver runs each command on the calling thread, so the timer can keep
+ * a running total for each thread; only database calls made on the
+ * request's own thread are counted.
+ */
+public class AccessLog implements AutoCloseable {
+
+  // How many entries the ring buffer holds (a power of two)
+  static final int CAPACITY = 1 << 14;
+  // How often the background thread writes the log out
+  static final long FLUSH_MILLIS = 200;
+  // The size at which the log file is rotated
+  static final long MAX_FILE_BYTES = 64L * 1024 * 1024;
+  // How many log files (the current one and the rotated ones) we keep
+  static final int MAX_FILES = 10;
+  static final String FILE_NAME = "access.log";
+
+  private static final int MICROS_PER_MILLI = 1000;
+
+  // Each thread's running total of time spent on MongoDB, in nanoseconds
+  private static final ThreadLocal<long[]> DATABASE_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+  /**
+   * Adds up how long each thread has spent waiting on MongoDB commands.
+   */
+  public static final CommandListener DATABASE_TIMER = new CommandListener() {
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+      DATABASE_NANOS.get()[0] += event.getElapsedTime(TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+      DATABASE_NANOS.get()[0] += event.getElapsedTime(TimeUnit.NANOSECONDS);
+    }
+  };
+
+  private final Path directory;
+  private final Path file;
+  private final long maxFileBytes;
+
+  // The ring buffer, one array per field. Slot `seq & mask` holds entry
+  // `seq`, and `published` holds `seq + 1` once the entry is all there.
+  private final int mask = CAPACITY - 1;
+  private final long[] times = new long[CAPACITY];
+  private final HandlerType[] methods = new HandlerType[CAPACITY];
+  private final String[] routes = new String[CAPACITY];
+  private final int[] statuses = new int[CAPACITY];
+  private final long[] latencies = new long[CAPACITY];
+  private final long[] sizes = new long[CAPACITY];
+  private final long[] databaseTimes = new long[CAPACITY];
+  private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+  // The next entry to be claimed by a request thread
+  private final AtomicLong claimed = new AtomicLong();
+  // The next entry to be written out; only the background thread moves it
+  private volatile long drained;
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder failedWrites = new LongAdder();
+
+  private final StringBuilder lines = new StringBuilder();
+  private final Thread writer;
+  private volatile boolean closed;
+  private OutputStream out;
+  private long fileBytes;
+
+  /**
+   * Construct an access log writing to `access.log` in a directory (which
+   * is created if it doesn't exist), and start its background thread.
+   *
+   * @param directory the directory to keep the log files in
+   * @throws UncheckedIOException if the log file can't be opened
+   */
+  public AccessLog(Path directory) {
+    this(directory, MAX_FILE_BYTES);
+  }
+
+  /**
+   * Construct an access log that rotates its file at `maxFileBytes`.
+   *
+   * @param directory the directory to keep the log files in
+   * @param maxFileBytes the size at which the log file is rotated
+   * @throws UncheckedIOException if the log file can't be opened
+   */
+  AccessLog(Path directory, long maxFileBytes) {
+    this.directory = directory;
+    this.maxFileBytes = maxFileBytes;
+    this.file = directory.resolve(FILE_NAME);
+    try {
+      Files.createDirectories(directory);
+      open();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    writer = Thread.ofPlatform().daemon().name("access log writer").start(this::run);
+  }
+
+  /**
+   * A request logger (for Javalin's `requestLogger.http()`) that logs a
+   * request once its response has been written.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param executionTimeMillis how long the request took, in milliseconds
+   */
+  public void log(Context ctx, float executionTimeMillis) {
+    long size = ctx.res() instanceof Response response
+      ? response.getHttpOutput().getWritten()
+      : -1;
+    log(System.currentTimeMillis(), ctx.method(), route(ctx), ctx.statusCode(),
+      (long) (executionTimeMillis * MICROS_PER_MILLI), size, TimeUnit.NANOSECONDS.toMicros(takeDatabaseNanos()));
+  }
+
+  /**
+   * The path the request was routed by (e.g., `/api/users/{id}`), so the
+   * log can be grouped by route; or the actual path, if it wasn't routed.
+   */
+  private static String route(Context ctx) {
+    String route = ctx.endpointHandlerPath();
+    return route == null || route.isEmpty() ? ctx.path() : route;
+  }
+
+  /**
+   * The time the current thread has spent on MongoDB since this was last
+   * called; the total starts again from zero.
+   *
+   * @return the time spent on MongoDB, in nanoseconds
+   */
+  static long takeDatabaseNanos() {
+    long[] total = DATABASE_NANOS.get();
+    long nanos = total[0];
+    total[0] = 0;
+    return nanos;
+  }
+
+  /**
+   * Put an entry in the ring buffer, if there's room for it.
+   *
+   * @return whether there was room
+   */
+  boolean log(long time, HandlerType method, String route, int status, long latencyMicros, long size,
+      long databaseMicros) {
+    long seq;
+    do {
+      seq = claimed.get();
+      if (seq - drained >= CAPACITY) {
+        dropped.increment();
+        return false;
+      }
+    } while (!claimed.compareAndSet(seq, seq + 1));
+
+    int slot = (int) (seq & mask);
+    times[slot] = time;
+    methods[slot] = method;
+    routes[slot] = route;
+    statuses[slot] = status;
+    latencies[slot] = latencyMicros;
+    sizes[slot] = size;
+    databaseTimes[slot] = databaseMicros;
+    // This is a volatile write, so once the background thread sees it,
+    // it sees the fields above too
+    published.set(slot, seq + 1);
+    return true;
+  }
+
+  private void run() {
+    while (!closed) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS));
+      try {
+        flush();
+      } catch (IOException e) {
+        // Losing a batch of the access log is better than losing the
+        // writer; we'll try again with the next one.
+        failedWrites.increment();
+      }
+    }
+  }
+
+  /**
+   * Write out everything that's been logged so far.
+   *
+   * @return the number of entries written
+   * @throws IOException if the log file can't be written or rotated
+   */
+  synchronized int flush() throws IOException {
+    long seq = drained;
+    int count = 0;
+    while (published.get((int) (seq & mask)) == seq + 1) {
+      format((int) (seq & mask));
+      seq++;
+      count++;
+    }
+    drained = seq;
+    if (count == 0) {
+      return 0;
+    }
+
+    byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+    lines.setLength(0);
+    if (out == null) {
+      // The last rotation failed part way through, so carry on with
+      // whatever `access.log` is now (rather than never logging again)
+      open();
+    }
+    if (fileBytes > 0 && fileBytes + bytes.length > maxFileBytes) {
+      rotate();
+    }
+    out.write(bytes);
+    out.flush();
+    fileBytes += bytes.length;
+    return count;
+  }
+
+  private void format(int slot) {
+    lines.append("{\"t\":").append(times[slot])
+      .append(",\"m\":\"").append(methods[slot])
+      .append("\",\"r\":\"");
+    String route = routes[slot];
+    for (int i = 0; i < route.length(); i++) {
+      char c = route.charAt(i);
+      if (c == '"' || c == '\\') {
+        lines.append('\\').append(c);
+      } else if (c >= ' ') {
+        lines.append(c);
+      }
+    }
+    lines.append("\",\"s\":").append(statuses[slot])
+      .append(",\"us\":").append(latencies[slot])
+      .append(",\"b\":").append(sizes[slot])
+      .append(",\"db\":").append(databaseTimes[slot])
+      .append("}\n");
+    // Don't hold on to the route after we're done with it
+    routes[slot] = null;
+  }
+
+  private void open() throws IOException {
+    out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    fileBytes = Files.size(file);
+  }
+
+  /**
+   * Shift `access.log.N` to `access.log.N+1` (dropping the oldest), and
+   * start a new `access.log`. If that fails, `out` is left `null`, and
+   * the next `flush()` opens `access.log` again.
+   */
+  private void rotate() throws IOException {
+    OutputStream old = out;
+    out = null;
+    old.close();
+    Files.deleteIfExists(rotated(MAX_FILES - 1));
+    for (int i = MAX_FILES - 2; i >= 1; i--) {
+      if (Files.exists(rotated(i))) {
+        Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    open();
+  }
+
+  private Path rotated(int generation) {
+    return directory.resolve(FILE_NAME + "." + generation);
+  }
+
+  /**
+   * The number of entries dropped because the ring buffer was full.
+   *
+   * @return the number of dropped entries
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * The number of batches of entries lost because they couldn't be written.
+   *
+   * @return the number of failed writes
+   */
+  public long failedWrites() {
+    return failedWrites.sum();
+  }
+
+  /**
+   * Stop the background thread, and write out whatever's left.
+   *
+   * @throws IOException if the log file can't be written or closed
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      flush();
+      out.close();
+    }
+  }
+}
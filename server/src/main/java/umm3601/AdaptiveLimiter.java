@@ -0,0 +1,194 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * An adaptive concurrency limit for the whole server, so that when MongoDB
+ * slows down, requests are turned away quickly (with a `503` and a
+ * `Retry-After` header) instead of piling up until every client times out.
+ *
+ * There's no fixed "right" number of requests to run at once; it depends
+ * on how fast the database is right now. So, like the "gradient" limiters
+ * in Netflix's concurrency-limits library, this keeps adjusting the limit
+ * by watching request latencies:
+ *
+ * - `longRtt` is a slow-moving average of the latency, our idea of what's
+ *   normal;
+ * - each finished request's latency is compared with it. If requests are
+ *   taking more than `TOLERANCE` times as long as normal, requests are
+ *   queueing somewhere, and the limit shrinks in proportion; otherwise
+ *   the limit grows by about `sqrt(limit)`, to probe for more capacity.
+ *
+ * The limit only grows while it's actually being used (at least half of
+ * it is in flight), so a quiet server doesn't end up with a huge limit.
+ *
+ * Cheap requests (as decided by the `cheap` predicate) can use the whole
+ * limit, but other requests only `HEAVY_SHARE` of it; under overload the
+ * heavy requests are shed first, and the cheap ones keep working.
+ *
+ * Install it with `before()` and `after()` as before- and after-handlers
+ * for the matched routes.
+ */
+public class AdaptiveLimiter {
+
+  static final int INITIAL_LIMIT = 20;
+  static final int MIN_LIMIT = 4;
+  static final int MAX_LIMIT = 200;
+  // Requests can take this many times longer than normal before we back off
+  static final double TOLERANCE = 1.5;
+  // How much of the limit requests that aren't cheap can use
+  static final double HEAVY_SHARE = 0.75;
+  // How much each new limit is blended into the current one
+  private static final double SMOOTHING = 0.2;
+  // The number of samples `longRtt` is (roughly) averaged over
+  private static final int LONG_WINDOW = 600;
+  // The limit never shrinks by more than half at once
+  private static final double MIN_GRADIENT = 0.5;
+  // If a request is this many times faster than normal, what's normal has changed
+  private static final double RECOVERY_FACTOR = 2;
+  // How long (in seconds) a turned-away client should wait before trying again
+  static final String RETRY_AFTER_SECONDS = "1";
+
+  // The request attribute holding when a request was let in
+  private static final String START_ATTRIBUTE = AdaptiveLimiter.class.getName() + ".start";
+
+  private final Predicate<Context> cheap;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger shed = new AtomicInteger();
+  private volatile double limit = INITIAL_LIMIT;
+  private double longRtt;
+
+  /**
+   * Construct a limiter.
+   *
+   * @param cheap which requests are cheap, and so get the whole limit
+   */
+  public AdaptiveLimiter(Predicate<Context> cheap) {
+    this.cheap = cheap;
+  }
+
+  /**
+   * A before-handler that lets a request in, or turns it away with
+   * `503 Service Unavailable` if there are too many in flight.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void before(Context ctx) {
+    if (!tryAcquire(cheap.test(ctx))) {
+      shed.incrementAndGet();
+      ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse("The server is overloaded; try again shortly");
+    }
+    ctx.attribute(START_ATTRIBUTE, System.nanoTime());
+  }
+
+  /**
+   * An after-handler that records how long a request we let in took.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void after(Context ctx) {
+    Long start = ctx.attribute(START_ATTRIBUTE);
+    if (start == null) {
+      // We turned this one away (or never saw it)
+      return;
+    }
+    ctx.attribute(START_ATTRIBUTE, null);
+    release(System.nanoTime() - start, ctx.statusCode() < HttpStatus.INTERNAL_SERVER_ERROR.getCode());
+  }
+
+  /**
+   * Let a request in, if there's room for it.
+   *
+   * @param isCheap whether the request is cheap
+   * @return whether the request was let in
+   */
+  boolean tryAcquire(boolean isCheap) {
+    int allowed = (int) (isCheap ? limit : limit * HEAVY_SHARE);
+    while (true) {
+      int current = inFlight.get();
+      if (current >= Math.max(allowed, 1)) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Record that a request we let in has finished, and adjust the limit.
+   *
+   * @param rttNanos how long the request took
+   * @param succeeded whether it succeeded; failures finish early or late
+   *   for reasons that have nothing to do with load, so they don't count
+   */
+  synchronized void release(long rttNanos, boolean succeeded) {
+    int wasInFlight = inFlight.getAndDecrement();
+    if (!succeeded || rttNanos <= 0) {
+      return;
+    }
+    double rtt = rttNanos;
+    if (longRtt == 0) {
+      longRtt = rtt;
+    } else {
+      longRtt += (rtt - longRtt) / LONG_WINDOW;
+    }
+    // If latency has come down a lot, e.g., after an outage, let `longRtt`
+    // catch up quickly rather than waiting out the whole window
+    if (longRtt > RECOVERY_FACTOR * rtt) {
+      longRtt = RECOVERY_FACTOR * rtt;
+    }
+    if (wasInFlight < limit / 2) {
+      // We aren't using the limit we have, so we've learned nothing about a bigger one
+      return;
+    }
+
+    double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * longRtt / rtt));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, newLimit));
+  }
+
+  /**
+   * The current concurrency limit.
+   *
+   * @return the number of requests that can be in flight at once
+   */
+  public int limit() {
+    return (int) limit;
+  }
+
+  /**
+   * The number of requests in flight right now.
+   *
+   * @return the number of requests in flight
+   */
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * The number of requests that have been turned away.
+   *
+   * @return the number of requests shed
+   */
+  public int shed() {
+    return shed.get();
+  }
+
+  /**
+   * The normal (long-term average) request latency.
+   *
+   * @return the normal latency, in milliseconds
+   */
+  public synchronized double normalLatencyMillis() {
+    return longRtt / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
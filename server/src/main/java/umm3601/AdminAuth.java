@@ -0,0 +1,55 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.Handler;
+import io.javalin.http.UnauthorizedResponse;
+
+/**
+ * Keeps the `/api/admin` routes (which can, e.g., start flight recordings)
+ * to whoever knows the admin token, which they send in the
+ * `X-Admin-Token` header.
+ *
+ * If there's no admin token (`ADMIN_TOKEN` isn't set), the admin routes
+ * are turned off altogether.
+ *
+ * Wrap a route's handler in `wrap()` to make it an admin route.
+ */
+public class AdminAuth {
+
+  // The header admins send the token in
+  public static final String TOKEN_HEADER = "X-Admin-Token";
+
+  private final byte[] token;
+
+  /**
+   * Construct an admin check.
+   *
+   * @param token the admin token, or `null` (or empty) to turn the admin routes off
+   */
+  public AdminAuth(String token) {
+    this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A handler that runs `handler` only for requests with the admin token.
+   *
+   * @param handler the admin route's handler
+   * @return the same handler, for admins only
+   */
+  public Handler wrap(Handler handler) {
+    return ctx -> {
+      if (token == null) {
+        throw new ForbiddenResponse("The admin routes are turned off");
+      }
+      String given = ctx.header(TOKEN_HEADER);
+      // Compare in constant time, so the time taken doesn't give the token away
+      if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+        throw new UnauthorizedResponse("This route needs the admin token in " + TOKEN_HEADER);
+      }
+      handler.handle(ctx);
+    };
+  }
+}
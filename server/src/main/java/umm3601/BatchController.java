@@ -0,0 +1,165 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Controller for `POST /api/batch`, which runs several (`GET`) API calls
+ * in one round trip, for clients on high-latency links that would
+ * otherwise make a string of requests one after the other (a user,
+ * then their todos, then the company grouping, say).
+ *
+ * The body is a list of sub-requests, like
+ * `[{"path": "/api/users/<id>"}, {"path": "/api/todos?company=ACME"}]`.
+ * Each one is sent back to this server, so it goes through exactly the
+ * same routes, validation, and error handling as if the client had sent
+ * it, and they all run at the same time; the whole batch takes about as
+ * long as its slowest sub-request rather than the sum of them. The
+ * response is a list with the status and (JSON) body of each
+ * sub-request, in the same order. Each sub-request is rate limited as the
+ * client's own (see `RateLimiter`), not as this server's.
+ *
+ * Only `GET`s can be batched: they can safely run in any order, and in
+ * parallel, which writes can't. A batch can't include another batch.
+ */
+public class BatchController implements Controller {
+
+  static final String API_BATCH = "/api/batch";
+  // The most sub-requests one batch can contain
+  static final int MAX_REQUESTS = 20;
+  // How long to wait for any one sub-request
+  static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+  /**
+   * One of the API calls in a batch.
+   *
+   * @param path the path (and query string) of a `GET` request, e.g., `/api/todos?limit=5`
+   */
+  public record SubRequest(String path) {
+  }
+
+  /**
+   * The result of one of the API calls in a batch.
+   *
+   * @param status the HTTP status of the response
+   * @param body the body of the response (a JSON string if the body wasn't JSON)
+   */
+  public record SubResponse(int status, JsonNode body) {
+  }
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  // The sub-requests mostly wait on the server, so they run on virtual threads
+  private final HttpClient client = HttpClient.newBuilder()
+    .executor(Executors.newVirtualThreadPerTaskExecutor())
+    .build();
+
+  // Where this server is listening, once it's started, e.g., `http://localhost:4567`
+  private volatile String baseUrl;
+
+  /**
+   * Run all the sub-requests in the body, and set the JSON body of the
+   * response to be the list of their results.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void runBatch(Context ctx) {
+    List<SubRequest> requests = Arrays.asList(ctx.bodyValidator(SubRequest[].class)
+      .check(it -> it.length <= MAX_REQUESTS, "A batch can have at most " + MAX_REQUESTS + " requests")
+      .check(it -> Arrays.stream(it).allMatch(BatchController::isBatchable),
+        "Each request in a batch must have a path in the API (other than " + API_BATCH + ")")
+      .get());
+
+    // Start them all, then wait for them all
+    List<CompletableFuture<SubResponse>> responses = new ArrayList<>(requests.size());
+    // Rate limit the sub-requests as this client's, not as the server's own
+    String client = Objects.requireNonNullElse(ctx.attribute(RateLimiter.CLIENT_ATTRIBUTE), ctx.ip());
+    for (SubRequest request : requests) {
+      responses.add(send(request, client));
+    }
+    List<SubResponse> results = new ArrayList<>(responses.size());
+    for (CompletableFuture<SubResponse> response : responses) {
+      results.add(response.join());
+    }
+
+    ctx.json(results);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Whether a sub-request is one we're willing to run: a path in the API,
+   * other than another batch.
+   */
+  static boolean isBatchable(SubRequest request) {
+    if (request == null || request.path() == null || !request.path().startsWith("/api/")
+        || request.path().startsWith(API_BATCH)) {
+      return false;
+    }
+    try {
+      URI.create(request.path());
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private CompletableFuture<SubResponse> send(SubRequest request, String client) {
+    HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(baseUrl + request.path()))
+      .header("Accept", "application/json")
+      .header(RateLimiter.ON_BEHALF_OF_HEADER, client)
+      .header(RateLimiter.INTERNAL_TOKEN_HEADER, RateLimiter.internalToken())
+      .timeout(REQUEST_TIMEOUT)
+      .GET()
+      .build();
+    return client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+      .thenApply(response -> new SubResponse(response.statusCode(), parse(response.body())))
+      // One sub-request failing (or timing out) shouldn't fail the whole batch
+      .exceptionally(e -> new SubResponse(
+        (e.getCause() instanceof HttpTimeoutException ? HttpStatus.GATEWAY_TIMEOUT : HttpStatus.BAD_GATEWAY).getCode(),
+        new TextNode(e.getCause() == null ? e.toString() : e.getCause().toString())));
+  }
+
+  private static JsonNode parse(String body) {
+    if (body.isBlank()) {
+      return NullNode.getInstance();
+    }
+    try {
+      return MAPPER.readTree(body);
+    } catch (IOException e) {
+      return new TextNode(body);
+    }
+  }
+
+  /**
+   * Add the route for `POST /api/batch`.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.post(API_BATCH, this::runBatch);
+
+    // Sub-requests are sent back to this server, so we need to know its port
+    server.events(event -> event.serverStarted(() -> baseUrl = "http://localhost:" + server.port()));
+  }
+}
@@ -0,0 +1,120 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+
+import io.javalin.http.Context;
+
+/**
+ * Fetches many documents by id in one request, e.g.,
+ * `GET /api/usersBatch?ids=<id>,<id>,...`, so a client resolving a list
+ * of ids (like the `users` of a `UserByCompany`) doesn't have to make
+ * one HTTP request, and one `find(eq("_id", ...))` query, per id.
+ *
+ * The ids are looked up in the controller's in-memory cache first (if it
+ * has one), and all the rest are fetched with a single `$in` query. The
+ * results come back in the order the ids were asked for, each marked as
+ * found or not, so one missing id doesn't fail the whole batch.
+ *
+ * At most `maxIds` ids can be asked for at once, so one request can't
+ * make the server read an unbounded number of documents.
+ */
+public class BatchLookup {
+
+  // The query parameter listing the ids, separated by commas
+  public static final String IDS_KEY = "ids";
+  // How many ids can be asked for at once, unless the server is configured otherwise
+  public static final int DEFAULT_MAX_IDS = 100;
+
+  /**
+   * The result of looking up one of the ids.
+   *
+   * @param id the id that was asked for
+   * @param found whether there is a document with that id
+   * @param item the document, or `null` if it wasn't found
+   * @param <T> the type of the documents
+   */
+  public record Entry<T>(String id, boolean found, T item) {
+  }
+
+  private final int maxIds;
+
+  /**
+   * Construct a lookup that allows up to `maxIds` ids per request.
+   *
+   * @param maxIds the most ids a request can ask for
+   * @throws IllegalArgumentException if `maxIds` isn't positive
+   */
+  public BatchLookup(int maxIds) {
+    if (maxIds <= 0) {
+      throw new IllegalArgumentException("The most ids in a batch must be positive; it was " + maxIds);
+    }
+    this.maxIds = maxIds;
+  }
+
+  /**
+   * The ids a request asked for, in the order it asked for them
+   * (and in the lowercase hex form our documents' ids are in).
+   *
+   * @param ctx a Javalin HTTP context, which contains the `ids` query parameter
+   * @return the requested ids
+   */
+  public List<String> parse(Context ctx) {
+    String ids = ctx.queryParamAsClass(IDS_KEY, String.class)
+      .check(it -> it.split(",").length <= maxIds, "At most " + maxIds + " ids can be requested at once")
+      .check(it -> Arrays.stream(it.split(",")).map(String::trim).allMatch(ObjectId::isValid),
+        "The requested ids must all be legal Mongo Object IDs")
+      .get();
+    return Arrays.stream(ids.split(",")).map(id -> new ObjectId(id.trim()).toHexString()).toList();
+  }
+
+  /**
+   * Look up documents by id.
+   *
+   * @param ids the ids to look up (which may include duplicates)
+   * @param cached the cached document with an id, or `null` if it isn't cached
+   * @param collection the collection to fetch the uncached documents from
+   * @param idOf the id of a document fetched from `collection`
+   * @param deadline the request's deadline, which MongoDB gives up on the `$in` query at
+   * @param <T> the type of the documents
+   * @return an entry for each of `ids`, in the same order
+   */
+  public static <T> List<Entry<T>> lookup(List<String> ids, Function<String, T> cached,
+      MongoCollection<T> collection, Function<T, String> idOf, Deadline deadline) {
+    Map<String, T> found = new HashMap<>();
+    Set<ObjectId> missing = new LinkedHashSet<>();
+    for (String id : ids) {
+      T item = cached.apply(id);
+      if (item != null) {
+        found.put(id, item);
+      } else {
+        missing.add(new ObjectId(id));
+      }
+    }
+    if (!missing.isEmpty()) {
+      for (T item : collection.find(in("_id", missing)).maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+        found.put(idOf.apply(item), item);
+      }
+    }
+
+    List<Entry<T>> entries = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      T item = found.get(id);
+      entries.add(new Entry<>(id, item != null, item));
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,243 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.bson.Document;
+import org.roaringbitmap.RoaringBitmap;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+/**
+ * An in-memory secondary index over a few low-cardinality fields of a
+ * collection (e.g., a user's `role` or a todo's `completed` status).
+ *
+ * Each document is given a small integer "row" number, and for every
+ * distinct value of every indexed field we keep a compressed
+ * ([Roaring](https://roaringbitmap.org/)) bitmap of the rows that have
+ * that value. Questions like "how many incomplete todos are there for
+ * company X?" are then answered by intersecting a couple of bitmaps,
+ * without looking at (or even loading) any documents.
+ *
+ * Documents with no value (or a `null` value) for a field aren't in any
+ * of that field's bitmaps, so, like a MongoDB `eq` filter, they never
+ * match a condition on that field.
+ *
+ * The index is safe to use from several threads at once; counts can run
+ * concurrently, while `put()` and `remove()` briefly lock everyone out.
+ */
+public class BitmapIndex {
+
+  private final List<String> fields;
+
+  // The row number of each indexed document, keyed by document id
+  private final Map<String, Integer> rows = new HashMap<>();
+  // Row numbers of documents that have been removed, and can be reused
+  private final List<Integer> freeRows = new ArrayList<>();
+  // The rows of every document currently in the index
+  private final RoaringBitmap live = new RoaringBitmap();
+  // field -> value -> the rows having that value for that field
+  private final Map<String, Map<String, RoaringBitmap>> bitmaps = new HashMap<>();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Construct an empty index over the given fields.
+   *
+   * @param fields the names of the fields to index
+   */
+  public BitmapIndex(List<String> fields) {
+    this.fields = List.copyOf(fields);
+    for (String field : this.fields) {
+      bitmaps.put(field, new HashMap<>());
+    }
+  }
+
+  /**
+   * Build an index over the given fields of every document in a collection.
+   *
+   * @param collection the collection to index
+   * @param fields the names of the fields to index
+   * @return an index of the whole collection
+   */
+  public static BitmapIndex load(MongoCollection<Document> collection, List<String> fields) {
+    BitmapIndex index = new BitmapIndex(fields);
+    for (Document doc : collection.find().projection(Projections.include(fields))) {
+      index.put(doc.get("_id").toString(), doc);
+    }
+    index.optimize();
+    return index;
+  }
+
+  /**
+   * Add a document to the index, replacing any earlier version of it.
+   *
+   * @param id the id of the document
+   * @param values the document's values, keyed by field name; fields
+   *   that aren't indexed are ignored
+   */
+  public void put(String id, Map<String, ?> values) {
+    lock.writeLock().lock();
+    try {
+      removeRow(id);
+      int row = freeRows.isEmpty() ? rows.size() : freeRows.remove(freeRows.size() - 1);
+      rows.put(id, row);
+      live.add(row);
+      for (String field : fields) {
+        Object value = values.get(field);
+        if (value != null) {
+          bitmaps.get(field).computeIfAbsent(value.toString(), v -> new RoaringBitmap()).add(row);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a document from the index (if it's there).
+   *
+   * @param id the id of the document
+   */
+  public void remove(String id) {
+    lock.writeLock().lock();
+    try {
+      removeRow(id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void removeRow(String id) {
+    Integer row = rows.remove(id);
+    if (row == null) {
+      return;
+    }
+    live.remove(row);
+    freeRows.add(row);
+    for (Map<String, RoaringBitmap> values : bitmaps.values()) {
+      values.values().removeIf(bitmap -> {
+        bitmap.remove(row);
+        return bitmap.isEmpty();
+      });
+    }
+  }
+
+  /**
+   * Compress the bitmaps as much as possible. This is worth doing after
+   * loading lots of documents at once.
+   */
+  public void optimize() {
+    lock.writeLock().lock();
+    try {
+      live.runOptimize();
+      bitmaps.values().forEach(values -> values.values().forEach(RoaringBitmap::runOptimize));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Count the documents that satisfy *all* of the given conditions.
+   *
+   * Each condition is a test on the (string form of the) value of one
+   * indexed field; e.g., `Map.of("role", "admin"::equals)`. With no
+   * conditions, this counts every document in the index.
+   *
+   * @param conditions the tests each field must pass, keyed by field name
+   * @return the number of documents satisfying every condition
+   * @throws IllegalArgumentException if a condition is on a field that
+   *   isn't indexed
+   */
+  public long count(Map<String, Predicate<String>> conditions) {
+    lock.readLock().lock();
+    try {
+      return matching(conditions).getLongCardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Count, for each value of each of the `facetFields`, the documents
+   * that have that value and satisfy all of the given conditions; e.g.,
+   * the number of matching documents with each role.
+   *
+   * Values that no matching document has are left out, as are matching
+   * documents with no value for a facet field.
+   *
+   * @param conditions the tests each field must pass, keyed by field
+   *   name, as for `count()`
+   * @param facetFields the fields to count the values of
+   * @return field -> value -> the number of matching documents with that value
+   * @throws IllegalArgumentException if a condition or facet is on a field
+   *   that isn't indexed
+   */
+  public Map<String, Map<String, Long>> facets(Map<String, Predicate<String>> conditions, List<String> facetFields) {
+    lock.readLock().lock();
+    try {
+      RoaringBitmap matching = matching(conditions);
+      Map<String, Map<String, Long>> facets = new HashMap<>();
+      for (String field : facetFields) {
+        Map<String, Long> counts = new HashMap<>();
+        indexedValues(field).forEach((value, bitmap) -> {
+          long count = RoaringBitmap.andCardinality(matching, bitmap);
+          if (count > 0) {
+            counts.put(value, count);
+          }
+        });
+        facets.put(field, counts);
+      }
+      return facets;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The rows of the documents satisfying all of the conditions. The
+   * caller must hold (at least) the read lock.
+   */
+  private RoaringBitmap matching(Map<String, Predicate<String>> conditions) {
+    RoaringBitmap matching = live.clone();
+    for (Map.Entry<String, Predicate<String>> condition : conditions.entrySet()) {
+      // The rows whose value for this field passes the test
+      RoaringBitmap passing = new RoaringBitmap();
+      indexedValues(condition.getKey()).forEach((value, bitmap) -> {
+        if (condition.getValue().test(value)) {
+          passing.or(bitmap);
+        }
+      });
+      matching.and(passing);
+    }
+    return matching;
+  }
+
+  private Map<String, RoaringBitmap> indexedValues(String field) {
+    Map<String, RoaringBitmap> values = bitmaps.get(field);
+    if (values == null) {
+      throw new IllegalArgumentException("The field " + field + " isn't indexed");
+    }
+    return values;
+  }
+
+  /**
+   * The number of documents in the index.
+   *
+   * @return the number of documents in the index
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return rows.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+}
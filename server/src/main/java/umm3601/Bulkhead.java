@@ -0,0 +1,156 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * A "bulkhead" that limits how many requests of one class (cheap id
+ * lookups, say, or heavy aggregations) can run at once, so a burst of
+ * one class can't starve the others of database connections.
+ *
+ * Each request runs on its own virtual thread (see `Server`), so threads
+ * aren't what runs out; MongoDB's connection pool is. A bulkhead gives
+ * each class of route its own share of it: at most `maxConcurrent`
+ * requests run at a time, up to `maxQueued` more wait (for at most
+ * `maxWait`) for one of them to finish, and any beyond that are turned
+ * away straight away with a `503 Service Unavailable`, which is better
+ * than letting them pile up behind the slow requests.
+ *
+ * Wrap a route's handler in `wrap()` to put it behind the bulkhead.
+ */
+public class Bulkhead {
+
+  // How long (in seconds) a turned-away client should wait before trying again
+  static final String RETRY_AFTER_SECONDS = "1";
+  // How long a request waits for its turn, unless the server is configured otherwise
+  public static final Duration DEFAULT_WAIT = Duration.ofSeconds(2);
+
+  /**
+   * How many requests a bulkhead lets run, and how many it lets wait.
+   *
+   * @param maxConcurrent the most requests that can run at once
+   * @param maxQueued the most requests that can wait for a turn to run
+   * @param maxWait the longest a request waits for its turn
+   */
+  public record Limits(int maxConcurrent, int maxQueued, Duration maxWait) {
+    /** The default limits for cheap requests, like lookups by id and suggestions. */
+    public static final Limits LOOKUPS = new Limits(32, 64, DEFAULT_WAIT);
+    /** The default limits for heavy requests, like lists, counts, and aggregations. */
+    public static final Limits HEAVY_QUERIES = new Limits(8, 16, DEFAULT_WAIT);
+  }
+
+  private final String name;
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final Duration maxWait;
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger rejected = new AtomicInteger();
+
+  /**
+   * Construct a bulkhead.
+   *
+   * @param name the name of the class of routes, for error messages
+   * @param maxConcurrent the most requests that can run at once
+   * @param maxQueued the most requests that can wait for a turn to run
+   * @param maxWait the longest a request waits for its turn
+   * @throws IllegalArgumentException if `maxConcurrent` isn't positive,
+   *   or `maxQueued` is negative
+   */
+  public Bulkhead(String name, int maxConcurrent, int maxQueued, Duration maxWait) {
+    if (maxConcurrent <= 0 || maxQueued < 0) {
+      throw new IllegalArgumentException(
+        "A bulkhead needs a positive concurrency limit and a non-negative queue bound");
+    }
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.maxWait = maxWait;
+    permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Construct a bulkhead.
+   *
+   * @param name the name of the class of routes, for error messages
+   * @param limits how many requests can run, and how many can wait
+   * @throws IllegalArgumentException if the concurrency limit isn't
+   *   positive, or the queue bound is negative
+   */
+  public Bulkhead(String name, Limits limits) {
+    this(name, limits.maxConcurrent(), limits.maxQueued(), limits.maxWait());
+  }
+
+  /**
+   * A handler that runs `handler` once there's room for it in this bulkhead.
+   *
+   * @param handler the route's handler
+   * @return the same handler, behind this bulkhead
+   */
+  public Handler wrap(Handler handler) {
+    return ctx -> {
+      acquire(ctx);
+      try {
+        handler.handle(ctx);
+      } finally {
+        permits.release();
+      }
+    };
+  }
+
+  private void acquire(Context ctx) throws InterruptedException {
+    if (permits.tryAcquire()) {
+      return;
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      throw reject(ctx);
+    }
+    try {
+      if (!permits.tryAcquire(maxWait.toMillis(), TimeUnit.MILLISECONDS)) {
+        throw reject(ctx);
+      }
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  private ServiceUnavailableResponse reject(Context ctx) {
+    rejected.incrementAndGet();
+    ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+    return new ServiceUnavailableResponse("The server is too busy with " + name + " requests; try again shortly");
+  }
+
+  /**
+   * The number of requests running in this bulkhead right now.
+   *
+   * @return the number of requests running
+   */
+  public int running() {
+    return maxConcurrent - permits.availablePermits();
+  }
+
+  /**
+   * The number of requests waiting for a turn right now.
+   *
+   * @return the number of requests waiting
+   */
+  public int waiting() {
+    return queued.get();
+  }
+
+  /**
+   * The number of requests this bulkhead has turned away.
+   *
+   * @return the number of rejected requests
+   */
+  public int rejected() {
+    return rejected.get();
+  }
+}
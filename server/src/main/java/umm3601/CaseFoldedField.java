@@ -0,0 +1,314 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.all;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Case-insensitive searching of a string field (e.g., a user's `company`)
+ * that MongoDB can answer from an index instead of by scanning the whole
+ * collection.
+ *
+ * A case-insensitive regular expression like `/acme/i` can never use a
+ * B-tree index, so every search examines every document. Instead, each
+ * document also gets two "shadow" fields derived from the searched field:
+ *
+ * - `<field>Folded`, the value case-folded (and Unicode normalized), so
+ *   exact and prefix searches become equality and range scans of an
+ *   ordinary index on that field, and
+ * - `<field>Grams`, the distinct `GRAM_LENGTH`-character substrings
+ *   (n-grams) of the folded value. Any value containing the search text
+ *   must contain all of the search text's n-grams, so a multikey index on
+ *   this field narrows a substring search down to a few candidates, which
+ *   are then checked against the folded value.
+ *
+ * The shadow fields have to be kept up to date by whoever writes the
+ * documents (see `shadowValues()` and `shadowFields()`); `prepare()` builds
+ * the indexes and fills in the shadow fields of any documents that don't
+ * have them yet. For collections written by something that doesn't keep
+ * them up to date, `filterIncludingUnprepared()` also finds the documents
+ * that don't have them.
+ */
+public final class CaseFoldedField {
+
+  /**
+   * How a search's text has to match the field.
+   */
+  public enum Match {
+    /** The field is the text (ignoring case). */
+    EXACT,
+    /** The field starts with the text (ignoring case). */
+    PREFIX,
+    /** The field contains the text (ignoring case). */
+    CONTAINS;
+
+    /**
+     * Parse a match mode, e.g., from a `companyMatch=prefix` query parameter.
+     *
+     * @param mode the name of the mode, in any case
+     * @return the matching mode
+     * @throws IllegalArgumentException if there's no such mode
+     */
+    public static Match parse(String mode) {
+      return valueOf(mode.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  // The legal (case-insensitive) names of the `Match` modes,
+  // for validating request parameters
+  public static final String MATCH_REGEX = "(?i)^(exact|prefix|contains)$";
+
+  // The length of the n-grams stored in the `<field>Grams` shadow field
+  public static final int GRAM_LENGTH = 3;
+
+  private final String field;
+
+  /**
+   * Construct a searcher for a field.
+   *
+   * @param field the name of the field being searched, e.g., `company`
+   */
+  public CaseFoldedField(String field) {
+    this.field = field;
+  }
+
+  /**
+   * The name of the field holding the case-folded value.
+   *
+   * @return the name of the folded shadow field
+   */
+  public String foldedField() {
+    return field + "Folded";
+  }
+
+  /**
+   * The name of the field holding the n-grams of the case-folded value.
+   *
+   * @return the name of the n-gram shadow field
+   */
+  public String gramsField() {
+    return field + "Grams";
+  }
+
+  /**
+   * Case-fold some text, so that two strings that differ only in case
+   * (or in how their characters are encoded) fold to the same thing.
+   *
+   * @param text the text to fold
+   * @return the folded text
+   */
+  public static String fold(String text) {
+    return Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * The distinct n-grams of some (already folded) text, in the order they
+   * first appear. Text shorter than `GRAM_LENGTH` has no n-grams.
+   *
+   * @param folded the folded text
+   * @return the n-grams of the text
+   */
+  public static List<String> grams(String folded) {
+    Set<String> grams = new LinkedHashSet<>();
+    for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+      grams.add(folded.substring(i, i + GRAM_LENGTH));
+    }
+    return new ArrayList<>(grams);
+  }
+
+  /**
+   * The shadow fields for a value of the field, to include in a new
+   * document so it can be searched for as soon as it's inserted.
+   *
+   * @param value the value of the field (possibly `null`)
+   * @return the shadow fields (none, if `value` is `null`)
+   */
+  public BsonDocument shadowValues(String value) {
+    BsonDocument shadow = new BsonDocument();
+    if (value != null) {
+      String folded = fold(value);
+      BsonArray grams = new BsonArray();
+      grams(folded).forEach(gram -> grams.add(new BsonString(gram)));
+      shadow.append(foldedField(), new BsonString(folded)).append(gramsField(), grams);
+    }
+    return shadow;
+  }
+
+  /**
+   * An update that sets the shadow fields for a new value of the field.
+   *
+   * @param value the new value of the field (possibly `null`)
+   * @return an update setting (or removing) the shadow fields
+   */
+  public Bson shadowFields(String value) {
+    if (value == null) {
+      return Updates.combine(Updates.unset(foldedField()), Updates.unset(gramsField()));
+    }
+    String folded = fold(value);
+    return Updates.combine(Updates.set(foldedField(), folded), Updates.set(gramsField(), grams(folded)));
+  }
+
+  /**
+   * A filter matching the documents whose field matches `text`.
+   *
+   * Exact and prefix searches are an equality or range scan of the index
+   * on the folded field. A substring search looks up the text's n-grams,
+   * then checks the candidates with a (case-sensitive, since both sides
+   * are folded) regex; text that's too short to have any n-grams can only
+   * be found by scanning the folded field's index.
+   *
+   * @param text the text to search for
+   * @param match how the text has to match
+   * @return a Bson filter for the search
+   */
+  public Bson filter(String text, Match match) {
+    String folded = fold(text);
+    return switch (match) {
+      case EXACT -> eq(foldedField(), folded);
+      case PREFIX -> folded.isEmpty()
+        ? exists(foldedField())
+        : and(gte(foldedField(), folded), lt(foldedField(), successor(folded)));
+      case CONTAINS -> {
+        Bson substring = regex(foldedField(), Pattern.compile(Pattern.quote(folded)));
+        List<String> grams = grams(folded);
+        yield grams.isEmpty() ? substring : and(all(gramsField(), grams), substring);
+      }
+    };
+  }
+
+  /**
+   * Like `filter()`, but also matching the documents that don't have
+   * their shadow fields yet, with a case-insensitive regex on the field
+   * itself. Those documents are found with the index on the folded field
+   * (as the ones where it's missing), so this costs no more than `filter()`
+   * plus a check of each document that hasn't been prepared.
+   *
+   * @param text the text to search for
+   * @param match how the text has to match
+   * @return a Bson filter for the search
+   */
+  public Bson filterIncludingUnprepared(String text, Match match) {
+    String quoted = Pattern.quote(text);
+    String pattern = switch (match) {
+      case EXACT -> "^" + quoted + "$";
+      case PREFIX -> "^" + quoted;
+      case CONTAINS -> quoted;
+    };
+    return or(
+      filter(text, match),
+      and(exists(foldedField(), false), regex(field, Pattern.compile(pattern, Pattern.CASE_INSENSITIVE))));
+  }
+
+  /**
+   * Whether `filter()` can answer a search from an index
+   * (rather than by scanning every key of an index).
+   *
+   * @param text the text to search for
+   * @param match how the text has to match
+   * @return whether the search is an index lookup
+   */
+  public static boolean usesIndex(String text, Match match) {
+    return match != Match.CONTAINS || fold(text).length() >= GRAM_LENGTH;
+  }
+
+  /**
+   * The smallest string greater than every string starting with `prefix`,
+   * which is the (exclusive) upper bound of a prefix range scan.
+   */
+  private static String successor(String prefix) {
+    StringBuilder bound = new StringBuilder(prefix);
+    while (bound.length() > 0) {
+      int last = bound.length() - 1;
+      if (bound.charAt(last) != Character.MAX_VALUE) {
+        bound.setCharAt(last, (char) (bound.charAt(last) + 1));
+        return bound.toString();
+      }
+      bound.setLength(last);
+    }
+    // Every character was `Character.MAX_VALUE`; nothing sorts after that
+    return prefix + Character.MAX_VALUE;
+  }
+
+  /**
+   * A test that matches the same values as `filter()`, for searching
+   * values held in memory.
+   *
+   * @param text the text to search for
+   * @param match how the text has to match
+   * @return a test for whether a value matches the search
+   */
+  public static Predicate<String> matcher(String text, Match match) {
+    String folded = fold(text);
+    return switch (match) {
+      case EXACT -> value -> value != null && fold(value).equals(folded);
+      case PREFIX -> value -> value != null && fold(value).startsWith(folded);
+      case CONTAINS -> value -> value != null && fold(value).contains(folded);
+    };
+  }
+
+  /**
+   * Get a collection ready for searching: create the indexes on the
+   * shadow fields, and fill in the shadow fields of any documents whose
+   * shadow fields are missing or out of date.
+   *
+   * The documents are read and written `batchSize` at a time, and only
+   * documents that actually need updating are written.
+   *
+   * @param collection the collection to prepare
+   * @param batchSize the number of documents to read and update at a time
+   * @return the number of documents whose shadow fields were updated
+   */
+  public long prepare(MongoCollection<Document> collection, int batchSize) {
+    collection.createIndex(Indexes.ascending(foldedField()));
+    collection.createIndex(Indexes.ascending(gramsField()));
+
+    long updated = 0;
+    List<WriteModel<Document>> updates = new ArrayList<>(batchSize);
+    for (Document doc : collection
+        .find()
+        .projection(Projections.include(field, foldedField()))
+        .batchSize(batchSize)) {
+      String value = doc.get(field) instanceof String string ? string : null;
+      String folded = value == null ? null : fold(value);
+      if (!Objects.equals(folded, doc.get(foldedField()))) {
+        updates.add(new UpdateOneModel<>(eq("_id", doc.get("_id")), shadowFields(value)));
+      }
+      if (updates.size() >= batchSize) {
+        updated += collection.bulkWrite(updates).getModifiedCount();
+        updates.clear();
+      }
+    }
+    if (!updates.isEmpty()) {
+      updated += collection.bulkWrite(updates).getModifiedCount();
+    }
+    return updated;
+  }
+}
@@ -0,0 +1,308 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerUnavailableException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * A circuit breaker around routes that use MongoDB, so that when the
+ * database goes down or stalls, requests fail (or fall back) straight
+ * away instead of every one of them sitting on server selection or a
+ * slow query until it times out.
+ *
+ * The breaker watches the last `WINDOW` calls. A call "fails" if it
+ * can't reach the database (see `isConnectivityFailure()`), or if it
+ * succeeds but takes longer than its route's `slowCall`. Other
+ * `MongoException`s (a query that ran past its request's `Deadline`, or
+ * one MongoDB rejected because of what the client asked for) mean the
+ * database is there and answering, so they're passed on as they are, and
+ * count as successes, however long they took. Heavy routes, whose
+ * deadlines are longer than a lookup's, should be given a `slowCall` to
+ * match (see `wrap(Handler, Duration)`), so a burst of slow but successful
+ * queries doesn't open the breaker for every route. Once
+ * at least `MIN_CALLS` calls have been seen and `FAILURE_THRESHOLD` of
+ * them failed, the breaker opens. While it's open, no requests reach the
+ * handlers at all: a background virtual thread pings the database every
+ * `openFor` (with `probe`), and closes the breaker again once a ping
+ * succeeds.
+ *
+ * Requests that are turned away by an open breaker, or that fail because
+ * they couldn't reach the database, are answered with the last good response to the same
+ * GET (same path and query string), if we have one, with an `X-Stale:
+ * true` header and an `Age` header saying how old it is (in seconds).
+ * Otherwise they get a `503 Service Unavailable`. The last good responses
+ * are the bodies handed to `ResponseFormats.respond()`, so a stale one
+ * goes out in whatever format the new request asks for; at most
+ * `MAX_STALE_RESPONSES` of them are kept, least recently used first out.
+ *
+ * Wrap a route's handler in `wrap()` to put it behind the breaker. Only
+ * the handler itself is timed, so if the route has a `Bulkhead`, the
+ * breaker goes inside it, and time spent waiting for a turn isn't counted.
+ */
+public class CircuitBreaker {
+
+  // The number of recent calls the breaker looks at
+  static final int WINDOW = 20;
+  // The breaker never opens on fewer calls than this
+  static final int MIN_CALLS = 10;
+  // The share of recent calls that have to fail for the breaker to open
+  static final double FAILURE_THRESHOLD = 0.5;
+  // How many last good responses we keep to fall back on
+  static final int MAX_STALE_RESPONSES = 256;
+  private static final float STALE_RESPONSES_LOAD_FACTOR = 0.75f;
+  // The header marking a response as a stale copy
+  public static final String STALE_HEADER = "X-Stale";
+
+  /**
+   * A last good response, and when we got it.
+   */
+  private record StaleResponse(Object body, long storedAt) {
+  }
+
+  private final String name;
+  private final Runnable probe;
+  private final long slowCallNanos;
+  private final Duration openFor;
+
+  // Whether each of the last `WINDOW` calls failed, as a ring buffer
+  private final boolean[] outcomes = new boolean[WINDOW];
+  private int calls;
+  private int failures;
+  private int next;
+  private volatile boolean open;
+
+  private final AtomicInteger trips = new AtomicInteger();
+  private final AtomicInteger rejected = new AtomicInteger();
+  private final AtomicInteger servedStale = new AtomicInteger();
+
+  private final Map<String, StaleResponse> staleResponses = Collections.synchronizedMap(
+    new LinkedHashMap<String, StaleResponse>(MAX_STALE_RESPONSES, STALE_RESPONSES_LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, StaleResponse> eldest) {
+        return size() > MAX_STALE_RESPONSES;
+      }
+    });
+
+  /**
+   * Construct a circuit breaker.
+   *
+   * @param name the name of the routes it protects, for error messages
+   * @param probe checks whether the database is back, by throwing if it isn't
+   * @param slowCall calls that take longer than this count as failures,
+   *   for routes that don't have a `slowCall` of their own
+   * @param openFor how long to wait between probes while the breaker is open
+   */
+  public CircuitBreaker(String name, Runnable probe, Duration slowCall, Duration openFor) {
+    this.name = name;
+    this.probe = probe;
+    this.slowCallNanos = slowCall.toNanos();
+    this.openFor = openFor;
+  }
+
+  /**
+   * A handler that runs `handler` while the breaker is closed, and fails
+   * fast (or falls back on a stale response) while it's open.
+   *
+   * @param handler the route's handler
+   * @return the same handler, behind this breaker
+   */
+  public Handler wrap(Handler handler) {
+    return wrap(handler, Duration.ofNanos(slowCallNanos));
+  }
+
+  /**
+   * A handler that runs `handler` while the breaker is closed, and fails
+   * fast (or falls back on a stale response) while it's open, for a route
+   * whose calls only count as failures if they take longer than `slowCall`.
+   *
+   * @param handler the route's handler
+   * @param slowCall calls to the route that take longer than this count as failures
+   * @return the same handler, behind this breaker
+   */
+  public Handler wrap(Handler handler, Duration slowCall) {
+    long routeSlowCallNanos = slowCall.toNanos();
+    return ctx -> {
+      String key = ctx.method() == HandlerType.GET ? responseKey(ctx) : null;
+      if (open) {
+        rejected.incrementAndGet();
+        if (!serveStale(ctx, key)) {
+          throw unavailable(ctx);
+        }
+        return;
+      }
+
+      long start = System.nanoTime();
+      try {
+        handler.handle(ctx);
+      } catch (MongoException e) {
+        if (!isConnectivityFailure(e)) {
+          // The database answered, even if it was to say no
+          record(false);
+          throw e;
+        }
+        record(true);
+        if (!serveStale(ctx, key)) {
+          throw e;
+        }
+        return;
+      }
+      record(System.nanoTime() - start > routeSlowCallNanos);
+
+      Object body = ctx.attribute(ResponseFormats.BODY_ATTRIBUTE);
+      if (key != null && body != null) {
+        staleResponses.put(key, new StaleResponse(body, System.currentTimeMillis()));
+      }
+    };
+  }
+
+  /**
+   * Whether an exception means we couldn't reach the database at all:
+   * no server could be selected in time, the connection failed or timed
+   * out, or the server is shutting down.
+   *
+   * @param e the exception a call failed with
+   * @return whether it's a connectivity failure
+   */
+  static boolean isConnectivityFailure(MongoException e) {
+    return e instanceof MongoTimeoutException
+      || e instanceof MongoSocketException
+      || e instanceof MongoServerUnavailableException;
+  }
+
+  private static String responseKey(Context ctx) {
+    String query = ctx.queryString();
+    return query == null ? ctx.path() : ctx.path() + "?" + query;
+  }
+
+  /**
+   * Answer a request with the last good response to the same GET, if we
+   * have one.
+   */
+  private boolean serveStale(Context ctx, String key) {
+    StaleResponse stale = key == null ? null : staleResponses.get(key);
+    if (stale == null) {
+      return false;
+    }
+    servedStale.incrementAndGet();
+    long age = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - stale.storedAt());
+    ctx.header(STALE_HEADER, "true");
+    ctx.header("Age", Long.toString(age));
+    ResponseFormats.respond(ctx, stale.body());
+    return true;
+  }
+
+  private ServiceUnavailableResponse unavailable(Context ctx) {
+    ctx.header("Retry-After", Long.toString(Math.max(1, openFor.toSeconds())));
+    return new ServiceUnavailableResponse(
+      "The database behind " + name + " requests is unavailable; try again shortly");
+  }
+
+  /**
+   * Record how a call went, and open the breaker if too many recent ones failed.
+   *
+   * @param failed whether the call failed (or was too slow)
+   */
+  synchronized void record(boolean failed) {
+    if (open) {
+      // A call that started before we opened; it tells us nothing new
+      return;
+    }
+    if (calls == WINDOW) {
+      failures -= outcomes[next] ? 1 : 0;
+    } else {
+      calls++;
+    }
+    outcomes[next] = failed;
+    failures += failed ? 1 : 0;
+    next = (next + 1) % WINDOW;
+
+    if (calls >= MIN_CALLS && failures >= calls * FAILURE_THRESHOLD) {
+      open = true;
+      trips.incrementAndGet();
+      Thread.ofVirtual().name(name + " circuit breaker probe").start(this::probeUntilClosed);
+    }
+  }
+
+  private void probeUntilClosed() {
+    while (open) {
+      try {
+        Thread.sleep(openFor);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      probe();
+    }
+  }
+
+  /**
+   * Check whether the database is back, and close the breaker if it is.
+   *
+   * @return whether the probe succeeded
+   */
+  boolean probe() {
+    try {
+      probe.run();
+    } catch (RuntimeException e) {
+      return false;
+    }
+    close();
+    return true;
+  }
+
+  private synchronized void close() {
+    calls = 0;
+    failures = 0;
+    next = 0;
+    open = false;
+  }
+
+  /**
+   * Whether the breaker is open, i.e., turning requests away.
+   *
+   * @return whether the breaker is open
+   */
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * The number of times the breaker has opened.
+   *
+   * @return the number of trips
+   */
+  public int trips() {
+    return trips.get();
+  }
+
+  /**
+   * The number of requests turned away while the breaker was open.
+   *
+   * @return the number of rejected requests
+   */
+  public int rejected() {
+    return rejected.get();
+  }
+
+  /**
+   * The number of requests answered with a stale response.
+   *
+   * @return the number of stale responses served
+   */
+  public int servedStale() {
+    return servedStale.get();
+  }
+}
@@ -0,0 +1,244 @@
+package umm3601;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+/**
+ * A [Count-Min sketch](https://en.wikipedia.org/wiki/Count%E2%80%93min_sketch)
+ * that estimates how often it has seen each string in a fixed amount of
+ * memory, and keeps track of the most frequent strings (the "heavy
+ * hitters") so it can answer "what are the top N?" without a full scan.
+ *
+ * Each string is hashed into one counter in each of `depth` rows of `width`
+ * counters. A string's estimated count is the smallest of its counters:
+ * collisions with other strings can only inflate a counter, so this never
+ * underestimates, and it overestimates by more than `errorBound()` (about
+ * `e / width` of all the strings seen) with probability at most `e^-depth`.
+ *
+ * Alongside the counters, the sketch keeps up to `candidates` strings with
+ * the largest estimated counts seen so far; `top()` reports from those.
+ *
+ * Sketches with the same dimensions can be merged. This isn't thread-safe;
+ * callers that share a sketch between threads have to synchronize on it.
+ */
+public class CountMinSketch {
+
+  /**
+   * A frequently seen string, and its estimated count.
+   *
+   * @param value the string
+   * @param count the estimated number of times it was seen
+   */
+  public record HeavyHitter(String value, long count) {
+  }
+
+  public static final int DEFAULT_DEPTH = 4;
+  public static final int DEFAULT_WIDTH = 2048;
+  public static final int DEFAULT_CANDIDATES = 64;
+
+  // Largest count first, then alphabetically
+  private static final Comparator<HeavyHitter> LARGEST_FIRST = Comparator
+    .comparingLong(HeavyHitter::count).reversed()
+    .thenComparing(HeavyHitter::value);
+
+  private final int depth;
+  private final int width;
+  private final int capacity;
+  private final long[][] counters;
+  private long total;
+  // The strings that might be heavy hitters, with their estimated counts
+  private final Map<String, Long> candidates = new HashMap<>();
+
+  /**
+   * Construct an empty sketch with the default dimensions.
+   */
+  public CountMinSketch() {
+    this(DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_CANDIDATES);
+  }
+
+  /**
+   * Construct an empty sketch.
+   *
+   * @param depth the number of rows of counters
+   * @param width the number of counters in each row
+   * @param capacity the most heavy hitter candidates to keep track of
+   * @throws IllegalArgumentException if any of these isn't positive
+   */
+  public CountMinSketch(int depth, int width, int capacity) {
+    if (depth <= 0 || width <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("A sketch's dimensions must be positive");
+    }
+    this.depth = depth;
+    this.width = width;
+    this.capacity = capacity;
+    counters = new long[depth][width];
+  }
+
+  /**
+   * Record one occurrence of a string.
+   *
+   * @param value the string (ignored if `null`)
+   */
+  public void add(String value) {
+    if (value == null) {
+      return;
+    }
+    long hash = HyperLogLog.hash64(value);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, ++counters[row][column(hash, row)]);
+    }
+    total++;
+    offer(value, estimate);
+  }
+
+  /**
+   * Consider a string as a heavy hitter, replacing the least frequent
+   * candidate if we already have as many candidates as we can keep.
+   */
+  private void offer(String value, long estimate) {
+    if (candidates.containsKey(value) || candidates.size() < capacity) {
+      candidates.put(value, estimate);
+      return;
+    }
+    Map.Entry<String, Long> smallest = candidates.entrySet().stream()
+      .min(Map.Entry.comparingByValue())
+      .orElseThrow();
+    if (estimate > smallest.getValue()) {
+      candidates.remove(smallest.getKey());
+      candidates.put(value, estimate);
+    }
+  }
+
+  /**
+   * The counter a hash maps to in a row, using the two halves of the
+   * hash to simulate `depth` independent hash functions.
+   */
+  private int column(long hash, int row) {
+    int combined = (int) hash + row * (int) (hash >>> Integer.SIZE);
+    return Math.floorMod(combined, width);
+  }
+
+  /**
+   * The estimated number of times a string was recorded; this is never
+   * less than the true count.
+   *
+   * @param value the string
+   * @return the estimated count
+   */
+  public long estimate(String value) {
+    long hash = HyperLogLog.hash64(value);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters[row][column(hash, row)]);
+    }
+    return estimate;
+  }
+
+  /**
+   * The (at most) `n` most frequently recorded strings, most frequent first.
+   *
+   * @param n the number of strings wanted
+   * @return the heavy hitters and their estimated counts
+   */
+  public List<HeavyHitter> top(int n) {
+    List<HeavyHitter> top = new ArrayList<>();
+    candidates.forEach((value, count) -> top.add(new HeavyHitter(value, count)));
+    top.sort(LARGEST_FIRST);
+    return top.subList(0, Math.min(n, top.size()));
+  }
+
+  /**
+   * The total number of strings recorded.
+   *
+   * @return the total number of strings recorded
+   */
+  public long total() {
+    return total;
+  }
+
+  /**
+   * How much `estimate()` might overestimate a count by (with probability
+   * at least `1 - e^-depth`).
+   *
+   * @return the error bound on the estimated counts
+   */
+  public long errorBound() {
+    return (long) Math.ceil(Math.E / width * total);
+  }
+
+  /**
+   * Add everything another sketch has seen to this one.
+   *
+   * @param other a sketch with the same depth and width as this one
+   * @throws IllegalArgumentException if the dimensions differ
+   */
+  public void merge(CountMinSketch other) {
+    if (other.depth != depth || other.width != width) {
+      throw new IllegalArgumentException("Can't merge sketches with different dimensions");
+    }
+    for (int row = 0; row < depth; row++) {
+      for (int column = 0; column < width; column++) {
+        counters[row][column] += other.counters[row][column];
+      }
+    }
+    total += other.total;
+    // Either sketch's candidates might be heavy hitters now; re-estimate them all
+    List<String> values = new ArrayList<>(candidates.keySet());
+    values.addAll(other.candidates.keySet());
+    candidates.clear();
+    for (String value : values) {
+      offer(value, estimate(value));
+    }
+  }
+
+  /**
+   * A document holding this sketch, for storing in MongoDB.
+   *
+   * @return a document describing the sketch
+   */
+  public Document toDocument() {
+    ByteBuffer buffer = ByteBuffer.allocate(depth * width * Long.BYTES);
+    for (long[] row : counters) {
+      buffer.asLongBuffer().put(row);
+      buffer.position(buffer.position() + width * Long.BYTES);
+    }
+    return new Document("depth", depth)
+      .append("width", width)
+      .append("capacity", capacity)
+      .append("total", total)
+      .append("counters", new Binary(buffer.array()))
+      .append("candidates", new ArrayList<>(candidates.keySet()));
+  }
+
+  /**
+   * Rebuild a sketch from a document made by `toDocument()`.
+   *
+   * @param doc the stored sketch
+   * @return a copy of the stored sketch
+   */
+  public static CountMinSketch fromDocument(Document doc) {
+    CountMinSketch sketch = new CountMinSketch(
+      doc.getInteger("depth"), doc.getInteger("width"), doc.getInteger("capacity"));
+    ByteBuffer buffer = ByteBuffer.wrap(doc.get("counters", Binary.class).getData());
+    if (buffer.remaining() != sketch.depth * sketch.width * Long.BYTES) {
+      throw new IllegalArgumentException("The stored sketch has the wrong number of counters");
+    }
+    for (long[] row : sketch.counters) {
+      buffer.asLongBuffer().get(row);
+      buffer.position(buffer.position() + sketch.width * Long.BYTES);
+    }
+    sketch.total = doc.getLong("total");
+    for (String value : doc.getList("candidates", String.class)) {
+      sketch.offer(value, sketch.estimate(value));
+    }
+    return sketch;
+  }
+}
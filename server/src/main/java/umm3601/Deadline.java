@@ -0,0 +1,117 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
+import io.javalin.http.HttpResponseException;
+
+/**
+ * How long a request has left to run. Clients can say how long they're
+ * willing to wait with the `X-Request-Timeout` header (in milliseconds);
+ * otherwise each route has its own default.
+ *
+ * Passing `remainingMillis()` to MongoDB as `maxTimeMS` (`maxTime()` on a
+ * find or aggregation, `CountOptions.maxTime()` on a count) makes the
+ * database give up on a query once nobody's waiting for its answer any
+ * more, rather than running it to completion anyway. The query then fails
+ * with a `MongoExecutionTimeoutException`, which `Server` turns into a
+ * `504 Gateway Timeout`.
+ *
+ * The clock starts when the request arrives (`start()`, installed as a
+ * before-handler), so time spent queueing behind the rate and
+ * concurrency limits counts against the deadline too.
+ *
+ * A client that has hung up isn't waiting any more either, so
+ * `remainingMillis()` also refuses to hand out time once Jetty knows the
+ * connection is closed, which stops us starting the next query (a total
+ * count, an aggregation) for nobody. Jetty only notices a closed connection
+ * when it next reads from or writes to it, though, so this catches clients
+ * that hung up while we were queued or between phases, not ones that hang
+ * up while MongoDB is busy; cancelling a running query when that happens
+ * would need an async handler that watches the connection.
+ */
+public final class Deadline {
+
+  // The header clients can set their timeout (in milliseconds) with
+  public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+  // The longest timeout a client can ask for
+  public static final long MAX_MILLIS = 60_000;
+
+  // The (nginx) status for a request whose client closed the connection
+  public static final int CLIENT_CLOSED_REQUEST = 499;
+
+  // The request attribute holding when the request arrived
+  private static final String START_ATTRIBUTE = Deadline.class.getName() + ".start";
+
+  private final Context ctx;
+  private final long expiresAt;
+
+  private Deadline(Context ctx, long expiresAt) {
+    this.ctx = ctx;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * A before-handler that notes when a request arrived.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void start(Context ctx) {
+    ctx.attribute(START_ATTRIBUTE, System.nanoTime());
+  }
+
+  /**
+   * The deadline for a request: the timeout in its `X-Request-Timeout`
+   * header, if it has one, or else `defaultMillis`, after it arrived.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param defaultMillis the route's default timeout, in milliseconds
+   * @return the request's deadline
+   */
+  public static Deadline of(Context ctx, long defaultMillis) {
+    long timeout = defaultMillis;
+    if (ctx.header(TIMEOUT_HEADER) != null) {
+      timeout = ctx.headerAsClass(TIMEOUT_HEADER, Long.class)
+        .check(it -> it > 0, TIMEOUT_HEADER + " must be greater than zero")
+        .check(it -> it <= MAX_MILLIS, TIMEOUT_HEADER + " must be at most " + MAX_MILLIS)
+        .get();
+    }
+    Long start = ctx.attribute(START_ATTRIBUTE);
+    long startedAt = start != null ? start : System.nanoTime();
+    return new Deadline(ctx, startedAt + TimeUnit.MILLISECONDS.toNanos(timeout));
+  }
+
+  /**
+   * The time left before the deadline, for MongoDB's `maxTimeMS`.
+   *
+   * @return the milliseconds left (at least 1)
+   * @throws GatewayTimeoutResponse if the deadline has already passed
+   * @throws HttpResponseException (with `CLIENT_CLOSED_REQUEST`) if the
+   *   client has closed the connection
+   */
+  public long remainingMillis() {
+    long remaining = TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+    if (remaining <= 0) {
+      throw new GatewayTimeoutResponse("The request's deadline passed before it could be answered");
+    }
+    if (clientGone()) {
+      throw new HttpResponseException(CLIENT_CLOSED_REQUEST, "The client closed the connection");
+    }
+    return remaining;
+  }
+
+  /**
+   * Whether Jetty knows that the request's connection has been closed.
+   */
+  private boolean clientGone() {
+    Request request = ctx.req() == null ? null : Request.getBaseRequest(ctx.req());
+    HttpChannel channel = request == null ? null : request.getHttpChannel();
+    EndPoint endPoint = channel == null ? null : channel.getEndPoint();
+    return endPoint != null && !endPoint.isOpen();
+  }
+}
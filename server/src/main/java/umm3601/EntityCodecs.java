@@ -0,0 +1,120 @@
+package umm3601;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.types.ObjectId;
+
+/**
+ * Helpers shared by the hand-written BSON codecs for our entity
+ * classes (e.g., `UserCodec` and `TodoCodec`).
+ *
+ * The codecs read each field straight off of the `BsonReader`, so these
+ * helpers are forgiving about the BSON type they find: a field that holds
+ * something we can't sensibly convert is skipped and left at its default
+ * value rather than throwing, which matches how leniently Jackson (and
+ * hence MongoJack) treats the same documents.
+ */
+public final class EntityCodecs {
+
+  private EntityCodecs() {
+  }
+
+  /**
+   * Read the `_id` of a document as a hex string, the same way
+   * MongoJack's `@ObjectId @Id` annotations present it.
+   *
+   * @param reader the reader, positioned at the value of the `_id` field
+   * @return the id as a string, or `null` if there wasn't a usable id
+   */
+  public static String readId(BsonReader reader) {
+    BsonType type = reader.getCurrentBsonType();
+    if (type == BsonType.OBJECT_ID) {
+      return reader.readObjectId().toHexString();
+    }
+    return readString(reader);
+  }
+
+  /**
+   * Read a string value, skipping anything that isn't a string.
+   *
+   * @param reader the reader, positioned at the value to read
+   * @return the string, or `null` if the value was `null` or not a string
+   */
+  public static String readString(BsonReader reader) {
+    BsonType type = reader.getCurrentBsonType();
+    if (type == BsonType.STRING) {
+      return reader.readString();
+    }
+    reader.skipValue();
+    return null;
+  }
+
+  /**
+   * Read a numeric value as an `int`, skipping anything that isn't a number.
+   *
+   * @param reader the reader, positioned at the value to read
+   * @return the number as an `int`, or 0 if the value wasn't a number
+   */
+  public static int readInt(BsonReader reader) {
+    switch (reader.getCurrentBsonType()) {
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return (int) reader.readInt64();
+      case DOUBLE:
+        return (int) reader.readDouble();
+      default:
+        reader.skipValue();
+        return 0;
+    }
+  }
+
+  /**
+   * Read a boolean value, skipping anything that isn't a boolean.
+   *
+   * @param reader the reader, positioned at the value to read
+   * @return the boolean, or `false` if the value wasn't a boolean
+   */
+  public static boolean readBoolean(BsonReader reader) {
+    if (reader.getCurrentBsonType() == BsonType.BOOLEAN) {
+      return reader.readBoolean();
+    }
+    reader.skipValue();
+    return false;
+  }
+
+  /**
+   * Write the `_id` field of a document, if there is one. Ids that are
+   * legal Mongo Object IDs are stored as `ObjectId`s, which is how
+   * MongoJack stores `@ObjectId @Id` fields.
+   *
+   * @param writer the writer for the document being encoded
+   * @param id the id of the entity (possibly `null`)
+   */
+  public static void writeId(BsonWriter writer, String id) {
+    if (id == null) {
+      return;
+    }
+    if (ObjectId.isValid(id)) {
+      writer.writeObjectId("_id", new ObjectId(id));
+    } else {
+      writer.writeString("_id", id);
+    }
+  }
+
+  /**
+   * Write a string field, writing a BSON `null` if the value is `null`.
+   *
+   * @param writer the writer for the document being encoded
+   * @param name the name of the field
+   * @param value the value of the field (possibly `null`)
+   */
+  public static void writeString(BsonWriter writer, String name, String value) {
+    if (value == null) {
+      writer.writeNull(name);
+    } else {
+      writer.writeString(name, value);
+    }
+  }
+}
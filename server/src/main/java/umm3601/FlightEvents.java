@@ -0,0 +1,290 @@
+package umm3601;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import io.javalin.http.Context;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Custom Java Flight Recorder events, so that the CPU and allocation
+ * samples in a recording can be tied back to the API request, and the
+ * MongoDB command, that caused them.
+ *
+ * - A `umm3601.Request` event spans each request to a route, and says
+ *   which route it was, the "shape" of its filter (the names of its query
+ *   parameters, without their values), how many results it sent back,
+ *   and its status.
+ * - A `umm3601.MongoCommand` event spans each MongoDB command, and says
+ *   which command it was, on which collection, and the shape of its
+ *   filter or pipeline (with every value replaced by `?`), and how many
+ *   documents came back in the first batch.
+ *
+ * Both are emitted on the thread that did the work, so JDK Mission
+ * Control shows them alongside that thread's samples.
+ *
+ * When no recording is running (or these events aren't enabled in it),
+ * each one costs an `isEnabled()` check, which the JIT turns into almost
+ * nothing; none of the fields are worked out unless the event is
+ * actually going to be recorded. Start and stop recordings with the
+ * `RecordingController`.
+ */
+public final class FlightEvents {
+
+  // The longest filter shape we record
+  static final int MAX_SHAPE_LENGTH = 1024;
+
+  // The request attribute holding a request's event
+  private static final String EVENT_ATTRIBUTE = FlightEvents.class.getName() + ".request";
+
+  // The MongoDB command each thread is running, if it's being recorded.
+  // The sync driver runs each command on the calling thread, start to finish.
+  private static final ThreadLocal<MongoCommand> COMMANDS = new ThreadLocal<>();
+
+  private FlightEvents() {
+  }
+
+  /**
+   * A request to one of the API's routes.
+   */
+  @Name("umm3601.Request")
+  @Label("API Request")
+  @Category({ "umm3601", "HTTP" })
+  @Description("A request to one of the API's routes")
+  public static class Request extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("Route")
+    @Description("The path the request was routed by, e.g., /api/users/{id}")
+    String route;
+
+    @Label("Filter Shape")
+    @Description("The names of the request's query parameters, in alphabetical order")
+    String filterShape;
+
+    @Label("Result Count")
+    @Description("How many results were sent back (1 for a single object), or -1 if we couldn't tell")
+    long resultCount;
+
+    @Label("Status")
+    int status;
+  }
+
+  /**
+   * A MongoDB command.
+   */
+  @Name("umm3601.MongoCommand")
+  @Label("MongoDB Command")
+  @Category({ "umm3601", "MongoDB" })
+  @Description("A command sent to MongoDB")
+  public static class MongoCommand extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Collection")
+    String collection;
+
+    @Label("Filter Shape")
+    @Description("The command's filter or pipeline, with every value replaced by ?")
+    String filterShape;
+
+    @Label("Result Count")
+    @Description("How many documents came back in the first batch, or -1 if none did")
+    long resultCount;
+
+    @Label("Succeeded")
+    boolean succeeded;
+  }
+
+  /**
+   * Records a `MongoCommand` event for each command, if they're enabled.
+   */
+  public static final CommandListener MONGO_COMMANDS = new CommandListener() {
+    @Override
+    public void commandStarted(CommandStartedEvent started) {
+      MongoCommand event = new MongoCommand();
+      if (!event.isEnabled()) {
+        return;
+      }
+      event.begin();
+      BsonDocument command = started.getCommand();
+      event.command = started.getCommandName();
+      BsonValue target = command.get(started.getCommandName());
+      event.collection = target != null && target.isString() ? target.asString().getValue() : null;
+      event.filterShape = filterShape(command);
+      COMMANDS.set(event);
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent succeeded) {
+      MongoCommand event = finish();
+      if (event != null && event.shouldCommit()) {
+        event.succeeded = true;
+        event.resultCount = replyCount(succeeded.getResponse());
+        event.commit();
+      }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent failed) {
+      MongoCommand event = finish();
+      if (event != null && event.shouldCommit()) {
+        event.resultCount = -1;
+        event.commit();
+      }
+    }
+
+    private MongoCommand finish() {
+      MongoCommand event = COMMANDS.get();
+      if (event != null) {
+        COMMANDS.remove();
+        event.end();
+      }
+      return event;
+    }
+  };
+
+  /**
+   * A before-handler that starts a request's event, if they're enabled.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void beginRequest(Context ctx) {
+    Request event = new Request();
+    if (event.isEnabled()) {
+      event.begin();
+      ctx.attribute(EVENT_ATTRIBUTE, event);
+    }
+  }
+
+  /**
+   * An after-handler that finishes a request's event, and records it.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void endRequest(Context ctx) {
+    Request event = ctx.attribute(EVENT_ATTRIBUTE);
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.method = ctx.method().name();
+      event.route = ctx.endpointHandlerPath();
+      event.filterShape = String.join(",", new TreeSet<>(ctx.queryParamMap().keySet()));
+      Object body = ctx.attribute(ResponseFormats.BODY_ATTRIBUTE);
+      event.resultCount = resultCount(body);
+      event.status = ctx.statusCode();
+      event.commit();
+    }
+  }
+
+  /**
+   * How many results are in a response body handed to `ResponseFormats.respond()`.
+   */
+  static long resultCount(Object body) {
+    if (body instanceof Collection<?> results) {
+      return results.size();
+    }
+    if (body instanceof Map<?, ?> results) {
+      return results.size();
+    }
+    return body == null ? -1 : 1;
+  }
+
+  /**
+   * How many documents came back in the first batch of a MongoDB reply, or
+   * the count a `count` command came back with.
+   */
+  static long replyCount(BsonDocument reply) {
+    BsonValue cursor = reply.get("cursor");
+    if (cursor != null && cursor.isDocument() && cursor.asDocument().isArray("firstBatch")) {
+      return cursor.asDocument().getArray("firstBatch").size();
+    }
+    BsonValue count = reply.get("n");
+    return count != null && count.isNumber() ? count.asNumber().longValue() : -1;
+  }
+
+  /**
+   * The shape of a command's filter (for `find` and `count`) or pipeline
+   * (for `aggregate`), or `{}` if it has neither.
+   */
+  static String filterShape(BsonDocument command) {
+    BsonValue filter = command.get("filter");
+    if (filter == null) {
+      filter = command.get("query");
+    }
+    if (filter == null) {
+      filter = command.get("pipeline");
+    }
+    return shape(filter == null ? new BsonDocument() : filter);
+  }
+
+  /**
+   * The shape of a filter, pipeline, or sort: the same document (or
+   * array), with every value replaced by `?`, cut off at `MAX_SHAPE_LENGTH`.
+   *
+   * @param value the filter, pipeline, or sort
+   * @return its shape, e.g., `{age: ?, company: {$regex: ?, $options: ?}}`
+   */
+  static String shape(BsonValue value) {
+    StringBuilder shape = new StringBuilder();
+    appendShape(shape, value);
+    return shape.length() > MAX_SHAPE_LENGTH ? shape.substring(0, MAX_SHAPE_LENGTH) : shape.toString();
+  }
+
+  private static void appendShape(StringBuilder shape, BsonValue value) {
+    if (shape.length() > MAX_SHAPE_LENGTH) {
+      return;
+    }
+    if (value.isDocument()) {
+      shape.append('{');
+      String separator = "";
+      for (Map.Entry<String, BsonValue> field : value.asDocument().entrySet()) {
+        shape.append(separator).append(field.getKey()).append(": ");
+        appendShape(shape, field.getValue());
+        separator = ", ";
+      }
+      shape.append('}');
+    } else if (value.isArray()) {
+      appendArrayShape(shape, value.asArray());
+    } else {
+      shape.append('?');
+    }
+  }
+
+  /**
+   * An array of documents (a pipeline, or the clauses of an `$and`) keeps
+   * each of its elements; an array of plain values (the list in an `$in`)
+   * is just `[?]`, however long it is.
+   */
+  private static void appendArrayShape(StringBuilder shape, BsonArray array) {
+    if (array.isEmpty() || !array.get(0).isDocument()) {
+      shape.append("[?]");
+      return;
+    }
+    shape.append('[');
+    String separator = "";
+    for (BsonValue element : array) {
+      shape.append(separator);
+      appendShape(shape, element);
+      separator = ", ";
+    }
+    shape.append(']');
+  }
+}
@@ -0,0 +1,191 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+/**
+ * A [HyperLogLog](https://en.wikipedia.org/wiki/HyperLogLog) sketch, which
+ * estimates how many distinct strings it has seen in a fixed amount of
+ * memory (`2^precision` bytes), however many strings that is.
+ *
+ * Each string is hashed; the first `precision` bits of the hash pick one
+ * of the registers, and the register remembers the longest run of leading
+ * zeros seen in the rest of the hash. Long runs are rare, so the runs
+ * recorded across all the registers tell us roughly how many distinct
+ * hashes there have been. The relative error of the estimate is about
+ * `1.04 / sqrt(2^precision)`; 0.8% for the default precision.
+ *
+ * Sketches with the same precision can be merged, giving the sketch of
+ * everything either of them saw. This isn't thread-safe; callers that share
+ * a sketch between threads have to synchronize on it themselves.
+ */
+public class HyperLogLog {
+
+  // 2^14 registers, for a relative error of about 0.8%
+  public static final int DEFAULT_PRECISION = 14;
+  private static final int MIN_PRECISION = 4;
+  private static final int MAX_PRECISION = 18;
+
+  // Constants of the bias-corrected HyperLogLog estimator
+  private static final double ALPHA = 0.7213;
+  private static final double ALPHA_CORRECTION = 1.079;
+  private static final double ERROR_FACTOR = 1.04;
+  // Below `SMALL_RANGE_FACTOR * registers`, linear counting is more accurate
+  private static final double SMALL_RANGE_FACTOR = 2.5;
+
+  // FNV-1a constants, for hashing the bytes of a string
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  // The MurmurHash3 64-bit finalizer, which spreads FNV's output over all the bits
+  private static final long MIX_1 = 0xff51afd7ed558ccdL;
+  private static final long MIX_2 = 0xc4ceb9fe1a85ec53L;
+  private static final int MIX_SHIFT = 33;
+  private static final int BYTE_MASK = 0xff;
+
+  private final int precision;
+  private final byte[] registers;
+
+  /**
+   * Construct an empty sketch with the default precision.
+   */
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * Construct an empty sketch.
+   *
+   * @param precision the number of hash bits used to pick a register;
+   *   the sketch uses `2^precision` bytes
+   * @throws IllegalArgumentException if `precision` isn't between 4 and 18
+   */
+  public HyperLogLog(int precision) {
+    this(precision, new byte[1 << checkPrecision(precision)]);
+  }
+
+  private HyperLogLog(int precision, byte[] registers) {
+    this.precision = precision;
+    this.registers = registers;
+  }
+
+  private static int checkPrecision(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+        "The precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + "; it was " + precision);
+    }
+    return precision;
+  }
+
+  /**
+   * Record a string.
+   *
+   * @param value the string (ignored if `null`)
+   */
+  public void add(String value) {
+    if (value == null) {
+      return;
+    }
+    long hash = hash64(value);
+    int register = (int) (hash >>> (Long.SIZE - precision));
+    // The sentinel bit keeps the run from spilling past the end of the hash
+    int run = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    if (run > registers[register]) {
+      registers[register] = (byte) run;
+    }
+  }
+
+  /**
+   * The estimated number of distinct strings recorded.
+   *
+   * @return the estimated number of distinct strings
+   */
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte run : registers) {
+      sum += Math.scalb(1.0, -run);
+      if (run == 0) {
+        zeros++;
+      }
+    }
+    double estimate = ALPHA / (1 + ALPHA_CORRECTION / m) * m * m / sum;
+    if (estimate <= SMALL_RANGE_FACTOR * m && zeros > 0) {
+      // For small counts, most registers are still empty, and how many
+      // are empty is a better guide than the runs in the rest
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * The (one standard deviation) relative error of `estimate()`.
+   *
+   * @return the relative error, e.g., 0.008 for 0.8%
+   */
+  public double relativeError() {
+    return ERROR_FACTOR / Math.sqrt(registers.length);
+  }
+
+  /**
+   * Add everything another sketch has seen to this one.
+   *
+   * @param other a sketch with the same precision as this one
+   * @throws IllegalArgumentException if the precisions differ
+   */
+  public void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Can't merge sketches with different precisions");
+    }
+    for (int i = 0; i < registers.length; i++) {
+      registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+    }
+  }
+
+  /**
+   * A document holding this sketch, for storing in MongoDB.
+   *
+   * @return a document describing the sketch
+   */
+  public Document toDocument() {
+    return new Document("precision", precision).append("registers", new Binary(registers.clone()));
+  }
+
+  /**
+   * Rebuild a sketch from a document made by `toDocument()`.
+   *
+   * @param doc the stored sketch
+   * @return a copy of the stored sketch
+   */
+  public static HyperLogLog fromDocument(Document doc) {
+    int precision = checkPrecision(doc.getInteger("precision"));
+    byte[] registers = doc.get("registers", Binary.class).getData();
+    if (registers.length != 1 << precision) {
+      throw new IllegalArgumentException("The stored sketch has the wrong number of registers");
+    }
+    return new HyperLogLog(precision, registers.clone());
+  }
+
+  /**
+   * A well-mixed 64-bit hash of a string; `String.hashCode()` only has
+   * 32 bits, which isn't enough to count billions of distinct strings.
+   *
+   * @param value the string to hash
+   * @return the hash of the string
+   */
+  static long hash64(String value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & BYTE_MASK;
+      hash *= FNV_PRIME;
+    }
+    hash ^= hash >>> MIX_SHIFT;
+    hash *= MIX_1;
+    hash ^= hash >>> MIX_SHIFT;
+    hash *= MIX_2;
+    hash ^= hash >>> MIX_SHIFT;
+    return hash;
+  }
+}
@@ -0,0 +1,292 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Keeps track of the shapes of the queries a controller sends to MongoDB,
+ * finds out (with `explain`) which of the common ones MongoDB answers by
+ * scanning the whole collection or sorting in memory, and suggests (or
+ * creates) the compound indexes that would let it answer them from an
+ * index instead.
+ *
+ * A query's shape is its filter and sort with all their values replaced
+ * by `?` (see `FlightEvents.shape()`), so `/api/users?age=25&role=admin`
+ * and `/api/users?age=40&role=viewer` have the same shape. For each
+ * shape we keep a count and the first query we saw with it, to explain.
+ * At most `MAX_SHAPES` shapes are tracked; queries with any others are
+ * only counted, in `untracked()`.
+ *
+ * `explainTopShapes()` asks MongoDB how it would answer (the example
+ * query of) each of the `TOP_SHAPES` most common shapes. This uses the
+ * `queryPlanner` verbosity, so MongoDB only plans the query rather than
+ * running it. If the winning plan includes a `COLLSCAN` or a `SORT`
+ * stage, we suggest an index with the query's fields in the usual
+ * "equality, sort, range" order: the fields the query matches exactly
+ * first, then the fields it sorts by, then the fields it matches by
+ * range or regex.
+ */
+public class IndexAdvisor {
+
+  // The most query shapes we keep track of
+  static final int MAX_SHAPES = 200;
+  // How many of the most common shapes `explainTopShapes()` explains
+  static final int TOP_SHAPES = 10;
+  // How long MongoDB gets to explain a query
+  static final long EXPLAIN_TIMEOUT_MILLIS = 5_000;
+
+  static final String COLLECTION_SCAN = "COLLSCAN";
+  static final String IN_MEMORY_SORT = "SORT";
+
+  /**
+   * What we know about one query shape.
+   *
+   * @param shape the shape of the query's filter and sort
+   * @param count how many queries we've seen with this shape
+   * @param stages the stages of MongoDB's plan for it, outermost first
+   *   (or `null` if it hasn't been explained yet)
+   * @param collectionScan whether the plan scans the whole collection
+   * @param inMemorySort whether the plan sorts in memory
+   * @param suggestedIndex the keys of an index that would help, if the plan
+   *   needs one (and there's an index that would help), or else `null`
+   */
+  public record Report(String shape, long count, List<String> stages, boolean collectionScan,
+      boolean inMemorySort, Map<String, Integer> suggestedIndex) {
+  }
+
+  /**
+   * A query shape we're keeping track of.
+   */
+  private static final class Shape {
+    private final BsonDocument filter;
+    private final BsonDocument sort;
+    private final LongAdder count = new LongAdder();
+    private volatile List<String> stages;
+
+    Shape(BsonDocument filter, BsonDocument sort) {
+      this.filter = filter;
+      this.sort = sort;
+    }
+  }
+
+  private final MongoCollection<Document> collection;
+  private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<>();
+  private final LongAdder untracked = new LongAdder();
+
+  /**
+   * Construct an index advisor.
+   *
+   * @param collection the collection the queries are sent to
+   */
+  public IndexAdvisor(MongoCollection<Document> collection) {
+    this.collection = collection;
+  }
+
+  /**
+   * Note that a query is being sent to MongoDB.
+   *
+   * @param filter the query's filter
+   * @param sort the query's sort (or `null` if it isn't sorted)
+   */
+  public void record(Bson filter, Bson sort) {
+    BsonDocument filterDocument = filter.toBsonDocument(BsonDocument.class, collection.getCodecRegistry());
+    BsonDocument sortDocument = sort == null
+      ? new BsonDocument()
+      : sort.toBsonDocument(BsonDocument.class, collection.getCodecRegistry());
+    String key = FlightEvents.shape(filterDocument) + " sort " + FlightEvents.shape(sortDocument);
+
+    Shape shape = shapes.get(key);
+    if (shape == null) {
+      if (shapes.size() >= MAX_SHAPES) {
+        untracked.increment();
+        return;
+      }
+      shape = shapes.computeIfAbsent(key, k -> new Shape(filterDocument, sortDocument));
+    }
+    shape.count.increment();
+  }
+
+  /**
+   * Ask MongoDB how it would answer each of the most common query shapes.
+   *
+   * @return the number of shapes explained
+   */
+  public int explainTopShapes() {
+    List<Shape> top = shapes.values().stream()
+      .sorted(Comparator.comparingLong((Shape shape) -> shape.count.sum()).reversed())
+      .limit(TOP_SHAPES)
+      .toList();
+    int explained = 0;
+    for (Shape shape : top) {
+      try {
+        Document plan = collection.find(shape.filter)
+          .sort(shape.sort)
+          .maxTime(EXPLAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+          .explain(ExplainVerbosity.QUERY_PLANNER);
+        shape.stages = stages(plan);
+        explained++;
+      } catch (MongoException e) {
+        // Keep whatever we knew about it; we'll try again next time
+      }
+    }
+    return explained;
+  }
+
+  /**
+   * What we know about each query shape, most common first.
+   *
+   * @return a report on each shape
+   */
+  public List<Report> reports() {
+    List<Report> reports = new ArrayList<>();
+    shapes.forEach((key, shape) -> {
+      List<String> stages = shape.stages;
+      boolean collectionScan = stages != null && stages.contains(COLLECTION_SCAN);
+      boolean inMemorySort = stages != null && stages.contains(IN_MEMORY_SORT);
+      Map<String, Integer> suggestedIndex = null;
+      if (collectionScan || inMemorySort) {
+        suggestedIndex = suggestIndex(shape.filter, shape.sort);
+      }
+      reports.add(new Report(key, shape.count.sum(), stages, collectionScan, inMemorySort, suggestedIndex));
+    });
+    reports.sort(Comparator.comparingLong(Report::count).reversed());
+    return reports;
+  }
+
+  /**
+   * Create the indexes suggested for the shapes we've explained.
+   *
+   * @return the keys of each index created (or that already existed)
+   */
+  public List<Map<String, Integer>> createSuggestedIndexes() {
+    List<Map<String, Integer>> created = new ArrayList<>();
+    for (Report report : reports()) {
+      if (report.suggestedIndex() != null && !created.contains(report.suggestedIndex())) {
+        collection.createIndex(new Document(new LinkedHashMap<String, Object>(report.suggestedIndex())));
+        created.add(report.suggestedIndex());
+      }
+    }
+    return created;
+  }
+
+  /**
+   * The number of queries whose shapes we aren't keeping track of,
+   * because we already had `MAX_SHAPES` of them.
+   *
+   * @return the number of untracked queries
+   */
+  public long untracked() {
+    return untracked.sum();
+  }
+
+  /**
+   * The stages of the winning plan in the output of `explain`, outermost
+   * first, e.g., `[SORT, COLLSCAN]` or `[FETCH, IXSCAN]`.
+   */
+  static List<String> stages(Document explain) {
+    List<String> stages = new ArrayList<>();
+    Document planner = explain.get("queryPlanner", Document.class);
+    Document winningPlan = planner == null ? null : planner.get("winningPlan", Document.class);
+    if (winningPlan != null) {
+      // With the slot-based execution engine (MongoDB 7 and later), the
+      // familiar plan tree is under `queryPlan`
+      Document queryPlan = winningPlan.get("queryPlan", Document.class);
+      addStages(queryPlan != null ? queryPlan : winningPlan, stages);
+    }
+    return stages;
+  }
+
+  private static void addStages(Document stage, List<String> stages) {
+    if (stage.getString("stage") != null) {
+      stages.add(stage.getString("stage"));
+    }
+    if (stage.get("inputStage") instanceof Document input) {
+      addStages(input, stages);
+    }
+    if (stage.get("inputStages") instanceof List<?> inputs) {
+      for (Object input : inputs) {
+        if (input instanceof Document inputStage) {
+          addStages(inputStage, stages);
+        }
+      }
+    }
+  }
+
+  /**
+   * The keys of an index that would let MongoDB answer a query without
+   * scanning the collection or sorting in memory: the fields it matches
+   * exactly, then the ones it sorts by, then the ones it matches by range
+   * (or regex).
+   *
+   * @return the index keys, or `null` if there are no fields to index
+   */
+  static Map<String, Integer> suggestIndex(BsonDocument filter, BsonDocument sort) {
+    Map<String, Integer> equality = new LinkedHashMap<>();
+    Map<String, Integer> range = new LinkedHashMap<>();
+    classify(filter, equality, range);
+
+    Map<String, Integer> keys = new LinkedHashMap<>(equality);
+    for (Map.Entry<String, BsonValue> field : sort.entrySet()) {
+      int direction = field.getValue().isNumber() && field.getValue().asNumber().intValue() < 0 ? -1 : 1;
+      keys.putIfAbsent(field.getKey(), direction);
+    }
+    range.forEach(keys::putIfAbsent);
+    return keys.isEmpty() ? null : keys;
+  }
+
+  /**
+   * Sort the fields in a filter into those it matches exactly (with a
+   * value, `$eq`, or `$in`) and those it matches some other way.
+   */
+  private static void classify(BsonDocument filter, Map<String, Integer> equality, Map<String, Integer> range) {
+    for (Map.Entry<String, BsonValue> field : filter.entrySet()) {
+      String name = field.getKey();
+      BsonValue value = field.getValue();
+      if (name.equals("$and") && value.isArray()) {
+        for (BsonValue clause : value.asArray()) {
+          if (clause.isDocument()) {
+            classify(clause.asDocument(), equality, range);
+          }
+        }
+      } else if (name.startsWith("$")) {
+        // `$or`, `$text`, and so on need indexes of their own
+        continue;
+      } else if (isOperators(value) && !onlyEqualityOperators(value.asDocument())) {
+        range.putIfAbsent(name, 1);
+      } else if (value.isRegularExpression()) {
+        range.putIfAbsent(name, 1);
+      } else {
+        equality.putIfAbsent(name, 1);
+      }
+    }
+  }
+
+  private static boolean isOperators(BsonValue value) {
+    return value.isDocument() && !value.asDocument().isEmpty()
+      && value.asDocument().getFirstKey().startsWith("$");
+  }
+
+  private static boolean onlyEqualityOperators(BsonDocument operators) {
+    for (String operator : operators.keySet()) {
+      if (!operator.equals("$eq") && !operator.equals("$in")) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,165 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Admin routes for the `IndexAdvisor`s, which keep track of the shapes of
+ * the queries the controllers send to MongoDB and find out which of them
+ * need an index.
+ *
+ * - `GET /api/admin/queryShapes` reports each collection's query shapes,
+ *   most common first, with how MongoDB answers them (as of the last time
+ *   they were explained) and the index we'd suggest for the ones that scan
+ *   the whole collection or sort in memory.
+ * - `POST /api/admin/queryShapes/explain` explains the most common shapes
+ *   now, rather than waiting for the next `EXPLAIN_INTERVAL`.
+ * - `POST /api/admin/queryShapes/indexes` creates the suggested indexes.
+ *
+ * Each can be limited to one collection with `?collection=users` (or
+ * `todos`). All of them need the admin token (see `AdminAuth`).
+ *
+ * While the server's running, the most common shapes are explained every
+ * `EXPLAIN_INTERVAL` in the background. A background explain that fails
+ * is counted (in each collection's `failedExplains`) and tried again next
+ * time, rather than stopping the background explains for good. Indexes
+ * are only ever created when an admin asks for them.
+ */
+public class IndexAdvisorController implements Controller {
+
+  static final String API_QUERY_SHAPES = "/api/admin/queryShapes";
+  static final String COLLECTION_KEY = "collection";
+  // How often the most common query shapes are explained
+  static final Duration EXPLAIN_INTERVAL = Duration.ofMinutes(5);
+
+  private final AdminAuth admin;
+  private final Map<String, IndexAdvisor> advisors;
+  // collection -> how many of its background explains have failed
+  private final Map<String, LongAdder> failedExplains = new LinkedHashMap<>();
+  private ScheduledExecutorService explainer;
+
+  /**
+   * Construct a controller for index advice.
+   *
+   * @param admin who can use the routes
+   * @param advisors the index advisor for each collection, keyed by its name
+   */
+  public IndexAdvisorController(AdminAuth admin, Map<String, IndexAdvisor> advisors) {
+    this.admin = admin;
+    this.advisors = new LinkedHashMap<>(advisors);
+    advisors.keySet().forEach(collection -> failedExplains.put(collection, new LongAdder()));
+  }
+
+  /**
+   * Report the query shapes of the collection(s), and any suggested indexes.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getQueryShapes(Context ctx) {
+    Map<String, Object> reports = new LinkedHashMap<>();
+    selectedAdvisors(ctx).forEach((collection, advisor) -> reports.put(collection, Map.of(
+      "shapes", advisor.reports(),
+      "untracked", advisor.untracked(),
+      "failedExplains", failedExplains.get(collection).sum())));
+    ctx.json(reports);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Explain the most common query shapes of the collection(s) now.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void explainQueryShapes(Context ctx) {
+    Map<String, Integer> explained = new LinkedHashMap<>();
+    selectedAdvisors(ctx).forEach((collection, advisor) -> explained.put(collection, advisor.explainTopShapes()));
+    ctx.json(Map.of("explained", explained));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Create the indexes suggested for the collection(s).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void createSuggestedIndexes(Context ctx) {
+    Map<String, List<Map<String, Integer>>> created = new LinkedHashMap<>();
+    selectedAdvisors(ctx).forEach((collection, advisor) -> created.put(collection, advisor.createSuggestedIndexes()));
+    ctx.json(Map.of("indexes", created));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * The advisor for the collection in the `collection` query parameter,
+   * or all of them if there isn't one.
+   */
+  private Map<String, IndexAdvisor> selectedAdvisors(Context ctx) {
+    String collection = ctx.queryParam(COLLECTION_KEY);
+    if (collection == null) {
+      return advisors;
+    }
+    if (!advisors.containsKey(collection)) {
+      throw new BadRequestResponse("The collection must be one of " + advisors.keySet());
+    }
+    return Map.of(collection, advisors.get(collection));
+  }
+
+  /**
+   * Explain the most common query shapes of every collection, every
+   * `EXPLAIN_INTERVAL`, on a background thread.
+   */
+  private void startExplaining() {
+    explainer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("index advisor").factory());
+    long interval = EXPLAIN_INTERVAL.toMillis();
+    explainer.scheduleWithFixedDelay(this::explainEveryCollection, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Explain the most common query shapes of every collection, counting
+   * (rather than throwing) any failures: a scheduled task that throws is
+   * never run again.
+   */
+  void explainEveryCollection() {
+    advisors.forEach((collection, advisor) -> {
+      try {
+        advisor.explainTopShapes();
+      } catch (RuntimeException e) {
+        failedExplains.get(collection).increment();
+      }
+    });
+  }
+
+  private void stopExplaining() {
+    if (explainer != null) {
+      explainer.shutdownNow();
+    }
+  }
+
+  /**
+   * Setup routes for the index advisors.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(API_QUERY_SHAPES, admin.wrap(this::getQueryShapes));
+    server.post(API_QUERY_SHAPES + "/explain", admin.wrap(this::explainQueryShapes));
+    server.post(API_QUERY_SHAPES + "/indexes", admin.wrap(this::createSuggestedIndexes));
+
+    server.events(event -> {
+      event.serverStarted(this::startExplaining);
+      event.serverStopped(this::stopExplaining);
+    });
+  }
+}
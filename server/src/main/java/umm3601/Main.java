@@ -1,8 +1,15 @@
 package umm3601;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoDatabase;
 
+import umm3601.todo.TodoController;
 import umm3601.user.UserController;
 
 public class Main {
@@ -18,13 +25,23 @@ public class Main {
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
+    // The `API_KEYS` environment variable holds the (comma-separated) API keys
+    // clients can send in `X-API-Key` to be rate limited by key rather than by
+    // IP address.
+    RateLimiter rateLimiter = Server.configureRateLimiter(getEnvSet("API_KEYS"));
+
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers(database);
+    final Controller[] controllers = Main.getControllers(database, rateLimiter);
+
+    // If the `ACCESS_LOG_DIR` environment variable is set, each request
+    // is logged to `access.log` in that directory.
+    String accessLogDir = Main.getEnvOrDefault("ACCESS_LOG_DIR", "");
+    AccessLog accessLog = accessLogDir.isEmpty() ? null : new AccessLog(Path.of(accessLogDir));
 
     // Construct the server
-    Server server = new Server(mongoClient, controllers);
+    Server server = new Server(mongoClient, controllers, accessLog, rateLimiter);
 
     // Start the server
     server.startServer();
@@ -42,6 +59,33 @@ public class Main {
     return System.getenv().getOrDefault(envName, defaultValue);
   }
 
+  /**
+   * Get the integer value of an environment variable, or return a default value if it's not set.
+   *
+   * @param envName The name of the environment variable to get
+   * @param defaultValue The default value to use if the environment variable isn't set
+   *
+   * @return The value of the environment variable, or the default value if it's not set
+   * @throws NumberFormatException if the environment variable isn't an integer
+   */
+  static int getEnvInt(String envName, int defaultValue) {
+    return Integer.parseInt(getEnvOrDefault(envName, Integer.toString(defaultValue)));
+  }
+
+  /**
+   * Get the (comma-separated) values of an environment variable.
+   *
+   * @param envName The name of the environment variable to get
+   *
+   * @return The values, or an empty set if the environment variable isn't set
+   */
+  static Set<String> getEnvSet(String envName) {
+    return Arrays.stream(getEnvOrDefault(envName, "").split(","))
+      .map(String::strip)
+      .filter(value -> !value.isEmpty())
+      .collect(Collectors.toSet());
+  }
+
   /**
    * Get the implementations of `Controller` used for the server.
    *
@@ -51,16 +95,59 @@ public class Main {
    *
    * @param database The MongoDB database object used by the controllers
    *               to access the database.
+   * @param rateLimiter The server's rate limiter, whose counts are reported
+   *               on an admin route
    * @return An array of implementations of `Controller` for the server.
    */
-  static Controller[] getControllers(MongoDatabase database) {
+  static Controller[] getControllers(MongoDatabase database, RateLimiter rateLimiter) {
+    // The `BATCH_MAX_IDS` environment variable sets the most users or todos
+    // that `/api/usersBatch` and `/api/todosBatch` will fetch at once.
+    int maxBatchIds = getEnvInt("BATCH_MAX_IDS", BatchLookup.DEFAULT_MAX_IDS);
+    // The `LOOKUP_CONCURRENCY` and `LOOKUP_QUEUE` environment variables set how
+    // many cheap requests (lookups by id, suggestions) each controller runs at
+    // once, and how many more can wait for a turn; `HEAVY_CONCURRENCY` and
+    // `HEAVY_QUEUE` do the same for heavy ones (lists, counts, aggregations).
+    Bulkhead.Limits lookupLimits = new Bulkhead.Limits(
+      getEnvInt("LOOKUP_CONCURRENCY", Bulkhead.Limits.LOOKUPS.maxConcurrent()),
+      getEnvInt("LOOKUP_QUEUE", Bulkhead.Limits.LOOKUPS.maxQueued()),
+      Bulkhead.DEFAULT_WAIT);
+    Bulkhead.Limits heavyLimits = new Bulkhead.Limits(
+      getEnvInt("HEAVY_CONCURRENCY", Bulkhead.Limits.HEAVY_QUERIES.maxConcurrent()),
+      getEnvInt("HEAVY_QUEUE", Bulkhead.Limits.HEAVY_QUERIES.maxQueued()),
+      Bulkhead.DEFAULT_WAIT);
+    // Setting the `MEMORY_SCAN` environment variable to `true` lets user
+    // queries be answered by scanning an in-memory copy of the users (when
+    // the query planner thinks that's cheaper) instead of by MongoDB.
+    UserController userController = new UserController(
+      database, Boolean.parseBoolean(getEnvOrDefault("MEMORY_SCAN", "false")), maxBatchIds,
+      lookupLimits, heavyLimits);
+    // Setting the `TODO_SNAPSHOT` environment variable to `true` answers
+    // todo list queries from an in-memory snapshot instead of MongoDB.
+    TodoController todoController = new TodoController(
+      database, Boolean.parseBoolean(getEnvOrDefault("TODO_SNAPSHOT", "false")), maxBatchIds,
+      lookupLimits, heavyLimits);
+    // The `/api/admin` routes are for whoever has the admin token in the
+    // `ADMIN_TOKEN` environment variable (and are turned off if it isn't set).
+    AdminAuth admin = new AdminAuth(getEnvOrDefault("ADMIN_TOKEN", ""));
+
     Controller[] controllers = new Controller[] {
       // You will add additional controllers here, as you create them,
       // and you need to make sure that each of your new controllers implements
       // the `Controller` interface.
       //
       // You can also remove this UserController once you don't need it.
-      new UserController(database)
+      userController,
+      todoController,
+      // Runs several API calls in one round trip
+      new BatchController(),
+      // Starts, stops, and downloads flight recordings
+      new RecordingController(admin),
+      // Reports which query shapes need indexes, and creates them
+      new IndexAdvisorController(admin, Map.of(
+        "users", userController.getIndexAdvisor(),
+        "todos", todoController.getIndexAdvisor())),
+      // Reports how many requests the rate limits have turned away
+      new RateLimitController(admin, rateLimiter)
     };
     return controllers;
   }
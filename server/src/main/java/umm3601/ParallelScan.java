@@ -0,0 +1,102 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates a filter over an in-memory collection in parallel, using
+ * fork/join to spread the work across all the available cores.
+ *
+ * This is meant for "heavy" filters that no index can help with, such as
+ * a case-insensitive substring search: the items are split into chunks,
+ * each chunk is scanned on its own (common pool) thread, and the results
+ * are stitched back together *in their original order*, so callers that
+ * have pre-sorted their items still get sorted results.
+ */
+public final class ParallelScan {
+
+  // Chunks of this many items (or fewer) are scanned sequentially; splitting
+  // them any further costs more in task overhead than it saves.
+  public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+  private ParallelScan() {
+  }
+
+  /**
+   * The items in `items` that satisfy `predicate`, in their original order.
+   *
+   * @param <T> the type of the items
+   * @param items the items to filter
+   * @param predicate the test an item must pass to be kept
+   * @return the items that pass the test
+   */
+  public static <T> List<T> filter(List<T> items, Predicate<? super T> predicate) {
+    int[] matching = matchingIndices(items.size(), i -> predicate.test(items.get(i)), DEFAULT_CHUNK_SIZE);
+    List<T> result = new ArrayList<>(matching.length);
+    for (int i : matching) {
+      result.add(items.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * The indices in `[0, size)` that satisfy `predicate`, in increasing order.
+   *
+   * @param size the number of indices to check
+   * @param predicate the test an index must pass to be kept
+   * @param chunkSize the largest number of indices scanned by a single task
+   * @return the indices that pass the test
+   */
+  public static int[] matchingIndices(int size, IntPredicate predicate, int chunkSize) {
+    return ForkJoinPool.commonPool().invoke(new ScanTask(predicate, 0, size, Math.max(chunkSize, 1)));
+  }
+
+  /**
+   * Scans the indices in `[start, end)`, splitting the range in half
+   * (and scanning the halves in parallel) until it's small enough.
+   */
+  private static final class ScanTask extends RecursiveTask<int[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient IntPredicate predicate;
+    private final int start;
+    private final int end;
+    private final int chunkSize;
+
+    ScanTask(IntPredicate predicate, int start, int end, int chunkSize) {
+      this.predicate = predicate;
+      this.start = start;
+      this.end = end;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected int[] compute() {
+      if (end - start <= chunkSize) {
+        int[] matching = new int[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+          if (predicate.test(i)) {
+            matching[count++] = i;
+          }
+        }
+        return Arrays.copyOf(matching, count);
+      }
+
+      int middle = (start + end) >>> 1;
+      ScanTask left = new ScanTask(predicate, start, middle, chunkSize);
+      left.fork();
+      int[] rightMatches = new ScanTask(predicate, middle, end, chunkSize).compute();
+      int[] leftMatches = left.join();
+
+      int[] matching = Arrays.copyOf(leftMatches, leftMatches.length + rightMatches.length);
+      System.arraycopy(rightMatches, 0, matching, leftMatches.length, rightMatches.length);
+      return matching;
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package umm3601;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import com.mongodb.client.MongoCollection;
+
+import io.javalin.http.Context;
+
+/**
+ * A (very) small cost-based query planner, which decides which of the
+ * engines available to a controller should answer a particular query.
+ *
+ * The controllers have several ways of answering the same query: asking
+ * MongoDB, counting with a `BitmapIndex`, or scanning an in-memory copy of
+ * the collection (either sequentially or in parallel with `ParallelScan`).
+ * Which is cheapest depends on the shape of the query (its filters, limit,
+ * and sort; see `Shape`), the size of the collection, and whether the
+ * in-memory copy is loaded and fresh (loading it means reading every
+ * document), so each controller describes all of that and which engines
+ * it can offer, and the planner estimates a cost for each and picks the
+ * cheapest one.
+ *
+ * The cost estimates are deliberately rough (roughly microseconds on a
+ * typical machine); they only need to get the *ordering* of the engines
+ * right. A request with `?explain=true` gets the chosen plan, along with
+ * the costs of the alternatives, back in the `X-Query-Plan` header, which
+ * makes it easy to see (and debug) why a query was answered the way it
+ * was. Other requests don't pay for describing the plan, and don't see
+ * how the server works inside.
+ */
+public class QueryPlanner {
+
+  /**
+   * The ways a controller might answer a query.
+   */
+  public enum Engine {
+    /** Ask MongoDB. */
+    DATABASE,
+    /** Intersect bitmaps in a `BitmapIndex` (only for counts). */
+    BITMAP_INDEX,
+    /** Scan an in-memory copy of the collection on the request thread. */
+    MEMORY_SCAN,
+    /** Scan an in-memory copy of the collection on all cores. */
+    PARALLEL_SCAN
+  }
+
+  /**
+   * The engine chosen for a query, and the estimated cost of
+   * each of the engines that were considered.
+   *
+   * @param engine the cheapest engine, which should answer the query
+   * @param costs the estimated cost of every engine that was considered
+   */
+  public record Plan(Engine engine, Map<Engine, Double> costs) {
+    /**
+     * Describe the plan, e.g., `MEMORY_SCAN; MEMORY_SCAN=2.0, DATABASE=304.0`,
+     * with the considered engines listed cheapest first. If there was only
+     * one engine to choose from, this is just the name of that engine.
+     *
+     * @return a description of the plan
+     */
+    public String describe() {
+      if (costs.isEmpty()) {
+        return engine.toString();
+      }
+      return engine + "; " + costs.entrySet().stream()
+        .sorted(Map.Entry.comparingByValue(Comparator.naturalOrder()))
+        .map(cost -> cost.getKey() + "=" + String.format(Locale.ROOT, "%.1f", cost.getValue()))
+        .collect(Collectors.joining(", "));
+    }
+  }
+
+  /**
+   * What a query asks for, which is what the planner needs to know
+   * (besides the size of the collection) to estimate its costs.
+   *
+   * @param expensivePredicate whether the query includes an expensive
+   *   check, like a case-insensitive substring search
+   * @param indexed whether MongoDB can find the query's documents with an
+   *   index, rather than by examining every document
+   * @param limit the most documents the query returns, or 0 for all of them
+   * @param sorted whether the matches have to be sorted once they're found,
+   *   rather than coming out of the in-memory copy in the right order
+   * @param count whether the query only counts its matches
+   *   (or facets of them), rather than returning them
+   */
+  public record Shape(boolean expensivePredicate, boolean indexed, int limit, boolean sorted, boolean count) {
+    /**
+     * The shape of a query that returns (up to `limit` of) its matches.
+     *
+     * @param expensivePredicate whether the query includes an expensive check
+     * @param indexed whether MongoDB can find the query's documents with an index
+     * @param limit the most documents the query returns, or 0 for all of them
+     * @param sorted whether the matches have to be sorted once they're found
+     * @return the shape of the query
+     */
+    public static Shape find(boolean expensivePredicate, boolean indexed, int limit, boolean sorted) {
+      return new Shape(expensivePredicate, indexed, limit, sorted, false);
+    }
+
+    /**
+     * The shape of a query that only counts its matches.
+     *
+     * @param expensivePredicate whether the query includes an expensive check
+     * @param indexed whether MongoDB can find the query's documents with an index
+     * @return the shape of the query
+     */
+    public static Shape count(boolean expensivePredicate, boolean indexed) {
+      return new Shape(expensivePredicate, indexed, 0, false, true);
+    }
+  }
+
+  // The response header the chosen plan is reported in
+  public static final String PLAN_HEADER = "X-Query-Plan";
+  // The query parameter that asks for the plan: `?explain=true`
+  public static final String EXPLAIN_KEY = "explain";
+
+  // The fixed cost of a round trip to MongoDB
+  static final double DATABASE_ROUND_TRIP = 300.0;
+  // The cost of MongoDB examining one document. Unless a query's filter can
+  // use an index (see `CaseFoldedField`), we assume it examines every document.
+  static final double DATABASE_PER_DOCUMENT = 0.5;
+  // The cost of MongoDB finding a query's documents with an index
+  static final double DATABASE_INDEX_LOOKUP = 20.0;
+  // The cost of MongoDB sending us one document, and of us decoding it.
+  // Loading an in-memory copy of a collection costs this for every document.
+  static final double DATABASE_PER_RESULT = 2.0;
+  // The cost of checking one row of an in-memory copy of a collection
+  static final double MEMORY_PER_ROW = 0.02;
+  // How much more expensive a regular expression or substring
+  // check is than a simple equality check
+  static final double EXPENSIVE_PREDICATE_FACTOR = 8.0;
+  // The cost of forking and joining the tasks of a parallel scan
+  static final double PARALLEL_OVERHEAD = 50.0;
+  // The cost of intersecting a few bitmaps
+  static final double BITMAP_INDEX_COST = 5.0;
+  // The cost of one comparison while sorting matches
+  static final double SORT_PER_COMPARISON = 0.01;
+  // We don't keep any statistics about the values in a collection,
+  // so we assume that a query matches this fraction of it
+  static final double MATCHING_FRACTION = 0.1;
+
+  // How long we trust our estimate of the size of the collection
+  static final long SIZE_ESTIMATE_MILLIS = 5000;
+
+  private final MongoCollection<?> collection;
+  private final int cores;
+  private long estimatedSize;
+  private long estimatedSizeTime;
+  private boolean haveEstimate;
+  // A lock rather than `synchronized`, so a virtual thread fetching
+  // the estimate doesn't pin its carrier thread
+  private final ReentrantLock estimateLock = new ReentrantLock();
+
+  /**
+   * Construct a planner for queries against a collection.
+   *
+   * @param collection the collection being queried, whose (estimated)
+   *   size is used when estimating the costs of queries
+   */
+  public QueryPlanner(MongoCollection<?> collection) {
+    this(collection, Runtime.getRuntime().availableProcessors());
+  }
+
+  QueryPlanner(MongoCollection<?> collection, int cores) {
+    this.collection = collection;
+    this.cores = cores;
+  }
+
+  /**
+   * The (estimated) number of documents in the collection. This comes from
+   * the collection's metadata, so it's cheap, and we only ask for it every
+   * `SIZE_ESTIMATE_MILLIS` anyway.
+   *
+   * @return the estimated number of documents in the collection
+   */
+  public long estimatedSize() {
+    estimateLock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      if (!haveEstimate || now - estimatedSizeTime >= SIZE_ESTIMATE_MILLIS) {
+        estimatedSize = collection.estimatedDocumentCount();
+        estimatedSizeTime = now;
+        haveEstimate = true;
+      }
+      return estimatedSize;
+    } finally {
+      estimateLock.unlock();
+    }
+  }
+
+  /**
+   * Pick the cheapest of the available engines for a query.
+   *
+   * @param shape what the query asks for
+   * @param cacheFresh whether the in-memory copy of the collection that
+   *   `MEMORY_SCAN` and `PARALLEL_SCAN` scan is loaded and fresh; if it
+   *   isn't, those engines have to (re)load all of it first
+   * @param available the engines the controller can offer for this query
+   * @return the plan for the query
+   * @throws IllegalArgumentException if no engines are available
+   */
+  public Plan plan(Shape shape, boolean cacheFresh, Set<Engine> available) {
+    if (available.isEmpty()) {
+      throw new IllegalArgumentException("There must be at least one engine to choose from");
+    }
+    if (available.size() == 1) {
+      // There's no choice to make, so don't bother estimating anything
+      return new Plan(available.iterator().next(), Map.of());
+    }
+    double rows = estimatedSize();
+    double matches = rows * MATCHING_FRACTION;
+    double returned = shape.count() ? 0 : shape.limit() > 0 ? Math.min(shape.limit(), matches) : matches;
+    double perCheck = shape.expensivePredicate() ? EXPENSIVE_PREDICATE_FACTOR : 1;
+    // A sequential scan of rows that are already in order
+    // can stop as soon as it has found enough matches
+    double scannedRows = shape.count() || shape.sorted() || shape.limit() == 0
+      ? rows
+      : Math.min(rows, shape.limit() / MATCHING_FRACTION);
+    double load = cacheFresh ? 0 : DATABASE_ROUND_TRIP + rows * DATABASE_PER_RESULT;
+
+    Map<Engine, Double> costs = new EnumMap<>(Engine.class);
+    for (Engine engine : available) {
+      double cost = switch (engine) {
+        case DATABASE -> DATABASE_ROUND_TRIP
+          + (shape.indexed() ? DATABASE_INDEX_LOOKUP : rows * DATABASE_PER_DOCUMENT * perCheck)
+          // MongoDB only has to keep the top `limit` matches while it sorts
+          + (shape.sorted() ? sortCost(matches, returned) : 0)
+          + returned * DATABASE_PER_RESULT;
+        case BITMAP_INDEX -> BITMAP_INDEX_COST;
+        case MEMORY_SCAN -> load + scannedRows * MEMORY_PER_ROW * perCheck
+          + (shape.sorted() ? sortCost(matches, matches) : 0);
+        case PARALLEL_SCAN -> load + PARALLEL_OVERHEAD + rows * MEMORY_PER_ROW * perCheck / cores
+          + (shape.sorted() ? sortCost(matches, matches) : 0);
+      };
+      costs.put(engine, cost);
+    }
+
+    Engine cheapest = costs.entrySet().stream()
+      .min(Map.Entry.comparingByValue())
+      .orElseThrow()
+      .getKey();
+    return new Plan(cheapest, costs);
+  }
+
+  /**
+   * The cost of sorting some matches and keeping the first `kept` of them.
+   */
+  private static double sortCost(double matches, double kept) {
+    return matches * Math.log(Math.max(kept, 2)) / Math.log(2) * SORT_PER_COMPARISON;
+  }
+
+  /**
+   * Report the chosen plan in the `X-Query-Plan` response header, if the
+   * request asked for it (with `?explain=true`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param plan the plan that was used to answer the request
+   */
+  public static void explain(Context ctx, Plan plan) {
+    if (Boolean.parseBoolean(ctx.queryParam(EXPLAIN_KEY))) {
+      ctx.header(PLAN_HEADER, plan.describe());
+    }
+  }
+}
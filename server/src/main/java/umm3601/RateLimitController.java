@@ -0,0 +1,61 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * An admin route reporting what the `RateLimiter` has been up to, so we
+ * can see which routes clients are running into their limits on.
+ *
+ * `GET /api/admin/rateLimits` gives the number of requests turned away,
+ * in total and for each route, the number of clients we're keeping
+ * buckets for, and the number of requests from clients we had no room
+ * for. It needs the admin token (see `AdminAuth`).
+ */
+public class RateLimitController implements Controller {
+
+  static final String API_RATE_LIMITS = "/api/admin/rateLimits";
+
+  private final AdminAuth admin;
+  private final RateLimiter rateLimiter;
+
+  /**
+   * Construct a controller for the rate limiter's counts.
+   *
+   * @param admin who can use the route
+   * @param rateLimiter the server's rate limiter
+   */
+  public RateLimitController(AdminAuth admin, RateLimiter rateLimiter) {
+    this.admin = admin;
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Report the rate limiter's counts.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getRateLimits(Context ctx) {
+    Map<String, Object> counts = new LinkedHashMap<>();
+    counts.put("limited", rateLimiter.limited());
+    counts.put("limitedByRoute", rateLimiter.limitedByRoute());
+    counts.put("clients", rateLimiter.clients());
+    counts.put("overflowed", rateLimiter.overflowed());
+    ctx.json(counts);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Setup the route for the rate limiter's counts.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(API_RATE_LIMITS, admin.wrap(this::getRateLimits));
+  }
+}
@@ -0,0 +1,344 @@
+package umm3601;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Per-client, per-route rate limits, so one client polling an endpoint in
+ * a tight loop can't use up the database for everyone else.
+ *
+ * Clients are identified by their `X-API-Key` header if they send one of
+ * the keys we've handed out, and by their IP address otherwise. (An
+ * unknown key is ignored, so a client can't get a fresh bucket for each
+ * request by making up a new key each time.) The sub-requests of a batch
+ * (see `BatchController`) come from this server itself, so they say which
+ * client they're on behalf of in `ON_BEHALF_OF_HEADER`, which we only
+ * believe from a loopback address that also knows this process's secret
+ * `INTERNAL_TOKEN_HEADER`. Each client gets a token bucket for
+ * each route, which holds up to `burst` tokens and refills at `perSecond`
+ * tokens a second; each request takes a token, and a request that finds
+ * the bucket empty is turned away with `429 Too Many Requests` and a
+ * `Retry-After` header saying when there'll be a token for it.
+ *
+ * The buckets are kept as in the "generic cell rate algorithm": rather
+ * than a token count and a refill time, each bucket is a single `long`,
+ * the time at which it will be full again. So a check is a read and a
+ * compare-and-set of one slot of an `AtomicLongArray`, with no locks and
+ * no allocation (except the first time we see a client or a route). The
+ * clients are held in a `ConcurrentHashMap`, whose reads are lock-free
+ * and whose writes only lock one of its bins.
+ *
+ * Clients we haven't heard from for `IDLE_NANOS` (by which time all their
+ * buckets are full again, so forgetting them changes nothing) are swept
+ * out every `SWEEP_NANOS` by whichever request happens to come along.
+ * We keep buckets for at most `maxClients` clients; while we're full (as
+ * when requests are coming from a great many addresses at once), any new
+ * clients share a single set of "overflow" buckets, so they're limited
+ * together rather than not at all.
+ *
+ * `limited()` and `limitedByRoute()` count the requests turned away, and
+ * `overflowed()` the requests from clients we had no room for; the
+ * `RateLimitController` reports them.
+ */
+public class RateLimiter {
+
+  /**
+   * The rate limit for a route.
+   *
+   * @param perSecond how many requests a second a client can make, on average
+   * @param burst how many requests a client can make at once
+   */
+  public record Rate(double perSecond, int burst) {
+
+    /**
+     * Check the rate and burst.
+     *
+     * @throws IllegalArgumentException if either isn't positive
+     */
+    public Rate {
+      if (perSecond <= 0 || burst <= 0) {
+        throw new IllegalArgumentException("A rate limit needs a positive rate and burst");
+      }
+    }
+
+    long intervalNanos() {
+      return (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+    }
+  }
+
+  // The header clients can identify themselves with
+  public static final String API_KEY_HEADER = "X-API-Key";
+  // The headers a batch's sub-requests say whose they are with
+  static final String ON_BEHALF_OF_HEADER = "X-On-Behalf-Of";
+  static final String INTERNAL_TOKEN_HEADER = "X-Internal-Token";
+  // The request attribute `before()` leaves the client's key in
+  static final String CLIENT_ATTRIBUTE = RateLimiter.class.getName() + ".client";
+  private static final int INTERNAL_TOKEN_BYTES = 32;
+  // Made up when the server starts, so only this process can vouch for a sub-request
+  private static final String INTERNAL_TOKEN = newInternalToken();
+  // The most routes we keep separate buckets for; any more share the last one
+  static final int MAX_ROUTES = 64;
+  // How long a client can be idle before we forget about it
+  static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+  // How often we look for idle clients to forget
+  static final long SWEEP_NANOS = TimeUnit.MINUTES.toNanos(1);
+  // The most clients we keep separate buckets for (each takes about 600 bytes)
+  static final int MAX_CLIENTS = 100_000;
+
+  private final Rate defaultRate;
+  private final Map<String, Rate> routeRates;
+  private final Set<String> apiKeys;
+  private final int maxClients;
+
+  // Each route's index in the per-client arrays, and its interval and tolerance
+  private final ConcurrentHashMap<String, Integer> routeIndexes = new ConcurrentHashMap<>();
+  private final AtomicReferenceArray<String> routeNames = new AtomicReferenceArray<>(MAX_ROUTES);
+  private final long[] intervals = new long[MAX_ROUTES];
+  private final long[] tolerances = new long[MAX_ROUTES];
+  private final LongAdder[] limitedCounts = new LongAdder[MAX_ROUTES];
+  private final AtomicInteger routeCount = new AtomicInteger();
+
+  private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+  // Shared by the clients we have no room for
+  private final Client overflow = new Client();
+  private final LongAdder overflowed = new LongAdder();
+  // Times are measured from here, so they're never negative
+  private final long origin = System.nanoTime();
+  private final AtomicLong nextSweep = new AtomicLong(SWEEP_NANOS);
+
+  /**
+   * A client's buckets: for each route, the time at which its bucket
+   * will be full again.
+   */
+  private static final class Client {
+    private final AtomicLongArray fullAt = new AtomicLongArray(MAX_ROUTES);
+    private volatile long lastSeen;
+  }
+
+  /**
+   * Construct a rate limiter.
+   *
+   * @param defaultRate the limit for routes that aren't in `routeRates`
+   * @param routeRates the limits for particular routes, keyed by their paths
+   *   (as they were registered, e.g., `/api/users/{id}`)
+   * @param apiKeys the API keys clients can identify themselves with
+   */
+  public RateLimiter(Rate defaultRate, Map<String, Rate> routeRates, Set<String> apiKeys) {
+    this(defaultRate, routeRates, apiKeys, MAX_CLIENTS);
+  }
+
+  RateLimiter(Rate defaultRate, Map<String, Rate> routeRates, Set<String> apiKeys, int maxClients) {
+    this.defaultRate = defaultRate;
+    this.routeRates = Map.copyOf(routeRates);
+    this.apiKeys = Set.copyOf(apiKeys);
+    this.maxClients = maxClients;
+    for (int i = 0; i < MAX_ROUTES; i++) {
+      limitedCounts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * A before-handler that lets a request through, or turns it away with
+   * `429 Too Many Requests` if its client has used up its requests for
+   * the route.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void before(Context ctx) {
+    String client = clientOf(ctx);
+    ctx.attribute(CLIENT_ATTRIBUTE, client);
+    long wait = check(client, ctx.endpointHandlerPath(), System.nanoTime() - origin);
+    if (wait > 0) {
+      long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+      ctx.header("Retry-After", Long.toString(seconds));
+      throw new HttpResponseException(HttpStatus.TOO_MANY_REQUESTS.getCode(),
+        "Too many requests; try again in " + seconds + " seconds");
+    }
+  }
+
+  /**
+   * Who a request is from: the client a batch sub-request is on behalf of,
+   * if it's really from this server, or else the client's API key, if it's
+   * one we've handed out, or else its IP address.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the client's key
+   */
+  String clientOf(Context ctx) {
+    String onBehalfOf = ctx.header(ON_BEHALF_OF_HEADER);
+    if (onBehalfOf != null && isInternal(ctx)) {
+      return onBehalfOf;
+    }
+    String apiKey = ctx.header(API_KEY_HEADER);
+    return apiKey != null && apiKeys.contains(apiKey) ? apiKey : ctx.ip();
+  }
+
+  /**
+   * Whether a request was sent by this server to itself: it came over a
+   * loopback connection (the connection's own address, not `ctx.ip()`,
+   * which a proxy header could set) and has this process's token.
+   */
+  private static boolean isInternal(Context ctx) {
+    String token = ctx.header(INTERNAL_TOKEN_HEADER);
+    if (token == null || !MessageDigest.isEqual(
+        token.getBytes(StandardCharsets.UTF_8), INTERNAL_TOKEN.getBytes(StandardCharsets.UTF_8))) {
+      return false;
+    }
+    try {
+      // An IP address literal, so this doesn't look anything up
+      return InetAddress.getByName(ctx.req().getRemoteAddr()).isLoopbackAddress();
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The token this server's own requests to itself carry in
+   * `INTERNAL_TOKEN_HEADER`.
+   *
+   * @return this process's internal token
+   */
+  static String internalToken() {
+    return INTERNAL_TOKEN;
+  }
+
+  private static String newInternalToken() {
+    byte[] token = new byte[INTERNAL_TOKEN_BYTES];
+    new SecureRandom().nextBytes(token);
+    return HexFormat.of().formatHex(token);
+  }
+
+  /**
+   * Take a token from a client's bucket for a route, if there is one.
+   *
+   * @param client the client's key (API key or IP address)
+   * @param route the route's path
+   * @param now the current time, in nanoseconds since `origin`
+   * @return 0 if the request can go ahead, or else how long (in
+   *   nanoseconds) until the client's next request for the route can
+   */
+  long check(String client, String route, long now) {
+    int index = routeIndex(route);
+    sweep(now);
+    Client buckets = clients.get(client);
+    if (buckets == null) {
+      if (clients.size() >= maxClients) {
+        buckets = overflow;
+        overflowed.increment();
+      } else {
+        buckets = clients.computeIfAbsent(client, key -> new Client());
+      }
+    }
+    buckets.lastSeen = now;
+
+    long interval = intervals[index];
+    long tolerance = tolerances[index];
+    while (true) {
+      long fullAt = buckets.fullAt.get(index);
+      // Taking a token pushes back the time the bucket is full by one interval;
+      // if it's already further off than the burst allows, the bucket is empty.
+      long start = Math.max(fullAt, now);
+      if (start - now > tolerance) {
+        limitedCounts[index].increment();
+        return start - now - tolerance;
+      }
+      if (buckets.fullAt.compareAndSet(index, fullAt, start + interval)) {
+        return 0;
+      }
+    }
+  }
+
+  private int routeIndex(String route) {
+    Integer index = routeIndexes.get(route);
+    if (index != null) {
+      return index;
+    }
+    return routeIndexes.computeIfAbsent(route, key -> {
+      int next = Math.min(routeCount.getAndIncrement(), MAX_ROUTES - 1);
+      Rate rate = routeRates.getOrDefault(key, defaultRate);
+      if (routeNames.compareAndSet(next, null, key)) {
+        intervals[next] = rate.intervalNanos();
+        tolerances[next] = rate.intervalNanos() * (rate.burst() - 1);
+      }
+      return next;
+    });
+  }
+
+  /**
+   * Forget the clients we haven't heard from for `IDLE_NANOS`, if it's been
+   * `SWEEP_NANOS` since we last did; only one thread does each sweep.
+   */
+  private void sweep(long now) {
+    long due = nextSweep.get();
+    if (now < due || !nextSweep.compareAndSet(due, now + SWEEP_NANOS)) {
+      return;
+    }
+    clients.values().removeIf(client -> now - client.lastSeen > IDLE_NANOS);
+  }
+
+  /**
+   * The total number of requests turned away.
+   *
+   * @return the number of rate-limited requests
+   */
+  public long limited() {
+    long total = 0;
+    for (LongAdder count : limitedCounts) {
+      total += count.sum();
+    }
+    return total;
+  }
+
+  /**
+   * The number of requests turned away for each route that's had any.
+   *
+   * @return the number of rate-limited requests, keyed by route
+   */
+  public Map<String, Long> limitedByRoute() {
+    Map<String, Long> byRoute = new LinkedHashMap<>();
+    for (int i = 0; i < MAX_ROUTES; i++) {
+      long count = limitedCounts[i].sum();
+      if (count > 0) {
+        byRoute.put(routeNames.get(i), count);
+      }
+    }
+    return byRoute;
+  }
+
+  /**
+   * The number of requests from new clients that had to share the
+   * overflow buckets, because we already had `maxClients` clients.
+   *
+   * @return the number of overflowed requests
+   */
+  public long overflowed() {
+    return overflowed.sum();
+  }
+
+  /**
+   * The number of clients we're keeping buckets for.
+   *
+   * @return the number of clients
+   */
+  public int clients() {
+    return clients.size();
+  }
+}
@@ -0,0 +1,207 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Admin routes for starting, stopping, and downloading Java Flight
+ * Recorder recordings of the running server, so we can find out where
+ * production is spending its time without restarting it with a profiler.
+ *
+ * - `POST /api/admin/recording/start` starts a recording, with the JDK's
+ *   `default` settings (low enough overhead to leave on) or, with
+ *   `?settings=profile`, its more detailed `profile` settings. Besides
+ *   the JDK's own events, it records our `FlightEvents`.
+ * - `POST /api/admin/recording/stop` stops it.
+ * - `GET /api/admin/recording/dump` downloads what's been recorded so far
+ *   (of a running or a stopped recording) as a `.jfr` file, to open in
+ *   JDK Mission Control or with the `jfr` tool.
+ * - `GET /api/admin/recording` says whether there's a recording, and
+ *   whether it's running.
+ *
+ * There's (at most) one recording at a time. It keeps (at most) the
+ * last `MAX_AGE` or `MAX_SIZE` of events, whichever is less, so one that's
+ * left running doesn't fill up the disk.
+ *
+ * All the routes need the admin token (see `AdminAuth`).
+ */
+public class RecordingController implements Controller {
+
+  static final String API_RECORDING = "/api/admin/recording";
+  static final String SETTINGS_KEY = "settings";
+  // The JDK's built-in recording settings
+  static final Set<String> SETTINGS = Set.of("default", "profile");
+  static final Duration MAX_AGE = Duration.ofMinutes(30);
+  static final long MAX_SIZE = 256L * 1024 * 1024;
+  static final String JFR_CONTENT_TYPE = "application/octet-stream";
+
+  private final AdminAuth admin;
+
+  // The current (or last) recording, if there is one
+  private Recording recording;
+  // Guards `recording`. This is a lock rather than `synchronized` so a
+  // virtual thread dumping a recording doesn't pin its carrier thread.
+  private final ReentrantLock recordingLock = new ReentrantLock();
+
+  /**
+   * Construct a controller for flight recordings.
+   *
+   * @param admin who can use the routes
+   */
+  public RecordingController(AdminAuth admin) {
+    this.admin = admin;
+  }
+
+  /**
+   * Start a recording.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the recording settings can't be read
+   * @throws ParseException if the recording settings can't be parsed
+   */
+  public void startRecording(Context ctx) throws IOException, ParseException {
+    String settings = ctx.queryParam(SETTINGS_KEY) == null ? "default" : ctx.queryParam(SETTINGS_KEY);
+    if (!SETTINGS.contains(settings)) {
+      throw new BadRequestResponse("The recording settings must be one of " + SETTINGS);
+    }
+
+    recordingLock.lock();
+    try {
+      if (recording != null && recording.getState() == RecordingState.RUNNING) {
+        throw new ConflictResponse("A recording is already running");
+      }
+      if (recording != null) {
+        recording.close();
+      }
+      recording = new Recording(Configuration.getConfiguration(settings));
+      recording.setName("umm3601");
+      recording.setToDisk(true);
+      recording.setMaxAge(MAX_AGE);
+      recording.setMaxSize(MAX_SIZE);
+      recording.enable(FlightEvents.Request.class);
+      recording.enable(FlightEvents.MongoCommand.class);
+      recording.start();
+      ctx.json(status());
+    } finally {
+      recordingLock.unlock();
+    }
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Stop the running recording; what it recorded can still be downloaded.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void stopRecording(Context ctx) {
+    recordingLock.lock();
+    try {
+      if (recording == null || recording.getState() != RecordingState.RUNNING) {
+        throw new ConflictResponse("There's no recording running");
+      }
+      recording.stop();
+      ctx.json(status());
+    } finally {
+      recordingLock.unlock();
+    }
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Send what the recording has recorded so far, as a `.jfr` file.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the recording can't be written out
+   */
+  public void dumpRecording(Context ctx) throws IOException {
+    Path file = Files.createTempFile("umm3601-", ".jfr");
+    InputStream body;
+    try {
+      recordingLock.lock();
+      try {
+        if (recording == null || recording.getState() == RecordingState.CLOSED) {
+          throw new NotFoundResponse("There's no recording to download");
+        }
+        recording.dump(file);
+      } finally {
+        recordingLock.unlock();
+      }
+      // The file goes away once Javalin has sent it and closed the stream
+      body = Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException | RuntimeException e) {
+      // Nothing will ever send (and so delete) the file, so don't leave it behind
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    ctx.contentType(JFR_CONTENT_TYPE);
+    ctx.header("Content-Disposition", "attachment; filename=\"" + file.getFileName() + "\"");
+    ctx.result(body);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Say whether there's a recording, and what state it's in.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getRecording(Context ctx) {
+    recordingLock.lock();
+    try {
+      ctx.json(status());
+    } finally {
+      recordingLock.unlock();
+    }
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * The recording's state, when it started, and how much it has recorded.
+   */
+  private Map<String, Object> status() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    if (recording == null) {
+      status.put("state", "NONE");
+      return status;
+    }
+    status.put("state", recording.getState().name());
+    status.put("startTime", String.valueOf(recording.getStartTime()));
+    status.put("size", recording.getSize());
+    return status;
+  }
+
+  /**
+   * Setup routes for the flight recordings.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(API_RECORDING, admin.wrap(this::getRecording));
+    server.post(API_RECORDING + "/start", admin.wrap(this::startRecording));
+    server.post(API_RECORDING + "/stop", admin.wrap(this::stopRecording));
+    server.get(API_RECORDING + "/dump", admin.wrap(this::dumpRecording));
+  }
+}
@@ -0,0 +1,157 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * Chooses the format of a response body based on the request's `Accept` header.
+ *
+ * Browsers (and anything else that doesn't ask otherwise) get JSON, as
+ * always. Machine clients that would rather not parse large JSON arrays
+ * can ask for one of Jackson's compact binary formats instead:
+ *
+ * - `application/cbor` ([CBOR](https://cbor.io/))
+ * - `application/x-jackson-smile` ([Smile](https://github.com/FasterXML/smile-format-specification))
+ *
+ * Both describe exactly the same objects as the JSON does, just in fewer
+ * bytes and with much cheaper parsing.
+ *
+ * Whatever the format, the body is serialized straight into the response's
+ * output stream, rather than into a `String` or `byte[]` that Javalin then
+ * copies out, so a big list of users or todos is never held in memory
+ * twice. JSON is written with `JSON_MAPPER`, the same mapper `Server`
+ * installs in Javalin for the `ctx.json(...)` calls.
+ */
+public final class ResponseFormats {
+
+  public static final String CBOR = "application/cbor";
+  public static final String SMILE = "application/x-jackson-smile";
+  // The request attribute holding the body of the response, so a
+  // `CircuitBreaker` can keep it to fall back on
+  public static final String BODY_ATTRIBUTE = ResponseFormats.class.getName() + ".body";
+
+  // Our tuned JSON mapper, with the Blackbird module (which replaces Jackson's
+  // reflective field and method access with generated accessors) and a
+  // shared, thread-safe pool for recycling Jackson's internal buffers, so
+  // they're reused no matter which (possibly virtual) thread is serializing.
+  public static final ObjectMapper JSON_MAPPER = new ObjectMapper(JsonFactory.builder()
+      .recyclerPool(JsonRecyclerPools.sharedConcurrentDequePool())
+      .build())
+    .registerModule(new BlackbirdModule());
+
+  // Writers for each format. They leave the response's output stream open
+  // when they're done, since Jetty (not us) is in charge of closing it.
+  private static final ObjectWriter JSON_WRITER = JSON_MAPPER.writer()
+    .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+  private static final ObjectWriter CBOR_WRITER = CBORMapper.builder().addModule(new BlackbirdModule()).build()
+    .writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+  private static final ObjectWriter SMILE_WRITER = SmileMapper.builder().addModule(new BlackbirdModule()).build()
+    .writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+  private ResponseFormats() {
+  }
+
+  /**
+   * Set the body of the response to be `body`, in whatever format
+   * the client asked for in its `Accept` header (JSON by default).
+   *
+   * The body is written out right away, and a big one will have been
+   * partly sent before this returns, so set any headers (and a status other
+   * than `200`) before calling this.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param body the object to send as the body of the response
+   */
+  public static void respond(Context ctx, Object body) {
+    String contentType = negotiate(ctx.header(Header.ACCEPT));
+    // Caches need to know that the body depends on the `Accept` header.
+    ctx.header(Header.VARY, Header.ACCEPT);
+    ctx.attribute(BODY_ATTRIBUTE, body);
+
+    ObjectWriter writer;
+    if (contentType == null) {
+      ctx.contentType(ContentType.JSON);
+      writer = JSON_WRITER;
+    } else {
+      ctx.contentType(contentType);
+      writer = contentType.equals(CBOR) ? CBOR_WRITER : SMILE_WRITER;
+    }
+    try {
+      writer.writeValue(ctx.outputStream(), body);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Work out which binary format (if any) an `Accept` header asks for.
+   *
+   * Each media range's quality (its `q` parameter, 1 if it hasn't got
+   * one) says how much the client would like it, and a quality of 0 means
+   * "not at all". Of the media ranges we can produce (CBOR, Smile, JSON,
+   * or a wildcard, which we answer with JSON), the one with the highest
+   * quality wins; on a tie, an exact media type beats a wildcard, and then
+   * the one listed first wins. If nothing we can produce is acceptable,
+   * or the header is missing, we stick with JSON.
+   *
+   * @param accept the value of the `Accept` header (possibly `null`)
+   * @return `CBOR` or `SMILE`, or `null` if the response should be JSON
+   */
+  static String negotiate(String accept) {
+    if (accept == null) {
+      return null;
+    }
+    String best = null;
+    double bestQuality = 0;
+    boolean bestIsExact = false;
+    for (String mediaRange : accept.split(",")) {
+      String[] parts = mediaRange.split(";");
+      String mediaType = parts[0].trim().toLowerCase(Locale.ROOT);
+      boolean binary = mediaType.equals(CBOR) || mediaType.equals(SMILE);
+      boolean wildcard = mediaType.endsWith("*");
+      if (!binary && !wildcard && !mediaType.equals("application/json")) {
+        continue;
+      }
+      double quality = quality(parts);
+      if (quality > bestQuality || quality == bestQuality && quality > 0 && !wildcard && !bestIsExact) {
+        best = binary ? mediaType : null;
+        bestQuality = quality;
+        bestIsExact = !wildcard;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * The quality (`q` parameter) of a media range, split at its semicolons:
+   * 1 if it hasn't got one, or 0 if it isn't a number from 0 to 1.
+   */
+  private static double quality(String[] mediaRange) {
+    for (int i = 1; i < mediaRange.length; i++) {
+      String[] parameter = mediaRange[i].split("=", 2);
+      if (parameter.length == 2 && parameter[0].trim().equalsIgnoreCase("q")) {
+        try {
+          double quality = Double.parseDouble(parameter[1].trim());
+          return quality >= 0 && quality <= 1 ? quality : 0;
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
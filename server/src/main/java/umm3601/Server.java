@@ -1,8 +1,12 @@
 package umm3601;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -10,7 +14,12 @@ import com.mongodb.client.MongoClients;
 import org.bson.UuidRepresentation;
 
 import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
+import io.javalin.http.HandlerType;
 import io.javalin.http.InternalServerErrorResponse;
+import io.javalin.json.JavalinJackson;
+import io.javalin.json.JsonMapper;
 
 /**
  * The class used to configure and start a Javalin server.
@@ -20,13 +29,29 @@ public class Server {
   // The port that the server should run on.
   private static final int SERVER_PORT = 4567;
 
+  // How long (in seconds) a database call waits for MongoDB to be reachable
+  private static final int SERVER_SELECTION_TIMEOUT_SECONDS = 5;
+
   // The `mongoClient` field is used to access the MongoDB
   private final MongoClient mongoClient;
 
+  // Turns requests away when there are more in flight than the server
+  // can currently handle (see `configureLoadShedding()`)
+  private final AdaptiveLimiter limiter = new AdaptiveLimiter(Server::isCheap);
+
+  // Each client can make (on average) `DEFAULT_RATE` requests a second to each
+  // route, but only `LIST_RATE` to the (expensive) list endpoints
+  private static final RateLimiter.Rate DEFAULT_RATE = new RateLimiter.Rate(50, 100);
+  private static final RateLimiter.Rate LIST_RATE = new RateLimiter.Rate(10, 20);
+  private final RateLimiter rateLimiter;
+
   // The `controllers` field is an array of all the `Controller` implementations
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
 
+  // Where each request is logged once it's been answered (if anywhere)
+  private final AccessLog accessLog;
+
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
    * and start the server.
@@ -35,7 +60,34 @@ public class Server {
    * @param controllers The implementations of `Controller` used for this server
    */
   public Server(MongoClient mongoClient, Controller[] controllers) {
+    this(mongoClient, controllers, null);
+  }
+
+  /**
+   * Construct a `Server` object that we'll use (via `startServer()`) to configure
+   * and start the server.
+   *
+   * @param mongoClient The MongoDB client object used to access to the database
+   * @param controllers The implementations of `Controller` used for this server
+   * @param accessLog The access log to log each request to, or `null` for none
+   */
+  public Server(MongoClient mongoClient, Controller[] controllers, AccessLog accessLog) {
+    this(mongoClient, controllers, accessLog, configureRateLimiter(Set.of()));
+  }
+
+  /**
+   * Construct a `Server` object that we'll use (via `startServer()`) to configure
+   * and start the server.
+   *
+   * @param mongoClient The MongoDB client object used to access to the database
+   * @param controllers The implementations of `Controller` used for this server
+   * @param accessLog The access log to log each request to, or `null` for none
+   * @param rateLimiter The per-client rate limits (see `configureRateLimiter()`)
+   */
+  public Server(MongoClient mongoClient, Controller[] controllers, AccessLog accessLog, RateLimiter rateLimiter) {
     this.mongoClient = mongoClient;
+    this.accessLog = accessLog;
+    this.rateLimiter = rateLimiter;
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
@@ -63,7 +115,17 @@ public class Server {
     // Setup the MongoDB client object with the information we set earlier
     MongoClient mongoClient = MongoClients.create(MongoClientSettings
       .builder()
-      .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+      .applyToClusterSettings(builder -> builder
+        .hosts(Arrays.asList(new ServerAddress(mongoAddr)))
+        // By default the driver waits 30 seconds for the database to turn
+        // up; we'd rather fail sooner, so the controllers' circuit breakers
+        // notice the outage and start answering from their stale copies.
+        .serverSelectionTimeout(SERVER_SELECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+      // Keeps track of how long each request spends waiting on the database,
+      // for the access log
+      .addCommandListener(AccessLog.DATABASE_TIMER)
+      // Records each command as a flight recorder event, when a recording's running
+      .addCommandListener(FlightEvents.MONGO_COMMANDS)
       // Old versions of the mongodb-driver-sync package encoded UUID values (universally unique identifiers) in
       // a non-standard way. This option says to use the standard encoding.
       // See: https://studio3t.com/knowledge-base/articles/mongodb-best-practices-uuid-data/
@@ -73,6 +135,19 @@ public class Server {
     return mongoClient;
   }
 
+  /**
+   * Setup the per-client rate limits: `DEFAULT_RATE` for most routes, and
+   * `LIST_RATE` for the (expensive) list endpoints.
+   *
+   * @param apiKeys the API keys clients can identify themselves with;
+   *   clients without one of these are identified by their IP address
+   *
+   * @return The rate limiter
+   */
+  static RateLimiter configureRateLimiter(Set<String> apiKeys) {
+    return new RateLimiter(DEFAULT_RATE, Map.of("/api/users", LIST_RATE, "/api/todos", LIST_RATE), apiKeys);
+  }
+
   /**
    * Configure and start the server.
    *
@@ -92,6 +167,16 @@ public class Server {
    *
    * - Adding a route overview plugin to make it easier to see what routes
    *   are available.
+   * - Installing our tuned JSON mapper (see `configureJsonMapper()`), so
+   *   the `ctx.json(...)` calls in the controllers use the same mapper as
+   *   the responses `ResponseFormats` streams out itself.
+   * - Running each request on its own virtual thread. The controllers
+   *   spend most of their time waiting on MongoDB; a virtual thread that's
+   *   blocked on the database gives up its (platform) carrier thread, so
+   *   slow queries don't tie up Jetty's thread pool, and the handlers can
+   *   stay simple, blocking code.
+   * - Rate limiting each client, and shedding load when the server is
+   *   overloaded (see `configureLoadShedding()`).
    * - Setting it up to shut down gracefully if it's killed or if the
    *   JVM is shut down.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
@@ -114,13 +199,26 @@ public class Server {
      * what HTTP methods they use. (Replace `localhost` and `4567` with whatever server
      * and  port you're actually using, if they are different.)
      */
-    Javalin server = Javalin.create(config ->
-      config.bundledPlugins.enableRouteOverview("/api")
-    );
+    Javalin server = Javalin.create(config -> {
+      config.bundledPlugins.enableRouteOverview("/api");
+      config.jsonMapper(configureJsonMapper());
+      config.useVirtualThreads = true;
+      if (accessLog != null) {
+        config.requestLogger.http(accessLog::log);
+      }
+    });
 
     // Configure the MongoDB client and the Javalin server to shut down gracefully.
     configureShutdowns(server);
 
+    // Record each request as a flight recorder event, when a recording's
+    // running (see `RecordingController`). These come before the limits,
+    // so the requests they turn away are recorded too.
+    server.beforeMatched(FlightEvents::beginRequest);
+    server.afterMatched(FlightEvents::endRequest);
+
+    configureLoadShedding(server);
+
     // This catches any uncaught exceptions thrown in the server
     // code and turns them into a 500 response ("Internal Server
     // Error Response"). In general you'll like to *never* actually
@@ -134,9 +232,73 @@ public class Server {
       throw new InternalServerErrorResponse(e.toString());
     });
 
+    // A query that MongoDB gave up on because it ran past its request's
+    // `Deadline` isn't the server crashing, so it's a 504 ("Gateway
+    // Timeout") rather than a 500.
+    server.exception(MongoExecutionTimeoutException.class, (e, ctx) -> {
+      throw new GatewayTimeoutResponse("The database couldn't answer before the request's deadline");
+    });
+
     return server;
   }
 
+  /**
+   * Configure the JSON mapper Javalin uses to turn our objects (lists of
+   * `User`s and `Todo`s, mostly) into JSON responses.
+   *
+   * This is Javalin's usual Jackson mapper, but wrapped around
+   * `ResponseFormats.JSON_MAPPER` (with the Blackbird module and a shared
+   * buffer pool), so every JSON response is written by the same tuned mapper,
+   * whether it goes through `ctx.json(...)` or `ResponseFormats.respond(...)`.
+   *
+   * @return The JSON mapper to install in Javalin
+   */
+  static JsonMapper configureJsonMapper() {
+    return new JavalinJackson(ResponseFormats.JSON_MAPPER, false);
+  }
+
+  /**
+   * Put a per-client `RateLimiter` in front of every route, so no one client
+   * can use up the server, and then an `AdaptiveLimiter`, so when MongoDB
+   * slows down, the excess requests are quickly turned away with a `503`
+   * rather than piling up until the clients time out, and the requests we
+   * do let in still finish in reasonable time.
+   *
+   * `/api/batch` isn't limited itself, since it just waits for its
+   * sub-requests, and each of those goes through the limiter.
+   *
+   * Before any of that, we note when the request arrived, so the time it
+   * spends waiting its turn counts against its `Deadline`.
+   *
+   * @param server The Javalin server instance
+   */
+  private void configureLoadShedding(Javalin server) {
+    server.beforeMatched(Deadline::start);
+    server.beforeMatched(rateLimiter::before);
+    server.beforeMatched(ctx -> {
+      if (!ctx.endpointHandlerPath().equals(BatchController.API_BATCH)) {
+        limiter.before(ctx);
+      }
+    });
+    server.afterMatched(limiter::after);
+  }
+
+  /**
+   * Whether a request is for one of the cheap routes, which the
+   * `AdaptiveLimiter` keeps letting in after it has started turning away
+   * the heavier ones: getting single items by id (`/api/users/{id}`),
+   * batches of them by id (`/api/usersBatch`), and type-ahead suggestions
+   * (`/api/usersSuggest`), and the same for todos.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return whether the request is cheap
+   */
+  static boolean isCheap(Context ctx) {
+    String path = ctx.endpointHandlerPath();
+    return ctx.method() == HandlerType.GET
+      && (path.endsWith("/{id}") || path.endsWith("Batch") || path.endsWith("Suggest"));
+  }
+
   /**
    * Configure the server and the MongoDB client to shut down gracefully.
    *
@@ -159,6 +321,10 @@ public class Server {
     server.events(event -> {
       event.serverStartFailed(mongoClient::close);
       event.serverStopped(mongoClient::close);
+      // Write out whatever's left in the access log
+      if (accessLog != null) {
+        event.serverStopped(accessLog::close);
+      }
     });
   }
 
@@ -0,0 +1,114 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+
+import io.javalin.http.Context;
+
+/**
+ * Support for "sparse fieldsets" on the list endpoints: a request like
+ * `GET /api/users?fields=name,company` only gets back the fields it asked
+ * for (plus `_id`), which MongoDB projects out before sending the users,
+ * so less is read, transferred, and serialized.
+ *
+ * Only the fields in a controller's whitelist can be requested, so clients
+ * can't fish for fields that aren't part of the API (like the shadow fields
+ * of `CaseFoldedField`).
+ *
+ * List views often only need each item's `_id` and `name`. `createListIndex()`
+ * builds a `{name: 1, _id: 1}` index, so when such a list is sorted by name
+ * with no other filters, MongoDB can answer the whole query from the index
+ * (a "covered" query) without reading any documents at all.
+ */
+public class SparseFields {
+
+  // The query parameter listing the wanted fields, separated by commas
+  public static final String FIELDS_KEY = "fields";
+
+  private final Set<String> allowed;
+
+  /**
+   * Construct a parser for a whitelist of fields.
+   *
+   * @param allowed the fields clients may ask for
+   */
+  public SparseFields(Set<String> allowed) {
+    this.allowed = Set.copyOf(allowed);
+  }
+
+  /**
+   * The fields the request asked for, always including `_id`, or `null` if
+   * it didn't ask for specific fields (and so wants all of them).
+   *
+   * @param ctx a Javalin HTTP context, which contains the `fields` query parameter
+   * @return the wanted fields, or `null` for all of them
+   */
+  public List<String> parse(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(FIELDS_KEY)) {
+      return null;
+    }
+    String fields = ctx.queryParamAsClass(FIELDS_KEY, String.class)
+      .check(it -> Arrays.stream(it.split(",")).map(String::trim).allMatch(allowed::contains),
+        "Only these fields can be requested: " + allowed)
+      .get();
+    Set<String> wanted = new LinkedHashSet<>();
+    wanted.add("_id");
+    for (String field : fields.split(",")) {
+      wanted.add(field.trim());
+    }
+    return new ArrayList<>(wanted);
+  }
+
+  /**
+   * A projection that includes just the given fields.
+   *
+   * @param fields the fields to include
+   * @return a Bson projection document
+   */
+  public static Bson projection(List<String> fields) {
+    return Projections.include(fields);
+  }
+
+  /**
+   * Turn projected documents into maps that serialize the same way the
+   * full objects would; in particular, `_id` becomes a hex string rather
+   * than an `ObjectId`.
+   *
+   * @param documents the projected documents
+   * @return the documents, ready to be sent as JSON
+   */
+  public static List<Map<String, Object>> toResponse(List<Document> documents) {
+    List<Map<String, Object>> response = new ArrayList<>(documents.size());
+    for (Document doc : documents) {
+      Map<String, Object> item = new LinkedHashMap<>(doc);
+      if (item.get("_id") instanceof ObjectId id) {
+        item.put("_id", id.toHexString());
+      }
+      response.add(item);
+    }
+    return response;
+  }
+
+  /**
+   * Build the `{name: 1, _id: 1}` index that covers `_id`-and-`name` list
+   * views (if it doesn't already exist).
+   *
+   * @param collection the collection to index
+   */
+  public static void createListIndex(MongoCollection<Document> collection) {
+    collection.createIndex(Indexes.ascending("name", "_id"));
+  }
+}
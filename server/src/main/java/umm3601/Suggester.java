@@ -0,0 +1,157 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Type-ahead suggestions for the values of one field of a collection
+ * (e.g., the companies users work for), so filter boxes can offer
+ * completions without fetching whole documents.
+ *
+ * This keeps a sorted dictionary of the field's distinct values, keyed by
+ * their case-folded form (see `CaseFoldedField.fold()`), along with how
+ * many documents have each value. All of the values starting with a prefix
+ * are then a contiguous range of the dictionary, and the suggestions are
+ * the most common values in that range. The number of distinct values is
+ * much smaller than the number of documents, so this is cheap enough to
+ * do on every keystroke.
+ *
+ * The dictionary is updated in place (`add()` and `remove()`) as documents
+ * are written, rather than rebuilt. It's safe to use from several threads
+ * at once; suggestions can run concurrently, while updates briefly lock
+ * everyone out.
+ */
+public class Suggester {
+
+  /**
+   * A suggested value, and how many documents have it.
+   *
+   * @param value the suggested value
+   * @param count the number of documents with that value
+   */
+  public record Suggestion(String value, long count) {
+  }
+
+  // Most common first, then alphabetically
+  private static final Comparator<Suggestion> BEST_FIRST = Comparator
+    .comparingLong(Suggestion::count).reversed()
+    .thenComparing(Suggestion::value);
+
+  // folded value -> the (unfolded) values that fold to it -> their counts
+  private final NavigableMap<String, Map<String, Long>> dictionary = new TreeMap<>();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Build a suggester for the values of a field in a collection, counting
+   * the distinct values with a single `$group` aggregation.
+   *
+   * @param collection the collection to suggest values from
+   * @param field the name of the field to suggest values of
+   * @return a suggester for the field
+   */
+  public static Suggester load(MongoCollection<Document> collection, String field) {
+    Suggester suggester = new Suggester();
+    for (Document group : collection.aggregate(List.of(
+        new Document("$group", new Document("_id", "$" + field).append("count", new Document("$sum", 1)))))) {
+      if (group.get("_id") instanceof String value) {
+        suggester.add(value, group.get("count", Number.class).longValue());
+      }
+    }
+    return suggester;
+  }
+
+  /**
+   * Record that one more document has `value`.
+   *
+   * @param value the value (ignored if `null`)
+   */
+  public void add(String value) {
+    add(value, 1);
+  }
+
+  private void add(String value, long count) {
+    if (value == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      dictionary
+        .computeIfAbsent(CaseFoldedField.fold(value), folded -> new HashMap<>())
+        .merge(value, count, Long::sum);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record that one fewer document has `value`, forgetting the value
+   * altogether once no documents have it.
+   *
+   * @param value the value (ignored if `null`)
+   */
+  public void remove(String value) {
+    if (value == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      String folded = CaseFoldedField.fold(value);
+      Map<String, Long> values = dictionary.get(folded);
+      if (values != null && values.computeIfPresent(value, (v, count) -> count > 1 ? count - 1 : null) == null
+          && values.isEmpty()) {
+        dictionary.remove(folded);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The most common values starting with `prefix` (ignoring case), most
+   * common first, with ties broken alphabetically.
+   *
+   * @param prefix the text typed so far
+   * @param limit the most suggestions to return
+   * @return up to `limit` suggestions
+   */
+  public List<Suggestion> suggest(String prefix, int limit) {
+    // A min-heap of the best `limit` suggestions found so far,
+    // so the worst of them is the one to drop when we find a better one
+    PriorityQueue<Suggestion> best = new PriorityQueue<>(BEST_FIRST.reversed());
+    String folded = CaseFoldedField.fold(prefix);
+
+    lock.readLock().lock();
+    try {
+      for (Map.Entry<String, Map<String, Long>> entry : dictionary.tailMap(folded, true).entrySet()) {
+        if (!entry.getKey().startsWith(folded)) {
+          break;
+        }
+        entry.getValue().forEach((value, count) -> {
+          best.add(new Suggestion(value, count));
+          if (best.size() > limit) {
+            best.poll();
+          }
+        });
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    List<Suggestion> suggestions = new ArrayList<>(best);
+    suggestions.sort(BEST_FIRST);
+    return suggestions;
+  }
+}
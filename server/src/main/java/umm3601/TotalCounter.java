@@ -0,0 +1,181 @@
+package umm3601;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+
+import io.javalin.http.Context;
+
+/**
+ * Counts the total number of documents matching a list query, for the
+ * (opt-in) `X-Total-Count` header a paginated UI needs, as cheaply as the
+ * query allows:
+ *
+ * - with no filter at all, the count is `estimatedDocumentCount()`,
+ *   which comes from the collection's metadata;
+ * - when the filter can be answered from an index, `countDocuments()`
+ *   only has to count index keys, which is cheap enough to do every time;
+ * - otherwise, counting means scanning the collection, so recent counts
+ *   are cached, keyed by the (normalized) filter, for `cacheMillis`.
+ *
+ * The counts run on their own (virtual) threads, so a controller can start
+ * the count, run the page query at the same time, and only wait for the
+ * count (if it's still running) when it's time to set the header. Like
+ * the page query, each count is bounded by the request's `Deadline`.
+ *
+ * Whoever owns a counter should `shutdown()` it when the server stops.
+ */
+public class TotalCounter {
+
+  // The response header the total is reported in
+  public static final String TOTAL_HEADER = "X-Total-Count";
+  // The query parameter that asks for the total: `?total=true`
+  public static final String TOTAL_KEY = "total";
+
+  // The most filters we'll remember counts for
+  static final int CACHE_SIZE = 256;
+  private static final float CACHE_LOAD_FACTOR = 0.75f;
+
+  private final MongoCollection<Document> collection;
+  // Counting mostly waits on MongoDB, so it's a good fit for virtual threads.
+  // Each counter has its own executor, which its owner stops (see `shutdown()`)
+  // along with the server.
+  private final ExecutorService counters = Executors.newVirtualThreadPerTaskExecutor();
+  private final long cacheMillis;
+
+  /**
+   * A count, and when it was made.
+   */
+  private record CachedCount(long count, long time) {
+  }
+
+  // filter (as JSON) -> its most recent count, least recently used first
+  private final Map<String, CachedCount> cache = Collections.synchronizedMap(
+    new LinkedHashMap<>(CACHE_SIZE, CACHE_LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedCount> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    });
+  // Bumped by each `invalidate()`, so a count that was already running
+  // when the collection changed doesn't put its stale total back in the cache
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Construct a counter for a collection.
+   *
+   * @param collection the collection to count documents in
+   * @param cacheMillis how long the count of an unindexed filter can be reused
+   */
+  public TotalCounter(MongoCollection<Document> collection, long cacheMillis) {
+    this.collection = collection;
+    this.cacheMillis = cacheMillis;
+  }
+
+  /**
+   * Whether a request asked for the total count (with `?total=true`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @return whether to send an `X-Total-Count` header
+   */
+  public static boolean wanted(Context ctx) {
+    return Boolean.parseBoolean(ctx.queryParam(TOTAL_KEY));
+  }
+
+  /**
+   * Start counting the documents that match a filter.
+   *
+   * @param filter the filter of the list query
+   * @param indexed whether MongoDB can count the filter's matches from an index
+   * @param deadline the request's deadline, which MongoDB gives up on the count at
+   * @return the (eventual) number of matching documents
+   */
+  public CompletableFuture<Long> count(Bson filter, boolean indexed, Deadline deadline) {
+    BsonDocument rendered = filter.toBsonDocument(Document.class, collection.getCodecRegistry());
+    // Taken now, on the request's thread, so a deadline that has
+    // already passed fails the request before anything is started
+    long maxTime = deadline.remainingMillis();
+    if (rendered.isEmpty()) {
+      return CompletableFuture.supplyAsync(() -> collection.estimatedDocumentCount(
+        new EstimatedDocumentCountOptions().maxTime(maxTime, TimeUnit.MILLISECONDS)), counters);
+    }
+    CountOptions options = new CountOptions().maxTime(maxTime, TimeUnit.MILLISECONDS);
+    if (indexed) {
+      return CompletableFuture.supplyAsync(() -> collection.countDocuments(filter, options), counters);
+    }
+
+    String key = rendered.toJson();
+    CachedCount cached = cache.get(key);
+    long now = System.currentTimeMillis();
+    if (cached != null && now - cached.time() < cacheMillis) {
+      return CompletableFuture.completedFuture(cached.count());
+    }
+    long started = generation.get();
+    return CompletableFuture.supplyAsync(() -> {
+      long count = collection.countDocuments(filter, options);
+      // Under the cache's lock, so an `invalidate()` can't slip in between
+      // the check and the `put()`
+      synchronized (cache) {
+        if (generation.get() == started) {
+          cache.put(key, new CachedCount(count, now));
+        }
+      }
+      return count;
+    }, counters);
+  }
+
+  /**
+   * Forget every cached count, because the collection has changed.
+   * Counts that are still running will be returned, but not cached.
+   */
+  public void invalidate() {
+    synchronized (cache) {
+      generation.incrementAndGet();
+      cache.clear();
+    }
+  }
+
+  /**
+   * Stop counting: interrupt any counts that are still running (no request
+   * is waiting on them once the server has stopped) and refuse new ones.
+   */
+  public void shutdown() {
+    counters.shutdownNow();
+  }
+
+  /**
+   * Set the `X-Total-Count` header, waiting for the count to finish if
+   * it hasn't already. If the count failed, its exception is rethrown as
+   * it was (rather than wrapped), so a count that ran past the deadline
+   * still becomes a `504`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param total the total number of matching documents
+   */
+  public static void respond(Context ctx, CompletableFuture<Long> total) {
+    long count;
+    try {
+      count = total.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+    ctx.header(TOTAL_HEADER, Long.toString(count));
+  }
+}
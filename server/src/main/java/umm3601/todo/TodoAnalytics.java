@@ -0,0 +1,199 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lte;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+
+import umm3601.CountMinSketch;
+import umm3601.HyperLogLog;
+
+/**
+ * Approximate analytics over the whole `todos` collection, answered in
+ * constant time from a few fixed-size sketches rather than by scanning or
+ * grouping the todos:
+ *
+ * - a `HyperLogLog` of the todos' companies (our stand-in for owners),
+ *   for the number of distinct companies, and
+ * - a `CountMinSketch` each of the companies and the roles (our stand-in
+ *   for categories), for the busiest companies and most common roles.
+ *
+ * Todos are written from outside this server, so the sketches are kept up
+ * to date by `catchUp()`, which, like `TodoSnapshot.refresh()`, only reads
+ * the todos with a larger `_id` than any it has already seen. The sketches
+ * are persisted (`save()`) so a restarted server can pick up where it left
+ * off instead of reading every todo again.
+ *
+ * Sketches can't forget a todo, so if todos have been deleted, they have
+ * to be rebuilt from scratch (`build()`). `catchUp()` spots deletes with an
+ * exact (indexed) count of the todos up to the newest one it has seen. Nor
+ * can we tell which todos have been updated (changing a todo's company,
+ * say), so they're also rebuilt every so often (see `rebuildDue()`), which
+ * bounds how long an update goes unnoticed. A rebuild reads every todo,
+ * so `TodoController` does it in the background.
+ *
+ * This isn't thread-safe; `TodoController` only uses it while
+ * holding its own lock.
+ */
+final class TodoAnalytics {
+
+  // The `_id` of the document the sketches are persisted in
+  static final String ANALYTICS_ID = "todos";
+
+  private final HyperLogLog companies;
+  private final CountMinSketch companyCounts;
+  private final CountMinSketch roleCounts;
+  private ObjectId newestId;
+  private long seen;
+  // How many of the todos we've seen had `ObjectId`s, which are the ones
+  // counting up to `newestId` finds again
+  private long seenWithIds;
+  // When the sketches were last built from scratch, in milliseconds since the epoch
+  private final long builtAt;
+
+  private TodoAnalytics(HyperLogLog companies, CountMinSketch companyCounts, CountMinSketch roleCounts,
+      ObjectId newestId, long seen, long seenWithIds, long builtAt) {
+    this.companies = companies;
+    this.companyCounts = companyCounts;
+    this.roleCounts = roleCounts;
+    this.newestId = newestId;
+    this.seen = seen;
+    this.seenWithIds = seenWithIds;
+    this.builtAt = builtAt;
+  }
+
+  /**
+   * Empty sketches, which haven't seen any todos.
+   *
+   * @return empty analytics
+   */
+  static TodoAnalytics empty() {
+    return new TodoAnalytics(new HyperLogLog(), new CountMinSketch(), new CountMinSketch(), null, 0, 0,
+      System.currentTimeMillis());
+  }
+
+  /**
+   * Analytics built from scratch, by reading every todo.
+   *
+   * @param todos the `todos` collection
+   * @return analytics over all the todos
+   */
+  static TodoAnalytics build(MongoCollection<Document> todos) {
+    TodoAnalytics built = empty();
+    built.observeAfter(todos, null);
+    return built;
+  }
+
+  /**
+   * The analytics last saved in `store`, or empty analytics if
+   * none have been saved.
+   *
+   * @param store the collection the analytics are saved in
+   * @return the saved analytics
+   */
+  static TodoAnalytics load(MongoCollection<Document> store) {
+    Document saved = store.find(eq("_id", ANALYTICS_ID)).first();
+    if (saved == null) {
+      return empty();
+    }
+    return new TodoAnalytics(
+      HyperLogLog.fromDocument(saved.get("companies", Document.class)),
+      CountMinSketch.fromDocument(saved.get("companyCounts", Document.class)),
+      CountMinSketch.fromDocument(saved.get("roleCounts", Document.class)),
+      saved.getObjectId("newestId"),
+      saved.getLong("seen"),
+      saved.get("seenWithIds") instanceof Number seenWithIds ? seenWithIds.longValue() : saved.getLong("seen"),
+      // Analytics saved before we kept track of this are due a rebuild
+      saved.get("builtAt") instanceof Number builtAt ? builtAt.longValue() : 0);
+  }
+
+  /**
+   * Save these analytics in `store`, replacing whatever was saved before.
+   *
+   * @param store the collection to save the analytics in
+   */
+  void save(MongoCollection<Document> store) {
+    Document doc = new Document("_id", ANALYTICS_ID)
+      .append("companies", companies.toDocument())
+      .append("companyCounts", companyCounts.toDocument())
+      .append("roleCounts", roleCounts.toDocument())
+      .append("newestId", newestId)
+      .append("seen", seen)
+      .append("seenWithIds", seenWithIds)
+      .append("builtAt", builtAt);
+    store.replaceOne(eq("_id", ANALYTICS_ID), doc, new ReplaceOptions().upsert(true));
+  }
+
+  /**
+   * Add the todos that were inserted since these analytics were last
+   * brought up to date, and check that the ones we'd seen before are all
+   * still there: the number of todos up to `newestId` is counted exactly,
+   * from the `_id` index, and if it isn't the number we've seen, something
+   * other than an insert has happened (a delete, say).
+   *
+   * @param todos the `todos` collection
+   * @return whether these analytics still cover exactly the todos in the
+   *   collection (as far as we can tell), or need to be rebuilt
+   */
+  boolean catchUp(MongoCollection<Document> todos) {
+    observeAfter(todos, newestId);
+    return newestId == null || todos.countDocuments(lte("_id", newestId)) == seenWithIds;
+  }
+
+  /**
+   * Whether it's been `rebuildMillis` since these analytics were built
+   * from scratch, so they're due to be rebuilt to pick up any updates to
+   * existing todos.
+   *
+   * @param rebuildMillis how long (in milliseconds) to go between rebuilds
+   * @return whether the analytics are due to be rebuilt
+   */
+  boolean rebuildDue(long rebuildMillis) {
+    return System.currentTimeMillis() - builtAt >= rebuildMillis;
+  }
+
+  private void observeAfter(MongoCollection<Document> todos, ObjectId after) {
+    for (Document todo : todos
+        .find(after == null ? new Document() : gt("_id", after))
+        .projection(Projections.include(TodoController.COMPANY_KEY, TodoController.ROLE_KEY))
+        .sort(Sorts.ascending("_id"))) {
+      String company = todo.get(TodoController.COMPANY_KEY) instanceof String value ? value : null;
+      String role = todo.get(TodoController.ROLE_KEY) instanceof String value ? value : null;
+      companies.add(company);
+      companyCounts.add(company);
+      roleCounts.add(role);
+      if (todo.get("_id") instanceof ObjectId id) {
+        newestId = id;
+        seenWithIds++;
+      }
+      seen++;
+    }
+  }
+
+  /**
+   * A summary of the analytics, for `TodoController.getTodoAnalytics()`.
+   *
+   * @param top how many of the busiest companies and roles to include
+   * @return the summary, ready to be sent as JSON
+   */
+  Map<String, Object> summary(int top) {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("todos", seen);
+    summary.put("distinctCompanies", companies.estimate());
+    summary.put("distinctCompaniesRelativeError", companies.relativeError());
+    summary.put("topCompanies", companyCounts.top(top));
+    summary.put("topRoles", roleCounts.top(top));
+    summary.put("countErrorBound", Math.max(companyCounts.errorBound(), roleCounts.errorBound()));
+    return summary;
+  }
+}
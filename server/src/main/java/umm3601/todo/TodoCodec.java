@@ -0,0 +1,63 @@
+package umm3601.todo;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import umm3601.EntityCodecs;
+
+/**
+ * A hand-written BSON codec for `Todo`.
+ *
+ * Like `UserCodec`, this decodes documents straight into the fields of a
+ * `Todo`, skipping any fields it doesn't know about, and treats `_id` the
+ * same way MongoJack does.
+ */
+public class TodoCodec implements Codec<Todo> {
+
+  @Override
+  public Todo decode(BsonReader reader, DecoderContext decoderContext) {
+    Todo todo = new Todo();
+
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String fieldName = reader.readName();
+      switch (fieldName) {
+        case "_id" -> todo._id = EntityCodecs.readId(reader);
+        case "name" -> todo.name = EntityCodecs.readString(reader);
+        case "age" -> todo.age = EntityCodecs.readInt(reader);
+        case "company" -> todo.company = EntityCodecs.readString(reader);
+        case "email" -> todo.email = EntityCodecs.readString(reader);
+        case "avatar" -> todo.avatar = EntityCodecs.readString(reader);
+        case "role" -> todo.role = EntityCodecs.readString(reader);
+        case "completed" -> todo.completed = EntityCodecs.readBoolean(reader);
+        default -> reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+
+    return todo;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, Todo todo, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    EntityCodecs.writeId(writer, todo._id);
+    EntityCodecs.writeString(writer, "name", todo.name);
+    writer.writeInt32("age", todo.age);
+    EntityCodecs.writeString(writer, "company", todo.company);
+    EntityCodecs.writeString(writer, "email", todo.email);
+    EntityCodecs.writeString(writer, "avatar", todo.avatar);
+    EntityCodecs.writeString(writer, "role", todo.role);
+    writer.writeBoolean("completed", todo.completed);
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<Todo> getEncoderClass() {
+    return Todo.class;
+  }
+}
@@ -1,22 +1,36 @@
 package umm3601.todo;
 
-import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
 
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
-import java.util.regex.Pattern;
 
 import org.bson.Document;
 import org.bson.UuidRepresentation;
-import org.bson.conversions.Bson;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Facet;
 import com.mongodb.client.model.Sorts;
 
 
@@ -25,7 +39,24 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.BatchLookup;
+import umm3601.BitmapIndex;
+import umm3601.Bulkhead;
+import umm3601.CircuitBreaker;
+import umm3601.CaseFoldedField;
+import umm3601.CaseFoldedField.Match;
 import umm3601.Controller;
+import umm3601.CountMinSketch;
+import umm3601.Deadline;
+import umm3601.IndexAdvisor;
+import umm3601.QueryPlanner;
+import umm3601.QueryPlanner.Engine;
+import umm3601.QueryPlanner.Plan;
+import umm3601.QueryPlanner.Shape;
+import umm3601.ResponseFormats;
+import umm3601.SparseFields;
+import umm3601.Suggester;
+import umm3601.TotalCounter;
 
 public class TodoController implements Controller {
 
@@ -34,22 +65,194 @@ public class TodoController implements Controller {
   static final String AGE_KEY = "age";
   static final String COMPANY_KEY = "company";
   static final String ROLE_KEY = "role";
+  static final String COMPANY_MATCH_KEY = "companyMatch";
+  static final String FIELD_KEY = "field";
+  static final String PREFIX_KEY = "prefix";
+  static final String LIMIT_KEY = "limit";
+  static final int DEFAULT_SUGGESTIONS = 10;
+  static final int MAX_SUGGESTIONS = 50;
+  // The facets `getTodoFacets` counts, and the todo field each counts the values of
+  static final Map<String, String> FACET_FIELDS = Map.of(
+    COMPANY_KEY, COMPANY_KEY,
+    ROLE_KEY, ROLE_KEY,
+    "status", "completed");
+  static final String TOP_KEY = "top";
+  static final int DEFAULT_TOP = 5;
+  // How often the analytics sketches are saved to the database
+  static final long ANALYTICS_SAVE_MILLIS = 60_000;
+  // How often the analytics sketches are rebuilt from scratch, to pick up
+  // updates to existing todos. This is much longer than `ANALYTICS_SAVE_MILLIS`,
+  // so the sketches a restarted server loads are nearly always still good.
+  static final long ANALYTICS_REBUILD_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // The fields clients can ask for with `?fields=`
+  static final SparseFields TODO_FIELDS = new SparseFields(
+    Set.of("_id", "name", AGE_KEY, COMPANY_KEY, "email", "avatar", ROLE_KEY, "completed"));
+  // The fields `suggest` offers completions for
+  private static final List<String> SUGGESTED_FIELDS = List.of(COMPANY_KEY, ROLE_KEY);
   private static final int REASONABLE_AGE_LIMIT = 150;
   private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // Indexed, case-insensitive searching of the todos' companies
+  static final CaseFoldedField COMPANY_SEARCH = new CaseFoldedField(COMPANY_KEY);
+  // How many todos the company search backfill reads and updates at a time
+  static final int BACKFILL_BATCH_SIZE = 500;
+
+  // How long MongoDB gets to list, count, or facet todos,
+  // unless the client sets its own `Deadline`
+  static final long QUERY_DEADLINE_MILLIS = 10_000;
+
+  // If MongoDB stops answering (or takes longer than `BREAKER_SLOW_CALL` to),
+  // the `CircuitBreaker` opens and pings it every `BREAKER_OPEN_FOR` until
+  // it's back, answering with stale responses (or 503s) meanwhile. Heavy
+  // queries are allowed up to their `Deadline`, which a client can stretch
+  // to `Deadline.MAX_MILLIS`, so they only count as slow past that.
+  static final Duration BREAKER_SLOW_CALL = Duration.ofSeconds(5);
+  static final Duration BREAKER_SLOW_HEAVY_CALL = Duration.ofMillis(Deadline.MAX_MILLIS);
+  static final Duration BREAKER_OPEN_FOR = Duration.ofSeconds(5);
+
+  // Each class of route gets its own `Bulkhead`, so a burst of heavy requests
+  // (lists, searches, counts, facets, and analytics) can't starve the cheap
+  // ones (lookups by id and suggestions) of connections.
+  private final Bulkhead lookups;
+  private final Bulkhead heavyQueries;
+  private final CircuitBreaker breaker;
+
   private final JacksonMongoCollection<Todo> todoCollection;
 
+  // Reads of `Todo`s are decoded by our hand-written `TodoCodec`
+  // instead of by MongoJack's reflection-based mapping.
+  private final MongoCollection<Todo> todoReadCollection;
+
+  // When `useSnapshot` is set, queries can also be answered from an in-memory,
+  // columnar `TodoSnapshot` of the collection instead of by MongoDB. The
+  // snapshot picks up new todos every `SNAPSHOT_REFRESH_MILLIS`, and is reloaded
+  // in full (picking up updates to existing todos) every `SNAPSHOT_RELOAD_MILLIS`.
+  static final long SNAPSHOT_REFRESH_MILLIS = 5000;
+  static final long SNAPSHOT_RELOAD_MILLIS = 60_000;
+  private final boolean useSnapshot;
+  private final MongoCollection<Document> todoDocuments;
+  private volatile TodoSnapshot snapshot;
+  private volatile long snapshotTime;
+
+  // Approximate analytics over all the todos, kept in fixed-size sketches.
+  // Like the snapshot, they catch up with new todos (at most) every
+  // `SNAPSHOT_REFRESH_MILLIS`. They're rebuilt in the background every
+  // `ANALYTICS_REBUILD_MILLIS`, or when todos have been deleted, and saved
+  // to `analyticsStore` every `ANALYTICS_SAVE_MILLIS`, so a restart doesn't
+  // have to rebuild them.
+  private final MongoCollection<Document> analyticsStore;
+  private TodoAnalytics analytics;
+  private long analyticsTime;
+  private long analyticsSaveTime;
+  // Set while a background rebuild is running, so there's only one at a time
+  private final AtomicBoolean analyticsRebuilding = new AtomicBoolean();
+
+  // Counts the total matches for `getTodos` pages, for `X-Total-Count`.
+  // Its cached counts are dropped whenever the snapshot sees the todos change.
+  private final TotalCounter todoTotals;
+
+  // Fetches many todos by id at once, for `getTodosById`
+  private final BatchLookup batchLookup;
+
+  // Each of the snapshot, index, suggesters, and analytics has its own lock,
+  // held while it's (re)loaded from the database, so reloading one of them
+  // doesn't hold up the routes that use the others. The snapshot, index, and
+  // suggesters are immutable, and are swapped for new ones when they're
+  // reloaded, so while one request reloads them, the rest carry on with the
+  // ones we have rather than waiting; only the (mutable) analytics are read
+  // under their lock. These are locks rather than `synchronized` so a virtual
+  // thread waiting on MongoDB in here doesn't pin its carrier thread.
+  private final ReentrantLock snapshotLock = new ReentrantLock();
+  private final ReentrantLock indexLock = new ReentrantLock();
+  private final ReentrantLock suggestersLock = new ReentrantLock();
+  private final ReentrantLock analyticsLock = new ReentrantLock();
+
+  // Decides whether each query is best answered by MongoDB,
+  // by `todoIndex`, or by scanning `snapshot`.
+  private final QueryPlanner todoPlanner;
+
+  // Keeps track of the shapes of the queries we send to MongoDB, and which
+  // of them need an index (see `IndexAdvisorController`)
+  private final IndexAdvisor indexAdvisor;
+
+  // A bitmap index over the low-cardinality todo fields, used to count
+  // todos without reading them. Todos are only ever written from outside
+  // this server, so it's rebuilt (at most) every `SNAPSHOT_REFRESH_MILLIS`.
+  private volatile BitmapIndex todoIndex;
+  private volatile long todoIndexTime;
+
+  // Type-ahead suggesters for each of the `SUGGESTED_FIELDS`. Like
+  // `todoIndex`, they're rebuilt (at most) every `SNAPSHOT_REFRESH_MILLIS`.
+  private volatile Map<String, Suggester> todoSuggesters;
+  private volatile long todoSuggestersTime;
+
   public TodoController(MongoDatabase database) {
+    this(database, false);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param useSnapshot whether queries may be answered from an in-memory
+   *   snapshot of the todos rather than querying MongoDB every time
+   */
+  public TodoController(MongoDatabase database, boolean useSnapshot) {
+    this(database, useSnapshot, BatchLookup.DEFAULT_MAX_IDS);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param useSnapshot whether queries may be answered from an in-memory
+   *   snapshot of the todos rather than querying MongoDB every time
+   * @param maxBatchIds the most todos `getTodosById` can fetch at once
+   */
+  public TodoController(MongoDatabase database, boolean useSnapshot, int maxBatchIds) {
+    this(database, useSnapshot, maxBatchIds, Bulkhead.Limits.LOOKUPS, Bulkhead.Limits.HEAVY_QUERIES);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param useSnapshot whether queries may be answered from an in-memory
+   *   snapshot of the todos rather than querying MongoDB every time
+   * @param maxBatchIds the most todos `getTodosById` can fetch at once
+   * @param lookupLimits the `Bulkhead` limits for the cheap routes
+   * @param heavyLimits the `Bulkhead` limits for the heavy routes
+   */
+  public TodoController(MongoDatabase database, boolean useSnapshot, int maxBatchIds,
+      Bulkhead.Limits lookupLimits, Bulkhead.Limits heavyLimits) {
+    this.useSnapshot = useSnapshot;
+    lookups = new Bulkhead("todo lookup", lookupLimits);
+    heavyQueries = new Bulkhead("todo query", heavyLimits);
+    batchLookup = new BatchLookup(maxBatchIds);
+    breaker = new CircuitBreaker("todo", () -> database.runCommand(new Document("ping", 1)),
+      BREAKER_SLOW_CALL, BREAKER_OPEN_FOR);
+    todoDocuments = database.getCollection("todos");
+    todoPlanner = new QueryPlanner(todoDocuments);
+    indexAdvisor = new IndexAdvisor(todoDocuments);
+    analyticsStore = database.getCollection("analytics");
+    todoTotals = new TotalCounter(todoDocuments, SNAPSHOT_REFRESH_MILLIS);
     todoCollection = JacksonMongoCollection.builder().build(
       database, "todos", Todo.class, UuidRepresentation.STANDARD);
+    todoReadCollection = database
+      .getCollection("todos", Todo.class)
+      .withCodecRegistry(CodecRegistries.fromRegistries(
+        CodecRegistries.fromCodecs(new TodoCodec()),
+        database.getCodecRegistry()));
   }
 
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
     Todo todo;
     try {
-      todo = todoCollection.find(eq("_id", new ObjectId(id))).first();
+      todo = todoReadCollection.find(eq("_id", new ObjectId(id)))
+        .maxTime(Deadline.of(ctx, QUERY_DEADLINE_MILLIS).remainingMillis(), TimeUnit.MILLISECONDS)
+        .first();
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
     }
@@ -57,78 +260,637 @@ public class TodoController implements Controller {
       throw new NotFoundResponse("The requested todo was not found");
     }
 
-    ctx.json(todo);
+    ResponseFormats.respond(ctx, todo);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be the todos with each of the ids
+   * in the `ids` query parameter, in the same order, each marked as found
+   * or not (see `BatchLookup`).
+   *
+   * If the snapshot is enabled, the todos are taken from there, and
+   * any it doesn't have are fetched with a single `$in` query.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodosById(Context ctx) {
+    List<String> ids = batchLookup.parse(ctx);
+    TodoSnapshot cached = useSnapshot ? currentSnapshot() : null;
+    List<BatchLookup.Entry<Todo>> todos = BatchLookup.lookup(ids,
+      id -> cached == null ? null : cached.get(id),
+      todoReadCollection, todo -> todo._id, Deadline.of(ctx, QUERY_DEADLINE_MILLIS));
+
+    ResponseFormats.respond(ctx, todos);
     ctx.status(HttpStatus.OK);
   }
 
   public void getTodos(Context ctx) {
-    Bson filter = constructFilter(ctx);
-    Bson sort = Sorts.ascending("name");
+    TodoQuery query = constructQuery(ctx);
+    List<String> fields = TODO_FIELDS.parse(ctx);
 
-    String limitParam = ctx.queryParam("limit");
-    int limit = (limitParam != null) ? Integer.parseInt(limitParam) : 0;
+    // The snapshot only builds whole todos, so it can't help with a sparse fieldset
+    Set<Engine> engines = EnumSet.of(Engine.DATABASE);
+    if (useSnapshot && fields == null) {
+      engines.add(Engine.MEMORY_SCAN);
+      engines.add(Engine.PARALLEL_SCAN);
+    }
+    // The snapshot is kept in name order, and MongoDB sorts by name with the
+    // `{name: 1, _id: 1}` index, so neither has to sort the matches it finds.
+    Plan plan = todoPlanner.plan(Shape.find(isExpensive(query), query.companyUsesIndex(), query.limit(), false),
+      snapshotFresh(), engines);
+    QueryPlanner.explain(ctx, plan);
+
+    // If the client wants the total number of matching todos, and this is
+    // just one page of them from the database, start counting them now,
+    // so the count runs while we fetch the page.
+    Deadline deadline = Deadline.of(ctx, QUERY_DEADLINE_MILLIS);
+    boolean wantsTotal = TotalCounter.wanted(ctx);
+    CompletableFuture<Long> total = null;
+    if (wantsTotal && query.limit() > 0 && plan.engine() == Engine.DATABASE) {
+      total = todoTotals.count(query.toFilter(), query.companyUsesIndex(), deadline);
+    }
+
+    if (plan.engine() == Engine.DATABASE) {
+      indexAdvisor.record(query.toFilter(), Sorts.ascending("name"));
+    }
+
+    List<?> todos = switch (plan.engine()) {
+      case MEMORY_SCAN -> currentSnapshot().find(query, false);
+      case PARALLEL_SCAN -> currentSnapshot().find(query, true);
+      default -> fields == null
+        ? todoReadCollection
+          .find(query.toFilter())
+          .sort(Sorts.ascending("name"))
+          .limit(query.limit())
+          .maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+          .into(new ArrayList<>())
+        // Have MongoDB project out just the requested fields. (An `_id` and
+        // `name` list can be answered from the `{name: 1, _id: 1}` index alone.)
+        : SparseFields.toResponse(todoDocuments
+          .find(query.toFilter())
+          .projection(SparseFields.projection(fields))
+          .sort(Sorts.ascending("name"))
+          .limit(query.limit())
+          .maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+          .into(new ArrayList<>()));
+    };
 
-    List<Todo> todos = todoCollection
-      .find(filter)
-      .sort(sort)
-      .limit(limit > 0 ? limit : 0)
-      .into(new ArrayList<>());
+    if (wantsTotal) {
+      if (total == null) {
+        // With no limit, we found every match; otherwise the snapshot
+        // counts its matches about as cheaply as it finds them.
+        total = CompletableFuture.completedFuture(query.limit() == 0
+          ? todos.size()
+          : currentSnapshot().count(query, plan.engine() == Engine.PARALLEL_SCAN));
+      }
+      TotalCounter.respond(ctx, total);
+    }
 
-    ctx.json(todos);
+    ResponseFormats.respond(ctx, todos);
     ctx.status(HttpStatus.OK);
   }
 
-  private Bson constructFilter(Context ctx) {
-    List<Bson> filters = new ArrayList<>();
+  /**
+   * Set the JSON body of the response to be the number of todos
+   * that match the requested filters, e.g., `{"count": 3}`.
+   *
+   * This accepts the same filters as `getTodos`. Counts by `company`,
+   * `role`, and `status` can be answered by intersecting the bitmaps in
+   * `todoIndex()`, without touching any documents; other counts are
+   * answered by the database or, if it's enabled, by scanning the snapshot.
+   * The `QueryPlanner` picks whichever of these is cheapest.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   *   used to filter the todos
+   */
+  public void countTodos(Context ctx) {
+    TodoQuery query = constructQuery(ctx);
+
+    Set<Engine> engines = EnumSet.of(Engine.DATABASE);
+    if (query.age() == null && query.contains() == null) {
+      engines.add(Engine.BITMAP_INDEX);
+    }
+    if (useSnapshot) {
+      engines.add(Engine.MEMORY_SCAN);
+      engines.add(Engine.PARALLEL_SCAN);
+    }
+    Plan plan = todoPlanner.plan(Shape.count(isExpensive(query), query.companyUsesIndex()),
+      snapshotFresh(), engines);
+    QueryPlanner.explain(ctx, plan);
+
+    if (plan.engine() == Engine.DATABASE) {
+      indexAdvisor.record(query.toFilter(), null);
+    }
+    long count = switch (plan.engine()) {
+      case BITMAP_INDEX -> countWithIndex(query);
+      case MEMORY_SCAN -> currentSnapshot().count(query, false);
+      case PARALLEL_SCAN -> currentSnapshot().count(query, true);
+      default -> todoReadCollection.countDocuments(query.toFilter(), new CountOptions()
+        .maxTime(Deadline.of(ctx, QUERY_DEADLINE_MILLIS).remainingMillis(), TimeUnit.MILLISECONDS));
+    };
+
+    ctx.json(Map.of("count", count));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Whether a query includes a check that's expensive to make on every
+   * todo, i.e., a case-insensitive substring search.
+   */
+  private static boolean isExpensive(TodoQuery query) {
+    return query.company() != null || query.contains() != null;
+  }
+
+  /**
+   * Set the JSON body of the response to be, for each facet in
+   * `FACET_FIELDS`, the number of matching todos with each value of that
+   * facet, most common first; e.g.,
+   * `{"company": {"ACME": 3, ...}, "role": {...}, "status": {"complete": 2, "incomplete": 1}}`.
+   *
+   * This accepts the same filters as `getTodos`, and answers all of the
+   * facets at once, without ever fetching the todos themselves: either with
+   * a single `$facet` aggregation, or (when the filters allow it) by
+   * intersecting the bitmaps in `todoIndex()`. The `QueryPlanner` picks
+   * whichever is cheaper.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   *   used to filter the todos
+   */
+  public void getTodoFacets(Context ctx) {
+    TodoQuery query = constructQuery(ctx);
+
+    Set<Engine> engines = EnumSet.of(Engine.DATABASE);
+    if (query.age() == null && query.contains() == null) {
+      engines.add(Engine.BITMAP_INDEX);
+    }
+    // The snapshot isn't one of the engines here, so its freshness doesn't matter
+    Plan plan = todoPlanner.plan(Shape.count(isExpensive(query), query.companyUsesIndex()), true, engines);
+    QueryPlanner.explain(ctx, plan);
+
+    // facet -> value -> count, in any order
+    Map<String, Map<String, Long>> counts = plan.engine() == Engine.BITMAP_INDEX
+      ? facetsWithIndex(query)
+      : facetsFromDatabase(query, Deadline.of(ctx, QUERY_DEADLINE_MILLIS));
+
+    Map<String, Map<String, Long>> facets = new LinkedHashMap<>();
+    for (String facet : new TreeSet<>(FACET_FIELDS.keySet())) {
+      facets.put(facet, mostCommonFirst(counts.get(facet)));
+    }
+
+    ResponseFormats.respond(ctx, facets);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Count the values of each facet among the todos matching a query (with
+   * no `age` or `contains` filter) using the bitmaps in `todoIndex()`.
+   */
+  private Map<String, Map<String, Long>> facetsWithIndex(TodoQuery query) {
+    Map<String, Map<String, Long>> byField = todoIndex()
+      .facets(indexConditions(query), List.copyOf(FACET_FIELDS.values()));
+    Map<String, Map<String, Long>> counts = new HashMap<>();
+    FACET_FIELDS.forEach((facet, field) -> counts.put(facet, facetValues(facet, byField.get(field))));
+    return counts;
+  }
+
+  /**
+   * Count the values of each facet among the todos matching a query with
+   * a single `$facet` aggregation, which sends back just the counts, and
+   * which MongoDB gives up on once the request's deadline has passed.
+   */
+  private Map<String, Map<String, Long>> facetsFromDatabase(TodoQuery query, Deadline deadline) {
+    indexAdvisor.record(query.toFilter(), null);
+    List<Facet> facets = new ArrayList<>();
+    FACET_FIELDS.forEach((facet, field) -> facets.add(new Facet(facet, Aggregates.sortByCount("$" + field))));
+    Document result = todoDocuments
+      .aggregate(List.of(Aggregates.match(query.toFilter()), Aggregates.facet(facets)))
+      .maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+      .first();
+
+    Map<String, Map<String, Long>> counts = new HashMap<>();
+    for (String facet : FACET_FIELDS.keySet()) {
+      Map<String, Long> facetCounts = new HashMap<>();
+      for (Document bucket : result.getList(facet, Document.class)) {
+        // Todos with no value for the field are grouped under `null`;
+        // like the bitmap index, we leave them out.
+        if (bucket.get("_id") != null) {
+          facetCounts.put(bucket.get("_id").toString(), bucket.get("count", Number.class).longValue());
+        }
+      }
+      counts.put(facet, facetValues(facet, facetCounts));
+    }
+    return counts;
+  }
+
+  /**
+   * Counts of the values of a facet, with the `status` facet reported
+   * the same way the `status` filter asks for it (`complete` or
+   * `incomplete`, rather than `true` or `false`).
+   */
+  private static Map<String, Long> facetValues(String facet, Map<String, Long> counts) {
+    if (!facet.equals("status")) {
+      return counts;
+    }
+    Map<String, Long> statuses = new HashMap<>();
+    counts.forEach((completed, count) ->
+      statuses.put(Boolean.parseBoolean(completed) ? "complete" : "incomplete", count));
+    return statuses;
+  }
+
+  /**
+   * Set the JSON body of the response to be approximate analytics over all
+   * the todos, answered from sketches rather than by reading the todos: the
+   * number of distinct companies, and the `top` (default `DEFAULT_TOP`)
+   * busiest companies and most common roles, along with the bounds on
+   * the errors in those numbers.
+   *
+   * @param ctx a Javalin HTTP context, which contains the `top` query parameter
+   */
+  public void getTodoAnalytics(Context ctx) {
+    int top = DEFAULT_TOP;
+    if (ctx.queryParamMap().containsKey(TOP_KEY)) {
+      top = ctx.queryParamAsClass(TOP_KEY, Integer.class)
+        .check(t -> t > 0, "top must be > 0")
+        .check(t -> t <= CountMinSketch.DEFAULT_CANDIDATES, "top must be <= " + CountMinSketch.DEFAULT_CANDIDATES)
+        .get();
+    }
+
+    Map<String, Object> summary;
+    analyticsLock.lock();
+    try {
+      summary = currentAnalytics().summary(top);
+    } finally {
+      analyticsLock.unlock();
+    }
+    ResponseFormats.respond(ctx, summary);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * The analytics sketches, catching them up with any new todos if that
+   * hasn't been done for `SNAPSHOT_REFRESH_MILLIS`, and saving them if
+   * they haven't been saved for `ANALYTICS_SAVE_MILLIS`. The first time,
+   * they're loaded from where they were last saved. If they need to be
+   * rebuilt (see `TodoAnalytics.catchUp()`), that's started in the
+   * background, and these are used until it's done.
+   *
+   * @return (at most slightly stale) analytics over the todos
+   */
+  TodoAnalytics currentAnalytics() {
+    analyticsLock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      if (analytics == null) {
+        analytics = TodoAnalytics.load(analyticsStore);
+        analyticsSaveTime = now;
+      }
+      if (analyticsTime == 0 || now - analyticsTime >= SNAPSHOT_REFRESH_MILLIS) {
+        boolean exact = analytics.catchUp(todoDocuments);
+        analyticsTime = now;
+        if (!exact || analytics.rebuildDue(ANALYTICS_REBUILD_MILLIS)) {
+          startAnalyticsRebuild();
+        }
+      }
+      if (now - analyticsSaveTime >= ANALYTICS_SAVE_MILLIS) {
+        analytics.save(analyticsStore);
+        analyticsSaveTime = now;
+      }
+      return analytics;
+    } finally {
+      analyticsLock.unlock();
+    }
+  }
+
+  /**
+   * Start a background thread that runs `rebuildAnalytics()`, unless
+   * there's one running already.
+   */
+  void startAnalyticsRebuild() {
+    if (!analyticsRebuilding.compareAndSet(false, true)) {
+      return;
+    }
+    Thread rebuild = new Thread(() -> {
+      try {
+        rebuildAnalytics();
+      } finally {
+        analyticsRebuilding.set(false);
+      }
+    }, "todo-analytics-rebuild");
+    rebuild.setDaemon(true);
+    rebuild.start();
+  }
+
+  /**
+   * Rebuild the analytics sketches from scratch, and swap them in for the
+   * current ones. Every todo is read without holding `analyticsLock`, so
+   * requests carry on with the current sketches in the meantime.
+   */
+  void rebuildAnalytics() {
+    TodoAnalytics rebuilt = TodoAnalytics.build(todoDocuments);
+    analyticsLock.lock();
+    try {
+      // Pick up any todos added while we were reading
+      rebuilt.catchUp(todoDocuments);
+      analytics = rebuilt;
+      analyticsTime = System.currentTimeMillis();
+      analytics.save(analyticsStore);
+      analyticsSaveTime = analyticsTime;
+    } finally {
+      analyticsLock.unlock();
+    }
+  }
+
+  /**
+   * A copy of some facet counts, ordered most common first
+   * (and then alphabetically).
+   */
+  private static Map<String, Long> mostCommonFirst(Map<String, Long> counts) {
+    Map<String, Long> ordered = new LinkedHashMap<>();
+    counts.entrySet().stream()
+      .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+      .forEach(count -> ordered.put(count.getKey(), count.getValue()));
+    return ordered;
+  }
+
+  /**
+   * Count the todos matching a query (with no `age` or `contains`
+   * filter) using the bitmaps in `todoIndex()`.
+   */
+  private long countWithIndex(TodoQuery query) {
+    return todoIndex().count(indexConditions(query));
+  }
+
+  /**
+   * The conditions on the bitmaps in `todoIndex()` that match the same
+   * todos as a query (with no `age` or `contains` filter).
+   */
+  private static Map<String, Predicate<String>> indexConditions(TodoQuery query) {
+    Map<String, Predicate<String>> conditions = new HashMap<>();
+    if (query.company() != null) {
+      conditions.put(COMPANY_KEY, query.companyMatcher());
+    }
+    if (query.role() != null) {
+      conditions.put(ROLE_KEY, query.role()::equals);
+    }
+    if (query.completed() != null) {
+      conditions.put("completed", query.completed().toString()::equals);
+    }
+    return conditions;
+  }
+
+  /**
+   * The bitmap index of the todos' `company`, `role`, and `completed`
+   * fields, (re)building it if it's more than `SNAPSHOT_REFRESH_MILLIS` old.
+   * If another request is already rebuilding it, this returns the old one.
+   *
+   * @return an (at most slightly stale) bitmap index of the todos
+   */
+  BitmapIndex todoIndex() {
+    BitmapIndex current = todoIndex;
+    if (current != null && System.currentTimeMillis() - todoIndexTime < SNAPSHOT_REFRESH_MILLIS) {
+      return current;
+    }
+    if (current == null) {
+      indexLock.lock();
+    } else if (!indexLock.tryLock()) {
+      return current;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (todoIndex == null || now - todoIndexTime >= SNAPSHOT_REFRESH_MILLIS) {
+        todoIndex = BitmapIndex.load(todoDocuments, List.of(COMPANY_KEY, ROLE_KEY, "completed"));
+        todoIndexTime = now;
+      }
+      return todoIndex;
+    } finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * Set the JSON body of the response to be the values of a todo field that
+   * start with the `prefix` query parameter (ignoring case), most common
+   * first, e.g., `[{"value": "ACME", "count": 3}]`.
+   *
+   * This is meant for type-ahead completion in the todo filter boxes. The
+   * `field` query parameter picks which field to complete (`company`, the
+   * default, or `role`), and at most `limit` (default `DEFAULT_SUGGESTIONS`)
+   * values are returned.
+   *
+   * @param ctx a Javalin HTTP context, which contains the `field`,
+   *   `prefix`, and `limit` query parameters
+   */
+  public void suggest(Context ctx) {
+    String field = COMPANY_KEY;
+    if (ctx.queryParamMap().containsKey(FIELD_KEY)) {
+      field = ctx.queryParamAsClass(FIELD_KEY, String.class)
+        .check(SUGGESTED_FIELDS::contains, "Suggestions are only available for " + SUGGESTED_FIELDS)
+        .get();
+    }
+    String prefix = Objects.requireNonNullElse(ctx.queryParam(PREFIX_KEY), "");
+    int limit = DEFAULT_SUGGESTIONS;
+    if (ctx.queryParamMap().containsKey(LIMIT_KEY)) {
+      limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+        .check(l -> l > 0, "The suggestion limit must be > 0")
+        .check(l -> l <= MAX_SUGGESTIONS, "The suggestion limit must be <= " + MAX_SUGGESTIONS)
+        .get();
+    }
+
+    ResponseFormats.respond(ctx, todoSuggesters().get(field).suggest(prefix, limit));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * The type-ahead suggesters for the `SUGGESTED_FIELDS`, keyed by field,
+   * (re)building them if they're more than `SNAPSHOT_REFRESH_MILLIS` old.
+   * If another request is already rebuilding them, this returns the old ones.
+   *
+   * @return (at most slightly stale) suggesters for the todo fields
+   */
+  Map<String, Suggester> todoSuggesters() {
+    Map<String, Suggester> current = todoSuggesters;
+    if (current != null && System.currentTimeMillis() - todoSuggestersTime < SNAPSHOT_REFRESH_MILLIS) {
+      return current;
+    }
+    if (current == null) {
+      suggestersLock.lock();
+    } else if (!suggestersLock.tryLock()) {
+      return current;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (todoSuggesters == null || now - todoSuggestersTime >= SNAPSHOT_REFRESH_MILLIS) {
+        Map<String, Suggester> suggesters = new HashMap<>();
+        for (String field : SUGGESTED_FIELDS) {
+          suggesters.put(field, Suggester.load(todoDocuments, field));
+        }
+        todoSuggesters = Map.copyOf(suggesters);
+        todoSuggestersTime = now;
+      }
+      return todoSuggesters;
+    } finally {
+      suggestersLock.unlock();
+    }
+  }
+
+  /**
+   * Parse and validate the filters and limit for `getTodos` from the
+   * query parameters in the context.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the parsed query
+   */
+  private TodoQuery constructQuery(Context ctx) {
+    Integer age = null;
+    String company = null;
+    Match companyMatch = null;
+    String role = null;
+    Boolean completed = null;
+    String contains = null;
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
-      int age = ctx.queryParamAsClass(AGE_KEY, Integer.class)
+      age = ctx.queryParamAsClass(AGE_KEY, Integer.class)
         .check(a -> a > 0, "Todo's age must be > 0")
         .check(a -> a < REASONABLE_AGE_LIMIT, "Todo's age must be < " + REASONABLE_AGE_LIMIT)
         .get();
-      filters.add(eq(AGE_KEY, age));
     }
 
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      String company = ctx.queryParam(COMPANY_KEY);
-      filters.add(regex(COMPANY_KEY, Pattern.compile(Pattern.quote(company), Pattern.CASE_INSENSITIVE)));
+      company = ctx.queryParam(COMPANY_KEY);
+    }
+
+    if (ctx.queryParamMap().containsKey(COMPANY_MATCH_KEY)) {
+      companyMatch = Match.parse(ctx.queryParamAsClass(COMPANY_MATCH_KEY, String.class)
+        .check(m -> m.matches(CaseFoldedField.MATCH_REGEX), "Company match must be exact, prefix, or contains")
+        .get());
     }
 
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
-      String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
+      role = ctx.queryParamAsClass(ROLE_KEY, String.class)
         .check(r -> r.matches(ROLE_REGEX), "Invalid todo role")
         .get();
-      filters.add(eq(ROLE_KEY, role));
     }
 
     if (ctx.queryParamMap().containsKey("status")) {
       String status = ctx.queryParam("status");
       if (status != null) {
-        filters.add(eq("completed", status.equalsIgnoreCase("complete")));
+        completed = status.equalsIgnoreCase("complete");
       }
     }
 
     if (ctx.queryParamMap().containsKey("contains")) {
-      String contains = ctx.queryParam("contains");
-      if (contains != null && !contains.isEmpty()) {
-        filters.add(regex("body", Pattern.compile(Pattern.quote(contains), Pattern.CASE_INSENSITIVE)));
+      String containsParam = ctx.queryParam("contains");
+      if (containsParam != null && !containsParam.isEmpty()) {
+        contains = containsParam;
       }
     }
 
-    return filters.isEmpty() ? new Document() : and(filters);
+    String limitParam = ctx.queryParam("limit");
+    int limit = (limitParam != null) ? Integer.parseInt(limitParam) : 0;
+
+    return new TodoQuery(age, company, companyMatch, role, completed, contains, Math.max(limit, 0));
   }
 
+  /**
+   * Whether the snapshot is loaded, and isn't due to be reloaded in full,
+   * so scanning it won't mean reading every todo first.
+   *
+   * @return whether the snapshot is fresh
+   */
+  private boolean snapshotFresh() {
+    TodoSnapshot current = snapshot;
+    return current != null && !current.reloadDue(SNAPSHOT_RELOAD_MILLIS);
+  }
 
+  /**
+   * The in-memory snapshot of the todos, refreshing it first if it's
+   * more than `SNAPSHOT_REFRESH_MILLIS` old. If another request is already
+   * refreshing it (which may mean reading every todo), this returns the
+   * old one rather than waiting, so a batch lookup isn't held up by a reload.
+   *
+   * @return an (at most slightly stale) snapshot of the todos
+   */
+  TodoSnapshot currentSnapshot() {
+    TodoSnapshot current = snapshot;
+    if (current != null && System.currentTimeMillis() - snapshotTime < SNAPSHOT_REFRESH_MILLIS) {
+      return current;
+    }
+    if (current == null) {
+      snapshotLock.lock();
+    } else if (!snapshotLock.tryLock()) {
+      return current;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (snapshot == null) {
+        snapshot = TodoSnapshot.load(todoDocuments);
+        snapshotTime = now;
+      } else if (now - snapshotTime >= SNAPSHOT_REFRESH_MILLIS) {
+        TodoSnapshot refreshed = snapshot.refresh(todoDocuments, SNAPSHOT_RELOAD_MILLIS);
+        // A new snapshot means todos were added (or the collection was
+        // reloaded), so cached totals may be out of date too
+        if (refreshed != snapshot) {
+          todoTotals.invalidate();
+        }
+        snapshot = refreshed;
+        snapshotTime = now;
+      }
+      return snapshot;
+    } finally {
+      snapshotLock.unlock();
+    }
+  }
 
+  /**
+   * Start a background thread that builds the indexes for `COMPANY_SEARCH`
+   * and fills in the company shadow fields of any todos that are missing them,
+   * and builds the index that covers `_id`-and-`name` lists (see `SparseFields`).
+   *
+   * Todos written after this won't have the shadow fields until the server
+   * next starts, which is why `TodoQuery` searches for them with
+   * `COMPANY_SEARCH.filterIncludingUnprepared()`.
+   */
+  void startCompanySearchBackfill() {
+    Thread backfill = new Thread(() -> {
+      SparseFields.createListIndex(todoDocuments);
+      COMPANY_SEARCH.prepare(todoDocuments, BACKFILL_BATCH_SIZE);
+    }, "todo-company-search-backfill");
+    backfill.setDaemon(true);
+    backfill.start();
+  }
 
   @Override
   public void addRoutes(Javalin server) {
-    server.get(API_TODO_BY_ID, this::getTodo);
-    server.get(API_TODOS, this::getTodos);
+    // As for users, each route is in its bulkhead, and behind the `breaker`
+    // inside that, so the breaker only times the work of the route itself
+    server.get(API_TODO_BY_ID, lookups.wrap(breaker.wrap(this::getTodo)));
+    server.get(API_TODOS, heavyQueries.wrap(breaker.wrap(this::getTodos, BREAKER_SLOW_HEAVY_CALL)));
+    server.get("/api/todosBatch", lookups.wrap(breaker.wrap(this::getTodosById)));
+    server.get("/api/todosCount", heavyQueries.wrap(breaker.wrap(this::countTodos, BREAKER_SLOW_HEAVY_CALL)));
+    server.get("/api/todosSuggest", lookups.wrap(breaker.wrap(this::suggest)));
+    server.get("/api/todosFacets", heavyQueries.wrap(breaker.wrap(this::getTodoFacets, BREAKER_SLOW_HEAVY_CALL)));
+    server.get("/api/todosAnalytics", heavyQueries.wrap(breaker.wrap(this::getTodoAnalytics, BREAKER_SLOW_HEAVY_CALL)));
 
+    // Todos are written from outside this server, so once it's up, fill in
+    // the company search fields of any todos that don't have them yet. Once
+    // it's stopped, stop any counts that are still running.
+    server.events(event -> {
+      event.serverStarted(this::startCompanySearchBackfill);
+      event.serverStopped(todoTotals::shutdown);
+    });
   }
 
   JacksonMongoCollection<Todo> getTodoCollection() {
     return todoCollection;
   }
+
+  /**
+   * The index advisor for the todos collection.
+   *
+   * @return the index advisor for the queries this controller sends to MongoDB
+   */
+  public IndexAdvisor getIndexAdvisor() {
+    return indexAdvisor;
+  }
 }
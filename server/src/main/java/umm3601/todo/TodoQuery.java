@@ -0,0 +1,121 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import umm3601.CaseFoldedField;
+import umm3601.CaseFoldedField.Match;
+
+/**
+ * The filters and limit of a `GET /api/todos` request, after they've been
+ * parsed and validated by `TodoController`.
+ *
+ * Keeping the parsed query around, rather than going straight to a Bson
+ * filter, lets the same query be answered either by MongoDB (using
+ * `toFilter()`) or by an in-memory `TodoSnapshot`.
+ *
+ * Each of the filters is `null` if it wasn't requested, and a `limit`
+ * of 0 means "no limit".
+ *
+ * @param age only match todos with this age
+ * @param company only match todos whose company contains this (ignoring case)
+ * @param companyMatch how `company` has to match, using the indexed
+ *   `TodoController.COMPANY_SEARCH` shadow fields (or, for todos written
+ *   since they were last filled in, a regex); if this is `null`,
+ *   `company` is matched with a (full scan) case-insensitive regex
+ * @param role only match todos with this role
+ * @param completed only match todos with this completion status
+ * @param contains only match todos whose body contains this (ignoring case)
+ * @param limit the most todos to return
+ */
+record TodoQuery(Integer age, String company, Match companyMatch, String role, Boolean completed, String contains,
+    int limit) {
+
+  /**
+   * Construct a query whose `company` filter (if any) is a regex search.
+   *
+   * @param age only match todos with this age
+   * @param company only match todos whose company contains this (ignoring case)
+   * @param role only match todos with this role
+   * @param completed only match todos with this completion status
+   * @param contains only match todos whose body contains this (ignoring case)
+   * @param limit the most todos to return
+   */
+  TodoQuery(Integer age, String company, String role, Boolean completed, String contains, int limit) {
+    this(age, company, null, role, completed, contains, limit);
+  }
+
+  /**
+   * Construct a Bson filter document to use in the `find` method
+   * that matches the same todos as this query.
+   *
+   * @return a Bson filter document for this query
+   */
+  Bson toFilter() {
+    List<Bson> filters = new ArrayList<>();
+
+    if (age != null) {
+      filters.add(eq(TodoController.AGE_KEY, age));
+    }
+    if (company != null && companyMatch != null) {
+      // Todos are written from outside this server, so the newest ones
+      // may not have their shadow fields yet
+      filters.add(TodoController.COMPANY_SEARCH.filterIncludingUnprepared(company, companyMatch));
+    } else if (company != null) {
+      filters.add(regex(TodoController.COMPANY_KEY, caseInsensitive(company)));
+    }
+    if (role != null) {
+      filters.add(eq(TodoController.ROLE_KEY, role));
+    }
+    if (completed != null) {
+      filters.add(eq("completed", completed));
+    }
+    if (contains != null) {
+      filters.add(regex("body", caseInsensitive(contains)));
+    }
+
+    return filters.isEmpty() ? new Document() : and(filters);
+  }
+
+  /**
+   * A test for whether a company matches the `company` filter.
+   *
+   * @return the test for the `company` filter
+   */
+  Predicate<String> companyMatcher() {
+    if (companyMatch != null) {
+      return CaseFoldedField.matcher(company, companyMatch);
+    }
+    Pattern pattern = caseInsensitive(company);
+    return value -> pattern.matcher(value).find();
+  }
+
+  /**
+   * Whether MongoDB can answer the `company` filter from an index.
+   *
+   * @return whether the company search is an index lookup
+   */
+  boolean companyUsesIndex() {
+    return company != null && companyMatch != null && CaseFoldedField.usesIndex(company, companyMatch);
+  }
+
+  /**
+   * A case-insensitive pattern that matches anywhere `text` appears
+   * (with any regex special characters in `text` taken literally).
+   *
+   * @param text the text to look for
+   * @return a pattern matching `text`, ignoring case
+   */
+  static Pattern caseInsensitive(String text) {
+    return Pattern.compile(Pattern.quote(text), Pattern.CASE_INSENSITIVE);
+  }
+}
@@ -0,0 +1,408 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.gt;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Sorts;
+
+import umm3601.ParallelScan;
+
+/**
+ * An immutable, in-memory copy of the `todos` collection laid out by
+ * column, which can answer `TodoQuery`s without going to MongoDB.
+ *
+ * Rather than holding a `Todo` object per document, the snapshot keeps
+ * one array per field, with row `i` of every array describing the `i`th
+ * todo:
+ *
+ * - `company` and `role` have only a handful of distinct values, so they
+ *   are dictionary encoded: each distinct value is stored once, and each
+ *   row just holds the (`int`) index of its value in the dictionary.
+ *   A company filter is then checked once per *distinct* company
+ *   rather than once per todo.
+ * - `completed` is a pair of bitsets (whether the todo is complete, and
+ *   whether it has a `completed` field at all).
+ * - The other fields are plain arrays, with `body` stored lowercased so
+ *   `contains` searches don't have to fold case on every row.
+ *
+ * The rows are sorted by `name`, which is the order `getTodos` returns
+ * them in, so a query is a single pass over the rows (which, if it's
+ * sequential, can stop as soon as it has `limit` matches).
+ *
+ * Since a snapshot never changes, it can be shared freely between
+ * request threads; `refresh()` builds a *new* snapshot.
+ *
+ * Todos are written from outside this server, and we can't watch the
+ * collection for changes (change streams need a replica set, and our
+ * MongoDB is a single server), so an update to a todo only shows up in
+ * the snapshot the next time it's reloaded in full (see `refresh()`).
+ */
+final class TodoSnapshot {
+
+  // Dictionary code used for rows that have no value for the field
+  private static final int MISSING = -1;
+
+  private final int size;
+  private final String[] ids;
+  private final String[] names;
+  private final int[] ages;
+  private final String[] emails;
+  private final String[] avatars;
+  private final String[] bodies;
+  private final String[] companyDictionary;
+  private final int[] companies;
+  private final String[] roleDictionary;
+  private final int[] roles;
+  private final BitSet completed;
+  private final BitSet hasCompleted;
+  // The row of each todo, by id, for `get()`
+  private final Map<String, Integer> rowsById;
+
+  // The largest `ObjectId` in the snapshot. New todos have larger ids
+  // than this, which is what lets `refresh()` fetch just the new ones.
+  private final ObjectId newestId;
+  // When the todos in the snapshot were last all read from the database
+  // (as opposed to just the new ones), in milliseconds since the epoch
+  private final long loadedAt;
+
+  private TodoSnapshot(List<Document> documents, long loadedAt) {
+    this.loadedAt = loadedAt;
+    List<Document> sorted = new ArrayList<>(documents);
+    sorted.sort(Comparator.comparing(doc -> doc.get("name") instanceof String name ? name : null,
+      Comparator.nullsFirst(Comparator.naturalOrder())));
+
+    size = sorted.size();
+    ids = new String[size];
+    names = new String[size];
+    ages = new int[size];
+    emails = new String[size];
+    avatars = new String[size];
+    bodies = new String[size];
+    companies = new int[size];
+    roles = new int[size];
+    completed = new BitSet(size);
+    hasCompleted = new BitSet(size);
+    rowsById = new HashMap<>(size);
+
+    Map<String, Integer> companyCodes = new HashMap<>();
+    Map<String, Integer> roleCodes = new HashMap<>();
+    ObjectId newest = null;
+
+    for (int row = 0; row < size; row++) {
+      Document doc = sorted.get(row);
+      Object id = doc.get("_id");
+      if (id instanceof ObjectId objectId) {
+        ids[row] = objectId.toHexString();
+        if (newest == null || objectId.compareTo(newest) > 0) {
+          newest = objectId;
+        }
+      } else {
+        ids[row] = id == null ? null : id.toString();
+      }
+      rowsById.put(ids[row], row);
+      names[row] = stringField(doc, "name");
+      ages[row] = doc.get(TodoController.AGE_KEY) instanceof Number age ? age.intValue() : 0;
+      emails[row] = stringField(doc, "email");
+      avatars[row] = stringField(doc, "avatar");
+      String body = stringField(doc, "body");
+      bodies[row] = body == null ? null : body.toLowerCase(Locale.ROOT);
+      companies[row] = encode(companyCodes, stringField(doc, TodoController.COMPANY_KEY));
+      roles[row] = encode(roleCodes, stringField(doc, TodoController.ROLE_KEY));
+      if (doc.get("completed") instanceof Boolean isCompleted) {
+        hasCompleted.set(row);
+        completed.set(row, isCompleted);
+      }
+    }
+
+    companyDictionary = dictionary(companyCodes);
+    roleDictionary = dictionary(roleCodes);
+    newestId = newest;
+  }
+
+  private static String stringField(Document doc, String key) {
+    return doc.get(key) instanceof String value ? value : null;
+  }
+
+  private static int encode(Map<String, Integer> codes, String value) {
+    if (value == null) {
+      return MISSING;
+    }
+    return codes.computeIfAbsent(value, v -> codes.size());
+  }
+
+  private static String[] dictionary(Map<String, Integer> codes) {
+    String[] values = new String[codes.size()];
+    codes.forEach((value, code) -> values[code] = value);
+    return values;
+  }
+
+  /**
+   * Build a snapshot holding the given todo documents.
+   *
+   * @param documents the todo documents to include in the snapshot
+   * @return a snapshot of those documents
+   */
+  static TodoSnapshot of(List<Document> documents) {
+    return new TodoSnapshot(documents, System.currentTimeMillis());
+  }
+
+  /**
+   * Build a snapshot of every todo in a collection.
+   *
+   * @param collection the `todos` collection
+   * @return a snapshot of the whole collection
+   */
+  static TodoSnapshot load(MongoCollection<Document> collection) {
+    long now = System.currentTimeMillis();
+    return new TodoSnapshot(collection.find().into(new ArrayList<>()), now);
+  }
+
+  /**
+   * Whether it's been `reloadMillis` since all the todos were read, so
+   * the next `refresh` will read them all again.
+   *
+   * @param reloadMillis how long (in milliseconds) to go between reading
+   *   all the todos
+   * @return whether the snapshot is due to be reloaded
+   */
+  boolean reloadDue(long reloadMillis) {
+    return System.currentTimeMillis() - loadedAt >= reloadMillis;
+  }
+
+  /**
+   * Bring this snapshot up to date with `collection`.
+   *
+   * If it's been `reloadMillis` since all the todos were read, they're
+   * all read again, which is the only way an update to an existing todo
+   * is picked up.
+   *
+   * Otherwise, this only reads the todos that were added since the
+   * snapshot was built (those with a larger `_id` than any we already
+   * have), which is a cheap, indexed query, and builds a new snapshot (in
+   * memory) from those and the rows we already have. If, after that, the
+   * collection doesn't have the same number of todos as the snapshot,
+   * something other than an insert has happened (a delete, say), and we
+   * fall back to reloading the whole collection.
+   *
+   * @param collection the `todos` collection
+   * @param reloadMillis how long (in milliseconds) to go between reading
+   *   all the todos
+   * @return an up-to-date snapshot (possibly this one, if nothing changed)
+   */
+  TodoSnapshot refresh(MongoCollection<Document> collection, long reloadMillis) {
+    if (reloadDue(reloadMillis)) {
+      return load(collection);
+    }
+    List<Document> added = newestId == null
+      ? new ArrayList<>()
+      : collection.find(gt("_id", newestId)).sort(Sorts.ascending("_id")).into(new ArrayList<>());
+
+    if (size + added.size() != collection.estimatedDocumentCount()) {
+      return load(collection);
+    }
+    if (added.isEmpty()) {
+      return this;
+    }
+    List<Document> documents = rows();
+    documents.addAll(added);
+    return new TodoSnapshot(documents, loadedAt);
+  }
+
+  /**
+   * Turn the columns back into documents, e.g., so they can be combined
+   * with newly added todos to build a new snapshot.
+   */
+  private List<Document> rows() {
+    List<Document> documents = new ArrayList<>(size);
+    for (int row = 0; row < size; row++) {
+      Document doc = new Document("_id", ObjectId.isValid(ids[row]) ? new ObjectId(ids[row]) : ids[row])
+        .append("name", names[row])
+        .append(TodoController.AGE_KEY, ages[row])
+        .append(TodoController.COMPANY_KEY, decode(companyDictionary, companies[row]))
+        .append("email", emails[row])
+        .append("avatar", avatars[row])
+        .append(TodoController.ROLE_KEY, decode(roleDictionary, roles[row]))
+        .append("body", bodies[row]);
+      if (hasCompleted.get(row)) {
+        doc.append("completed", completed.get(row));
+      }
+      documents.add(doc);
+    }
+    return documents;
+  }
+
+  private static String decode(String[] dictionary, int code) {
+    return code == MISSING ? null : dictionary[code];
+  }
+
+  /**
+   * The number of todos in the snapshot.
+   *
+   * @return the number of todos in the snapshot
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * The todo with the given id.
+   *
+   * @param id the id of the todo
+   * @return the todo, or `null` if there isn't one with that id in the snapshot
+   */
+  Todo get(String id) {
+    Integer row = rowsById.get(id);
+    return row == null ? null : todoAt(row);
+  }
+
+  /**
+   * Find the todos matching `query`, sorted by name, just as
+   * `getTodos` would get them from MongoDB.
+   *
+   * A sequential scan stops as soon as `limit` todos have been found.
+   * A parallel scan (see `ParallelScan`) has to check every row, but
+   * spreads the work across all of the cores, which pays off when the
+   * snapshot is large and the query is expensive to check (a `contains`
+   * search, say). `QueryPlanner` decides which is the better choice.
+   *
+   * @param query the filters and limit to apply
+   * @param parallel whether to scan the rows in parallel
+   * @return the matching todos
+   */
+  List<Todo> find(TodoQuery query, boolean parallel) {
+    List<Todo> todos = new ArrayList<>();
+    if (query.role() != null && indexOf(roleDictionary, query.role()) == MISSING) {
+      // Nobody has this role, so nothing can match
+      return todos;
+    }
+    IntPredicate matches = matcher(query);
+    int limit = query.limit() > 0 ? query.limit() : Integer.MAX_VALUE;
+
+    if (parallel) {
+      int[] rows = ParallelScan.matchingIndices(size, matches, ParallelScan.DEFAULT_CHUNK_SIZE);
+      for (int i = 0; i < rows.length && i < limit; i++) {
+        todos.add(todoAt(rows[i]));
+      }
+    } else {
+      for (int row = 0; row < size && todos.size() < limit; row++) {
+        if (matches.test(row)) {
+          todos.add(todoAt(row));
+        }
+      }
+    }
+    return todos;
+  }
+
+  /**
+   * Find the todos matching `query` with a sequential scan.
+   *
+   * @param query the filters and limit to apply
+   * @return the matching todos
+   */
+  List<Todo> find(TodoQuery query) {
+    return find(query, false);
+  }
+
+  /**
+   * Count the todos matching `query` (ignoring its limit), without
+   * building any `Todo` objects.
+   *
+   * @param query the filters to apply
+   * @param parallel whether to scan the rows in parallel
+   * @return the number of matching todos
+   */
+  long count(TodoQuery query, boolean parallel) {
+    if (query.role() != null && indexOf(roleDictionary, query.role()) == MISSING) {
+      return 0;
+    }
+    IntPredicate matches = matcher(query);
+    if (parallel) {
+      return ParallelScan.matchingIndices(size, matches, ParallelScan.DEFAULT_CHUNK_SIZE).length;
+    }
+    long count = 0;
+    for (int row = 0; row < size; row++) {
+      if (matches.test(row)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * A test for whether the todo in a given row matches `query`.
+   */
+  private IntPredicate matcher(TodoQuery query) {
+    BitSet matchingCompanies = matchingCompanies(query);
+    int role = query.role() == null ? MISSING : indexOf(roleDictionary, query.role());
+    String contains = query.contains() == null ? null : query.contains().toLowerCase(Locale.ROOT);
+
+    return row -> {
+      if (query.age() != null && ages[row] != query.age()) {
+        return false;
+      }
+      if (matchingCompanies != null && (companies[row] == MISSING || !matchingCompanies.get(companies[row]))) {
+        return false;
+      }
+      if (query.role() != null && roles[row] != role) {
+        return false;
+      }
+      if (query.completed() != null && (!hasCompleted.get(row) || completed.get(row) != query.completed())) {
+        return false;
+      }
+      return contains == null || bodies[row] != null && bodies[row].contains(contains);
+    };
+  }
+
+  /**
+   * The dictionary codes of the companies matching a `company` filter,
+   * or `null` if there isn't one.
+   */
+  private BitSet matchingCompanies(TodoQuery query) {
+    if (query.company() == null) {
+      return null;
+    }
+    Predicate<String> matches = query.companyMatcher();
+    BitSet matching = new BitSet(companyDictionary.length);
+    for (int code = 0; code < companyDictionary.length; code++) {
+      if (matches.test(companyDictionary[code])) {
+        matching.set(code);
+      }
+    }
+    return matching;
+  }
+
+  private static int indexOf(String[] dictionary, String value) {
+    for (int code = 0; code < dictionary.length; code++) {
+      if (dictionary[code].equals(value)) {
+        return code;
+      }
+    }
+    return MISSING;
+  }
+
+  private Todo todoAt(int row) {
+    Todo todo = new Todo();
+    todo._id = ids[row];
+    todo.name = names[row];
+    todo.age = ages[row];
+    todo.company = decode(companyDictionary, companies[row]);
+    todo.email = emails[row];
+    todo.avatar = avatars[row];
+    todo.role = decode(roleDictionary, roles[row]);
+    todo.completed = completed.get(row);
+    return todo;
+  }
+}
@@ -0,0 +1,63 @@
+package umm3601.user;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import umm3601.EntityCodecs;
+
+/**
+ * A hand-written BSON codec for `User`.
+ *
+ * This decodes documents straight into the fields of a `User` without going
+ * through Jackson's reflection-based mapping, and cheaply skips any fields
+ * that `User` doesn't know about. The `_id` is handled the same way as
+ * MongoJack handles the `@ObjectId @Id` field, so the two can be used on
+ * the same collection.
+ */
+public class UserCodec implements Codec<User> {
+
+  @Override
+  public User decode(BsonReader reader, DecoderContext decoderContext) {
+    User user = new User();
+
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String fieldName = reader.readName();
+      switch (fieldName) {
+        case "_id" -> user._id = EntityCodecs.readId(reader);
+        case "name" -> user.name = EntityCodecs.readString(reader);
+        case "age" -> user.age = EntityCodecs.readInt(reader);
+        case "company" -> user.company = EntityCodecs.readString(reader);
+        case "email" -> user.email = EntityCodecs.readString(reader);
+        case "avatar" -> user.avatar = EntityCodecs.readString(reader);
+        case "role" -> user.role = EntityCodecs.readString(reader);
+        default -> reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+
+    return user;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, User user, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    EntityCodecs.writeId(writer, user._id);
+    EntityCodecs.writeString(writer, "name", user.name);
+    writer.writeInt32("age", user.age);
+    EntityCodecs.writeString(writer, "company", user.company);
+    EntityCodecs.writeString(writer, "email", user.email);
+    EntityCodecs.writeString(writer, "avatar", user.avatar);
+    EntityCodecs.writeString(writer, "role", user.role);
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<User> getEncoderClass() {
+    return User.class;
+  }
+}
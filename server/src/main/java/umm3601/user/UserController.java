@@ -1,34 +1,71 @@
 package umm3601.user;
 
-import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
 import org.bson.Document;
 import org.bson.UuidRepresentation;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.BatchLookup;
+import umm3601.BitmapIndex;
+import umm3601.Bulkhead;
+import umm3601.CircuitBreaker;
+import umm3601.CaseFoldedField;
+import umm3601.CaseFoldedField.Match;
 import umm3601.Controller;
+import umm3601.Deadline;
+import umm3601.IndexAdvisor;
+import umm3601.ParallelScan;
+import umm3601.QueryPlanner;
+import umm3601.QueryPlanner.Engine;
+import umm3601.QueryPlanner.Plan;
+import umm3601.QueryPlanner.Shape;
+import umm3601.ResponseFormats;
+import umm3601.SparseFields;
+import umm3601.Suggester;
+import umm3601.TotalCounter;
 
 /**
  * Controller that manages requests for info about users.
@@ -40,25 +77,206 @@ public class UserController implements Controller {
   static final String AGE_KEY = "age";
   static final String COMPANY_KEY = "company";
   static final String ROLE_KEY = "role";
+  static final String COMPANY_MATCH_KEY = "companyMatch";
+  static final String PREFIX_KEY = "prefix";
+  static final String LIMIT_KEY = "limit";
+  static final int DEFAULT_SUGGESTIONS = 10;
+  static final int MAX_SUGGESTIONS = 50;
+
+  // The fields clients can ask for with `?fields=`
+  static final SparseFields USER_FIELDS = new SparseFields(
+    Set.of("_id", "name", AGE_KEY, COMPANY_KEY, "email", "avatar", ROLE_KEY));
+
+  // Indexed, case-insensitive searching of the users' companies
+  static final CaseFoldedField COMPANY_SEARCH = new CaseFoldedField(COMPANY_KEY);
   static final String SORT_ORDER_KEY = "sortorder";
 
   private static final int REASONABLE_AGE_LIMIT = 150;
   private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // The most email-to-avatar mappings we'll remember; once the cache is
+  // full the least recently used entry is dropped to make room.
+  static final int AVATAR_CACHE_SIZE = 1024;
+  private static final float AVATAR_CACHE_LOAD_FACTOR = 0.75f;
+  // How many users the avatar and company search backfills read and update at a time.
+  static final int BACKFILL_BATCH_SIZE = 500;
+  // The avatar backfill leaves a document with this id in the `migrations`
+  // collection once it has run, so it only runs once per database rather
+  // than every time the server starts. If `generateAvatar()` ever changes
+  // the avatars it produces, bump the version to run it again.
+  static final String MIGRATIONS_COLLECTION = "migrations";
+  static final String AVATAR_BACKFILL_MARKER = "avatar-backfill-v1";
+
+  // How long MongoDB gets to list or count users, or to group them by
+  // company, unless the client sets its own `Deadline`
+  static final long QUERY_DEADLINE_MILLIS = 10_000;
+  static final long GROUPING_DEADLINE_MILLIS = 20_000;
+
+  // If MongoDB stops answering (or takes longer than `BREAKER_SLOW_CALL` to),
+  // the `CircuitBreaker` opens and pings it every `BREAKER_OPEN_FOR` until
+  // it's back, answering with stale responses (or 503s) meanwhile. Heavy
+  // queries are allowed up to their `Deadline`, which a client can stretch
+  // to `Deadline.MAX_MILLIS`, so they only count as slow past that.
+  static final Duration BREAKER_SLOW_CALL = Duration.ofSeconds(5);
+  static final Duration BREAKER_SLOW_HEAVY_CALL = Duration.ofMillis(Deadline.MAX_MILLIS);
+  static final Duration BREAKER_OPEN_FOR = Duration.ofSeconds(5);
+
+  // Looking up a `MessageDigest` is surprisingly expensive, and a digest
+  // can't be shared between threads, so each thread keeps its own MD5
+  // digest around and reuses it (`digest()` resets it after each use).
+  private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<>();
+  // A table-driven hex encoder, which is much cheaper than formatting
+  // each byte with `String.format("%02x", ...)`.
+  private static final HexFormat HEX_FORMAT = HexFormat.of();
+
   private final JacksonMongoCollection<User> userCollection;
 
+  // The same collection, but decoded by our hand-written `UserCodec` rather
+  // than by Jackson's reflection-based mapping. This is what we use for the
+  // (frequent) reads that return `User`s, while writes and aggregations
+  // still go through MongoJack.
+  private final MongoCollection<User> userReadCollection;
+
+  // The raw user documents, used to build `userIndex`
+  private final MongoCollection<Document> userDocuments;
+
+  // Which one-time migrations (like the avatar backfill) have been run
+  private final MongoCollection<Document> migrations;
+
+  // A bitmap index over the low-cardinality user fields, used to count users
+  // without reading them. It's built the first time it's needed (see
+  // `userIndex()`) and then kept up to date as users are added and deleted.
+  private volatile BitmapIndex userIndex;
+
+  // When `useMemoryScans` is set, the planner may also answer queries by
+  // scanning an in-memory copy of the users (`cachedUsers`), sequentially or
+  // in parallel, rather than having the database answer them. The copy is
+  // reloaded after any add or delete, and at least every `USER_CACHE_MILLIS`.
+  static final long USER_CACHE_MILLIS = 5000;
+  private final boolean useMemoryScans;
+  private List<User> cachedUsers;
+  private Map<String, User> cachedUsersById;
+  private long cachedUsersTime;
+
+  // Fetches many users by id at once, for `getUsersById`
+  private final BatchLookup batchLookup;
+
+  // Type-ahead suggestions for the users' companies, loaded the first time
+  // they're needed and kept up to date as users are added and deleted.
+  private volatile Suggester companySuggester;
+
+  // Each of `cachedUsers`, `userIndex`, and `companySuggester` has its own
+  // lock, held while it's (re)loaded from the database, so reloading the
+  // users (say) doesn't hold up the suggestions. These are locks rather than
+  // `synchronized` so a virtual thread waiting on MongoDB in here doesn't
+  // pin the carrier thread it's running on.
+  private final ReentrantLock usersLock = new ReentrantLock();
+  private final ReentrantLock indexLock = new ReentrantLock();
+  private final ReentrantLock suggesterLock = new ReentrantLock();
+
+  // Each class of route gets its own `Bulkhead`, so a burst of heavy requests
+  // (listing, counting, or grouping users) can't starve the cheap ones
+  // (lookups by id, suggestions, and single-user writes) of connections.
+  private final Bulkhead lookups;
+  private final Bulkhead heavyQueries;
+  private final CircuitBreaker breaker;
+
+  // Decides whether each query is best answered by MongoDB,
+  // by `userIndex`, or by scanning `cachedUsers`.
+  private final QueryPlanner userPlanner;
+
+  // Keeps track of the shapes of the queries we send to MongoDB, and which
+  // of them need an index (see `IndexAdvisorController`)
+  private final IndexAdvisor indexAdvisor;
+
+  // How to sort users in memory, keyed by the `sortby` field
+  private static final Map<String, Comparator<User>> USER_ORDERINGS = Map.of(
+    "name", Comparator.comparing((User user) -> user.name, Comparator.nullsFirst(Comparator.naturalOrder())),
+    AGE_KEY, Comparator.comparingInt((User user) -> user.age),
+    COMPANY_KEY, Comparator.comparing((User user) -> user.company, Comparator.nullsFirst(Comparator.naturalOrder())),
+    "email", Comparator.comparing((User user) -> user.email, Comparator.nullsFirst(Comparator.naturalOrder())),
+    ROLE_KEY, Comparator.comparing((User user) -> user.role, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+  // Avatar URLs for emails we've already hashed, so we don't have to keep
+  // recomputing the same MD5 hashes over and over. They're keyed by the
+  // lowercased email, since that's what's hashed, so `Sam@Frogs.com` and
+  // `sam@frogs.com` share an entry.
+  private final Map<String, String> avatarCache = Collections.synchronizedMap(
+    new LinkedHashMap<String, String>(AVATAR_CACHE_SIZE, AVATAR_CACHE_LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > AVATAR_CACHE_SIZE;
+      }
+    });
+
   /**
    * Construct a controller for users.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
+    this(database, false);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param useMemoryScans whether queries may be answered by scanning an
+   *   in-memory copy of the users (possibly in parallel), rather than
+   *   by the database
+   */
+  public UserController(MongoDatabase database, boolean useMemoryScans) {
+    this(database, useMemoryScans, BatchLookup.DEFAULT_MAX_IDS);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param useMemoryScans whether queries may be answered by scanning an
+   *   in-memory copy of the users (possibly in parallel), rather than
+   *   by the database
+   * @param maxBatchIds the most users `getUsersById` can fetch at once
+   */
+  public UserController(MongoDatabase database, boolean useMemoryScans, int maxBatchIds) {
+    this(database, useMemoryScans, maxBatchIds, Bulkhead.Limits.LOOKUPS, Bulkhead.Limits.HEAVY_QUERIES);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param useMemoryScans whether queries may be answered by scanning an
+   *   in-memory copy of the users (possibly in parallel), rather than
+   *   by the database
+   * @param maxBatchIds the most users `getUsersById` can fetch at once
+   * @param lookupLimits the `Bulkhead` limits for the cheap routes
+   * @param heavyLimits the `Bulkhead` limits for the heavy routes
+   */
+  public UserController(MongoDatabase database, boolean useMemoryScans, int maxBatchIds,
+      Bulkhead.Limits lookupLimits, Bulkhead.Limits heavyLimits) {
+    this.useMemoryScans = useMemoryScans;
+    lookups = new Bulkhead("user lookup", lookupLimits);
+    heavyQueries = new Bulkhead("user query", heavyLimits);
+    batchLookup = new BatchLookup(maxBatchIds);
+    breaker = new CircuitBreaker("user", () -> database.runCommand(new Document("ping", 1)),
+      BREAKER_SLOW_CALL, BREAKER_OPEN_FOR);
     userCollection = JacksonMongoCollection.builder().build(
         database,
         "users",
         User.class,
         UuidRepresentation.STANDARD);
+    userDocuments = database.getCollection("users");
+    migrations = database.getCollection(MIGRATIONS_COLLECTION);
+    userPlanner = new QueryPlanner(userDocuments);
+    indexAdvisor = new IndexAdvisor(userDocuments);
+    userReadCollection = database
+      .getCollection("users", User.class)
+      .withCodecRegistry(CodecRegistries.fromRegistries(
+        CodecRegistries.fromCodecs(new UserCodec()),
+        database.getCodecRegistry()));
   }
 
   /**
@@ -72,18 +290,41 @@ public class UserController implements Controller {
     User user;
 
     try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
+      user = userReadCollection.find(eq("_id", new ObjectId(id)))
+        .maxTime(Deadline.of(ctx, QUERY_DEADLINE_MILLIS).remainingMillis(), TimeUnit.MILLISECONDS)
+        .first();
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
     }
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
     } else {
-      ctx.json(user);
+      ResponseFormats.respond(ctx, user);
       ctx.status(HttpStatus.OK);
     }
   }
 
+  /**
+   * Set the JSON body of the response to be the users with each of the ids
+   * in the `ids` query parameter, in the same order, each marked as found
+   * or not (see `BatchLookup`).
+   *
+   * Users in our in-memory copy of the users (if it's enabled and fresh)
+   * are taken from there; the rest are fetched with a single `$in` query.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersById(Context ctx) {
+    List<String> ids = batchLookup.parse(ctx);
+    Map<String, User> cached = freshUsersById();
+    List<BatchLookup.Entry<User>> users = BatchLookup.lookup(ids,
+      id -> cached == null ? null : cached.get(id),
+      userReadCollection, user -> user._id, Deadline.of(ctx, QUERY_DEADLINE_MILLIS));
+
+    ResponseFormats.respond(ctx, users);
+    ctx.status(HttpStatus.OK);
+  }
+
   /**
    * Set the JSON body of the response to be a list of all the users returned from the database
    * that match any requested filters and ordering
@@ -91,66 +332,117 @@ public class UserController implements Controller {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    Bson combinedFilter = constructFilter(ctx);
-    Bson sortingOrder = constructSortingOrder(ctx);
-
-    // All three of the find, sort, and into steps happen "in parallel" inside the
-    // database system. So MongoDB is going to find the users with the specified
-    // properties, return those sorted in the specified manner, and put the
-    // results into an initially empty ArrayList.
-    ArrayList<User> matchingUsers = userCollection
-      .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+    UserQuery query = constructQuery(ctx);
+    Comparator<User> sortingComparator = constructSortingComparator(ctx);
+    List<String> fields = USER_FIELDS.parse(ctx);
+
+    // Ask the planner which is the cheapest way to answer this query. We can
+    // only scan our in-memory copy of the users if it's enabled, if we know
+    // how to sort by the requested field, and if the client wants whole users.
+    Set<Engine> engines = EnumSet.of(Engine.DATABASE);
+    if (useMemoryScans && sortingComparator != null && fields == null) {
+      engines.add(Engine.MEMORY_SCAN);
+      engines.add(Engine.PARALLEL_SCAN);
+    }
+    Plan plan = userPlanner.plan(Shape.find(query.company() != null, query.companyUsesIndex(), 0, true),
+      usersCacheFresh(), engines);
+    QueryPlanner.explain(ctx, plan);
+
+    if (plan.engine() == Engine.DATABASE) {
+      indexAdvisor.record(query.toFilter(), constructSortingOrder(ctx));
+    }
 
-    // Set the JSON body of the response to be the list of users returned by the database.
-    // According to the Javalin documentation (https://javalin.io/documentation#context),
-    // this calls result(jsonString), and also sets content type to json
-    ctx.json(matchingUsers);
+    Deadline deadline = Deadline.of(ctx, QUERY_DEADLINE_MILLIS);
+    List<?> matchingUsers;
+    if (plan.engine() == Engine.MEMORY_SCAN || plan.engine() == Engine.PARALLEL_SCAN) {
+      // Scan our in-memory copy of the users (on all of our cores, for
+      // a parallel scan), and then sort what we found.
+      List<User> scannedUsers = scanUsers(query.toPredicate(), plan.engine() == Engine.PARALLEL_SCAN);
+      scannedUsers.sort(sortingComparator);
+      matchingUsers = scannedUsers;
+    } else if (fields != null) {
+      // The client only wants some of the fields, so have MongoDB project
+      // out just those. (An `_id` and `name` list sorted by name can be
+      // answered from the `{name: 1, _id: 1}` index alone.)
+      matchingUsers = SparseFields.toResponse(userDocuments
+        .find(query.toFilter())
+        .projection(SparseFields.projection(fields))
+        .sort(constructSortingOrder(ctx))
+        .maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+        .into(new ArrayList<>()));
+    } else {
+      // All three of the find, sort, and into steps happen "in parallel" inside the
+      // database system. So MongoDB is going to find the users with the specified
+      // properties, return those sorted in the specified manner, and put the
+      // results into an initially empty ArrayList. If that takes longer than
+      // the client is willing to wait, MongoDB gives up on it.
+      matchingUsers = userReadCollection
+        .find(query.toFilter())
+        .sort(constructSortingOrder(ctx))
+        .maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+        .into(new ArrayList<>());
+    }
+
+    // Users aren't paginated, so if the client asked for the total number of
+    // matching users, it's just the number we found.
+    if (TotalCounter.wanted(ctx)) {
+      ctx.header(TotalCounter.TOTAL_HEADER, Integer.toString(matchingUsers.size()));
+    }
+
+    // Set the body of the response to be the list of users returned by the database.
+    // This is JSON unless the client asked for a binary format (see `ResponseFormats`),
+    // which sets the content type to match and writes the list straight into the
+    // response's output stream.
+    ResponseFormats.respond(ctx, matchingUsers);
 
     // Explicitly set the context status to OK
     ctx.status(HttpStatus.OK);
   }
 
   /**
-   * Construct a Bson filter document to use in the `find` method based on the
-   * query parameters from the context.
+   * Parse and validate the filters for a user query from the query
+   * parameters in the context.
    *
    * This checks for the presence of the `age`, `company`, and `role` query
-   * parameters and constructs a filter document that will match users with
-   * the specified values for those fields.
+   * parameters and constructs a query that will match users with
+   * the specified values for those fields. The optional `companyMatch`
+   * parameter (`exact`, `prefix`, or `contains`) makes the company search
+   * use the indexed `COMPANY_SEARCH` shadow fields rather than a regex
+   * that has to scan every user. `UserQuery#toFilter()` turns
+   * that into a Bson filter document that can be used in the `find` method.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
-   *    used to construct the filter
-   * @return a Bson filter document that can be used in the `find` method
-   *   to filter the database collection of users
+   *    used to construct the query
+   * @return the parsed query
    */
-  private Bson constructFilter(Context ctx) {
-    List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
+  private UserQuery constructQuery(Context ctx) {
+    Integer targetAge = null;
+    String company = null;
+    Match companyMatch = null;
+    String role = null;
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
-      int targetAge = ctx.queryParamAsClass(AGE_KEY, Integer.class)
+      targetAge = ctx.queryParamAsClass(AGE_KEY, Integer.class)
         .check(it -> it > 0, "User's age must be greater than zero; you provided " + ctx.queryParam(AGE_KEY))
         .check(it -> it < REASONABLE_AGE_LIMIT,
           "User's age must be less than " + REASONABLE_AGE_LIMIT + "; you provided " + ctx.queryParam(AGE_KEY))
         .get();
-      filters.add(eq(AGE_KEY, targetAge));
     }
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
-      filters.add(regex(COMPANY_KEY, pattern));
+      company = ctx.queryParam(COMPANY_KEY);
+    }
+    if (ctx.queryParamMap().containsKey(COMPANY_MATCH_KEY)) {
+      companyMatch = Match.parse(ctx.queryParamAsClass(COMPANY_MATCH_KEY, String.class)
+        .check(it -> it.matches(CaseFoldedField.MATCH_REGEX), "Company match must be exact, prefix, or contains")
+        .get());
     }
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
-      String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
+      role = ctx.queryParamAsClass(ROLE_KEY, String.class)
         .check(it -> it.matches(ROLE_REGEX), "User must have a legal user role")
         .get();
-      filters.add(eq(ROLE_KEY, role));
     }
 
-    // Combine the list of filters into a single filtering document.
-    Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
-
-    return combinedFilter;
+    return new UserQuery(targetAge, company, companyMatch, role);
   }
 
   /**
@@ -178,6 +470,259 @@ public class UserController implements Controller {
     return sortingOrder;
   }
 
+  /**
+   * Construct a `Comparator` that sorts users in the same order as the Bson
+   * sorting document from `constructSortingOrder()`, for sorting users
+   * we've filtered in memory rather than in the database.
+   *
+   * As in MongoDB, users without a value for the sort field come first
+   * (in ascending order).
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   *   used to construct the sorting order
+   * @return a comparator for the requested order, or `null` if the `sortby`
+   *   field isn't one we know how to sort by in memory
+   */
+  private Comparator<User> constructSortingComparator(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    Comparator<User> comparator = USER_ORDERINGS.get(sortBy);
+    if (comparator == null) {
+      return null;
+    }
+    return sortOrder.equals("desc") ? comparator.reversed() : comparator;
+  }
+
+  /**
+   * The users from our in-memory copy of the user collection, reloading
+   * them first if they're more than `USER_CACHE_MILLIS` old, or if
+   * they've been invalidated by an add or a delete.
+   *
+   * @return an (at most slightly stale) list of all the users
+   */
+  List<User> currentUsers() {
+    usersLock.lock();
+    try {
+      if (!cacheFresh()) {
+        cachedUsers = List.copyOf(userReadCollection.find().into(new ArrayList<>()));
+        cachedUsersById = null;
+        cachedUsersTime = System.currentTimeMillis();
+      }
+      return cachedUsers;
+    } finally {
+      usersLock.unlock();
+    }
+  }
+
+  /**
+   * Our in-memory copy of the users, by id, if it's enabled and fresh
+   * enough to use. Unlike `currentUsers()`, this never reloads the copy;
+   * fetching a few users by id shouldn't cost reading all of them, or
+   * waiting for another request that's reloading them.
+   *
+   * @return the users by id, or `null` if there isn't a fresh copy
+   */
+  private Map<String, User> freshUsersById() {
+    if (!useMemoryScans || !usersLock.tryLock()) {
+      return null;
+    }
+    try {
+      if (!cacheFresh()) {
+        return null;
+      }
+      if (cachedUsersById == null) {
+        Map<String, User> byId = new HashMap<>();
+        for (User user : cachedUsers) {
+          byId.put(user._id, user);
+        }
+        cachedUsersById = byId;
+      }
+      return cachedUsersById;
+    } finally {
+      usersLock.unlock();
+    }
+  }
+
+  /**
+   * Whether our in-memory copy of the users is loaded and fresh enough
+   * to use without reloading it. The caller must hold `usersLock`.
+   */
+  private boolean cacheFresh() {
+    return cachedUsers != null && System.currentTimeMillis() - cachedUsersTime < USER_CACHE_MILLIS;
+  }
+
+  /**
+   * Whether scanning our in-memory copy of the users can go ahead
+   * without reading all of them first.
+   */
+  private boolean usersCacheFresh() {
+    usersLock.lock();
+    try {
+      return cacheFresh();
+    } finally {
+      usersLock.unlock();
+    }
+  }
+
+  private void invalidateCachedUsers() {
+    usersLock.lock();
+    try {
+      cachedUsers = null;
+      cachedUsersById = null;
+    } finally {
+      usersLock.unlock();
+    }
+  }
+
+  /**
+   * Set the JSON body of the response to be the number of users
+   * that match the requested filters, e.g., `{"count": 3}`.
+   *
+   * This accepts the same `age`, `company`, and `role` filters as `getUsers`.
+   * Counts by `company` and/or `role` can be answered by intersecting the
+   * bitmaps in `userIndex`, without touching any documents; counts that
+   * involve `age` are answered by the database or, if it's enabled, by
+   * scanning our in-memory copy of the users. The `QueryPlanner` picks
+   * whichever of these is cheapest.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   *   used to filter the users
+   */
+  public void countUsers(Context ctx) {
+    UserQuery query = constructQuery(ctx);
+
+    Set<Engine> engines = EnumSet.of(Engine.DATABASE);
+    if (query.age() == null) {
+      engines.add(Engine.BITMAP_INDEX);
+    }
+    if (useMemoryScans) {
+      engines.add(Engine.MEMORY_SCAN);
+      engines.add(Engine.PARALLEL_SCAN);
+    }
+    Plan plan = userPlanner.plan(Shape.count(query.company() != null, query.companyUsesIndex()),
+      usersCacheFresh(), engines);
+    QueryPlanner.explain(ctx, plan);
+
+    if (plan.engine() == Engine.DATABASE) {
+      indexAdvisor.record(query.toFilter(), null);
+    }
+    long count = switch (plan.engine()) {
+      case BITMAP_INDEX -> countWithIndex(query);
+      case MEMORY_SCAN -> scanUsers(query.toPredicate(), false).size();
+      case PARALLEL_SCAN -> scanUsers(query.toPredicate(), true).size();
+      default -> userCollection.countDocuments(query.toFilter(), new CountOptions()
+        .maxTime(Deadline.of(ctx, QUERY_DEADLINE_MILLIS).remainingMillis(), TimeUnit.MILLISECONDS));
+    };
+
+    ctx.json(Map.of("count", count));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Count the users matching a query (with no `age` filter)
+   * using the bitmaps in `userIndex()`.
+   */
+  private long countWithIndex(UserQuery query) {
+    Map<String, Predicate<String>> conditions = new HashMap<>();
+    if (query.company() != null) {
+      conditions.put(COMPANY_KEY, query.companyMatcher());
+    }
+    if (query.role() != null) {
+      conditions.put(ROLE_KEY, query.role()::equals);
+    }
+    return userIndex().count(conditions);
+  }
+
+  /**
+   * The users in our in-memory copy of the users that pass a test.
+   *
+   * @param predicate the test a user must pass
+   * @param parallel whether to scan the users in parallel
+   * @return a (mutable) list of the users that passed the test
+   */
+  private List<User> scanUsers(Predicate<User> predicate, boolean parallel) {
+    if (parallel) {
+      return ParallelScan.filter(currentUsers(), predicate);
+    }
+    List<User> matching = new ArrayList<>();
+    for (User user : currentUsers()) {
+      if (predicate.test(user)) {
+        matching.add(user);
+      }
+    }
+    return matching;
+  }
+
+  /**
+   * The bitmap index of the users' `company` and `role` fields,
+   * loading it from the database if this is the first time it's needed.
+   *
+   * @return the bitmap index of the users
+   */
+  BitmapIndex userIndex() {
+    BitmapIndex current = userIndex;
+    if (current != null) {
+      return current;
+    }
+    indexLock.lock();
+    try {
+      if (userIndex == null) {
+        userIndex = BitmapIndex.load(userDocuments, List.of(COMPANY_KEY, ROLE_KEY));
+      }
+      return userIndex;
+    } finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * The type-ahead suggester for the users' companies,
+   * loading it from the database if this is the first time it's needed.
+   *
+   * @return the suggester for the users' companies
+   */
+  Suggester companySuggester() {
+    Suggester current = companySuggester;
+    if (current != null) {
+      return current;
+    }
+    suggesterLock.lock();
+    try {
+      if (companySuggester == null) {
+        companySuggester = Suggester.load(userDocuments, COMPANY_KEY);
+      }
+      return companySuggester;
+    } finally {
+      suggesterLock.unlock();
+    }
+  }
+
+  /**
+   * Set the JSON body of the response to be the companies that start with
+   * the `prefix` query parameter (ignoring case), most common first, e.g.,
+   * `[{"value": "OHMNET", "count": 2}]`.
+   *
+   * This is meant for type-ahead completion in a company filter box, so it
+   * only returns company names (and how many users work for each), at most
+   * `limit` (default `DEFAULT_SUGGESTIONS`) of them.
+   *
+   * @param ctx a Javalin HTTP context, which contains the `prefix`
+   *   and `limit` query parameters
+   */
+  public void suggestCompanies(Context ctx) {
+    String prefix = Objects.requireNonNullElse(ctx.queryParam(PREFIX_KEY), "");
+    int limit = DEFAULT_SUGGESTIONS;
+    if (ctx.queryParamMap().containsKey(LIMIT_KEY)) {
+      limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+        .check(it -> it > 0, "The suggestion limit must be greater than zero")
+        .check(it -> it <= MAX_SUGGESTIONS, "The suggestion limit must be at most " + MAX_SUGGESTIONS)
+        .get();
+    }
+
+    ResponseFormats.respond(ctx, companySuggester().suggest(prefix, limit));
+    ctx.status(HttpStatus.OK);
+  }
+
   /**
    * Set the JSON body of the response to be a list of all the user names and IDs
    * returned from the database, grouped by company
@@ -201,6 +746,7 @@ public class UserController implements Controller {
     }
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
     Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    Deadline deadline = Deadline.of(ctx, GROUPING_DEADLINE_MILLIS);
 
     // The `UserByCompany` class is a simple class that has fields for the company
     // name, the number of users in that company, and a list of user names and IDs
@@ -234,9 +780,11 @@ public class UserController implements Controller {
         // to convert the results to, and the JacksonMongoCollection will do this for us.
         UserByCompany.class
       )
+      // Have MongoDB abandon the aggregation if the client stops waiting for it
+      .maxTime(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
       .into(new ArrayList<>());
 
-    ctx.json(matchingUsers);
+    ResponseFormats.respond(ctx, matchingUsers);
     ctx.status(HttpStatus.OK);
   }
 
@@ -281,8 +829,20 @@ public class UserController implements Controller {
     // Generate a user avatar (you won't need this part for todos)
     newUser.avatar = generateAvatar(newUser.email);
 
-    // Add the new user to the database
-    userCollection.insertOne(newUser);
+    // Make sure the suggester is loaded *before* the insert; if it were
+    // loaded afterwards, it would count the new user twice.
+    Suggester suggester = companySuggester();
+
+    // Add the new user to the database, along with its company shadow fields,
+    // in a single write, so it can be found by company as soon as it's there
+    newUser._id = new ObjectId().toHexString();
+    BsonDocument document = new BsonDocument();
+    new UserCodec().encode(new BsonDocumentWriter(document), newUser, EncoderContext.builder().build());
+    document.putAll(COMPANY_SEARCH.shadowValues(newUser.company));
+    userDocuments.withDocumentClass(BsonDocument.class).insertOne(document);
+    userIndex().put(newUser._id, Map.of(COMPANY_KEY, newUser.company, ROLE_KEY, newUser.role));
+    suggester.add(newUser.company);
+    invalidateCachedUsers();
 
     // Set the JSON response to be the `_id` of the newly created user.
     // This gives the client the opportunity to know the ID of the new user,
@@ -303,15 +863,20 @@ public class UserController implements Controller {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", new ObjectId(id)));
-    // We should have deleted 1 or 0 users, depending on whether `id` is a valid user ID.
-    if (deleteResult.getDeletedCount() != 1) {
+    // We get the deleted user back, so we know which company to take out of
+    // the suggestions. This is `null` if `id` isn't the ID of any user.
+    Suggester suggester = companySuggester();
+    User deletedUser = userCollection.findOneAndDelete(eq("_id", new ObjectId(id)));
+    if (deletedUser == null) {
       ctx.status(HttpStatus.NOT_FOUND);
       throw new NotFoundResponse(
         "Was unable to delete ID "
           + id
           + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    userIndex().remove(id);
+    suggester.remove(deletedUser.company);
+    invalidateCachedUsers();
     ctx.status(HttpStatus.OK);
   }
 
@@ -329,10 +894,15 @@ public class UserController implements Controller {
    * @return a URI pointing to an avatar image
    */
   String generateAvatar(String email) {
-    String avatar;
+    String key = email.toLowerCase(Locale.ROOT);
+    String avatar = avatarCache.get(key);
+    if (avatar != null) {
+      return avatar;
+    }
     try {
       // generate unique md5 code for identicon
       avatar = "https://gravatar.com/avatar/" + md5(email) + "?d=identicon";
+      avatarCache.put(key, avatar);
     } catch (NoSuchAlgorithmException ignored) {
       // set to mystery person
       avatar = "https://gravatar.com/avatar/?d=mp";
@@ -346,14 +916,100 @@ public class UserController implements Controller {
    * @param str the string to generate a md5 for
    */
   public String md5(String str) throws NoSuchAlgorithmException {
-    MessageDigest md = MessageDigest.getInstance("MD5");
-    byte[] hashInBytes = md.digest(str.toLowerCase().getBytes(StandardCharsets.UTF_8));
+    MessageDigest md = MD5_DIGEST.get();
+    if (md == null) {
+      md = MessageDigest.getInstance("MD5");
+      MD5_DIGEST.set(md);
+    }
+    byte[] hashInBytes = md.digest(str.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+
+    return HEX_FORMAT.formatHex(hashInBytes);
+  }
+
+  /**
+   * Recompute the `avatar` of every user already in the database, updating
+   * any that don't match what `generateAvatar()` would produce for their email.
+   *
+   * The users are read and written `batchSize` at a time, so this never
+   * holds the whole collection in memory, and only users whose avatar
+   * actually changed are written back.
+   *
+   * @param batchSize the number of users to read and update at a time
+   * @return the number of users whose avatar was updated
+   */
+  long backfillAvatars(int batchSize) {
+    long updated = 0;
+    List<WriteModel<User>> updates = new ArrayList<>(batchSize);
 
-    StringBuilder result = new StringBuilder();
-    for (byte b : hashInBytes) {
-      result.append(String.format("%02x", b));
+    for (User user : userCollection
+        .find()
+        .projection(Projections.include("email", "avatar"))
+        .batchSize(batchSize)) {
+      if (user.email == null) {
+        continue;
+      }
+      String avatar = generateAvatar(user.email);
+      if (!avatar.equals(user.avatar)) {
+        updates.add(new UpdateOneModel<>(eq("_id", new ObjectId(user._id)), Updates.set("avatar", avatar)));
+      }
+      if (updates.size() >= batchSize) {
+        updated += userCollection.bulkWrite(updates).getModifiedCount();
+        updates.clear();
+      }
     }
-    return result.toString();
+    if (!updates.isEmpty()) {
+      updated += userCollection.bulkWrite(updates).getModifiedCount();
+    }
+    return updated;
+  }
+
+  /**
+   * Run `backfillAvatars()`, unless it has already been run on this
+   * database, and then record that it has been (see `AVATAR_BACKFILL_MARKER`).
+   *
+   * New users get their avatar from `addNewUser()`, so once the existing
+   * users have been brought up to date, there's no need to read the whole
+   * collection again every time the server starts.
+   *
+   * @param batchSize the number of users to read and update at a time
+   * @return the number of users whose avatar was updated (0 if the
+   *   backfill had already been run)
+   */
+  long backfillAvatarsOnce(int batchSize) {
+    if (migrations.find(eq("_id", AVATAR_BACKFILL_MARKER)).first() != null) {
+      return 0;
+    }
+    long updated = backfillAvatars(batchSize);
+    // An upsert rather than an insert, so two servers starting at once
+    // don't trip over each other's markers
+    migrations.replaceOne(eq("_id", AVATAR_BACKFILL_MARKER),
+      new Document("_id", AVATAR_BACKFILL_MARKER).append("completedAt", new Date()).append("updated", updated),
+      new ReplaceOptions().upsert(true));
+    return updated;
+  }
+
+  /**
+   * Start a background thread that runs `backfillAvatarsOnce()` over the
+   * whole user collection, so request handling isn't held up by it.
+   */
+  void startAvatarBackfill() {
+    Thread backfill = new Thread(() -> backfillAvatarsOnce(BACKFILL_BATCH_SIZE), "avatar-backfill");
+    backfill.setDaemon(true);
+    backfill.start();
+  }
+
+  /**
+   * Start a background thread that builds the indexes for `COMPANY_SEARCH`
+   * and fills in the company shadow fields of any users that are missing them,
+   * and builds the index that covers `_id`-and-`name` lists (see `SparseFields`).
+   */
+  void startCompanySearchBackfill() {
+    Thread backfill = new Thread(() -> {
+      SparseFields.createListIndex(userDocuments);
+      COMPANY_SEARCH.prepare(userDocuments, BACKFILL_BATCH_SIZE);
+    }, "company-search-backfill");
+    backfill.setDaemon(true);
+    backfill.start();
   }
 
   /**
@@ -364,11 +1020,18 @@ public class UserController implements Controller {
    * These endpoints are:
    *   - `GET /api/users/:id`
    *       - Get the specified user
-   *   - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
+   *   - `GET /api/users?age=NUMBER&company=STRING&companyMatch=MODE&name=STRING&fields=LIST`
    *      - List users, filtered using query parameters
-   *      - `age`, `company`, and `name` are optional query parameters
+   *      - `age`, `company`, `companyMatch`, and `name` are optional query parameters
+   *      - `fields` optionally limits which fields of each user are returned
+   *   - `GET /api/usersBatch?ids=LIST`
+   *     - Get the users with each of the (comma-separated) ids, in order
    *   - `GET /api/usersByCompany`
    *     - Get user names and IDs, possibly filtered, grouped by company
+   *   - `GET /api/usersCount?age=NUMBER&company=STRING&role=STRING`
+   *     - Count users, filtered using query parameters
+   *   - `GET /api/usersSuggest?prefix=STRING&limit=NUMBER`
+   *     - Suggest the most common companies starting with `prefix`
    *   - `DELETE /api/users/:id`
    *      - Delete the specified user
    *   - `POST /api/users`
@@ -386,20 +1049,53 @@ public class UserController implements Controller {
    */
   @Override
   public void addRoutes(Javalin server) {
+    // Cheap requests go through the `lookups` bulkhead, and ones that may
+    // have to read many users go through `heavyQueries`. Inside those, all
+    // of them are behind the `breaker`, so they fail fast while the database
+    // is down (and the breaker doesn't count the time spent waiting for a
+    // turn in the bulkhead).
+
     // Get the specified user
-    server.get(API_USER_BY_ID, this::getUser);
+    server.get(API_USER_BY_ID, lookups.wrap(breaker.wrap(this::getUser)));
 
     // List users, filtered using query parameters
-    server.get(API_USERS, this::getUsers);
+    server.get(API_USERS, heavyQueries.wrap(breaker.wrap(this::getUsers, BREAKER_SLOW_HEAVY_CALL)));
+
+    // Get many users by id at once
+    server.get("/api/usersBatch", lookups.wrap(breaker.wrap(this::getUsersById)));
 
     // Get the users, possibly filtered, grouped by company
-    server.get("/api/usersByCompany", this::getUsersGroupedByCompany);
+    server.get("/api/usersByCompany",
+      heavyQueries.wrap(breaker.wrap(this::getUsersGroupedByCompany, BREAKER_SLOW_HEAVY_CALL)));
+
+    // Count users, filtered using query parameters
+    server.get("/api/usersCount", heavyQueries.wrap(breaker.wrap(this::countUsers, BREAKER_SLOW_HEAVY_CALL)));
+
+    // Suggest companies for type-ahead completion
+    server.get("/api/usersSuggest", lookups.wrap(breaker.wrap(this::suggestCompanies)));
 
     // Add new user with the user info being in the JSON body
     // of the HTTP request
-    server.post(API_USERS, this::addNewUser);
+    server.post(API_USERS, lookups.wrap(breaker.wrap(this::addNewUser)));
 
     // Delete the specified user
-    server.delete(API_USER_BY_ID, this::deleteUser);
+    server.delete(API_USER_BY_ID, lookups.wrap(breaker.wrap(this::deleteUser)));
+
+    // Once the server is up, bring the avatars (if that hasn't been done
+    // already) and company search fields of existing users up to date in
+    // the background
+    server.events(event -> {
+      event.serverStarted(this::startAvatarBackfill);
+      event.serverStarted(this::startCompanySearchBackfill);
+    });
+  }
+
+  /**
+   * The index advisor for the users collection.
+   *
+   * @return the index advisor for the queries this controller sends to MongoDB
+   */
+  public IndexAdvisor getIndexAdvisor() {
+    return indexAdvisor;
   }
 }
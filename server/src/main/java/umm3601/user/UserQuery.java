@@ -0,0 +1,106 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import umm3601.CaseFoldedField;
+import umm3601.CaseFoldedField.Match;
+
+/**
+ * The filters of a `GET /api/users` request, after they've been parsed
+ * and validated by `UserController`.
+ *
+ * Like `TodoQuery`, this lets the same query be answered either by
+ * MongoDB (using `toFilter()`) or against users held in memory (using
+ * `toPredicate()`). Each filter is `null` if it wasn't requested.
+ *
+ * @param age only match users with this age
+ * @param company only match users whose company contains this (ignoring case)
+ * @param companyMatch how `company` has to match, using the indexed
+ *   `UserController.COMPANY_SEARCH` shadow fields; if this is `null`,
+ *   `company` is matched with a (full scan) case-insensitive regex
+ * @param role only match users with this role
+ */
+record UserQuery(Integer age, String company, Match companyMatch, String role) {
+
+  /**
+   * Construct a Bson filter document to use in the `find` method
+   * that matches the same users as this query.
+   *
+   * @return a Bson filter document for this query
+   */
+  Bson toFilter() {
+    List<Bson> filters = new ArrayList<>();
+
+    if (age != null) {
+      filters.add(eq(UserController.AGE_KEY, age));
+    }
+    if (company != null && companyMatch != null) {
+      // Users seeded or imported outside this server (or written before
+      // `prepare()` has finished) may not have their shadow fields yet
+      filters.add(UserController.COMPANY_SEARCH.filterIncludingUnprepared(company, companyMatch));
+    } else if (company != null) {
+      filters.add(regex(UserController.COMPANY_KEY, companyPattern()));
+    }
+    if (role != null) {
+      filters.add(eq(UserController.ROLE_KEY, role));
+    }
+
+    // Combine the list of filters into a single filtering document.
+    return filters.isEmpty() ? new Document() : and(filters);
+  }
+
+  /**
+   * A test that matches the same users as `toFilter()` does. The company
+   * test is built once, up front, so the test itself is cheap to
+   * run over lots of users (possibly from several threads at once).
+   *
+   * @return a test for whether a user matches this query
+   */
+  Predicate<User> toPredicate() {
+    Predicate<String> companyTest = company == null ? null : companyMatcher();
+    return user -> (age == null || user.age == age)
+      && (companyTest == null || user.company != null && companyTest.test(user.company))
+      && (role == null || role.equals(user.role));
+  }
+
+  /**
+   * A test for whether a company matches the `company` filter.
+   *
+   * @return the test for the `company` filter
+   */
+  Predicate<String> companyMatcher() {
+    if (companyMatch != null) {
+      return CaseFoldedField.matcher(company, companyMatch);
+    }
+    Pattern pattern = companyPattern();
+    return value -> pattern.matcher(value).find();
+  }
+
+  /**
+   * Whether MongoDB can answer the `company` filter from an index.
+   *
+   * @return whether the company search is an index lookup
+   */
+  boolean companyUsesIndex() {
+    return company != null && companyMatch != null && CaseFoldedField.usesIndex(company, companyMatch);
+  }
+
+  /**
+   * A case-insensitive pattern that matches any company containing `company`.
+   *
+   * @return the pattern for the `company` filter
+   */
+  private Pattern companyPattern() {
+    return Pattern.compile(Pattern.quote(company), Pattern.CASE_INSENSITIVE);
+  }
+}
@@ -0,0 +1,160 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mongodb.event.CommandSucceededEvent;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+/**
+ * Tests that an `AccessLog` writes what it's given as JSON lines, rotates
+ * its file (and survives a rotation that fails), drops entries rather
+ * than block when it's full, and picks up the time each request spent
+ * on MongoDB.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class AccessLogSpec {
+
+  @TempDir
+  private Path directory;
+
+  private List<String> lines(String name) throws IOException {
+    return Files.readAllLines(directory.resolve(name));
+  }
+
+  @Test
+  void writesEachRequestAsAJsonLine() throws IOException {
+    AccessLog log = new AccessLog(directory);
+    assertTrue(log.log(1000L, HandlerType.GET, "/api/users/{id}", 200, 850, 312, 420));
+    assertTrue(log.log(2000L, HandlerType.POST, "/api/users", 400, 90, 40, 0));
+    log.close();
+
+    assertEquals(List.of(
+      "{\"t\":1000,\"m\":\"GET\",\"r\":\"/api/users/{id}\",\"s\":200,\"us\":850,\"b\":312,\"db\":420}",
+      "{\"t\":2000,\"m\":\"POST\",\"r\":\"/api/users\",\"s\":400,\"us\":90,\"b\":40,\"db\":0}"),
+      lines(AccessLog.FILE_NAME));
+  }
+
+  @Test
+  void escapesPaths() throws IOException {
+    AccessLog log = new AccessLog(directory);
+    log.log(1000L, HandlerType.GET, "/api/\"odd\"\\path\n", 404, 1, 0, 0);
+    log.close();
+
+    assertTrue(lines(AccessLog.FILE_NAME).get(0).contains("\"r\":\"/api/\\\"odd\\\"\\\\path\""));
+  }
+
+  @Test
+  void appendsToAnExistingLog() throws IOException {
+    AccessLog first = new AccessLog(directory);
+    first.log(1000L, HandlerType.GET, "/api/users", 200, 1, 1, 1);
+    first.close();
+    AccessLog second = new AccessLog(directory);
+    second.log(2000L, HandlerType.GET, "/api/todos", 200, 1, 1, 1);
+    second.close();
+
+    assertEquals(2, lines(AccessLog.FILE_NAME).size());
+  }
+
+  @Test
+  void rotatesTheFileWhenItGetsTooBig() throws IOException {
+    AccessLog log = new AccessLog(directory, 100);
+    log.log(1000L, HandlerType.GET, "/api/users", 200, 1, 1, 1);
+    log.flush();
+    log.log(2000L, HandlerType.GET, "/api/todos", 200, 1, 1, 1);
+    log.close();
+
+    assertTrue(lines(AccessLog.FILE_NAME + ".1").get(0).contains("/api/users"));
+    assertTrue(lines(AccessLog.FILE_NAME).get(0).contains("/api/todos"));
+  }
+
+  @Test
+  void keepsLoggingAfterARotationFails() throws IOException {
+    AccessLog log = new AccessLog(directory, 100);
+    log.log(1000L, HandlerType.GET, "/api/users", 200, 1, 1, 1);
+    log.flush();
+    // A (non-empty) directory where the oldest log file goes can't be deleted
+    Path oldest = directory.resolve(AccessLog.FILE_NAME + "." + (AccessLog.MAX_FILES - 1));
+    Files.createDirectories(oldest);
+    Files.createFile(oldest.resolve("blocker"));
+    log.log(2000L, HandlerType.GET, "/api/todos", 200, 1, 1, 1);
+    try {
+      log.flush();
+    } catch (IOException e) {
+      // The rotation failed, as it should have (unless the background
+      // thread got to this batch first, and failed instead)
+    }
+
+    Files.delete(oldest.resolve("blocker"));
+    Files.delete(oldest);
+    log.log(3000L, HandlerType.GET, "/api/users/{id}", 200, 1, 1, 1);
+    log.close();
+
+    // Only the batch whose rotation failed is lost
+    assertTrue(lines(AccessLog.FILE_NAME + ".1").get(0).contains("/api/users\""));
+    assertEquals(1, lines(AccessLog.FILE_NAME).size());
+    assertTrue(lines(AccessLog.FILE_NAME).get(0).contains("/api/users/{id}"));
+  }
+
+  @Test
+  void keepsOnlyTheNewestFiles() throws IOException {
+    AccessLog log = new AccessLog(directory, 10);
+    for (int i = 0; i < AccessLog.MAX_FILES + 5; i++) {
+      log.log(i, HandlerType.GET, "/api/users", 200, 1, 1, 1);
+      log.flush();
+    }
+    log.close();
+
+    assertTrue(Files.exists(directory.resolve(AccessLog.FILE_NAME + "." + (AccessLog.MAX_FILES - 1))));
+    assertFalse(Files.exists(directory.resolve(AccessLog.FILE_NAME + "." + AccessLog.MAX_FILES)));
+  }
+
+  @Test
+  void dropsEntriesWhenItsFull() throws IOException {
+    AccessLog log = new AccessLog(directory);
+    // Once it's closed nothing is drained, so the buffer fills up
+    log.close();
+    for (int i = 0; i < AccessLog.CAPACITY; i++) {
+      assertTrue(log.log(i, HandlerType.GET, "/api/users", 200, 1, 1, 1));
+    }
+    assertFalse(log.log(0, HandlerType.GET, "/api/users", 200, 1, 1, 1));
+    assertEquals(1, log.dropped());
+  }
+
+  @Test
+  void logsRequestsWithTheirDatabaseTime() throws IOException {
+    CommandSucceededEvent event = mock(CommandSucceededEvent.class);
+    when(event.getElapsedTime(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MICROSECONDS.toNanos(300));
+    AccessLog.takeDatabaseNanos();
+    AccessLog.DATABASE_TIMER.commandSucceeded(event);
+    AccessLog.DATABASE_TIMER.commandSucceeded(event);
+
+    Context ctx = mock(Context.class);
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.endpointHandlerPath()).thenReturn("/api/todos");
+    when(ctx.statusCode()).thenReturn(200);
+
+    AccessLog log = new AccessLog(directory);
+    log.log(ctx, 1.5f);
+    log.close();
+
+    String line = lines(AccessLog.FILE_NAME).get(0);
+    assertTrue(line.contains("\"r\":\"/api/todos\",\"s\":200,\"us\":1500,\"b\":-1,\"db\":600}"), line);
+    // The total starts again for the next request
+    assertEquals(0, AccessLog.takeDatabaseNanos());
+  }
+}
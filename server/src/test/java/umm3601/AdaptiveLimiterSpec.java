@@ -0,0 +1,137 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests that an `AdaptiveLimiter` grows its limit while latency holds
+ * steady, shrinks it when latency climbs, and sheds heavy requests first.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class AdaptiveLimiterSpec {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * Let in as many (cheap) requests as the limiter will take.
+   */
+  private int fill(AdaptiveLimiter limiter) {
+    int acquired = 0;
+    while (limiter.tryAcquire(true)) {
+      acquired++;
+    }
+    return acquired;
+  }
+
+  /**
+   * Keep the limiter full, finishing each request in `rttNanos`.
+   */
+  private void runFull(AdaptiveLimiter limiter, long rttNanos, int requests) {
+    for (int i = 0; i < requests; i++) {
+      fill(limiter);
+      limiter.release(rttNanos, true);
+    }
+  }
+
+  @Test
+  void letsInUpToTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    for (int i = 0; i < AdaptiveLimiter.INITIAL_LIMIT; i++) {
+      assertTrue(limiter.tryAcquire(true));
+    }
+    assertFalse(limiter.tryAcquire(true));
+    assertEquals(AdaptiveLimiter.INITIAL_LIMIT, limiter.inFlight());
+  }
+
+  @Test
+  void shedsHeavyRequestsFirst() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    int heavyShare = (int) (AdaptiveLimiter.INITIAL_LIMIT * AdaptiveLimiter.HEAVY_SHARE);
+    for (int i = 0; i < heavyShare; i++) {
+      assertTrue(limiter.tryAcquire(false));
+    }
+    assertFalse(limiter.tryAcquire(false));
+    assertTrue(limiter.tryAcquire(true));
+  }
+
+  @Test
+  void growsWhileLatencyHolds() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    runFull(limiter, FAST, 200);
+    assertTrue(limiter.limit() > AdaptiveLimiter.INITIAL_LIMIT * 2, "The limit is " + limiter.limit());
+    assertTrue(limiter.limit() <= AdaptiveLimiter.MAX_LIMIT);
+  }
+
+  @Test
+  void shrinksWhenLatencyClimbs() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    runFull(limiter, FAST, 50);
+    int grown = limiter.limit();
+
+    runFull(limiter, SLOW, 50);
+    assertTrue(limiter.limit() < grown / 2, "The limit only fell from " + grown + " to " + limiter.limit());
+    assertTrue(limiter.limit() >= AdaptiveLimiter.MIN_LIMIT);
+  }
+
+  @Test
+  void doesNotGrowWhenIdle() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    for (int i = 0; i < 100; i++) {
+      limiter.tryAcquire(true);
+      limiter.release(FAST, true);
+    }
+    assertEquals(AdaptiveLimiter.INITIAL_LIMIT, limiter.limit());
+    assertEquals(10.0, limiter.normalLatencyMillis(), 0.001);
+  }
+
+  @Test
+  void failuresDoNotMoveTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    fill(limiter);
+    limiter.release(SLOW, false);
+    assertEquals(AdaptiveLimiter.INITIAL_LIMIT, limiter.limit());
+    assertEquals(AdaptiveLimiter.INITIAL_LIMIT - 1, limiter.inFlight());
+  }
+
+  @Test
+  void turnsAwayRequestsOverTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> false);
+    fill(limiter);
+    Context ctx = mock(Context.class);
+
+    assertThrows(ServiceUnavailableResponse.class, () -> limiter.before(ctx));
+    verify(ctx).header("Retry-After", AdaptiveLimiter.RETRY_AFTER_SECONDS);
+    assertEquals(1, limiter.shed());
+
+    // A request we turned away has nothing to release
+    limiter.after(ctx);
+    assertEquals(AdaptiveLimiter.INITIAL_LIMIT, limiter.inFlight());
+  }
+
+  @Test
+  void releasesRequestsItLetIn() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(ctx -> true);
+    Context ctx = mock(Context.class);
+    limiter.before(ctx);
+    assertEquals(1, limiter.inFlight());
+
+    when(ctx.attribute(anyString())).thenReturn(System.nanoTime() - FAST);
+    when(ctx.statusCode()).thenReturn(200);
+    limiter.after(ctx);
+    assertEquals(0, limiter.inFlight());
+  }
+}
@@ -0,0 +1,167 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.Javalin;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Tests for `BatchController`, which runs its sub-requests against a real
+ * (if tiny) Javalin server, started on a free port for each test.
+ *
+ * Every request comes from this machine, so the server takes the client's
+ * address from a `CLIENT_IP_HEADER` instead, to test rate limiting more
+ * than one client.
+ */
+@SuppressWarnings({"MagicNumber"})
+class BatchControllerSpec {
+
+  private static final String CLIENT_IP_HEADER = "X-Test-Client-Ip";
+  // Each client can get at most this many things at once
+  private static final int THINGS_BURST = 5;
+
+  private Javalin server;
+  private final HttpClient client = HttpClient.newHttpClient();
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @BeforeEach
+  void startServer() {
+    server = Javalin.create(config -> config.contextResolver.ip =
+      ctx -> Objects.requireNonNullElse(ctx.header(CLIENT_IP_HEADER), ctx.req().getRemoteAddr()));
+    RateLimiter rateLimiter = new RateLimiter(new RateLimiter.Rate(100, 100),
+      Map.of("/api/things/{id}", new RateLimiter.Rate(0.001, THINGS_BURST)), Set.of());
+    server.beforeMatched(rateLimiter::before);
+    server.get("/api/things/{id}", ctx -> {
+      if (ctx.pathParam("id").equals("missing")) {
+        throw new NotFoundResponse("No such thing");
+      }
+      ctx.json(Map.of("id", ctx.pathParam("id"), "size", ctx.queryParam("size")));
+    });
+    server.get("/api/slow", ctx -> {
+      Thread.sleep(500);
+      ctx.json(Map.of("slow", true));
+    });
+    new BatchController().addRoutes(server);
+    server.start(0);
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.stop();
+  }
+
+  private HttpResponse<String> postBatch(String body) throws IOException, InterruptedException {
+    return postBatch(body, "10.0.0.1");
+  }
+
+  private HttpResponse<String> postBatch(String body, String clientIp) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/batch"))
+      .header(CLIENT_IP_HEADER, clientIp)
+      .POST(HttpRequest.BodyPublishers.ofString(body))
+      .build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static String things(int count) {
+    return "[" + String.join(",", Collections.nCopies(count, "{\"path\": \"/api/things/a\"}")) + "]";
+  }
+
+  @Test
+  void runsEachRequestInOrder() throws IOException, InterruptedException {
+    HttpResponse<String> response = postBatch(
+      "[{\"path\": \"/api/things/a?size=3\"}, {\"path\": \"/api/things/missing\"}, {\"path\": \"/api/things/b\"}]");
+
+    assertEquals(HttpStatus.OK.getCode(), response.statusCode());
+    JsonNode results = mapper.readTree(response.body());
+    assertEquals(3, results.size());
+    assertEquals(200, results.get(0).get("status").asInt());
+    assertEquals("a", results.get(0).get("body").get("id").asText());
+    assertEquals("3", results.get(0).get("body").get("size").asText());
+    assertEquals(404, results.get(1).get("status").asInt());
+    assertEquals("b", results.get(2).get("body").get("id").asText());
+  }
+
+  @Test
+  void runsTheRequestsInParallel() throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    HttpResponse<String> response = postBatch(
+      "[{\"path\": \"/api/slow\"}, {\"path\": \"/api/slow\"}, {\"path\": \"/api/slow\"}, {\"path\": \"/api/slow\"}]");
+    long millis = (System.nanoTime() - start) / 1_000_000;
+
+    assertEquals(HttpStatus.OK.getCode(), response.statusCode());
+    assertEquals(4, mapper.readTree(response.body()).size());
+    // One after the other, these would take at least two seconds
+    assertTrue(millis < 1500, "The batch took " + millis + "ms");
+  }
+
+  @Test
+  void rateLimitsEachClientsRequestsSeparately() throws IOException, InterruptedException {
+    // One client uses up (more than) its things
+    JsonNode greedy = mapper.readTree(postBatch(things(THINGS_BURST + 2), "10.0.0.1").body());
+    assertEquals(THINGS_BURST, countStatus(greedy, 200));
+    assertEquals(2, countStatus(greedy, HttpStatus.TOO_MANY_REQUESTS.getCode()));
+
+    // Another client's batch still gets all of its own
+    JsonNode other = mapper.readTree(postBatch(things(THINGS_BURST), "10.0.0.2").body());
+    assertEquals(THINGS_BURST, countStatus(other, 200));
+
+    // And the first client can't get around its limit by asking directly
+    HttpRequest direct = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/things/a"))
+      .header(CLIENT_IP_HEADER, "10.0.0.1")
+      .build();
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS.getCode(),
+      client.send(direct, HttpResponse.BodyHandlers.ofString()).statusCode());
+  }
+
+  private static int countStatus(JsonNode results, int status) {
+    int count = 0;
+    for (JsonNode result : results) {
+      if (result.get("status").asInt() == status) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  void rejectsBatchesThatAreTooBig() throws IOException, InterruptedException {
+    String request = "{\"path\": \"/api/things/a\"}";
+    String body = "[" + String.join(",", Collections.nCopies(BatchController.MAX_REQUESTS + 1, request)) + "]";
+
+    assertEquals(HttpStatus.BAD_REQUEST.getCode(), postBatch(body).statusCode());
+  }
+
+  @Test
+  void rejectsPathsOutsideTheApi() throws IOException, InterruptedException {
+    assertEquals(HttpStatus.BAD_REQUEST.getCode(), postBatch("[{\"path\": \"http://example.com/\"}]").statusCode());
+    assertEquals(HttpStatus.BAD_REQUEST.getCode(), postBatch("[{\"path\": \"/api/batch\"}]").statusCode());
+  }
+
+  @Test
+  void onlyApiPathsAreBatchable() {
+    assertTrue(BatchController.isBatchable(new BatchController.SubRequest("/api/users?age=25")));
+    assertFalse(BatchController.isBatchable(new BatchController.SubRequest(null)));
+    assertFalse(BatchController.isBatchable(new BatchController.SubRequest("/api/users?name=a b")));
+    assertFalse(BatchController.isBatchable(null));
+  }
+}
@@ -0,0 +1,75 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `BitmapIndex` counts documents the way a
+ * MongoDB `countDocuments` with `eq` filters would.
+ */
+class BitmapIndexSpec {
+
+  private BitmapIndex index;
+
+  @BeforeEach
+  void setupEach() {
+    index = new BitmapIndex(List.of("company", "completed"));
+    index.put("a", Map.of("company", "UMM", "completed", true, "name", "not indexed"));
+    index.put("b", Map.of("company", "UMM", "completed", false));
+    index.put("c", Map.of("company", "IBM", "completed", false));
+    // No company at all, so it never matches a company condition
+    index.put("d", Map.of("completed", false));
+  }
+
+  @Test
+  void countsEverythingWithNoConditions() {
+    assertEquals(4, index.count(Map.of()));
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  void countsConjunctions() {
+    assertEquals(2, index.count(Map.of("company", "UMM"::equals)));
+    assertEquals(3, index.count(Map.of("completed", "false"::equals)));
+    assertEquals(1, index.count(Map.of("company", "UMM"::equals, "completed", "false"::equals)));
+    assertEquals(3, index.count(Map.of("company", company -> company.contains("M"))));
+    assertEquals(0, index.count(Map.of("company", "Nobody"::equals)));
+  }
+
+  @Test
+  void countsFacetsOfMatchingDocuments() {
+    assertEquals(Map.of("company", Map.of("UMM", 1L, "IBM", 1L), "completed", Map.of("false", 3L)),
+      index.facets(Map.of("completed", "false"::equals), List.of("company", "completed")));
+    assertEquals(Map.of("company", Map.of()), index.facets(Map.of("company", "Nobody"::equals), List.of("company")));
+    assertThrows(IllegalArgumentException.class, () -> index.facets(Map.of(), List.of("name")));
+  }
+
+  @Test
+  void followsUpdatesAndRemovals() {
+    index.put("b", Map.of("company", "IBM", "completed", true));
+    assertEquals(1, index.count(Map.of("company", "UMM"::equals)));
+    assertEquals(4, index.size());
+
+    index.remove("c");
+    index.remove("not there");
+    assertEquals(1, index.count(Map.of("company", "IBM"::equals)));
+
+    // The freed row is reused, without picking up any old values
+    index.put("e", Map.of("company", "UMM"));
+    index.optimize();
+    assertEquals(2, index.count(Map.of("company", "UMM"::equals)));
+    assertEquals(2, index.count(Map.of("completed", "true"::equals)));
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  void rejectsConditionsOnUnindexedFields() {
+    assertThrows(IllegalArgumentException.class, () -> index.count(Map.of("name", "x"::equals)));
+  }
+}
@@ -0,0 +1,144 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests that a `Bulkhead` limits how many requests run at once,
+ * queues a bounded number more, and turns the rest away.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class BulkheadSpec {
+
+  private ExecutorService threads;
+  private CountDownLatch release;
+  private CountDownLatch started;
+
+  @BeforeEach
+  void setupEach() {
+    threads = Executors.newVirtualThreadPerTaskExecutor();
+    release = new CountDownLatch(1);
+  }
+
+  @AfterEach
+  void teardownEach() {
+    release.countDown();
+    threads.shutdownNow();
+  }
+
+  /**
+   * A handler that blocks until `release` is counted down.
+   */
+  private Handler blocking() {
+    return ctx -> {
+      started.countDown();
+      release.await();
+    };
+  }
+
+  @Test
+  void limitsHowManyRequestsRunAtOnce() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("test", 2, 0, Duration.ZERO);
+    Handler handler = bulkhead.wrap(blocking());
+    started = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      threads.submit(() -> {
+        handler.handle(mock(Context.class));
+        return null;
+      });
+    }
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertEquals(2, bulkhead.running());
+
+    Context rejectedCtx = mock(Context.class);
+    assertThrows(ServiceUnavailableResponse.class, () -> handler.handle(rejectedCtx));
+    verify(rejectedCtx).header("Retry-After", Bulkhead.RETRY_AFTER_SECONDS);
+    assertEquals(1, bulkhead.rejected());
+  }
+
+  @Test
+  void queuedRequestsRunWhenThereIsRoom() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("test", 1, 1, Duration.ofSeconds(10));
+    Handler handler = bulkhead.wrap(blocking());
+    started = new CountDownLatch(1);
+    Future<?> first = threads.submit(() -> {
+      handler.handle(mock(Context.class));
+      return null;
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    CountDownLatch secondRan = new CountDownLatch(1);
+    Future<?> second = threads.submit(() -> {
+      bulkhead.wrap(ctx -> secondRan.countDown()).handle(mock(Context.class));
+      return null;
+    });
+    while (bulkhead.waiting() == 0) {
+      Thread.sleep(1);
+    }
+    // The queue is full now, so a third request is turned away
+    assertThrows(ServiceUnavailableResponse.class, () -> handler.handle(mock(Context.class)));
+
+    release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+    assertEquals(0, secondRan.getCount());
+    assertEquals(0, bulkhead.running());
+    assertEquals(0, bulkhead.waiting());
+  }
+
+  @Test
+  void queuedRequestsOnlyWaitSoLong() {
+    Bulkhead bulkhead = new Bulkhead("test", 1, 1, Duration.ofMillis(50));
+    started = new CountDownLatch(1);
+    Handler slow = bulkhead.wrap(blocking());
+    threads.submit(() -> {
+      slow.handle(mock(Context.class));
+      return null;
+    });
+
+    Handler quick = bulkhead.wrap(ctx -> { });
+    assertThrows(ServiceUnavailableResponse.class, () -> {
+      started.await(5, TimeUnit.SECONDS);
+      quick.handle(mock(Context.class));
+    });
+  }
+
+  @Test
+  void needsAPositiveConcurrencyLimit() {
+    assertThrows(IllegalArgumentException.class, () -> new Bulkhead("test", 0, 1, Duration.ZERO));
+    assertThrows(IllegalArgumentException.class, () -> new Bulkhead("test", 1, -1, Duration.ZERO));
+  }
+
+  @Test
+  void takesItsLimitsFromLimits() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("test", new Bulkhead.Limits(1, 0, Duration.ZERO));
+    Handler handler = bulkhead.wrap(blocking());
+    started = new CountDownLatch(1);
+    threads.submit(() -> {
+      handler.handle(mock(Context.class));
+      return null;
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    assertThrows(ServiceUnavailableResponse.class, () -> handler.handle(mock(Context.class)));
+    assertThrows(IllegalArgumentException.class, () -> new Bulkhead("test", new Bulkhead.Limits(0, 0, Duration.ZERO)));
+  }
+}
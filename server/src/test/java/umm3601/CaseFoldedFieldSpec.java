@@ -0,0 +1,95 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+
+import umm3601.CaseFoldedField.Match;
+
+/**
+ * Tests the folding, n-grams, filters, and in-memory matching of
+ * `CaseFoldedField`; the controller specs check that the filters
+ * find the right documents in a real database.
+ */
+class CaseFoldedFieldSpec {
+
+  private final CaseFoldedField company = new CaseFoldedField("company");
+
+  private static BsonDocument render(Bson bson) {
+    return bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  @Test
+  void foldsCaseAndCompatibilityCharacters() {
+    assertEquals("acme widgets", CaseFoldedField.fold("ACME Widgets"));
+    // A full-width "Ａ" normalizes to a plain "a"
+    assertEquals("acme", CaseFoldedField.fold("Ａcme"));
+  }
+
+  @Test
+  void splitsTextIntoDistinctGrams() {
+    assertEquals(List.of("ban", "ana", "nan"), CaseFoldedField.grams("banana"));
+    assertEquals(List.of(), CaseFoldedField.grams("ab"));
+  }
+
+  @Test
+  void prefixSearchesAreRangeScans() {
+    assertEquals(BsonDocument.parse("{companyFolded: 'acme'}"), render(company.filter("ACME", Match.EXACT)));
+    assertEquals(BsonDocument.parse("{$and: [{companyFolded: {$gte: 'ac'}}, {companyFolded: {$lt: 'ad'}}]}"),
+      render(company.filter("Ac", Match.PREFIX)));
+  }
+
+  @Test
+  void substringSearchesUseGramsWhenTheyCan() {
+    BsonDocument filter = render(company.filter("CMEW", Match.CONTAINS));
+    assertEquals(BsonDocument.parse("{companyGrams: {$all: ['cme', 'mew']}}"), filter.getArray("$and").get(0));
+    assertTrue(CaseFoldedField.usesIndex("CMEW", Match.CONTAINS));
+
+    assertFalse(render(company.filter("cm", Match.CONTAINS)).containsKey("$and"));
+    assertFalse(CaseFoldedField.usesIndex("cm", Match.CONTAINS));
+  }
+
+  @Test
+  void alsoFindsDocumentsWithoutShadowFieldsByRegex() {
+    BsonDocument filter = render(company.filterIncludingUnprepared("Ac.", Match.PREFIX));
+    assertEquals(render(company.filter("Ac.", Match.PREFIX)), filter.getArray("$or").get(0));
+    BsonDocument unprepared = filter.getArray("$or").get(1).asDocument();
+    assertEquals(BsonDocument.parse("{companyFolded: {$exists: false}}"), unprepared.getArray("$and").get(0));
+    BsonDocument regex = unprepared.getArray("$and").get(1).asDocument();
+    assertEquals("^\\QAc.\\E", regex.getRegularExpression("company").getPattern());
+    assertEquals("i", regex.getRegularExpression("company").getOptions());
+  }
+
+  @Test
+  void shadowValuesMatchTheShadowFieldsUpdate() {
+    assertEquals(BsonDocument.parse("{companyFolded: 'acme', companyGrams: ['acm', 'cme']}"),
+      company.shadowValues("ACME"));
+    assertTrue(company.shadowValues(null).isEmpty());
+  }
+
+  @Test
+  void matchersAgreeWithFilters() {
+    assertTrue(CaseFoldedField.matcher("acme", Match.EXACT).test("ACME"));
+    assertFalse(CaseFoldedField.matcher("acm", Match.EXACT).test("ACME"));
+    assertTrue(CaseFoldedField.matcher("AC", Match.PREFIX).test("acme"));
+    assertFalse(CaseFoldedField.matcher("cm", Match.PREFIX).test("acme"));
+    assertTrue(CaseFoldedField.matcher("CM", Match.CONTAINS).test("acme"));
+    assertFalse(CaseFoldedField.matcher("acme", Match.CONTAINS).test(null));
+  }
+
+  @Test
+  void parsesMatchModesInAnyCase() {
+    assertEquals(Match.PREFIX, Match.parse("Prefix"));
+    assertThrows(IllegalArgumentException.class, () -> Match.parse("fuzzy"));
+  }
+}
@@ -0,0 +1,225 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoTimeoutException;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.ServiceUnavailableResponse;
+import jakarta.servlet.ServletOutputStream;
+
+/**
+ * Tests that a `CircuitBreaker` opens when too many calls fail or are
+ * slow, fails fast (or serves a stale response) while it's open, and
+ * closes again once its probe succeeds.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class CircuitBreakerSpec {
+
+  private static final Handler FAILING = ctx -> {
+    throw new MongoTimeoutException("The database is down");
+  };
+
+  private final AtomicBoolean databaseUp = new AtomicBoolean();
+  private CircuitBreaker breaker;
+
+  @BeforeEach
+  void setupEach() {
+    databaseUp.set(false);
+    // Probe by hand, rather than waiting for the background thread
+    breaker = new CircuitBreaker("test", () -> {
+      if (!databaseUp.get()) {
+        throw new MongoException("The database is still down");
+      }
+    }, Duration.ofMillis(100), Duration.ofHours(1));
+  }
+
+  private Context get(String path) {
+    Context ctx = mock(Context.class);
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.path()).thenReturn(path);
+    when(ctx.outputStream()).thenReturn(mock(ServletOutputStream.class));
+    return ctx;
+  }
+
+  private void trip() {
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+      breaker.record(true);
+    }
+  }
+
+  @Test
+  void opensWhenTooManyCallsFail() {
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS - 1; i++) {
+      breaker.record(true);
+    }
+    assertFalse(breaker.isOpen(), "The breaker opened on too few calls");
+    breaker.record(true);
+    assertTrue(breaker.isOpen());
+    assertEquals(1, breaker.trips());
+  }
+
+  @Test
+  void staysClosedWhileMostCallsSucceed() {
+    for (int i = 0; i < 5 * CircuitBreaker.WINDOW; i++) {
+      breaker.record(i % 3 == 0);
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  void countsSlowCallsAsFailures() throws Exception {
+    Handler slow = ctx -> Thread.sleep(150);
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+      breaker.wrap(slow).handle(get("/api/users"));
+    }
+    assertTrue(breaker.isOpen());
+  }
+
+  @Test
+  void timesEachRouteAgainstItsOwnSlowCall() throws Exception {
+    // Just as slow, but on a route that's allowed a second
+    Handler slow = ctx -> Thread.sleep(150);
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+      breaker.wrap(slow, Duration.ofSeconds(1)).handle(get("/api/usersByCompany"));
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  void doesNotCountSlowDeadlineTimeouts() {
+    // A query that ran until its deadline is slow, but the database answered
+    Handler timedOut = ctx -> {
+      Thread.sleep(150);
+      throw new MongoExecutionTimeoutException(50, "operation exceeded time limit");
+    };
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+      assertThrows(MongoExecutionTimeoutException.class, () -> breaker.wrap(timedOut).handle(get("/api/users")));
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  void failsFastWhileOpen() throws Exception {
+    trip();
+    AtomicInteger calls = new AtomicInteger();
+    Context ctx = get("/api/users");
+
+    assertThrows(ServiceUnavailableResponse.class, () -> breaker.wrap(c -> calls.incrementAndGet()).handle(ctx));
+    assertEquals(0, calls.get(), "The handler ran while the breaker was open");
+    verify(ctx).header("Retry-After", "3600");
+    assertEquals(1, breaker.rejected());
+  }
+
+  @Test
+  void servesTheLastGoodResponseWhileOpen() throws Exception {
+    List<String> body = List.of("Alice", "Bob");
+    Context good = get("/api/users");
+    when(good.attribute(ResponseFormats.BODY_ATTRIBUTE)).thenReturn(body);
+    breaker.wrap(ctx -> ResponseFormats.respond(ctx, body)).handle(good);
+
+    trip();
+    Context later = get("/api/users");
+    breaker.wrap(FAILING).handle(later);
+    verify(later).attribute(ResponseFormats.BODY_ATTRIBUTE, body);
+    verify(later).header(CircuitBreaker.STALE_HEADER, "true");
+    verify(later).header("Age", "0");
+    assertEquals(1, breaker.servedStale());
+
+    // A different query has nothing to fall back on
+    Context other = get("/api/users");
+    when(other.queryString()).thenReturn("age=25");
+    assertThrows(ServiceUnavailableResponse.class, () -> breaker.wrap(FAILING).handle(other));
+  }
+
+  @Test
+  void servesTheLastGoodResponseWhenACallFails() throws Exception {
+    List<String> body = List.of("Alice");
+    Context good = get("/api/users");
+    when(good.attribute(ResponseFormats.BODY_ATTRIBUTE)).thenReturn(body);
+    breaker.wrap(ctx -> ResponseFormats.respond(ctx, body)).handle(good);
+
+    Context failed = get("/api/users");
+    breaker.wrap(FAILING).handle(failed);
+    verify(failed).attribute(ResponseFormats.BODY_ATTRIBUTE, body);
+    assertFalse(breaker.isOpen());
+
+    // Without a last good response, the failure goes through as it was
+    assertThrows(MongoException.class, () -> breaker.wrap(FAILING).handle(get("/api/todos")));
+  }
+
+  @Test
+  void passesOnErrorsFromADatabaseThatIsUp() throws Exception {
+    List<String> body = List.of("Alice");
+    Context good = get("/api/users");
+    when(good.attribute(ResponseFormats.BODY_ATTRIBUTE)).thenReturn(body);
+    breaker.wrap(ctx -> ResponseFormats.respond(ctx, body)).handle(good);
+
+    // A client asking for a 1ms deadline over and over doesn't open the breaker,
+    // and gets its timeout rather than a stale copy
+    Handler timedOut = ctx -> {
+      throw new MongoExecutionTimeoutException(50, "operation exceeded time limit");
+    };
+    for (int i = 0; i < 2 * CircuitBreaker.MIN_CALLS; i++) {
+      Context ctx = get("/api/users");
+      assertThrows(MongoExecutionTimeoutException.class, () -> breaker.wrap(timedOut).handle(ctx));
+      verify(ctx, never()).header(CircuitBreaker.STALE_HEADER, "true");
+    }
+    assertFalse(breaker.isOpen());
+
+    Handler badQuery = ctx -> {
+      throw new MongoException(2, "unknown operator: $foo");
+    };
+    for (int i = 0; i < 2 * CircuitBreaker.MIN_CALLS; i++) {
+      assertThrows(MongoException.class, () -> breaker.wrap(badQuery).handle(get("/api/users")));
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  void neverServesStaleWrites() throws Exception {
+    trip();
+    Context ctx = mock(Context.class);
+    when(ctx.method()).thenReturn(HandlerType.POST);
+    when(ctx.path()).thenReturn("/api/users");
+
+    assertThrows(ServiceUnavailableResponse.class, () -> breaker.wrap(FAILING).handle(ctx));
+    verify(ctx, never()).header(CircuitBreaker.STALE_HEADER, "true");
+    verify(ctx, never()).attribute(anyString());
+  }
+
+  @Test
+  void closesOnceTheProbeSucceeds() throws Exception {
+    trip();
+    assertFalse(breaker.probe());
+    assertTrue(breaker.isOpen());
+
+    databaseUp.set(true);
+    assertTrue(breaker.probe());
+    assertFalse(breaker.isOpen());
+
+    // It starts counting afresh, so one more failure doesn't reopen it
+    breaker.record(true);
+    assertFalse(breaker.isOpen());
+  }
+}
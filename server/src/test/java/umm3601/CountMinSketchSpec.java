@@ -0,0 +1,67 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.CountMinSketch.HeavyHitter;
+
+/**
+ * Tests that `CountMinSketch` never underestimates, stays within
+ * its error bound, and finds the heavy hitters.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class CountMinSketchSpec {
+
+  /**
+   * A sketch where "busy i" has been seen `100 * i` times (for i from 1
+   * to 5), among lots of strings that were each seen once.
+   */
+  private static CountMinSketch busySketch() {
+    CountMinSketch sketch = new CountMinSketch();
+    for (int i = 1; i <= 5; i++) {
+      for (int j = 0; j < 100 * i; j++) {
+        sketch.add("busy " + i);
+      }
+    }
+    for (int i = 0; i < 10_000; i++) {
+      sketch.add("quiet " + i);
+    }
+    return sketch;
+  }
+
+  @Test
+  void estimatesCountsWithinTheBound() {
+    CountMinSketch sketch = busySketch();
+    assertEquals(11_500, sketch.total());
+    for (int i = 1; i <= 5; i++) {
+      long estimate = sketch.estimate("busy " + i);
+      assertTrue(estimate >= 100 * i, "Count-Min sketches never underestimate");
+      assertTrue(estimate <= 100 * i + sketch.errorBound());
+    }
+  }
+
+  @Test
+  void findsTheHeavyHitters() {
+    List<String> top = busySketch().top(3).stream().map(HeavyHitter::value).toList();
+    assertEquals(List.of("busy 5", "busy 4", "busy 3"), top);
+  }
+
+  @Test
+  void mergesAndRoundTrips() {
+    CountMinSketch sketch = busySketch();
+    CountMinSketch copy = CountMinSketch.fromDocument(sketch.toDocument());
+    assertEquals(sketch.top(5), copy.top(5));
+
+    copy.merge(sketch);
+    assertEquals(2 * sketch.total(), copy.total());
+    assertEquals(2 * sketch.estimate("busy 5"), copy.estimate("busy 5"));
+    assertEquals("busy 5", copy.top(1).get(0).value());
+
+    assertThrows(IllegalArgumentException.class, () -> copy.merge(new CountMinSketch(4, 16, 8)));
+  }
+}
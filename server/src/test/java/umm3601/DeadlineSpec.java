@@ -0,0 +1,109 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
+import io.javalin.http.HttpResponseException;
+import io.javalin.validation.Validation;
+import io.javalin.validation.ValidationException;
+
+/**
+ * Tests that a `Deadline` takes its timeout from the `X-Request-Timeout`
+ * header or the route's default, counts from when the request arrived,
+ * and refuses to hand out time once it has passed or the client has gone.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class DeadlineSpec {
+
+  private Context ctx;
+
+  @BeforeEach
+  void setupEach() {
+    ctx = mock(Context.class);
+  }
+
+  private void timeoutHeader(String value) {
+    when(ctx.header(Deadline.TIMEOUT_HEADER)).thenReturn(value);
+    when(ctx.headerAsClass(Deadline.TIMEOUT_HEADER, Long.class))
+      .thenReturn(new Validation().validator(Deadline.TIMEOUT_HEADER, Long.class, value));
+  }
+
+  @Test
+  void startsTheClockWhenTheRequestArrives() {
+    Deadline.start(ctx);
+    verify(ctx).attribute(anyString(), anyLong());
+  }
+
+  @Test
+  void usesTheRouteDefaultWithoutAHeader() {
+    long remaining = Deadline.of(ctx, 5_000).remainingMillis();
+    assertTrue(remaining > 4_000 && remaining <= 5_000, "There are " + remaining + "ms left");
+  }
+
+  @Test
+  void usesTheTimeoutTheClientAsksFor() {
+    timeoutHeader("200");
+    long remaining = Deadline.of(ctx, 5_000).remainingMillis();
+    assertTrue(remaining <= 200, "There are " + remaining + "ms left");
+  }
+
+  @Test
+  void rejectsIllegalTimeouts() {
+    timeoutHeader("0");
+    assertThrows(ValidationException.class, () -> Deadline.of(ctx, 5_000));
+
+    timeoutHeader(Long.toString(Deadline.MAX_MILLIS + 1));
+    assertThrows(ValidationException.class, () -> Deadline.of(ctx, 5_000));
+
+    timeoutHeader("soon");
+    assertThrows(ValidationException.class, () -> Deadline.of(ctx, 5_000));
+  }
+
+  @Test
+  void countsTheTimeSinceTheRequestArrived() {
+    when(ctx.attribute(anyString())).thenReturn(System.nanoTime() - TimeUnit.SECONDS.toNanos(3));
+    long remaining = Deadline.of(ctx, 5_000).remainingMillis();
+    assertTrue(remaining <= 2_000, "There are " + remaining + "ms left");
+  }
+
+  @Test
+  void timesOutOnceTheDeadlineHasPassed() {
+    when(ctx.attribute(anyString())).thenReturn(System.nanoTime() - TimeUnit.SECONDS.toNanos(6));
+    Deadline deadline = Deadline.of(ctx, 5_000);
+    assertThrows(GatewayTimeoutResponse.class, deadline::remainingMillis);
+  }
+
+  @Test
+  void givesUpOnceTheClientHasGone() {
+    Request request = mock(Request.class);
+    HttpChannel channel = mock(HttpChannel.class);
+    EndPoint endPoint = mock(EndPoint.class);
+    when(ctx.req()).thenReturn(request);
+    when(request.getHttpChannel()).thenReturn(channel);
+    when(channel.getEndPoint()).thenReturn(endPoint);
+    Deadline deadline = Deadline.of(ctx, 5_000);
+
+    when(endPoint.isOpen()).thenReturn(true);
+    assertTrue(deadline.remainingMillis() > 0);
+
+    when(endPoint.isOpen()).thenReturn(false);
+    HttpResponseException e = assertThrows(HttpResponseException.class, deadline::remainingMillis);
+    assertEquals(Deadline.CLIENT_CLOSED_REQUEST, e.getStatus());
+  }
+}
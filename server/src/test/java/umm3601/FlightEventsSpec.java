@@ -0,0 +1,70 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `FlightEvents` describes MongoDB commands by the shape of
+ * their filters, without any of their values, and counts results.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class FlightEventsSpec {
+
+  @Test
+  void describesAFindByItsFilter() {
+    BsonDocument find = BsonDocument.parse(
+      "{find: 'users', filter: {age: 25, company: {$regex: '^ohm', $options: 'i'}}, sort: {name: 1}}");
+    assertEquals("{age: ?, company: {$regex: ?, $options: ?}}", FlightEvents.filterShape(find));
+  }
+
+  @Test
+  void describesAnAggregationByItsPipeline() {
+    BsonDocument aggregate = BsonDocument.parse(
+      "{aggregate: 'todos', pipeline: [{$match: {owner: 'Blanche'}}, {$group: {_id: '$category', n: {$sum: 1}}}]}");
+    assertEquals("[{$match: {owner: ?}}, {$group: {_id: ?, n: {$sum: ?}}}]", FlightEvents.filterShape(aggregate));
+  }
+
+  @Test
+  void describesListsOfValuesTheSameWayHoweverLongTheyAre() {
+    BsonDocument short1 = BsonDocument.parse("{find: 'users', filter: {_id: {$in: [1]}}}");
+    BsonDocument long1 = BsonDocument.parse("{find: 'users', filter: {_id: {$in: [1, 2, 3, 4, 5]}}}");
+    assertEquals("{_id: {$in: [?]}}", FlightEvents.filterShape(short1));
+    assertEquals(FlightEvents.filterShape(short1), FlightEvents.filterShape(long1));
+  }
+
+  @Test
+  void describesCommandsWithoutAFilterAsEmpty() {
+    assertEquals("{}", FlightEvents.filterShape(BsonDocument.parse("{ping: 1}")));
+  }
+
+  @Test
+  void capsTheLengthOfShapes() {
+    StringBuilder filter = new StringBuilder("{find: 'users', filter: {");
+    for (int i = 0; i < 500; i++) {
+      filter.append("field").append(i).append(": 1, ");
+    }
+    filter.append("last: 1}}");
+    String shape = FlightEvents.filterShape(BsonDocument.parse(filter.toString()));
+    assertEquals(FlightEvents.MAX_SHAPE_LENGTH, shape.length());
+  }
+
+  @Test
+  void countsResultsInReplies() {
+    assertEquals(2, FlightEvents.replyCount(BsonDocument.parse("{cursor: {firstBatch: [{}, {}], id: 0}, ok: 1}")));
+    assertEquals(7, FlightEvents.replyCount(BsonDocument.parse("{n: 7, ok: 1}")));
+    assertEquals(-1, FlightEvents.replyCount(BsonDocument.parse("{ok: 1}")));
+  }
+
+  @Test
+  void countsResultsInResponseBodies() {
+    assertEquals(3, FlightEvents.resultCount(List.of("a", "b", "c")));
+    assertEquals(2, FlightEvents.resultCount(Map.of("a", 1, "b", 2)));
+    assertEquals(1, FlightEvents.resultCount("just one"));
+    assertEquals(-1, FlightEvents.resultCount(null));
+  }
+}
@@ -0,0 +1,50 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `HyperLogLog` estimates distinct counts to within
+ * its stated error, and merges and round-trips correctly.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class HyperLogLogSpec {
+
+  @Test
+  void countsSmallSetsExactly() {
+    HyperLogLog sketch = new HyperLogLog();
+    for (int i = 0; i < 1000; i++) {
+      sketch.add("company " + (i % 10));
+    }
+    sketch.add(null);
+    assertEquals(10, sketch.estimate());
+  }
+
+  @Test
+  void estimatesLargeSetsWithinTheError() {
+    HyperLogLog sketch = new HyperLogLog();
+    for (int i = 0; i < 200_000; i++) {
+      sketch.add("company " + i);
+    }
+    // Four standard deviations, so this essentially never fails by chance
+    assertEquals(200_000, sketch.estimate(), 200_000 * 4 * sketch.relativeError());
+  }
+
+  @Test
+  void mergesAndRoundTrips() {
+    HyperLogLog evens = new HyperLogLog();
+    HyperLogLog odds = new HyperLogLog();
+    for (int i = 0; i < 50_000; i++) {
+      (i % 2 == 0 ? evens : odds).add("owner " + i);
+      // Some overlap, which mustn't be counted twice
+      (i % 2 == 0 ? odds : evens).add("owner " + (i / 10));
+    }
+    evens.merge(HyperLogLog.fromDocument(odds.toDocument()));
+    assertEquals(50_000, evens.estimate(), 50_000 * 4 * evens.relativeError());
+
+    assertThrows(IllegalArgumentException.class, () -> evens.merge(new HyperLogLog(10)));
+    assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(30));
+  }
+}
@@ -0,0 +1,106 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that the `IndexAdvisorController` reports on, explains, and
+ * creates indexes for the collection(s) asked for, and keeps explaining
+ * in the background when an explain fails.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class IndexAdvisorControllerSpec {
+
+  private IndexAdvisor users;
+  private IndexAdvisor todos;
+  private IndexAdvisorController indexAdvisorController;
+  private Context ctx;
+
+  @BeforeEach
+  void setupEach() {
+    users = mock(IndexAdvisor.class);
+    todos = mock(IndexAdvisor.class);
+    indexAdvisorController = new IndexAdvisorController(new AdminAuth("secret"),
+      Map.of("users", users, "todos", todos));
+    ctx = mock(Context.class);
+  }
+
+  @Test
+  void addsRoutes() {
+    Javalin mockServer = mock(Javalin.class);
+    indexAdvisorController.addRoutes(mockServer);
+    verify(mockServer, times(1)).get(any(), any());
+    verify(mockServer, times(2)).post(any(), any());
+  }
+
+  @Test
+  void reportsOnEveryCollectionByDefault() {
+    when(users.reports()).thenReturn(List.of());
+    when(todos.reports()).thenReturn(List.of());
+    indexAdvisorController.getQueryShapes(ctx);
+
+    ArgumentCaptor<Object> body = ArgumentCaptor.forClass(Object.class);
+    verify(ctx).json(body.capture());
+    assertEquals(2, ((Map<?, ?>) body.getValue()).size());
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void explainsOnlyTheCollectionAskedFor() {
+    when(ctx.queryParam(IndexAdvisorController.COLLECTION_KEY)).thenReturn("todos");
+    when(todos.explainTopShapes()).thenReturn(3);
+    indexAdvisorController.explainQueryShapes(ctx);
+
+    verify(users, never()).explainTopShapes();
+    verify(ctx).json(Map.of("explained", Map.of("todos", 3)));
+  }
+
+  @Test
+  void countsBackgroundExplainsThatFail() {
+    when(users.explainTopShapes()).thenThrow(new IllegalStateException("unexpected plan"));
+    indexAdvisorController.explainEveryCollection();
+    indexAdvisorController.explainEveryCollection();
+
+    // One collection failing doesn't stop the others being explained
+    verify(todos, times(2)).explainTopShapes();
+    when(ctx.queryParam(IndexAdvisorController.COLLECTION_KEY)).thenReturn("users");
+    when(users.reports()).thenReturn(List.of());
+    indexAdvisorController.getQueryShapes(ctx);
+    verify(ctx).json(Map.of("users", Map.of("shapes", List.of(), "untracked", 0L, "failedExplains", 2L)));
+  }
+
+  @Test
+  void createsTheSuggestedIndexes() {
+    when(ctx.queryParam(IndexAdvisorController.COLLECTION_KEY)).thenReturn("users");
+    when(users.createSuggestedIndexes()).thenReturn(List.of(Map.of("role", 1)));
+    indexAdvisorController.createSuggestedIndexes(ctx);
+
+    verify(todos, never()).createSuggestedIndexes();
+    verify(ctx).json(Map.of("indexes", Map.of("users", List.of(Map.of("role", 1)))));
+    verify(ctx).status(HttpStatus.CREATED);
+  }
+
+  @Test
+  void rejectsUnknownCollections() {
+    when(ctx.queryParam(IndexAdvisorController.COLLECTION_KEY)).thenReturn("widgets");
+    assertThrows(BadRequestResponse.class, () -> indexAdvisorController.getQueryShapes(ctx));
+  }
+}
@@ -0,0 +1,154 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.regex;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Tests that an `IndexAdvisor` groups queries by shape, reads the stages
+ * of MongoDB's plans, and suggests indexes in equality-sort-range order
+ * for the shapes that scan the collection or sort in memory.
+ */
+@SuppressWarnings({ "MagicNumber", "unchecked" })
+class IndexAdvisorSpec {
+
+  private static final Document COLLSCAN_PLAN = Document.parse(
+    "{queryPlanner: {winningPlan: {stage: 'SORT', inputStage: {stage: 'COLLSCAN'}}}}");
+  private static final Document INDEX_PLAN = Document.parse(
+    "{queryPlanner: {winningPlan: {queryPlan: {stage: 'FETCH', inputStage: {stage: 'IXSCAN'}}}}}");
+
+  private MongoCollection<Document> collection;
+  private FindIterable<Document> find;
+  private IndexAdvisor advisor;
+
+  @BeforeEach
+  void setupEach() {
+    collection = mock(MongoCollection.class);
+    find = mock(FindIterable.class);
+    when(collection.getCodecRegistry()).thenReturn(MongoClientSettings.getDefaultCodecRegistry());
+    when(collection.find(any(Bson.class))).thenReturn(find);
+    when(find.sort(any())).thenReturn(find);
+    when(find.maxTime(IndexAdvisor.EXPLAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).thenReturn(find);
+    advisor = new IndexAdvisor(collection);
+  }
+
+  @Test
+  void groupsQueriesByShape() {
+    advisor.record(and(eq("age", 25), eq("role", "admin")), Sorts.ascending("name"));
+    advisor.record(and(eq("age", 40), eq("role", "viewer")), Sorts.ascending("name"));
+    advisor.record(eq("age", 25), null);
+
+    List<IndexAdvisor.Report> reports = advisor.reports();
+    assertEquals(2, reports.size());
+    assertEquals("{$and: [{age: ?}, {role: ?}]} sort {name: ?}", reports.get(0).shape());
+    assertEquals(2, reports.get(0).count());
+    assertEquals("{age: ?} sort {}", reports.get(1).shape());
+    // Nothing's been explained yet, so there's nothing to suggest
+    assertNull(reports.get(0).stages());
+    assertNull(reports.get(0).suggestedIndex());
+  }
+
+  @Test
+  void stopsTrackingNewShapesWhenFull() {
+    for (int i = 0; i < IndexAdvisor.MAX_SHAPES + 3; i++) {
+      advisor.record(eq("field" + i, 1), null);
+    }
+    assertEquals(IndexAdvisor.MAX_SHAPES, advisor.reports().size());
+    assertEquals(3, advisor.untracked());
+  }
+
+  @Test
+  void readsThePlanStages() {
+    assertEquals(List.of("SORT", "COLLSCAN"), IndexAdvisor.stages(COLLSCAN_PLAN));
+    assertEquals(List.of("FETCH", "IXSCAN"), IndexAdvisor.stages(INDEX_PLAN));
+    assertEquals(List.of("OR", "IXSCAN", "COLLSCAN"), IndexAdvisor.stages(Document.parse(
+      "{queryPlanner: {winningPlan: {stage: 'OR', inputStages: [{stage: 'IXSCAN'}, {stage: 'COLLSCAN'}]}}}")));
+    assertEquals(List.of(), IndexAdvisor.stages(new Document()));
+  }
+
+  @Test
+  void suggestsEqualityThenSortThenRange() {
+    BsonDocument filter = and(regex("company", "ohm"), eq("role", "admin"), gt("age", 30), eq("completed", true))
+      .toBsonDocument();
+    BsonDocument sort = Sorts.descending("name").toBsonDocument();
+    Map<String, Integer> keys = IndexAdvisor.suggestIndex(filter, sort);
+    assertEquals(List.of("role", "completed", "name", "company", "age"), List.copyOf(keys.keySet()));
+    assertEquals(-1, keys.get("name"));
+    assertEquals(1, keys.get("age"));
+  }
+
+  @Test
+  void treatsInAsEquality() {
+    BsonDocument filter = BsonDocument.parse("{category: {$in: ['homework', 'groceries']}, body: {$regex: 'x'}}");
+    assertEquals(List.of("category", "body"),
+      List.copyOf(IndexAdvisor.suggestIndex(filter, new BsonDocument()).keySet()));
+  }
+
+  @Test
+  void hasNothingToSuggestForAnEmptyQuery() {
+    assertNull(IndexAdvisor.suggestIndex(new BsonDocument(), new BsonDocument()));
+  }
+
+  @Test
+  void suggestsIndexesForCollectionScansOnly() {
+    advisor.record(eq("role", "admin"), Sorts.ascending("name"));
+    advisor.record(eq("_id", "x"), null);
+    when(find.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(COLLSCAN_PLAN, INDEX_PLAN);
+    assertEquals(2, advisor.explainTopShapes());
+
+    List<IndexAdvisor.Report> reports = advisor.reports();
+    IndexAdvisor.Report scanned = reports.stream().filter(IndexAdvisor.Report::collectionScan).findFirst().get();
+    IndexAdvisor.Report indexed = reports.stream().filter(report -> !report.collectionScan()).findFirst().get();
+    assertTrue(scanned.inMemorySort());
+    assertTrue(scanned.suggestedIndex() != null);
+    assertFalse(indexed.inMemorySort());
+    assertNull(indexed.suggestedIndex());
+  }
+
+  @Test
+  void createsTheSuggestedIndexes() {
+    advisor.record(eq("role", "admin"), Sorts.ascending("name"));
+    advisor.record(eq("role", "viewer"), Sorts.ascending("name"));
+    when(find.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(COLLSCAN_PLAN);
+    advisor.explainTopShapes();
+
+    List<Map<String, Integer>> created = advisor.createSuggestedIndexes();
+    assertEquals(List.of(Map.of("role", 1, "name", 1)), created);
+    verify(collection, times(1)).createIndex(new Document("role", 1).append("name", 1));
+  }
+
+  @Test
+  void keepsGoingWhenAnExplainFails() {
+    advisor.record(eq("role", "admin"), null);
+    when(find.explain(ExplainVerbosity.QUERY_PLANNER)).thenThrow(new MongoException("The database is down"));
+    assertEquals(0, advisor.explainTopShapes());
+    assertNull(advisor.reports().get(0).stages());
+  }
+}
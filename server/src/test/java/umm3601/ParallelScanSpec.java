@@ -0,0 +1,34 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `ParallelScan` finds the same items, in the same
+ * order, as a simple sequential scan would.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ParallelScanSpec {
+
+  @Test
+  void keepsMatchesInOrder() {
+    List<Integer> numbers = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+
+    List<Integer> multiplesOfSeven = ParallelScan.filter(numbers, n -> n % 7 == 0);
+
+    assertEquals(numbers.stream().filter(n -> n % 7 == 0).collect(Collectors.toList()), multiplesOfSeven);
+  }
+
+  @Test
+  void handlesTinyChunksAndEmptyRanges() {
+    assertArrayEquals(new int[] {1, 3, 5, 7, 9}, ParallelScan.matchingIndices(10, i -> i % 2 == 1, 1));
+    assertArrayEquals(new int[] {}, ParallelScan.matchingIndices(0, i -> true, 0));
+    assertEquals(List.of(), ParallelScan.filter(List.of("a", "b"), s -> false));
+  }
+}
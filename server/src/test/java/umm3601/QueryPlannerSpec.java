@@ -0,0 +1,152 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.MongoCollection;
+
+import io.javalin.http.Context;
+import umm3601.QueryPlanner.Engine;
+import umm3601.QueryPlanner.Plan;
+import umm3601.QueryPlanner.Shape;
+
+/**
+ * Tests that `QueryPlanner` picks sensible engines for small and large
+ * collections, limited and sorted queries, and cold and warm caches,
+ * and explains its choices.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class QueryPlannerSpec {
+
+  private static final Set<Engine> SCANS = EnumSet.of(Engine.DATABASE, Engine.MEMORY_SCAN, Engine.PARALLEL_SCAN);
+  private static final Shape CHEAP = Shape.find(false, false, 0, false);
+  private static final Shape EXPENSIVE = Shape.find(true, false, 0, false);
+
+  private MongoCollection<Document> collection;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setup() {
+    collection = mock(MongoCollection.class);
+  }
+
+  @Test
+  void scansSmallCollectionsInMemory() {
+    when(collection.estimatedDocumentCount()).thenReturn(100L);
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+
+    assertEquals(Engine.MEMORY_SCAN, planner.plan(CHEAP, true, SCANS).engine());
+    assertEquals(Engine.MEMORY_SCAN, planner.plan(EXPENSIVE, true, SCANS).engine());
+  }
+
+  @Test
+  void scansLargeCollectionsInParallelForExpensiveQueries() {
+    when(collection.estimatedDocumentCount()).thenReturn(1_000_000L);
+
+    assertEquals(Engine.PARALLEL_SCAN, new QueryPlanner(collection, 8).plan(EXPENSIVE, true, SCANS).engine());
+    // With only one core, there's nothing to gain from forking
+    assertEquals(Engine.MEMORY_SCAN, new QueryPlanner(collection, 1).plan(EXPENSIVE, true, SCANS).engine());
+  }
+
+  @Test
+  void countsWithTheIndexWhenItCan() {
+    when(collection.estimatedDocumentCount()).thenReturn(1_000L);
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+
+    Set<Engine> engines = EnumSet.copyOf(SCANS);
+    engines.add(Engine.BITMAP_INDEX);
+    assertEquals(Engine.BITMAP_INDEX, planner.plan(Shape.count(true, false), true, engines).engine());
+  }
+
+  @Test
+  void usesTheDatabaseRatherThanLoadingTheCache() {
+    when(collection.estimatedDocumentCount()).thenReturn(1_000L);
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+    Shape shape = Shape.find(false, true, 0, false);
+
+    assertEquals(Engine.MEMORY_SCAN, planner.plan(shape, true, SCANS).engine());
+    // Scanning a copy that isn't loaded means reading every document first
+    assertEquals(Engine.DATABASE, planner.plan(shape, false, SCANS).engine());
+  }
+
+  @Test
+  void usesTheIndexForALimitedSortedQuery() {
+    when(collection.estimatedDocumentCount()).thenReturn(100_000L);
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+
+    // MongoDB only has to find and sort the first ten; we'd have to sort all the matches
+    assertEquals(Engine.DATABASE, planner.plan(Shape.find(false, true, 10, true), true, SCANS).engine());
+    // But if the copy is already in order, a sequential scan can stop after the first ten
+    assertEquals(Engine.MEMORY_SCAN, planner.plan(Shape.find(false, true, 10, false), true, SCANS).engine());
+  }
+
+  @Test
+  void chargesForSendingTheMatches() {
+    when(collection.estimatedDocumentCount()).thenReturn(100_000L);
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+
+    double all = planner.plan(CHEAP, true, SCANS).costs().get(Engine.DATABASE);
+    double some = planner.plan(Shape.find(false, false, 10, false), true, SCANS).costs().get(Engine.DATABASE);
+    double none = planner.plan(Shape.count(false, false), true, SCANS).costs().get(Engine.DATABASE);
+    assertTrue(all > some);
+    assertTrue(some > none);
+  }
+
+  @Test
+  void onlyEstimatesWhenThereIsAChoice() {
+    when(collection.estimatedDocumentCount()).thenReturn(1_000L);
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+
+    Plan plan = planner.plan(EXPENSIVE, true, EnumSet.of(Engine.DATABASE));
+    assertEquals(Engine.DATABASE, plan.engine());
+    assertEquals("DATABASE", plan.describe());
+    verify(collection, never()).estimatedDocumentCount();
+
+    // The estimate is reused for later plans
+    planner.plan(EXPENSIVE, true, SCANS);
+    planner.plan(CHEAP, true, SCANS);
+    verify(collection, times(1)).estimatedDocumentCount();
+  }
+
+  @Test
+  void refusesToPlanWithNoEngines() {
+    QueryPlanner planner = new QueryPlanner(collection, 8);
+    assertThrows(IllegalArgumentException.class, () -> planner.plan(CHEAP, true, EnumSet.noneOf(Engine.class)));
+  }
+
+  @Test
+  void explainsPlansInAHeader() {
+    Context ctx = mock(Context.class);
+    when(ctx.queryParam(QueryPlanner.EXPLAIN_KEY)).thenReturn("true");
+    Plan plan = new Plan(Engine.MEMORY_SCAN, Map.of(Engine.DATABASE, 304.0, Engine.MEMORY_SCAN, 2.0));
+
+    QueryPlanner.explain(ctx, plan);
+
+    verify(ctx).header(QueryPlanner.PLAN_HEADER, "MEMORY_SCAN; MEMORY_SCAN=2.0, DATABASE=304.0");
+  }
+
+  @Test
+  void onlyExplainsPlansWhenAskedTo() {
+    Context ctx = mock(Context.class);
+    Plan plan = new Plan(Engine.MEMORY_SCAN, Map.of(Engine.DATABASE, 304.0, Engine.MEMORY_SCAN, 2.0));
+
+    QueryPlanner.explain(ctx, plan);
+
+    verify(ctx, never()).header(anyString(), anyString());
+  }
+}
@@ -0,0 +1,56 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that the `RateLimitController` reports the `RateLimiter`'s counts.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class RateLimitControllerSpec {
+
+  @Test
+  void addsRoutes() {
+    RateLimitController controller = new RateLimitController(new AdminAuth("secret"),
+      new RateLimiter(new RateLimiter.Rate(1, 1), Map.of(), Set.of()));
+    Javalin mockServer = mock(Javalin.class);
+    controller.addRoutes(mockServer);
+    verify(mockServer, times(1)).get(any(), any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void reportsTheRequestsTurnedAway() {
+    RateLimiter limiter = new RateLimiter(new RateLimiter.Rate(1, 1), Map.of(), Set.of());
+    long now = TimeUnit.SECONDS.toNanos(1);
+    limiter.check("alice", "/api/todos", now);
+    limiter.check("alice", "/api/todos", now);
+    limiter.check("bob", "/api/users", now);
+
+    Context ctx = mock(Context.class);
+    new RateLimitController(new AdminAuth("secret"), limiter).getRateLimits(ctx);
+    ArgumentCaptor<Object> body = ArgumentCaptor.forClass(Object.class);
+    verify(ctx).json(body.capture());
+    verify(ctx).status(HttpStatus.OK);
+
+    Map<String, Object> counts = (Map<String, Object>) body.getValue();
+    assertEquals(1L, counts.get("limited"));
+    assertEquals(Map.of("/api/todos", 1L), counts.get("limitedByRoute"));
+    assertEquals(2, counts.get("clients"));
+    assertEquals(0L, counts.get("overflowed"));
+  }
+}
@@ -0,0 +1,151 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Tests that a `RateLimiter` gives each client a token bucket per route,
+ * counts the requests it turns away, and forgets idle clients.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class RateLimiterSpec {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private RateLimiter limiter;
+
+  @BeforeEach
+  void setupEach() {
+    // 10 requests a second in bursts of up to 3, but only 1 a second for lists
+    limiter = new RateLimiter(new RateLimiter.Rate(10, 3), Map.of("/api/todos", new RateLimiter.Rate(1, 1)),
+      Set.of("key"));
+  }
+
+  @Test
+  void allowsABurstThenTheRate() {
+    long now = SECOND;
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.check("alice", "/api/todos/{id}", now));
+    }
+    long wait = limiter.check("alice", "/api/todos/{id}", now);
+    assertEquals(SECOND / 10, wait);
+
+    // A tenth of a second later, there's another token
+    assertEquals(0, limiter.check("alice", "/api/todos/{id}", now + wait));
+    assertTrue(limiter.check("alice", "/api/todos/{id}", now + wait) > 0);
+  }
+
+  @Test
+  void limitsEachClientAndRouteSeparately() {
+    assertEquals(0, limiter.check("alice", "/api/todos", SECOND));
+    assertEquals(SECOND, limiter.check("alice", "/api/todos", SECOND));
+    assertEquals(0, limiter.check("bob", "/api/todos", SECOND));
+    assertEquals(0, limiter.check("alice", "/api/users", SECOND));
+
+    assertEquals(1, limiter.limited());
+    assertEquals(Map.of("/api/todos", 1L), limiter.limitedByRoute());
+  }
+
+  @Test
+  void forgetsIdleClients() {
+    limiter.check("alice", "/api/todos", SECOND);
+    limiter.check("bob", "/api/todos", SECOND + RateLimiter.IDLE_NANOS);
+    assertEquals(2, limiter.clients());
+
+    limiter.check("bob", "/api/todos", 2 * SECOND + RateLimiter.IDLE_NANOS + RateLimiter.SWEEP_NANOS);
+    assertEquals(1, limiter.clients());
+  }
+
+  @Test
+  void turnsAwayClientsOverTheLimit() {
+    Context ctx = mock(Context.class);
+    when(ctx.header(RateLimiter.API_KEY_HEADER)).thenReturn("key");
+    when(ctx.endpointHandlerPath()).thenReturn("/api/todos");
+
+    limiter.before(ctx);
+    HttpResponseException e = assertThrows(HttpResponseException.class, () -> limiter.before(ctx));
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS.getCode(), e.getStatus());
+    verify(ctx).header("Retry-After", "1");
+  }
+
+  @Test
+  void identifiesClientsWithoutAKeyByAddress() {
+    Context ctx = mock(Context.class);
+    when(ctx.ip()).thenReturn("10.0.0.1");
+    when(ctx.endpointHandlerPath()).thenReturn("/api/todos");
+
+    limiter.before(ctx);
+    assertEquals(SECOND, limiter.check("10.0.0.1", "/api/todos", 0), SECOND / 10);
+  }
+
+  @Test
+  void ignoresKeysItDoesNotKnow() {
+    Context ctx = mock(Context.class);
+    when(ctx.ip()).thenReturn("10.0.0.1");
+    when(ctx.endpointHandlerPath()).thenReturn("/api/todos");
+
+    // A new made-up key for each request doesn't get a new bucket
+    when(ctx.header(RateLimiter.API_KEY_HEADER)).thenReturn("made-up-1");
+    limiter.before(ctx);
+    when(ctx.header(RateLimiter.API_KEY_HEADER)).thenReturn("made-up-2");
+    assertThrows(HttpResponseException.class, () -> limiter.before(ctx));
+    assertEquals(1, limiter.clients());
+  }
+
+  @Test
+  void believesBatchesOnlyFromItself() {
+    Context ctx = mock(Context.class);
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(ctx.req()).thenReturn(req);
+    when(ctx.ip()).thenReturn("127.0.0.1");
+    when(req.getRemoteAddr()).thenReturn("127.0.0.1");
+    when(ctx.header(RateLimiter.ON_BEHALF_OF_HEADER)).thenReturn("10.0.0.9");
+
+    // Without the token, anyone could claim to be anyone
+    assertEquals("127.0.0.1", limiter.clientOf(ctx));
+    when(ctx.header(RateLimiter.INTERNAL_TOKEN_HEADER)).thenReturn("guessed");
+    assertEquals("127.0.0.1", limiter.clientOf(ctx));
+
+    when(ctx.header(RateLimiter.INTERNAL_TOKEN_HEADER)).thenReturn(RateLimiter.internalToken());
+    assertEquals("10.0.0.9", limiter.clientOf(ctx));
+
+    // Nor is the token believed from anywhere but this machine
+    when(ctx.ip()).thenReturn("10.0.0.5");
+    when(req.getRemoteAddr()).thenReturn("10.0.0.5");
+    assertEquals("10.0.0.5", limiter.clientOf(ctx));
+  }
+
+  @Test
+  void sharesBucketsOnceItHasNoRoomForMoreClients() {
+    limiter = new RateLimiter(new RateLimiter.Rate(1, 1), Map.of(), Set.of(), 2);
+    assertEquals(0, limiter.check("alice", "/api/todos", SECOND));
+    assertEquals(0, limiter.check("bob", "/api/todos", SECOND));
+    assertEquals(0, limiter.check("carol", "/api/todos", SECOND));
+    // Dave shares Carol's (overflow) bucket, which is empty now
+    assertEquals(SECOND, limiter.check("dave", "/api/todos", SECOND));
+    assertEquals(2, limiter.clients());
+    assertEquals(2, limiter.overflowed());
+  }
+
+  @Test
+  void needsAPositiveRate() {
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter.Rate(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter.Rate(1, 0));
+  }
+}
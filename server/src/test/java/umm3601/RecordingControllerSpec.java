@@ -0,0 +1,179 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.HandlerType;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.http.UnauthorizedResponse;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests that the `RecordingController` starts, stops, and dumps flight
+ * recordings (with our `FlightEvents` in them), and only for admins.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class RecordingControllerSpec {
+
+  private RecordingController recordingController;
+  private Context ctx;
+
+  @TempDir
+  private Path directory;
+
+  @BeforeEach
+  void setupEach() {
+    recordingController = new RecordingController(new AdminAuth("secret"));
+    ctx = mock(Context.class);
+  }
+
+  @AfterEach
+  void stopRecording() {
+    try {
+      recordingController.stopRecording(mock(Context.class));
+    } catch (ConflictResponse e) {
+      // It wasn't running
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> status(Context context) {
+    ArgumentCaptor<Object> status = ArgumentCaptor.forClass(Object.class);
+    verify(context).json(status.capture());
+    return (Map<String, Object>) status.getValue();
+  }
+
+  /**
+   * Make a request to `/api/users?company=...&age=...` that sends back
+   * three users, as far as the flight events can tell.
+   */
+  private void makeRequest() {
+    Context request = mock(Context.class);
+    when(request.method()).thenReturn(HandlerType.GET);
+    when(request.endpointHandlerPath()).thenReturn("/api/users");
+    when(request.queryParamMap()).thenReturn(Map.of("company", List.of("OHMNET"), "age", List.of("25")));
+    when(request.statusCode()).thenReturn(200);
+
+    FlightEvents.beginRequest(request);
+    ArgumentCaptor<Object> event = ArgumentCaptor.forClass(Object.class);
+    verify(request).attribute(anyString(), event.capture());
+    when(request.attribute(anyString())).thenReturn(event.getValue());
+    when(request.attribute(ResponseFormats.BODY_ATTRIBUTE)).thenReturn(List.of("Alice", "Bob", "Carol"));
+    FlightEvents.endRequest(request);
+  }
+
+  @Test
+  void addsRoutes() {
+    Javalin mockServer = mock(Javalin.class);
+    recordingController.addRoutes(mockServer);
+    verify(mockServer, times(2)).get(any(), any());
+    verify(mockServer, times(2)).post(any(), any());
+  }
+
+  @Test
+  void startsAndStopsARecording() throws Exception {
+    recordingController.getRecording(ctx);
+    assertEquals("NONE", status(ctx).get("state"));
+
+    Context start = mock(Context.class);
+    recordingController.startRecording(start);
+    assertEquals("RUNNING", status(start).get("state"));
+    assertThrows(ConflictResponse.class, () -> recordingController.startRecording(mock(Context.class)));
+
+    Context stop = mock(Context.class);
+    recordingController.stopRecording(stop);
+    assertEquals("STOPPED", status(stop).get("state"));
+    assertThrows(ConflictResponse.class, () -> recordingController.stopRecording(mock(Context.class)));
+  }
+
+  @Test
+  void rejectsUnknownSettings() {
+    when(ctx.queryParam(RecordingController.SETTINGS_KEY)).thenReturn("everything");
+    assertThrows(BadRequestResponse.class, () -> recordingController.startRecording(ctx));
+  }
+
+  @Test
+  void dumpsTheRequestsItRecorded() throws Exception {
+    when(ctx.queryParam(RecordingController.SETTINGS_KEY)).thenReturn("profile");
+    recordingController.startRecording(ctx);
+    makeRequest();
+
+    Context dump = mock(Context.class);
+    recordingController.dumpRecording(dump);
+    verify(dump).contentType(RecordingController.JFR_CONTENT_TYPE);
+    ArgumentCaptor<InputStream> body = ArgumentCaptor.forClass(InputStream.class);
+    verify(dump).result(body.capture());
+    Path file = directory.resolve("dump.jfr");
+    try (InputStream in = body.getValue()) {
+      Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    List<RecordedEvent> requests = RecordingFile.readAllEvents(file).stream()
+      .filter(event -> event.getEventType().getName().equals("umm3601.Request"))
+      .toList();
+    assertEquals(1, requests.size());
+    RecordedEvent request = requests.get(0);
+    assertEquals("/api/users", request.getString("route"));
+    assertEquals("age,company", request.getString("filterShape"));
+    assertEquals(3, request.getLong("resultCount"));
+    assertEquals(200, request.getInt("status"));
+  }
+
+  @Test
+  void hasNothingToDumpBeforeARecording() {
+    assertThrows(NotFoundResponse.class, () -> recordingController.dumpRecording(ctx));
+  }
+
+  @Test
+  void recordsNothingWhenNoRecordingIsRunning() {
+    Context request = mock(Context.class);
+    FlightEvents.beginRequest(request);
+    FlightEvents.endRequest(request);
+    verify(request, never()).attribute(anyString(), any());
+  }
+
+  @Test
+  void onlyLetsInAdmins() throws Exception {
+    AdminAuth admin = new AdminAuth("secret");
+    assertThrows(UnauthorizedResponse.class, () -> admin.wrap(recordingController::getRecording).handle(ctx));
+    when(ctx.header(AdminAuth.TOKEN_HEADER)).thenReturn("guess");
+    assertThrows(UnauthorizedResponse.class, () -> admin.wrap(recordingController::getRecording).handle(ctx));
+
+    when(ctx.header(AdminAuth.TOKEN_HEADER)).thenReturn("secret");
+    admin.wrap(recordingController::getRecording).handle(ctx);
+    assertEquals("NONE", status(ctx).get("state"));
+  }
+
+  @Test
+  void turnsOffTheAdminRoutesWithoutAToken() {
+    AdminAuth admin = new AdminAuth("");
+    when(ctx.header(AdminAuth.TOKEN_HEADER)).thenReturn("");
+    assertThrows(ForbiddenResponse.class, () -> admin.wrap(recordingController::getRecording).handle(ctx));
+  }
+}
@@ -0,0 +1,154 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.json.JavalinJackson;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * Tests that `ResponseFormats` picks the response format the client asked
+ * for, and streams the body out with the same mapper Javalin uses.
+ */
+class ResponseFormatsSpec {
+
+  private static final List<Map<String, String>> BODY = List.of(Map.of("name", "Chris"), Map.of("name", "Pat"));
+
+  @Mock
+  private Context ctx;
+
+  // What's been written to the response
+  private ByteArrayOutputStream sent;
+
+  @BeforeEach
+  void setupEach() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    sent = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        sent.write(b);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    });
+  }
+
+  @Test
+  void negotiatesFormats() {
+    assertNull(ResponseFormats.negotiate(null));
+    assertNull(ResponseFormats.negotiate("text/html,application/xhtml+xml,*/*;q=0.8"));
+    assertNull(ResponseFormats.negotiate("application/json, application/cbor"));
+    assertNull(ResponseFormats.negotiate("text/plain"));
+    assertEquals(ResponseFormats.CBOR, ResponseFormats.negotiate("application/CBOR"));
+    assertEquals(ResponseFormats.CBOR, ResponseFormats.negotiate("*/*, application/cbor"));
+  }
+
+  @Test
+  void prefersTheHighestQuality() {
+    // JSON (or anything, which we answer with JSON) is preferred to Smile
+    assertNull(ResponseFormats.negotiate("application/x-jackson-smile;q=0.9, application/json"));
+    assertNull(ResponseFormats.negotiate("application/x-jackson-smile;q=0.9, */*"));
+    assertEquals(ResponseFormats.SMILE,
+      ResponseFormats.negotiate("application/json;q=0.5, application/x-jackson-smile"));
+    assertEquals(ResponseFormats.CBOR,
+      ResponseFormats.negotiate("application/x-jackson-smile;q=0.7, application/cbor;q=0.8, */*;q=0.1"));
+  }
+
+  @Test
+  void neverPicksAFormatWithZeroQuality() {
+    assertNull(ResponseFormats.negotiate("application/cbor;q=0"));
+    assertNull(ResponseFormats.negotiate("application/cbor;q=0, application/json;q=0.1"));
+    assertEquals(ResponseFormats.SMILE,
+      ResponseFormats.negotiate("application/cbor; q=0, application/x-jackson-smile; q=0.2"));
+    // A quality that isn't a number is no better than 0
+    assertNull(ResponseFormats.negotiate("application/cbor;q=lots"));
+  }
+
+  @Test
+  void respondsWithJsonByDefault() throws IOException {
+    ResponseFormats.respond(ctx, BODY);
+
+    verify(ctx).contentType(ContentType.JSON);
+    verify(ctx).header(Header.VARY, Header.ACCEPT);
+    verify(ctx).attribute(ResponseFormats.BODY_ATTRIBUTE, BODY);
+    // It's streamed straight out, not handed to Javalin to serialize
+    verify(ctx, never()).json(Mockito.any());
+    verify(ctx, never()).result(Mockito.any(byte[].class));
+    assertEquals(BODY, new ObjectMapper().readValue(sent.toByteArray(), List.class));
+  }
+
+  @Test
+  void respondsWithCbor() throws IOException {
+    checkBinaryResponse(ResponseFormats.CBOR, new CBORMapper());
+  }
+
+  @Test
+  void respondsWithSmile() throws IOException {
+    checkBinaryResponse(ResponseFormats.SMILE, new SmileMapper());
+  }
+
+  private void checkBinaryResponse(String contentType, ObjectMapper reader) throws IOException {
+    when(ctx.header(Header.ACCEPT)).thenReturn(contentType);
+
+    ResponseFormats.respond(ctx, BODY);
+
+    verify(ctx).contentType(contentType);
+    verify(ctx, never()).json(Mockito.any());
+    verify(ctx, never()).result(Mockito.any(byte[].class));
+    assertEquals(BODY, reader.readValue(sent.toByteArray(), List.class));
+  }
+
+  @Test
+  void javalinUsesTheSameMapper() {
+    ObjectMapper installed = ((JavalinJackson) Server.configureJsonMapper()).getMapper();
+    assertSame(ResponseFormats.JSON_MAPPER, installed);
+    assertTrue(installed.getRegisteredModuleIds().contains(new BlackbirdModule().getTypeId()),
+      "The installed mapper doesn't have the Blackbird module");
+  }
+
+  @Test
+  void usesOneVersionOfJackson() {
+    // Jackson's modules only promise to work with the jackson-databind
+    // of the same version. (A `Version` also names its artifact, so we
+    // just compare the version numbers.)
+    String databind = ResponseFormats.JSON_MAPPER.version().toString();
+    assertEquals(databind, new BlackbirdModule().version().toString());
+    assertEquals(databind, new CBORFactory().version().toString());
+    assertEquals(databind, new SmileFactory().version().toString());
+  }
+}
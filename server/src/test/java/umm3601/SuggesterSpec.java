@@ -0,0 +1,56 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.Suggester.Suggestion;
+
+/**
+ * Tests that `Suggester` offers the most common matching values,
+ * and keeps its counts right as values are added and removed.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class SuggesterSpec {
+
+  private Suggester suggester;
+
+  @BeforeEach
+  void setupEach() {
+    suggester = new Suggester();
+    for (String company : List.of("Acme", "Acme", "Acme", "ACME Widgets", "Acorn", "Acorn", "Globex", "Initech")) {
+      suggester.add(company);
+    }
+    suggester.add(null);
+  }
+
+  @Test
+  void suggestsTheMostCommonMatchesFirst() {
+    assertEquals(List.of(new Suggestion("Acme", 3), new Suggestion("Acorn", 2), new Suggestion("ACME Widgets", 1)),
+      suggester.suggest("ac", 10));
+    assertEquals(List.of(new Suggestion("Acme", 3), new Suggestion("ACME Widgets", 1)),
+      suggester.suggest("ACM", 10));
+    assertEquals(List.of(), suggester.suggest("z", 10));
+  }
+
+  @Test
+  void keepsOnlyTheBestSuggestions() {
+    assertEquals(List.of(new Suggestion("Acme", 3), new Suggestion("Acorn", 2)), suggester.suggest("", 2));
+    // Ties are broken alphabetically
+    assertEquals(List.of(new Suggestion("ACME Widgets", 1), new Suggestion("Globex", 1)),
+      suggester.suggest("", 5).subList(2, 4));
+  }
+
+  @Test
+  void forgetsValuesNobodyHas() {
+    suggester.remove("Globex");
+    suggester.remove("Acme");
+    suggester.remove("Nobody");
+
+    assertEquals(List.of(), suggester.suggest("glo", 10));
+    assertEquals(List.of(new Suggestion("Acme", 2)), suggester.suggest("acme", 1));
+  }
+}
@@ -0,0 +1,141 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+
+import io.javalin.http.Context;
+
+/**
+ * Tests that `TotalCounter` picks the cheapest way to count each kind
+ * of filter, caches the expensive counts (but not ones that were running
+ * when the collection changed), bounds them by the request's deadline,
+ * and stops counting once it's shut down.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class TotalCounterSpec {
+
+  private MongoCollection<Document> collection;
+  private TotalCounter counter;
+  private Deadline deadline;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setupEach() {
+    collection = mock(MongoCollection.class);
+    when(collection.getCodecRegistry()).thenReturn(MongoClientSettings.getDefaultCodecRegistry());
+    when(collection.estimatedDocumentCount(any(EstimatedDocumentCountOptions.class))).thenReturn(1000L);
+    when(collection.countDocuments(any(Bson.class), any(CountOptions.class))).thenReturn(42L);
+    counter = new TotalCounter(collection, 60_000);
+    deadline = Deadline.of(mock(Context.class), 5_000);
+  }
+
+  @Test
+  void estimatesUnfilteredCounts() {
+    assertEquals(1000L, counter.count(new Document(), false, deadline).join());
+    verify(collection, never()).countDocuments(any(Bson.class), any(CountOptions.class));
+  }
+
+  @Test
+  void countsIndexedFiltersEveryTime() {
+    assertEquals(42L, counter.count(eq("companyFolded", "acme"), true, deadline).join());
+    assertEquals(42L, counter.count(eq("companyFolded", "acme"), true, deadline).join());
+    verify(collection, times(2)).countDocuments(any(Bson.class), any(CountOptions.class));
+  }
+
+  @Test
+  void cachesUnindexedCountsByFilter() {
+    assertEquals(42L, counter.count(eq("age", 25), false, deadline).join());
+    assertEquals(42L, counter.count(eq("age", 25), false, deadline).join());
+    verify(collection, times(1)).countDocuments(any(Bson.class), any(CountOptions.class));
+
+    counter.count(eq("age", 30), false, deadline).join();
+    verify(collection, times(2)).countDocuments(any(Bson.class), any(CountOptions.class));
+
+    counter.invalidate();
+    counter.count(eq("age", 25), false, deadline).join();
+    verify(collection, times(3)).countDocuments(any(Bson.class), any(CountOptions.class));
+  }
+
+  @Test
+  void doesNotCacheCountsThatStartedBeforeAnInvalidate() throws InterruptedException {
+    CountDownLatch counting = new CountDownLatch(1);
+    CountDownLatch changed = new CountDownLatch(1);
+    when(collection.countDocuments(any(Bson.class), any(CountOptions.class))).thenAnswer(invocation -> {
+      counting.countDown();
+      changed.await();
+      return 42L;
+    });
+
+    CompletableFuture<Long> stale = counter.count(eq("age", 25), false, deadline);
+    counting.await();
+    counter.invalidate();
+    changed.countDown();
+    assertEquals(42L, stale.join());
+
+    // The stale count wasn't cached, so this one counts again
+    counter.count(eq("age", 25), false, deadline).join();
+    verify(collection, times(2)).countDocuments(any(Bson.class), any(CountOptions.class));
+  }
+
+  @Test
+  void givesUpOnCountsAtTheDeadline() {
+    counter.count(eq("age", 25), false, deadline).join();
+
+    ArgumentCaptor<CountOptions> options = ArgumentCaptor.forClass(CountOptions.class);
+    verify(collection).countDocuments(any(Bson.class), options.capture());
+    long maxTime = options.getValue().getMaxTime(TimeUnit.MILLISECONDS);
+    assertTrue(maxTime > 0 && maxTime <= 5_000, "The count can take " + maxTime + "ms");
+  }
+
+  @Test
+  void rethrowsACountThatTimedOut() {
+    when(collection.countDocuments(any(Bson.class), any(CountOptions.class)))
+      .thenThrow(new MongoExecutionTimeoutException(50, "operation exceeded time limit"));
+
+    CompletableFuture<Long> total = counter.count(eq("age", 25), true, deadline);
+    // Unwrapped, so `Server` can still turn it into a 504
+    assertThrows(MongoExecutionTimeoutException.class, () -> TotalCounter.respond(mock(Context.class), total));
+  }
+
+  @Test
+  void reportsTheTotalInAHeader() {
+    Context ctx = mock(Context.class);
+    when(ctx.queryParam(TotalCounter.TOTAL_KEY)).thenReturn("true");
+
+    assertEquals(true, TotalCounter.wanted(ctx));
+    TotalCounter.respond(ctx, CompletableFuture.completedFuture(7L));
+    verify(ctx).header(TotalCounter.TOTAL_HEADER, "7");
+  }
+
+  @Test
+  void refusesCountsOnceShutDown() {
+    counter.shutdown();
+    assertThrows(RejectedExecutionException.class, () -> counter.count(eq("age", 25), false, deadline));
+    verify(collection, never()).countDocuments(any(Bson.class), any(CountOptions.class));
+  }
+}
@@ -0,0 +1,61 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings({ "MagicNumber" })
+public class TodoCodecSpec {
+
+  private final TodoCodec codec = new TodoCodec();
+
+  private Todo decode(BsonDocument document) {
+    return codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+  }
+
+  @Test
+  void roundTripsTodos() {
+    Todo todo = new Todo();
+    todo._id = new ObjectId().toHexString();
+    todo.name = "Special Todo";
+    todo.age = 35;
+    todo.company = "Initech";
+    todo.email = "special@test.com";
+    todo.role = "viewer";
+    todo.avatar = "https://gravatar.com/avatar/example3?d=identicon";
+    todo.completed = true;
+
+    BsonDocument document = new BsonDocument();
+    codec.encode(new BsonDocumentWriter(document), todo, EncoderContext.builder().build());
+    assertEquals(new ObjectId(todo._id), document.getObjectId("_id").getValue());
+
+    Todo decoded = decode(document);
+    assertEquals(todo, decoded);
+    assertEquals(todo.name, decoded.name);
+    assertEquals(todo.age, decoded.age);
+    assertEquals(todo.company, decoded.company);
+    assertEquals(todo.email, decoded.email);
+    assertEquals(todo.role, decoded.role);
+    assertEquals(todo.avatar, decoded.avatar);
+    assertTrue(decoded.isCompleted());
+  }
+
+  @Test
+  void skipsUnknownFields() {
+    Todo todo = decode(BsonDocument.parse("""
+        { "owner": "Blanche", "status": false, "body": "In sunt ex non", "name": "Seed", "completed": "yes" }
+        """));
+
+    assertEquals("Seed", todo.name);
+    assertFalse(todo.isCompleted());
+    assertEquals(Todo.class, codec.getEncoderClass());
+  }
+}
@@ -4,10 +4,14 @@ package umm3601.todo;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 
 
 
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -48,6 +52,7 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
 
 
 import io.javalin.http.BadRequestResponse;
@@ -57,6 +62,13 @@ import io.javalin.http.NotFoundResponse;
 
 import io.javalin.validation.Validation;
 import io.javalin.validation.Validator;
+import jakarta.servlet.ServletOutputStream;
+import umm3601.BatchLookup;
+import umm3601.CountMinSketch.HeavyHitter;
+import umm3601.QueryPlanner;
+import umm3601.ResponseFormats;
+import umm3601.SparseFields;
+import umm3601.TotalCounter;
 
 
 
@@ -81,6 +93,21 @@ private ArgumentCaptor<List<Todo>> todoArrayListCaptor;
 @Captor
 private ArgumentCaptor<Todo> todoCaptor;
 
+@Captor
+private ArgumentCaptor<Map<String, Long>> countCaptor;
+
+@Captor
+private ArgumentCaptor<Map<String, Map<String, Long>>> facetsCaptor;
+
+@Captor
+private ArgumentCaptor<Map<String, Object>> analyticsCaptor;
+
+@Captor
+private ArgumentCaptor<List<Map<String, Object>>> sparseCaptor;
+
+@Captor
+private ArgumentCaptor<List<BatchLookup.Entry<Todo>>> batchCaptor;
+
 private ObjectId todoId;
 
 @BeforeAll
@@ -106,10 +133,12 @@ static void teardown() {
 void setupEach() {
 
     MockitoAnnotations.openMocks(this);
+    when(ctx.outputStream()).thenReturn(mock(ServletOutputStream.class));
 
 
     MongoCollection<Document> todoDocuments = db.getCollection("todos");
     todoDocuments.drop();
+    db.getCollection("analytics").drop();
 
     List<Document> testTodos = new ArrayList<>();
     testTodos.add(new Document()
@@ -160,7 +189,7 @@ void setupEach() {
         //call controller
         todoController.getTodos(ctx);
         // capture the response and verify HTTP
-        verify(ctx).json(todoArrayListCaptor.capture()); //TodoArrayListCaptor needs definition
+        verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
         verify(ctx).status(HttpStatus.OK);
         List<Todo> returnedTodos = todoArrayListCaptor.getValue();
         //get returned list
@@ -198,7 +227,7 @@ void setupEach() {
     todoController.getTodos(ctx);
 
 
-    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
 
     verify(ctx).status(HttpStatus.OK);
 
@@ -223,7 +252,7 @@ void setupEach() {
 
         todoController.getTodo(ctx);
 
-        verify(ctx).json(todoCaptor.capture());
+        verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoCaptor.capture());
         verify(ctx).status(HttpStatus.OK);
         assertEquals(idStr, todoCaptor.getValue()._id);
     }
@@ -239,7 +268,7 @@ void setupEach() {
       todoController.getTodos(ctx);
 
       // capture the response and verify HTTP
-      verify(ctx).json(todoArrayListCaptor.capture());
+      verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
       verify(ctx).status(HttpStatus.OK);
 
       List<Todo> todosReturned = todoArrayListCaptor.getValue();
@@ -266,7 +295,7 @@ void setupEach() {
       //call controller
       todoController.getTodos(ctx);
 
-      verify(ctx).json(todoArrayListCaptor.capture());
+      verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
       verify(ctx).status(HttpStatus.OK);
 
       List<Todo> todosReturned = todoArrayListCaptor.getValue();
@@ -285,7 +314,7 @@ void setupEach() {
 
       todoController.getTodos(ctx);
 
-      verify(ctx).json(todoArrayListCaptor.capture());
+      verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
       verify(ctx).status(HttpStatus.OK);
 
       List<Todo> todosReturned = todoArrayListCaptor.getValue();
@@ -330,7 +359,7 @@ void setupEach() {
 
       todoController.getTodos(ctx);
 
-      verify(ctx).json(todoArrayListCaptor.capture());
+      verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
       verify(ctx).status(HttpStatus.OK);
 
       List<Todo> todosReturned = todoArrayListCaptor.getValue();
@@ -360,7 +389,7 @@ void setupEach() {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
     assertEquals(0, todoArrayListCaptor.getValue().size());
     for (Todo todo : todoArrayListCaptor.getValue()) {
@@ -369,6 +398,29 @@ void setupEach() {
     }
   }
 
+  @Test
+  void searchesCompaniesOfTodosWithoutShadowFields() throws IOException {
+    MongoCollection<Document> todoDocuments = db.getCollection("todos");
+    TodoController.COMPANY_SEARCH.prepare(todoDocuments, 2);
+    // Written from outside the server after the backfill, so no shadow fields
+    todoDocuments.insertOne(new Document("name", "Newer Todo").append("company", "Acme Widgets"));
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.COMPANY_KEY, Arrays.asList(new String[] {"acme"}));
+    queryParams.put(TodoController.COMPANY_MATCH_KEY, Arrays.asList(new String[] {"prefix"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.COMPANY_KEY)).thenReturn("acme");
+    Validator<String> validator = new Validation()
+      .validator(TodoController.COMPANY_MATCH_KEY, String.class, "prefix");
+    when(ctx.queryParamAsClass(TodoController.COMPANY_MATCH_KEY, String.class)).thenReturn(validator);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
+    assertEquals(List.of("Newer Todo", "Test Todo 1"),
+      todoArrayListCaptor.getValue().stream().map(todo -> todo.name).collect(Collectors.toList()));
+  }
+
   @Test
   void getTodosFromEmptyDatabase() throws IOException {
     db.getCollection("todos").drop();
@@ -376,18 +428,271 @@ void setupEach() {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
     assertTrue(todoArrayListCaptor.getValue().isEmpty());
   }
 
+  @Test
+  void snapshotAnswersTheSameAsTheDatabase() throws IOException {
+    TodoController snapshotController = new TodoController(db, true);
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("status")).thenReturn("complete");
+
+    snapshotController.getTodos(ctx);
+
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    List<String> names = todoArrayListCaptor.getValue().stream().map(todo -> todo.name).collect(Collectors.toList());
+    assertEquals(Arrays.asList("Special Todo", "Test Todo 2"), names);
+  }
+
+  @Test
+  void snapshotRefreshPicksUpChanges() {
+    MongoCollection<Document> todoDocuments = db.getCollection("todos");
+    TodoSnapshot snapshot = TodoSnapshot.load(todoDocuments);
+    assertEquals(3, snapshot.size());
+
+    // Nothing changed, so there's no need for a new snapshot
+    long reload = TodoController.SNAPSHOT_RELOAD_MILLIS;
+    assertTrue(snapshot == snapshot.refresh(todoDocuments, reload));
+
+    todoDocuments.insertOne(new Document("name", "Newer Todo").append("role", "admin"));
+    TodoSnapshot refreshed = snapshot.refresh(todoDocuments, reload);
+    assertEquals(4, refreshed.size());
+    assertEquals(1, refreshed.find(new TodoQuery(null, null, null, null, null, 0)).stream()
+      .filter(todo -> todo.name.equals("Newer Todo")).count());
+
+    todoDocuments.deleteOne(new Document("_id", todoId));
+    refreshed = refreshed.refresh(todoDocuments, reload);
+    assertEquals(3, refreshed.size());
+
+    // An update only shows up once the snapshot's due to be reloaded in full
+    todoDocuments.updateOne(Filters.eq("name", "Newer Todo"), new Document("$set", new Document("role", "viewer")));
+    TodoQuery admins = new TodoQuery(null, null, "admin", null, null, 0);
+    assertEquals(2, refreshed.refresh(todoDocuments, reload).find(admins).size());
+    assertEquals(1, refreshed.refresh(todoDocuments, 0).find(admins).size());
+  }
+
+  @Test
+  void countsTodosFromTheIndex() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+    queryParams.put(TodoController.COMPANY_KEY, Arrays.asList(new String[] {"acme"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("status")).thenReturn("incomplete");
+    when(ctx.queryParam(TodoController.COMPANY_KEY)).thenReturn("acme");
+
+    todoController.countTodos(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(1, countCaptor.getValue().get("count"));
+    assertEquals(2, todoController.todoIndex().count(Map.of("completed", "true"::equals)));
+  }
+
+  @Test
+  void countsTodosByAgeFromTheDatabase() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.AGE_KEY, Arrays.asList(new String[] {"35"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    Validation validation = new Validation();
+    Validator<Integer> validator = validation.validator(TodoController.AGE_KEY, Integer.class, "35");
+    when(ctx.queryParamAsClass(TodoController.AGE_KEY, Integer.class)).thenReturn(validator);
+
+    todoController.countTodos(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(1, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void countsFacetsFromTheIndex() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("status")).thenReturn("complete");
+    when(ctx.queryParam(QueryPlanner.EXPLAIN_KEY)).thenReturn("true");
+
+    todoController.getTodoFacets(ctx);
+
+    verify(ctx).header(eq(QueryPlanner.PLAN_HEADER), startsWith("BITMAP_INDEX"));
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), facetsCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    Map<String, Map<String, Long>> facets = facetsCaptor.getValue();
+    assertEquals(List.of("company", "role", "status"), List.copyOf(facets.keySet()));
+    assertEquals(Map.of("Globex", 1L, "Initech", 1L), facets.get("company"));
+    assertEquals(Map.of("editor", 1L, "viewer", 1L), facets.get("role"));
+    assertEquals(Map.of("complete", 2L), facets.get("status"));
+  }
+
+  @Test
+  void countsFacetsFromTheDatabase() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.AGE_KEY, Arrays.asList(new String[] {"30"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    Validation validation = new Validation();
+    Validator<Integer> validator = validation.validator(TodoController.AGE_KEY, Integer.class, "30");
+    when(ctx.queryParamAsClass(TodoController.AGE_KEY, Integer.class)).thenReturn(validator);
+    when(ctx.queryParam(QueryPlanner.EXPLAIN_KEY)).thenReturn("true");
+
+    todoController.getTodoFacets(ctx);
+
+    verify(ctx).header(QueryPlanner.PLAN_HEADER, "DATABASE");
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), facetsCaptor.capture());
+    Map<String, Map<String, Long>> facets = facetsCaptor.getValue();
+    assertEquals(Map.of("Globex", 1L), facets.get("company"));
+    assertEquals(Map.of("editor", 1L), facets.get("role"));
+    assertEquals(Map.of("complete", 1L), facets.get("status"));
+  }
+
+  @Test
+  void ordersFacetValuesMostCommonFirst() {
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+
+    todoController.getTodoFacets(ctx);
+
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), facetsCaptor.capture());
+    assertEquals(List.of("complete", "incomplete"), List.copyOf(facetsCaptor.getValue().get("status").keySet()));
+  }
+
+  @Test
+  void answersAnalyticsFromSketches() {
+    db.getCollection("todos").insertOne(
+      new Document("name", "Another").append("company", "ACME").append("role", "admin"));
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+
+    todoController.getTodoAnalytics(ctx);
+
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), analyticsCaptor.capture());
+    Map<String, Object> analytics = analyticsCaptor.getValue();
+    assertEquals(4L, analytics.get("todos"));
+    assertEquals(3L, analytics.get("distinctCompanies"));
+    assertEquals(new HeavyHitter("ACME", 2), ((List<?>) analytics.get("topCompanies")).get(0));
+    assertEquals(new HeavyHitter("admin", 2), ((List<?>) analytics.get("topRoles")).get(0));
+  }
+
+  @Test
+  void savedAnalyticsCatchUpWithNewTodos() {
+    MongoCollection<Document> store = db.getCollection("analytics");
+    todoController.currentAnalytics().save(store);
 
+    MongoCollection<Document> todoDocuments = db.getCollection("todos");
+    todoDocuments.insertOne(new Document("name", "Another").append("company", "Umbrella").append("role", "admin"));
+    TodoAnalytics caughtUp = TodoAnalytics.load(store);
+    assertTrue(caughtUp.catchUp(todoDocuments));
+    assertEquals(4L, caughtUp.summary(1).get("todos"));
+    assertEquals(4L, caughtUp.summary(1).get("distinctCompanies"));
+
+    // Sketches can't forget, so a delete means starting over
+    todoDocuments.deleteOne(Filters.eq("name", "Another"));
+    todoDocuments.deleteOne(Filters.eq("name", "Test Todo 1"));
+    assertFalse(caughtUp.catchUp(todoDocuments));
+    TodoAnalytics rebuilt = TodoAnalytics.build(todoDocuments);
+    assertTrue(rebuilt.catchUp(todoDocuments));
+    assertEquals(2L, rebuilt.summary(1).get("todos"));
+    assertEquals(2L, rebuilt.summary(1).get("distinctCompanies"));
+  }
 
+  @Test
+  void analyticsPickUpUpdatesWhenRebuilt() {
+    MongoCollection<Document> todoDocuments = db.getCollection("todos");
+    TodoAnalytics analytics = TodoAnalytics.build(todoDocuments);
+    assertEquals(3L, analytics.summary(1).get("distinctCompanies"));
+    assertFalse(analytics.rebuildDue(TodoController.ANALYTICS_REBUILD_MILLIS));
+    assertTrue(analytics.rebuildDue(0));
+
+    // Every todo moves to the same company; the sketches can't tell until they're rebuilt
+    todoDocuments.updateMany(new Document(), new Document("$set", new Document("company", "Umbrella")));
+    assertTrue(analytics.catchUp(todoDocuments));
+    assertEquals(3L, analytics.summary(1).get("distinctCompanies"));
+    TodoAnalytics rebuilt = TodoAnalytics.build(todoDocuments);
+    assertEquals(1L, rebuilt.summary(1).get("distinctCompanies"));
+    assertEquals(List.of(new HeavyHitter("Umbrella", 3)), rebuilt.summary(1).get("topCompanies"));
+  }
 
+  @Test
+  void trustsSavedAnalyticsAfterARestart() {
+    todoController.currentAnalytics().save(db.getCollection("analytics"));
+    db.getCollection("todos").updateMany(new Document(), new Document("$set", new Document("company", "Umbrella")));
+
+    // A restarted server uses what was saved, rather than reading every todo again
+    TodoController restarted = new TodoController(db);
+    assertEquals(3L, restarted.currentAnalytics().summary(1).get("distinctCompanies"));
+
+    // Until the sketches are rebuilt (in the background, normally)
+    restarted.rebuildAnalytics();
+    assertEquals(1L, restarted.currentAnalytics().summary(1).get("distinctCompanies"));
+    assertEquals(1L, TodoAnalytics.load(db.getCollection("analytics")).summary(1).get("distinctCompanies"));
+  }
 
+  @Test
+  void countsTheTotalAlongsideAPage() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("status")).thenReturn("complete");
+    when(ctx.queryParam("limit")).thenReturn("1");
+    when(ctx.queryParam(TotalCounter.TOTAL_KEY)).thenReturn("true");
 
+    todoController.getTodos(ctx);
 
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
+    assertEquals(1, todoArrayListCaptor.getValue().size());
+    verify(ctx).header(TotalCounter.TOTAL_HEADER, "2");
   }
 
+  @Test
+  void snapshotCountsTheTotalToo() {
+    TodoController snapshotController = new TodoController(db, true);
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    when(ctx.queryParam("limit")).thenReturn("2");
+    when(ctx.queryParam(TotalCounter.TOTAL_KEY)).thenReturn("true");
+
+    snapshotController.getTodos(ctx);
+
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), todoArrayListCaptor.capture());
+    assertEquals(2, todoArrayListCaptor.getValue().size());
+    verify(ctx).header(TotalCounter.TOTAL_HEADER, "3");
+  }
+
+  @Test
+  void sendsOnlyTheRequestedFields() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(SparseFields.FIELDS_KEY, List.of("name,completed")));
+    Validator<String> validator = new Validation()
+      .validator(SparseFields.FIELDS_KEY, String.class, "name,completed");
+    when(ctx.queryParamAsClass(SparseFields.FIELDS_KEY, String.class)).thenReturn(validator);
 
+    todoController.getTodos(ctx);
 
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), sparseCaptor.capture());
+    List<Map<String, Object>> todos = sparseCaptor.getValue();
+    assertEquals(3, todos.size());
+    assertEquals("Special Todo", todos.get(0).get("name"));
+    assertEquals(todoId.toHexString(), todos.get(0).get("_id"));
+    for (Map<String, Object> todo : todos) {
+      assertEquals(List.of("_id", "name", "completed"), List.copyOf(todo.keySet()));
+    }
+  }
 
+  @Test
+  void getsTodosByIdFromTheSnapshot() {
+    TodoController snapshotController = new TodoController(db, true);
+    String missingId = new ObjectId().toHexString();
+    String ids = missingId + "," + todoId.toHexString();
+    Validator<String> validator = new Validation().validator(BatchLookup.IDS_KEY, String.class, ids);
+    when(ctx.queryParamAsClass(BatchLookup.IDS_KEY, String.class)).thenReturn(validator);
+
+    snapshotController.getTodosById(ctx);
+
+    verify(ctx).attribute(eq(ResponseFormats.BODY_ATTRIBUTE), batchCaptor.capture());
+    List<BatchLookup.Entry<Todo>> todos = batchCaptor.getValue();
+    assertEquals(2, todos.size());
+    assertEquals(missingId, todos.get(0).id());
+    assertEquals(false, todos.get(0).found());
+    assertEquals(true, todos.get(1).found());
+    assertEquals("Special Todo", todos.get(1).item().name);
+  }
+}
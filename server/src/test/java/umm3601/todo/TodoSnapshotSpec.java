@@ -0,0 +1,162 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+
+import umm3601.CaseFoldedField.Match;
+
+@SuppressWarnings({ "MagicNumber", "unchecked" })
+public class TodoSnapshotSpec {
+
+  private ObjectId specialId;
+  private TodoSnapshot snapshot;
+
+  @BeforeEach
+  void setupEach() {
+    specialId = new ObjectId();
+    snapshot = TodoSnapshot.of(List.of(
+      new Document("_id", new ObjectId())
+        .append("name", "Test Todo 2")
+        .append("age", 30)
+        .append("company", "Globex")
+        .append("role", "editor")
+        .append("completed", true)
+        .append("body", "Buy MORE milk"),
+      new Document("_id", new ObjectId())
+        .append("name", "Test Todo 1")
+        .append("age", 25)
+        .append("company", "ACME")
+        .append("role", "admin")
+        .append("completed", false)
+        .append("body", "Walk the dog"),
+      new Document("_id", specialId)
+        .append("name", "Special Todo")
+        .append("age", 35)
+        .append("company", "Initech")
+        .append("role", "viewer")
+        .append("completed", true),
+      // No `completed` field at all, so it matches neither status
+      new Document("_id", new ObjectId())
+        .append("name", "Unfinished Business")
+        .append("company", "acme widgets")
+        .append("body", "Milk the cow")));
+  }
+
+  private List<String> names(TodoQuery query) {
+    return snapshot.find(query).stream().map(todo -> todo.name).toList();
+  }
+
+  @Test
+  void findsEverythingSortedByName() {
+    assertEquals(4, snapshot.size());
+    assertEquals(List.of("Special Todo", "Test Todo 1", "Test Todo 2", "Unfinished Business"),
+      names(new TodoQuery(null, null, null, null, null, 0)));
+  }
+
+  @Test
+  void appliesTheLimit() {
+    assertEquals(List.of("Special Todo", "Test Todo 1"), names(new TodoQuery(null, null, null, null, null, 2)));
+  }
+
+  @Test
+  void filtersByEachField() {
+    assertEquals(List.of("Test Todo 1"), names(new TodoQuery(25, null, null, null, null, 0)));
+    assertEquals(List.of("Test Todo 1", "Unfinished Business"),
+      names(new TodoQuery(null, "acme", null, null, null, 0)));
+    assertEquals(List.of("Test Todo 2"), names(new TodoQuery(null, null, "editor", null, null, 0)));
+    assertEquals(List.of(), names(new TodoQuery(null, null, "nobody", null, null, 0)));
+    assertEquals(List.of("Special Todo", "Test Todo 2"), names(new TodoQuery(null, null, null, true, null, 0)));
+    assertEquals(List.of("Test Todo 1"), names(new TodoQuery(null, null, null, false, null, 0)));
+    assertEquals(List.of("Test Todo 2", "Unfinished Business"),
+      names(new TodoQuery(null, null, null, null, "MiLk", 0)));
+  }
+
+  @Test
+  void matchesCompaniesByMode() {
+    assertEquals(List.of("Test Todo 1"), names(new TodoQuery(null, "Acme", Match.EXACT, null, null, null, 0)));
+    assertEquals(List.of("Test Todo 1", "Unfinished Business"),
+      names(new TodoQuery(null, "ACME", Match.PREFIX, null, null, null, 0)));
+    assertEquals(List.of("Unfinished Business"),
+      names(new TodoQuery(null, "widget", Match.CONTAINS, null, null, null, 0)));
+    assertEquals(List.of(), names(new TodoQuery(null, "widget", Match.PREFIX, null, null, null, 0)));
+  }
+
+  @Test
+  void combinesFilters() {
+    assertEquals(List.of("Test Todo 2"), names(new TodoQuery(null, "o", null, true, "milk", 0)));
+    assertEquals(List.of(), names(new TodoQuery(35, "acme", null, null, null, 0)));
+  }
+
+  @Test
+  void rebuildsTodos() {
+    Todo special = snapshot.find(new TodoQuery(35, null, null, null, null, 0)).get(0);
+
+    assertEquals(specialId.toHexString(), special._id);
+    assertEquals("Initech", special.company);
+    assertEquals("viewer", special.role);
+    assertTrue(special.isCompleted());
+
+    Todo unfinished = snapshot.find(new TodoQuery(null, "widgets", null, null, null, 0)).get(0);
+    assertEquals(null, unfinished.role);
+    assertFalse(unfinished.isCompleted());
+  }
+
+  /**
+   * A mock `todos` collection holding `documents`, in which the query
+   * for newly added todos finds none.
+   */
+  private static MongoCollection<Document> collectionOf(List<Document> documents) {
+    MongoCollection<Document> collection = mock(MongoCollection.class);
+    FindIterable<Document> all = mock(FindIterable.class);
+    FindIterable<Document> added = mock(FindIterable.class);
+    when(collection.find()).thenReturn(all);
+    when(all.into(any())).thenAnswer(invocation -> {
+      Collection<Document> into = invocation.getArgument(0);
+      into.addAll(documents);
+      return into;
+    });
+    when(collection.find(any(Bson.class))).thenReturn(added);
+    when(added.sort(any())).thenReturn(added);
+    when(added.into(any())).thenAnswer(invocation -> invocation.getArgument(0));
+    when(collection.estimatedDocumentCount()).thenReturn((long) documents.size());
+    return collection;
+  }
+
+  @Test
+  void picksUpUpdatesWhenReloaded() {
+    // Test Todo 1 is marked complete, and Special Todo moves to ACME
+    List<Document> updated = new ArrayList<>();
+    for (Todo todo : snapshot.find(new TodoQuery(null, null, null, null, null, 0))) {
+      updated.add(new Document("_id", new ObjectId(todo._id))
+        .append("name", todo.name)
+        .append("company", todo.name.equals("Special Todo") ? "ACME" : todo.company)
+        .append("completed", todo.name.equals("Test Todo 1") || todo.completed));
+    }
+    MongoCollection<Document> collection = collectionOf(updated);
+
+    // The number of todos hasn't changed, so until a reload is due, nothing has
+    assertTrue(snapshot == snapshot.refresh(collection, 60_000));
+
+    TodoSnapshot reloaded = snapshot.refresh(collection, 0);
+    assertEquals(List.of("Special Todo", "Test Todo 1", "Test Todo 2"),
+      reloaded.find(new TodoQuery(null, null, null, true, null, 0)).stream().map(todo -> todo.name).toList());
+    assertEquals("ACME", reloaded.get(specialId.toHexString()).company);
+  }
+}
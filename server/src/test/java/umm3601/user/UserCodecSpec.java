@@ -0,0 +1,109 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonObjectId;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `UserCodec` reads and writes users the same way
+ * MongoJack does.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class UserCodecSpec {
+
+  private UserCodec codec;
+
+  @BeforeEach
+  void setupEach() {
+    codec = new UserCodec();
+  }
+
+  private User decode(BsonDocument document) {
+    return codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+  }
+
+  @Test
+  void decodesAllFields() {
+    ObjectId id = new ObjectId();
+    BsonDocument document = BsonDocument.parse("""
+        {
+          "name": "Chris",
+          "age": 25,
+          "company": "UMM",
+          "email": "chris@this.that",
+          "avatar": "https://gravatar.com/avatar/8c9616d6cc5de638ea6920fb5d65fc6c?d=identicon",
+          "role": "admin"
+        }
+        """);
+    document.put("_id", new BsonObjectId(id));
+
+    User user = decode(document);
+
+    assertEquals(id.toHexString(), user._id);
+    assertEquals("Chris", user.name);
+    assertEquals(25, user.age);
+    assertEquals("UMM", user.company);
+    assertEquals("chris@this.that", user.email);
+    assertEquals("https://gravatar.com/avatar/8c9616d6cc5de638ea6920fb5d65fc6c?d=identicon", user.avatar);
+    assertEquals("admin", user.role);
+  }
+
+  @Test
+  void skipsUnknownAndMistypedFields() {
+    BsonDocument document = BsonDocument.parse("""
+        {
+          "name": "Pat",
+          "nickname": { "first": "P", "tags": [1, 2, 3] },
+          "age": { "$numberLong": "37" },
+          "company": 17,
+          "role": null
+        }
+        """);
+
+    User user = decode(document);
+
+    assertNull(user._id);
+    assertEquals("Pat", user.name);
+    assertEquals(37, user.age);
+    assertNull(user.company);
+    assertNull(user.role);
+  }
+
+  @Test
+  void roundTripsUsers() {
+    User user = new User();
+    user._id = new ObjectId().toHexString();
+    user.name = "Sam";
+    user.age = 45;
+    user.company = "OHMNET";
+    user.email = "sam@frogs.com";
+    user.role = "viewer";
+
+    BsonDocument document = new BsonDocument();
+    codec.encode(new BsonDocumentWriter(document), user, EncoderContext.builder().build());
+
+    // Ids are stored as real Object IDs, just like MongoJack's `@ObjectId @Id`.
+    assertEquals(new ObjectId(user._id), document.getObjectId("_id").getValue());
+    assertTrue(document.isNull("avatar"));
+
+    User decoded = decode(document);
+    assertEquals(user, decoded);
+    assertEquals(user.name, decoded.name);
+    assertEquals(user.age, decoded.age);
+    assertEquals(user.company, decoded.company);
+    assertEquals(user.email, decoded.email);
+    assertNull(decoded.avatar);
+    assertEquals(user.role, decoded.role);
+    assertEquals(User.class, codec.getEncoderClass());
+  }
+}
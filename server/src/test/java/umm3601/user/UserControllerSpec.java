@@ -9,6 +9,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -55,6 +56,13 @@ import io.javalin.validation.Validation;
 import io.javalin.validation.ValidationError;
 import io.javalin.validation.ValidationException;
 import io.javalin.validation.Validator;
+import jakarta.servlet.ServletOutputStream;
+import umm3601.BatchLookup;
+import umm3601.QueryPlanner;
+import umm3601.ResponseFormats;
+import umm3601.SparseFields;
+import umm3601.Suggester.Suggestion;
+import umm3601.TotalCounter;
 
 /**
  * Tests the logic of the UserController
@@ -101,6 +109,18 @@ class UserControllerSpec {
   @Captor
   private ArgumentCaptor<Map<String, String>> mapCaptor;
 
+  @Captor
+  private ArgumentCaptor<Map<String, Long>> countCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<Suggestion>> suggestionsCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<Map<String, Object>>> sparseCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<BatchLookup.Entry<User>>> batchCaptor;
+
   /**
    * Sets up (the connection to the) DB once; that connection and DB will
    * then be (re)used for all the tests, and closed in the `teardown()`
@@ -133,10 +153,12 @@ class UserControllerSpec {
     // Reset our mock context and argument captor (declared with Mockito
     // annotations @Mock and @Captor)
     MockitoAnnotations.openMocks(this);
+    when(ctx.outputStream()).thenReturn(mock(ServletOutputStream.class));
 
     // Setup database
     MongoCollection<Document> userDocuments = db.getCollection("users");
     userDocuments.drop();
+    db.getCollection(UserController.MIGRATIONS_COLLECTION).drop();
     List<Document> testUsers = new ArrayList<>();
     testUsers.add(
         new Document()
@@ -210,9 +232,10 @@ class UserControllerSpec {
     // `MockitoAnnotations.openMocks(this);` in our @BeforeEach
 
     // Specifically, we want to pay attention to the ArrayList<User> that
-    // is passed as input when ctx.json is called --- what is the argument
-    // that was passed? We capture it and can refer to it later.
-    verify(ctx).json(userArrayListCaptor.capture());
+    // is sent as the body of the response --- `ResponseFormats.respond(…)`
+    // stores it in the context's `BODY_ATTRIBUTE` before writing it out.
+    // What was it? We capture it and can refer to it later.
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
     // Check that the database collection holds the same number of documents
@@ -244,7 +267,8 @@ class UserControllerSpec {
    *      being tested with the constructed context `ctx`.
    *    - We also use the `userListArrayCaptor` (defined above)
    *      to capture the `ArrayList<User>` that the code under test
-   *      passes to `ctx.json(…)`. We can then confirm that the
+   *      sends as the body of the response (the context's
+   *      `ResponseFormats.BODY_ATTRIBUTE`). We can then confirm that the
    *      correct list of users (i.e., all the users with age 37)
    *      is passed in to be returned in the context.
    *    - Now we can use a variety of assertions to confirm that
@@ -288,9 +312,9 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    // Confirm that the code being tested calls `ctx.json(…)`, and capture whatever
-    // is passed in as the argument when `ctx.json()` is called.
-    verify(ctx).json(userArrayListCaptor.capture());
+    // Confirm that the code being tested sends a body, and capture whatever
+    // it sent (which `ResponseFormats.respond(…)` keeps in `BODY_ATTRIBUTE`).
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
     // Confirm that the code under test calls `ctx.status(HttpStatus.OK)` is called.
     verify(ctx).status(HttpStatus.OK);
 
@@ -318,7 +342,7 @@ class UserControllerSpec {
    * another way to test the same thing.
    *
    * An `ArgumentMatcher` has a method `matches` that returns `true`
-   * if the argument passed to `ctx.json(…)` (a `List<User>` in this case)
+   * if the body of the response (a `List<User>` in this case)
    * has the desired properties.
    *
    * This is probably overkill here, but it does illustrate a different
@@ -357,9 +381,9 @@ class UserControllerSpec {
     // point.
     verify(ctx).status(HttpStatus.OK);
 
-    // Verify that `ctx.json()` is called with a `List` of `User`s.
+    // Verify that the body of the response is a `List` of `User`s.
     // Each of those `User`s should have age 37.
-    verify(ctx).json(argThat(new ArgumentMatcher<List<User>>() {
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), argThat(new ArgumentMatcher<List<User>>() {
       @Override
       public boolean matches(List<User> users) {
         for (User user : users) {
@@ -504,7 +528,7 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
     // Confirm that all the users passed to `json` work for OHMNET.
@@ -522,7 +546,7 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
     // Confirm that all the users passed to `json` work for OHMNET.
@@ -546,7 +570,7 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
     assertEquals(2, userArrayListCaptor.getValue().size());
   }
@@ -572,7 +596,7 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
     assertEquals(1, userArrayListCaptor.getValue().size());
     for (User user : userArrayListCaptor.getValue()) {
@@ -588,7 +612,7 @@ class UserControllerSpec {
 
     userController.getUser(ctx);
 
-    verify(ctx).json(userCaptor.capture());
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
     assertEquals("Sam", userCaptor.getValue().name);
     assertEquals(samsId.toHexString(), userCaptor.getValue()._id);
@@ -626,10 +650,10 @@ class UserControllerSpec {
     when(ctx.queryParam("sortOrder")).thenReturn("asc");
     userController.getUsersGroupedByCompany(ctx);
 
-    // Capture the argument to `ctx.json()`
-    verify(ctx).json(userByCompanyListCaptor.capture());
+    // Capture the body of the response
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userByCompanyListCaptor.capture());
 
-    // Get the value that was passed to `ctx.json()`
+    // Get the body that was sent
     ArrayList<UserByCompany> result = userByCompanyListCaptor.getValue();
 
     // There are 3 companies in the test data, so we should have 3 entries in the
@@ -663,10 +687,10 @@ class UserControllerSpec {
     when(ctx.queryParam("sortOrder")).thenReturn("desc");
     userController.getUsersGroupedByCompany(ctx);
 
-    // Capture the argument to `ctx.json()`
-    verify(ctx).json(userByCompanyListCaptor.capture());
+    // Capture the body of the response
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userByCompanyListCaptor.capture());
 
-    // Get the value that was passed to `ctx.json()`
+    // Get the body that was sent
     ArrayList<UserByCompany> result = userByCompanyListCaptor.getValue();
 
     // There are 3 companies in the test data, so we should have 3 entries in the
@@ -692,10 +716,10 @@ class UserControllerSpec {
     when(ctx.queryParam("sortOrder")).thenReturn("asc");
     userController.getUsersGroupedByCompany(ctx);
 
-    // Capture the argument to `ctx.json()`
-    verify(ctx).json(userByCompanyListCaptor.capture());
+    // Capture the body of the response
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userByCompanyListCaptor.capture());
 
-    // Get the value that was passed to `ctx.json()`
+    // Get the body that was sent
     ArrayList<UserByCompany> result = userByCompanyListCaptor.getValue();
 
     // There are 3 companies in the test data, so we should have 3 entries in the
@@ -1183,4 +1207,382 @@ class UserControllerSpec {
     // Assert
     assertEquals("https://gravatar.com/avatar/?d=mp", avatar);
   }
+
+  @Test
+  void md5MatchesKnownHashes() throws NoSuchAlgorithmException {
+    // These are the hashes used in the avatars of the test users above.
+    assertEquals("8c9616d6cc5de638ea6920fb5d65fc6c", userController.md5("chris@this.that"));
+    assertEquals("08b7610b558a4cbbd20ae99072801f4d", userController.md5("sam@frogs.com"));
+    // Emails are lowercased before they're hashed.
+    assertEquals("08b7610b558a4cbbd20ae99072801f4d", userController.md5("Sam@Frogs.com"));
+  }
+
+  @Test
+  void generateAvatarCachesHashes() throws NoSuchAlgorithmException {
+    String email = "test@example.com";
+    UserController controller = Mockito.spy(userController);
+
+    String firstAvatar = controller.generateAvatar(email);
+    String secondAvatar = controller.generateAvatar(email);
+
+    // The second call should be answered from the cache without hashing again.
+    assertEquals(firstAvatar, secondAvatar);
+    verify(controller, times(1)).md5(email);
+  }
+
+  @Test
+  void backfillAvatarsUpdatesStaleAvatars() {
+    db.getCollection("users")
+        .updateOne(eq("_id", samsId), new Document("$set", new Document("avatar", "https://example.com/stale")));
+
+    // Only Sam's avatar was out of date, so only Sam should be updated,
+    // and a batch size of 1 exercises writing several batches.
+    assertEquals(1, userController.backfillAvatars(1));
+
+    Document sam = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertEquals("https://gravatar.com/avatar/08b7610b558a4cbbd20ae99072801f4d?d=identicon", sam.get("avatar"));
+
+    // Running it again shouldn't change anything.
+    assertEquals(0, userController.backfillAvatars(UserController.BACKFILL_BATCH_SIZE));
+  }
+
+  @Test
+  void backfillsAvatarsOnlyOnce() {
+    db.getCollection("users")
+        .updateOne(eq("_id", samsId), new Document("$set", new Document("avatar", "https://example.com/stale")));
+    assertEquals(1, userController.backfillAvatarsOnce(UserController.BACKFILL_BATCH_SIZE));
+    assertEquals(1, db.getCollection(UserController.MIGRATIONS_COLLECTION)
+        .countDocuments(eq("_id", UserController.AVATAR_BACKFILL_MARKER)));
+
+    // Once it's been run, starting again doesn't read (or fix) the users
+    db.getCollection("users")
+        .updateOne(eq("_id", samsId), new Document("$set", new Document("avatar", "https://example.com/stale")));
+    assertEquals(0, userController.backfillAvatarsOnce(UserController.BACKFILL_BATCH_SIZE));
+    Document sam = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertEquals("https://example.com/stale", sam.get("avatar"));
+  }
+
+  @Test
+  void cachesAvatarsByLowercasedEmail() throws NoSuchAlgorithmException {
+    UserController controller = Mockito.spy(userController);
+
+    String lower = controller.generateAvatar("sam@frogs.com");
+    String mixed = controller.generateAvatar("Sam@Frogs.com");
+
+    // Both spellings hash the same, so the second is answered from the cache
+    assertEquals(lower, mixed);
+    verify(controller, times(1)).md5(Mockito.anyString());
+  }
+
+  private long countUsers(Map<String, String> params) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    params.forEach((key, value) -> {
+      queryParams.put(key, Arrays.asList(new String[] {value}));
+      when(ctx.queryParam(key)).thenReturn(value);
+    });
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    if (params.containsKey(UserController.AGE_KEY)) {
+      Validation validation = new Validation();
+      Validator<Integer> validator = validation.validator(
+        UserController.AGE_KEY, Integer.class, params.get(UserController.AGE_KEY));
+      when(ctx.queryParamAsClass(UserController.AGE_KEY, Integer.class)).thenReturn(validator);
+    }
+    if (params.containsKey(UserController.ROLE_KEY)) {
+      Validation validation = new Validation();
+      Validator<String> validator = validation.validator(
+        UserController.ROLE_KEY, String.class, params.get(UserController.ROLE_KEY));
+      when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class)).thenReturn(validator);
+    }
+
+    userController.countUsers(ctx);
+
+    verify(ctx, Mockito.atLeastOnce()).json(countCaptor.capture());
+    return countCaptor.getValue().get("count");
+  }
+
+  @Test
+  void countsUsersFromTheIndex() {
+    assertEquals(4, countUsers(Map.of()));
+    assertEquals(2, countUsers(Map.of(UserController.ROLE_KEY, "viewer")));
+    assertEquals(2, countUsers(Map.of(UserController.COMPANY_KEY, "ohm", UserController.ROLE_KEY, "viewer")));
+    assertEquals(0, countUsers(Map.of(UserController.COMPANY_KEY, "IBM", UserController.ROLE_KEY, "admin")));
+    verify(ctx, Mockito.atLeastOnce()).status(HttpStatus.OK);
+  }
+
+  @Test
+  void countsUsersByAgeFromTheDatabase() {
+    assertEquals(2, countUsers(Map.of(UserController.AGE_KEY, "37")));
+  }
+
+  @Test
+  void userIndexFollowsAddsAndDeletes() throws IOException {
+    assertEquals(4, userController.userIndex().size());
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+    assertEquals(1, userController.userIndex().count(Map.of(UserController.ROLE_KEY, "viewer"::equals)));
+
+    User newUser = new User();
+    newUser.name = "Test User";
+    newUser.age = 25;
+    newUser.company = "testers";
+    newUser.email = "test@example.com";
+    newUser.role = "viewer";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+
+    assertEquals(2, userController.userIndex().count(Map.of(UserController.ROLE_KEY, "viewer"::equals)));
+    assertEquals(1, userController.userIndex().count(Map.of(UserController.COMPANY_KEY, "testers"::equals)));
+  }
+
+  @Test
+  void parallelScanFindsUsersByCompany() throws IOException {
+    UserController parallelController = new UserController(db, true);
+    // With the in-memory copy already loaded, scanning it is cheaper than asking MongoDB
+    parallelController.currentUsers();
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {"m"}));
+    queryParams.put("sortby", Arrays.asList(new String[] {"age"}));
+    queryParams.put(UserController.SORT_ORDER_KEY, Arrays.asList(new String[] {"desc"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("m");
+    when(ctx.queryParam("sortby")).thenReturn("age");
+    when(ctx.queryParam(UserController.SORT_ORDER_KEY)).thenReturn("desc");
+    when(ctx.queryParam(QueryPlanner.EXPLAIN_KEY)).thenReturn("true");
+
+    parallelController.getUsers(ctx);
+
+    verify(ctx).header(Mockito.eq(QueryPlanner.PLAN_HEADER), argThat(plan -> plan.startsWith("MEMORY_SCAN")));
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    // UMM, IBM, and OHMNET all contain an "m", so everyone matches,
+    // and they should come back oldest first.
+    List<String> names = userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList());
+    assertEquals(Arrays.asList("Sam", "Chris"), List.of(names.get(0), names.get(3)));
+    assertEquals(4, names.size());
+  }
+
+  @Test
+  void cachedUsersAreReloadedAfterWrites() throws IOException {
+    UserController parallelController = new UserController(db, true);
+    assertEquals(4, parallelController.currentUsers().size());
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    parallelController.deleteUser(ctx);
+
+    assertEquals(3, parallelController.currentUsers().size());
+  }
+
+  /**
+   * Ask `userController` for the users whose company matches `company`
+   * in the given `companyMatch` mode, and return their names.
+   */
+  private List<String> namesWithCompany(String company, String mode) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {company}));
+    queryParams.put(UserController.COMPANY_MATCH_KEY, Arrays.asList(new String[] {mode}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn(company);
+    Validator<String> validator = new Validation()
+      .validator(UserController.COMPANY_MATCH_KEY, String.class, mode);
+    when(ctx.queryParamAsClass(UserController.COMPANY_MATCH_KEY, String.class)).thenReturn(validator);
+
+    userController.getUsers(ctx);
+
+    verify(ctx, Mockito.atLeastOnce())
+      .attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), userArrayListCaptor.capture());
+    return userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList());
+  }
+
+  @Test
+  void searchesCompaniesWithShadowFields() {
+    // The test users were inserted without the shadow fields, so fill them in
+    assertEquals(4, UserController.COMPANY_SEARCH.prepare(db.getCollection("users"), 2));
+
+    assertEquals(List.of("Jamie", "Sam"), namesWithCompany("ohmnet", "exact"));
+    assertEquals(List.of(), namesWithCompany("ohm", "exact"));
+    assertEquals(List.of("Jamie", "Sam"), namesWithCompany("Oh", "PREFIX"));
+    assertEquals(List.of("Jamie", "Sam"), namesWithCompany("mne", "contains"));
+    assertEquals(List.of("Chris", "Jamie", "Pat", "Sam"), namesWithCompany("m", "contains"));
+  }
+
+  @Test
+  void searchesCompaniesOfUsersWithoutShadowFields() {
+    // The test users were inserted without the shadow fields (as if they'd been
+    // seeded from outside the server), and `prepare()` hasn't filled them in
+    assertEquals(List.of("Jamie", "Sam"), namesWithCompany("ohmnet", "exact"));
+    assertEquals(List.of(), namesWithCompany("ohm", "exact"));
+    assertEquals(List.of("Jamie", "Sam"), namesWithCompany("Oh", "PREFIX"));
+    assertEquals(List.of("Jamie", "Sam"), namesWithCompany("mne", "contains"));
+    assertEquals(List.of("Chris", "Jamie", "Pat", "Sam"), namesWithCompany("m", "contains"));
+  }
+
+  @Test
+  void newUsersGetCompanyShadowFields() throws IOException {
+    User newUser = new User();
+    newUser.name = "Test User";
+    newUser.age = 25;
+    newUser.company = "Testers";
+    newUser.email = "test@example.com";
+    newUser.role = "viewer";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+
+    Document added = db.getCollection("users").find(eq("name", "Test User")).first();
+    assertEquals("testers", added.get("companyFolded"));
+    assertEquals(List.of("tes", "est", "ste", "ter", "ers"), added.getList("companyGrams", String.class));
+  }
+
+  @Test
+  void rejectsUnknownCompanyMatchModes() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_MATCH_KEY, Arrays.asList(new String[] {"fuzzy"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    Validator<String> validator = new Validation()
+      .validator(UserController.COMPANY_MATCH_KEY, String.class, "fuzzy");
+    when(ctx.queryParamAsClass(UserController.COMPANY_MATCH_KEY, String.class)).thenReturn(validator);
+
+    assertThrows(ValidationException.class, () -> userController.getUsers(ctx));
+  }
+
+  /**
+   * Ask `userController` for the company suggestions for `prefix`.
+   */
+  private List<Suggestion> suggestCompanies(String prefix) {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.PREFIX_KEY, List.of(prefix)));
+    when(ctx.queryParam(UserController.PREFIX_KEY)).thenReturn(prefix);
+
+    userController.suggestCompanies(ctx);
+
+    verify(ctx, Mockito.atLeastOnce())
+      .attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), suggestionsCaptor.capture());
+    return suggestionsCaptor.getValue();
+  }
+
+  @Test
+  void suggestsCompaniesByPrefix() {
+    assertEquals(List.of(new Suggestion("OHMNET", 2)), suggestCompanies("oh"));
+    assertEquals(List.of(new Suggestion("OHMNET", 2), new Suggestion("IBM", 1), new Suggestion("UMM", 1)),
+      suggestCompanies(""));
+    assertEquals(List.of(), suggestCompanies("x"));
+  }
+
+  @Test
+  void companySuggestionsFollowDeletes() {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    assertEquals(List.of(new Suggestion("OHMNET", 1)), suggestCompanies("OHM"));
+  }
+
+  @Test
+  void rejectsTooManySuggestions() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.LIMIT_KEY, List.of("1000")));
+    Validator<Integer> validator = new Validation().validator(UserController.LIMIT_KEY, Integer.class, "1000");
+    when(ctx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class)).thenReturn(validator);
+
+    assertThrows(ValidationException.class, () -> userController.suggestCompanies(ctx));
+  }
+
+  @Test
+  void reportsTheTotalNumberOfUsers() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.queryParam(TotalCounter.TOTAL_KEY)).thenReturn("true");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).header(TotalCounter.TOTAL_HEADER, "4");
+  }
+
+  /**
+   * Ask `userController` for all the users, but only the `fields` of each.
+   */
+  private void getUserFields(String fields) {
+    when(ctx.queryParamMap()).thenReturn(Map.of(SparseFields.FIELDS_KEY, List.of(fields)));
+    Validator<String> validator = new Validation().validator(SparseFields.FIELDS_KEY, String.class, fields);
+    when(ctx.queryParamAsClass(SparseFields.FIELDS_KEY, String.class)).thenReturn(validator);
+
+    userController.getUsers(ctx);
+  }
+
+  @Test
+  void sendsOnlyTheRequestedFields() {
+    getUserFields("name");
+
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), sparseCaptor.capture());
+    List<Map<String, Object>> users = sparseCaptor.getValue();
+    assertEquals(4, users.size());
+    for (Map<String, Object> user : users) {
+      assertEquals(List.of("_id", "name"), List.copyOf(user.keySet()));
+      assertTrue(user.get("_id") instanceof String);
+    }
+    assertTrue(users.stream().anyMatch(user -> samsId.toHexString().equals(user.get("_id"))));
+  }
+
+  @Test
+  void rejectsFieldsThatArentInTheApi() {
+    assertThrows(ValidationException.class, () -> getUserFields("name,companyFolded"));
+  }
+
+  /**
+   * Ask `controller` for the users with the given (comma-separated) ids.
+   */
+  private void getUsersById(UserController controller, String ids) {
+    Validator<String> validator = new Validation().validator(BatchLookup.IDS_KEY, String.class, ids);
+    when(ctx.queryParamAsClass(BatchLookup.IDS_KEY, String.class)).thenReturn(validator);
+
+    controller.getUsersById(ctx);
+  }
+
+  @Test
+  void getsUsersByIdInRequestOrder() {
+    String missingId = new ObjectId().toHexString();
+    String chrisId = db.getCollection("users").find(eq("name", "Chris")).first().getObjectId("_id").toHexString();
+
+    getUsersById(userController, samsId.toHexString() + "," + missingId + ", " + chrisId.toUpperCase());
+
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), batchCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    List<BatchLookup.Entry<User>> users = batchCaptor.getValue();
+    assertEquals(3, users.size());
+    assertEquals("Sam", users.get(0).item().name);
+    assertEquals(missingId, users.get(1).id());
+    assertEquals(false, users.get(1).found());
+    assertEquals(null, users.get(1).item());
+    assertEquals(chrisId, users.get(2).id());
+    assertEquals("Chris", users.get(2).item().name);
+  }
+
+  @Test
+  void getsUsersByIdFromTheInMemoryCopy() {
+    UserController scanningController = new UserController(db, true);
+    scanningController.currentUsers();
+    // The in-memory copy still has Sam, even though the database doesn't
+    db.getCollection("users").deleteOne(eq("_id", samsId));
+
+    getUsersById(scanningController, samsId.toHexString());
+
+    verify(ctx).attribute(Mockito.eq(ResponseFormats.BODY_ATTRIBUTE), batchCaptor.capture());
+    assertEquals("Sam", batchCaptor.getValue().get(0).item().name);
+  }
+
+  @Test
+  void rejectsTooManyIds() {
+    UserController limitedController = new UserController(db, false, 2);
+    String ids = String.join(",", samsId.toHexString(), samsId.toHexString(), samsId.toHexString());
+
+    assertThrows(ValidationException.class, () -> getUsersById(limitedController, ids));
+  }
+
+  @Test
+  void rejectsIllegalIds() {
+    assertThrows(ValidationException.class, () -> getUsersById(userController, samsId.toHexString() + ",bad"));
+  }
 }